@@ -28,6 +28,7 @@ import net.ivpn.core.common.dagger.ApplicationScope;
 import net.ivpn.core.common.prefs.PackagesPreference;
 import net.ivpn.core.common.prefs.Settings;
 import net.ivpn.core.vpn.NetworkUtils;
+import net.ivpn.core.vpn.TunnelStatsProvider;
 import net.ivpn.core.vpn.controller.VpnBehaviorController;
 import net.ivpn.core.vpn.wireguard.ConfigManager;
 
@@ -59,22 +60,27 @@ public final class GoBackend implements Backend {
     private VpnBehaviorController vpnBehaviorController;
     private PackagesPreference packagesPreference;
     private Settings settings;
+    private TunnelStatsProvider tunnelStatsProvider;
 
     @Nullable
     private Tunnel currentTunnel;
     @Nullable
     private Config currentConfig;
-    private int currentTunnelHandle = -1;
+    private volatile int currentTunnelHandle = -1;
+    //libwg-go keeps tunnel handles in an unsynchronized map, UAPI reads must not overlap wgTurnOn/wgTurnOff
+    private final Object handleLock = new Object();
 
     @Inject
     GoBackend(Context context, VpnBehaviorController vpnBehaviorController,
-              PackagesPreference packagesPreference, Settings settings) {
+              PackagesPreference packagesPreference, Settings settings,
+              TunnelStatsProvider tunnelStatsProvider) {
         LOGGER.info("init");
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go");
         this.context = context;
         this.packagesPreference = packagesPreference;
         this.vpnBehaviorController = vpnBehaviorController;
         this.settings = settings;
+        this.tunnelStatsProvider = tunnelStatsProvider;
 
         LOGGER.info("end init");
     }
@@ -253,7 +259,9 @@ public final class GoBackend implements Backend {
                 if (tun == null)
                     throw new Exception("Go backend v" + wgVersion());
                 LOGGER.info("Tunnel already up");
-                currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+                synchronized (handleLock) {
+                    currentTunnelHandle = wgTurnOn(tunnel.getName(), tun.detachFd(), goConfig);
+                }
             }
             if (currentTunnelHandle < 0)
                 throw new Exception("Unable to turn tunnel on (wgTurnOn return " + currentTunnelHandle + ')');
@@ -263,6 +271,13 @@ public final class GoBackend implements Backend {
 
             service.protect(wgGetSocketV4(currentTunnelHandle));
             service.protect(wgGetSocketV6(currentTunnelHandle));
+
+            final int handle = currentTunnelHandle;
+            tunnelStatsProvider.startWireGuardSampling(() -> {
+                synchronized (handleLock) {
+                    return currentTunnelHandle == handle ? wgGetConfig(handle) : null;
+                }
+            });
         } else {
             LOGGER.info("Bringing tunnel down");
 
@@ -271,9 +286,12 @@ public final class GoBackend implements Backend {
                 return;
             }
 
-            wgTurnOff(currentTunnelHandle);
+            tunnelStatsProvider.stop();
+            synchronized (handleLock) {
+                wgTurnOff(currentTunnelHandle);
+                currentTunnelHandle = -1;
+            }
             currentTunnel = null;
-            currentTunnelHandle = -1;
             currentConfig = null;
         }
 
@@ -333,10 +351,13 @@ public final class GoBackend implements Backend {
             if (owner != null) {
                 final Tunnel tunnel = owner.currentTunnel;
                 if (tunnel != null) {
-                    if (owner.currentTunnelHandle != -1)
-                        wgTurnOff(owner.currentTunnelHandle);
+                    owner.tunnelStatsProvider.stop();
+                    synchronized (owner.handleLock) {
+                        if (owner.currentTunnelHandle != -1)
+                            wgTurnOff(owner.currentTunnelHandle);
+                        owner.currentTunnelHandle = -1;
+                    }
                     owner.currentTunnel = null;
-                    owner.currentTunnelHandle = -1;
                     owner.currentConfig = null;
                 }
             }
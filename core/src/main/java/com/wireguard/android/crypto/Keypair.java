@@ -7,6 +7,7 @@
 package com.wireguard.android.crypto;
 
 import java.security.SecureRandom;
+import java.util.Arrays;
 
 /**
  * Represents a Curve25519 keypair as used by WireGuard.
@@ -53,4 +54,11 @@ public class Keypair {
     public String getPublicKey() {
         return KeyEncoding.keyToBase64(publicKey);
     }
+
+    /**
+     * Wipes the private key of a keypair which is not going to be used.
+     */
+    public void destroy() {
+        Arrays.fill(privateKey, (byte) 0);
+    }
 }
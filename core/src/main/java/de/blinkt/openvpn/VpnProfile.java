@@ -65,6 +65,9 @@ public class VpnProfile implements Serializable, Cloneable {
     // Don't change this, not all parts of the program use this constant
     public static final String INLINE_TAG = "[[INLINE]]";
     private static final String DISPLAYNAME_TAG = "[[NAME]]";
+    // Placeholders of the parts which change between connections in a config template
+    public static final String REMOTES_TAG = "[[REMOTES]]";
+    public static final String REMOTE_CN_TAG = "[[REMOTE_CN]]";
 
     private static final long serialVersionUID = 7085688938959334563L;
     private static final int MAXLOGLEVEL = 4;
@@ -239,20 +242,35 @@ public class VpnProfile implements Serializable, Cloneable {
     }
 
     public void moveOptionsToConnection() {
-        mConnections = new Connection[1];
-        Connection conn = new Connection();
+        // Connection injects its dependencies when created, so a single one is reused
+        Connection conn;
+        if (mConnections != null && mConnections.length == 1) {
+            conn = mConnections[0];
+        } else {
+            mConnections = new Connection[1];
+            conn = new Connection();
+            mConnections[0] = conn;
+        }
 
         conn.mServerName = mServerName;
         conn.mServerPort = mServerPort;
         conn.mUseUdp = mUseUdp;
         conn.mCustomConfiguration = "";
+        conn.mUseCustomConfig = false;
+        conn.mEnabled = true;
+        conn.mConnectTimeout = 0;
         conn.ipAddresses = ipAddresses;
+    }
 
-        mConnections[0] = conn;
-
+    /**
+     * Config with {@link #REMOTES_TAG} and {@link #REMOTE_CN_TAG} in place of the
+     * parts which depend on the server, see {@link net.ivpn.core.vpn.openvpn.ProfileTemplate}
+     */
+    public String getConfigTemplate(Context context) {
+        return getConfigFile(context, false, true);
     }
 
-    private String getConfigFile(Context context, boolean configForOvpn3) {
+    private String getConfigFile(Context context, boolean configForOvpn3, boolean isTemplate) {
 
         File cacheDir = context.getCacheDir();
         StringBuilder cfg = new StringBuilder();
@@ -328,7 +346,7 @@ public class VpnProfile implements Serializable, Cloneable {
         boolean canUsePlainRemotes = true;
 
         if (mConnections.length == 1) {
-            cfg.append(mConnections[0].getConnectionBlock());
+            cfg.append(isTemplate ? REMOTES_TAG : mConnections[0].getConnectionBlock());
         } else {
             for (Connection conn : mConnections) {
                 canUsePlainRemotes = canUsePlainRemotes && conn.isOnlyRemote();
@@ -484,7 +502,8 @@ public class VpnProfile implements Serializable, Cloneable {
         // Authentication
         if (mAuthenticationType != TYPE_STATICKEYS) {
             if (mCheckRemoteCN) {
-                if (mRemoteCN == null || mRemoteCN.equals(""))
+                String remoteCN = isTemplate ? REMOTE_CN_TAG : openVpnEscape(mRemoteCN);
+                if (!isTemplate && (mRemoteCN == null || mRemoteCN.equals("")))
                     cfg.append("verify-x509-name ").append(openVpnEscape(mConnections[0].mServerName)).append(" name\n");
                 else
                     switch (mX509AuthType) {
@@ -493,19 +512,19 @@ public class VpnProfile implements Serializable, Cloneable {
                         case X509_VERIFY_TLSREMOTE_COMPAT_NOREMAPPING:
                             cfg.append( "compat-names no-remapping\n");
                         case X509_VERIFY_TLSREMOTE:
-                            cfg.append("tls-remote ").append(openVpnEscape(mRemoteCN)).append("\n");
+                            cfg.append("tls-remote ").append(remoteCN).append("\n");
                             break;
 
                         case X509_VERIFY_TLSREMOTE_RDN:
-                            cfg.append("verify-x509-name ").append(openVpnEscape(mRemoteCN)).append(" name\n");
+                            cfg.append("verify-x509-name ").append(remoteCN).append(" name\n");
                             break;
 
                         case X509_VERIFY_TLSREMOTE_RDN_PREFIX:
-                            cfg.append("verify-x509-name ").append(openVpnEscape(mRemoteCN)).append(" name-prefix\n");
+                            cfg.append("verify-x509-name ").append(remoteCN).append(" name-prefix\n");
                             break;
 
                         case X509_VERIFY_TLSREMOTE_DN:
-                            cfg.append("verify-x509-name ").append(openVpnEscape(mRemoteCN)).append("\n");
+                            cfg.append("verify-x509-name ").append(remoteCN).append("\n");
                             break;
                     }
                 if (!TextUtils.isEmpty(mx509UsernameField))
@@ -657,7 +676,7 @@ public class VpnProfile implements Serializable, Cloneable {
 
     public void writeConfigFile(Context context) throws IOException {
         FileWriter cfg = new FileWriter(VPNLaunchHelper.getConfigFilePath(context));
-        cfg.write(getConfigFile(context, false));
+        cfg.write(getConfigFile(context, false, false));
         cfg.flush();
         cfg.close();
     }
@@ -12,6 +12,7 @@ import net.ivpn.core.IVPNApplication;
 import net.ivpn.core.common.prefs.Settings;
 import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.common.multihop.MultiHopController;
+import net.ivpn.core.common.pinger.HostLatencyStore;
 import net.ivpn.core.common.utils.DomainResolver;
 import net.ivpn.core.rest.data.model.Port;
 import net.ivpn.core.rest.data.model.ServerType;
@@ -43,6 +44,8 @@ public class Connection implements Serializable, Cloneable {
     transient ServersRepository serversRepository;
     @Inject
     transient MultiHopController multiHopController;
+    @Inject
+    transient HostLatencyStore hostLatencyStore;
 
     public Connection() {
         IVPNApplication.appComponent.provideActivityComponent().create().inject(this);
@@ -65,9 +68,11 @@ public class Connection implements Serializable, Cloneable {
         return cfg;
     }
 
+    // OpenVPN tries the remotes in order, so the fastest host comes first and hosts which
+    // stopped replying come last instead of being picked again by remote-random
     private String getServerConnectionConfWithIpAddresses() {
         StringBuilder cfg = new StringBuilder();
-        for (String ip : ipAddresses) {
+        for (String ip : hostLatencyStore.sortByLatency(ipAddresses)) {
             cfg.append("remote ");
             cfg.append(ip);
             cfg.append(" ");
@@ -79,7 +84,6 @@ public class Connection implements Serializable, Cloneable {
                 cfg.append(" tcp-client\n");
             }
         }
-        cfg.append("remote-random\n");
         Log.d("Connection", "getServerConnectionConfWithIpAddresses: " + cfg.toString());
         return cfg.toString();
     }
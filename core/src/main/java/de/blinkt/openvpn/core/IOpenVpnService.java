@@ -25,4 +25,6 @@ public interface IOpenVpnService {
     String getTunReopenStatus();
 
     ParcelFileDescriptor openTun();
+
+    void onByteCount(long in, long out);
 }
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits the byte stream of the management interface into lines.
+ * <p>
+ * Complete lines are handed out as a region of the read buffer, only a line which spans
+ * several reads is copied into an internal buffer that is reused for the next lines.
+ * Trailing "\r" is stripped. Nothing is decoded here, the handler decides which lines
+ * are worth a {@link String}.
+ */
+class ManagementLineFramer {
+
+    interface LineHandler {
+        void onLine(byte[] buffer, int offset, int length);
+    }
+
+    private static final int INITIAL_CAPACITY = 2048;
+
+    private byte[] partial = new byte[INITIAL_CAPACITY];
+    private int partialLength;
+
+    void feed(byte[] data, int offset, int count, LineHandler handler) {
+        int end = offset + count;
+        int lineStart = offset;
+        for (int i = offset; i < end; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            if (partialLength == 0) {
+                dispatch(data, lineStart, i - lineStart, handler);
+            } else {
+                append(data, lineStart, i - lineStart);
+                int length = partialLength;
+                partialLength = 0;
+                dispatch(partial, 0, length, handler);
+            }
+            lineStart = i + 1;
+        }
+        if (lineStart < end) {
+            append(data, lineStart, end - lineStart);
+        }
+    }
+
+    void reset() {
+        partialLength = 0;
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        int required = partialLength + length;
+        if (required > partial.length) {
+            byte[] grown = new byte[Math.max(required, partial.length * 2)];
+            System.arraycopy(partial, 0, grown, 0, partialLength);
+            partial = grown;
+        }
+        System.arraycopy(data, offset, partial, partialLength, length);
+        partialLength = required;
+    }
+
+    private static void dispatch(byte[] buffer, int offset, int length, LineHandler handler) {
+        if (length > 0 && buffer[offset + length - 1] == '\r') {
+            length--;
+        }
+        handler.onLine(buffer, offset, length);
+    }
+
+    static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String decode(byte[] buffer, int offset, int length) {
+        return new String(buffer, offset, length, StandardCharsets.UTF_8);
+    }
+}
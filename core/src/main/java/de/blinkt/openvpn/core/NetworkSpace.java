@@ -7,31 +7,39 @@ package de.blinkt.openvpn.core;
 
 import androidx.annotation.NonNull;
 
-import junit.framework.Assert;
-
 import net.ivpn.core.BuildConfig;
 
-import java.math.BigInteger;
 import java.net.Inet6Address;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.TreeSet;
 import java.util.Vector;
 
-import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
 
+/**
+ * Set of included and excluded networks of one address family.
+ * <p>
+ * Addresses are kept as unsigned 128 bit numbers in two longs, IPv4 addresses use only
+ * the low 32 bits. More specific networks take precedence over the networks containing them,
+ * {@link #getPositiveIPList()} returns the minimal list of networks covering exactly the
+ * included addresses.
+ */
 public class NetworkSpace {
 
     public static class ipAddress implements Comparable<ipAddress> {
-        private BigInteger netAddress;
+        private final long addressHigh;
+        private final long addressLow;
         public int networkMask;
         private boolean included;
         private boolean isV4;
-        private BigInteger firstAddress;
-        private BigInteger lastAddress;
+        private final long firstHigh;
+        private final long firstLow;
+        private final long lastHigh;
+        private final long lastLow;
 
         /**
          * sorts the networks with following criteria:
@@ -40,7 +48,7 @@ public class NetworkSpace {
          */
         @Override
         public int compareTo(@NonNull ipAddress another) {
-            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            int comp = compareUnsigned(firstHigh, firstLow, another.firstHigh, another.firstLow);
             if (comp != 0)
                 return comp;
 
@@ -59,63 +67,33 @@ public class NetworkSpace {
 
 
             ipAddress on = (ipAddress) o;
-            return (networkMask == on.networkMask) && on.getFirstAddress().equals(getFirstAddress());
+            return (networkMask == on.networkMask) && on.firstHigh == firstHigh && on.firstLow == firstLow;
         }
 
         public ipAddress(CIDRIP ip, boolean include) {
-            included = include;
-            netAddress = BigInteger.valueOf(ip.getInt());
-            networkMask = ip.len;
-            isV4 = true;
+            this(0, ip.getInt(), ip.len, include, true);
         }
 
         public ipAddress(Inet6Address address, int mask, boolean include) {
-            networkMask = mask;
-            included = include;
-
-            int s = 128;
-
-            netAddress = BigInteger.ZERO;
-            for (byte b : address.getAddress()) {
-                s -= 8;
-                netAddress = netAddress.add(BigInteger.valueOf((b & 0xFF)).shiftLeft(s));
-            }
-        }
-
-        BigInteger getLastAddress() {
-            if (lastAddress == null)
-                lastAddress = getMaskedAddress(true);
-            return lastAddress;
-        }
-
-
-        BigInteger getFirstAddress() {
-            if (firstAddress == null)
-                firstAddress = getMaskedAddress(false);
-            return firstAddress;
+            this(readLong(address.getAddress(), 0), readLong(address.getAddress(), 8), mask, include, false);
         }
 
+        private ipAddress(long addressHigh, long addressLow, int mask, boolean included, boolean isV4) {
+            this.addressHigh = addressHigh;
+            this.addressLow = addressLow;
+            this.networkMask = mask;
+            this.included = included;
+            this.isV4 = isV4;
 
-        private BigInteger getMaskedAddress(boolean one) {
-            BigInteger numAddress = netAddress;
-
-            int numBits;
-            if (isV4) {
-                numBits = 32 - networkMask;
-            } else {
-                numBits = 128 - networkMask;
-            }
-
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+            int hostBits = getWidth(isV4) - mask;
+            long hostMaskHigh = hostMaskHigh(hostBits);
+            long hostMaskLow = hostMaskLow(hostBits);
+            firstHigh = addressHigh & ~hostMaskHigh;
+            firstLow = addressLow & ~hostMaskLow;
+            lastHigh = addressHigh | hostMaskHigh;
+            lastLow = addressLow | hostMaskLow;
         }
 
-
         @Override
         public String toString() {
             //String in = included ? "+" : "-";
@@ -125,42 +103,38 @@ public class NetworkSpace {
                 return String.format(Locale.US, "%s/%d", getIPv6Address(), networkMask);
         }
 
-        ipAddress(BigInteger baseAddress, int mask, boolean included, boolean isV4) {
-            this.netAddress = baseAddress;
-            this.networkMask = mask;
-            this.included = included;
-            this.isV4 = isV4;
-        }
-
-
         public ipAddress[] split() {
-            ipAddress firstHalf = new ipAddress(getFirstAddress(), networkMask + 1, included, isV4);
-            ipAddress secondHalf = new ipAddress(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1, included, isV4);
+            int hostBits = getWidth(isV4) - networkMask - 1;
+            ipAddress firstHalf = new ipAddress(firstHigh, firstLow, networkMask + 1, included, isV4);
+            ipAddress secondHalf = new ipAddress(firstHigh | hostBitHigh(hostBits), firstLow | hostBitLow(hostBits),
+                    networkMask + 1, included, isV4);
             if (BuildConfig.DEBUG)
-                assertTrue(secondHalf.getLastAddress().equals(getLastAddress()));
+                assertTrue(secondHalf.lastHigh == lastHigh && secondHalf.lastLow == lastLow);
             return new ipAddress[]{firstHalf, secondHalf};
         }
 
         public String getIPv4Address() {
             if (BuildConfig.DEBUG) {
                 assertTrue(isV4);
-                assertTrue(netAddress.longValue() <= 0xffffffffl);
-                assertTrue(netAddress.longValue() >= 0);
+                assertTrue(addressHigh == 0);
+                assertTrue(addressLow <= 0xffffffffL);
+                assertTrue(addressLow >= 0);
             }
-            long ip = netAddress.longValue();
+            long ip = addressLow;
             return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) % 256, (ip >> 16) % 256, (ip >> 8) % 256, ip % 256);
         }
 
         public String getIPv6Address() {
             if (BuildConfig.DEBUG) assertTrue(!isV4);
-            BigInteger r = netAddress;
+            long high = addressHigh;
+            long low = addressLow;
 
             String ipv6str = null;
             boolean lastPart = true;
 
-            while (r.compareTo(BigInteger.ZERO) == 1) {
+            while (high != 0 || low != 0) {
 
-                long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
+                long part = low & 0xffff;
                 if (ipv6str != null || part != 0) {
                     if (ipv6str == null && !lastPart)
                             ipv6str = ":";
@@ -171,7 +145,8 @@ public class NetworkSpace {
                         ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
                 }
 
-                r = r.shiftRight(16);
+                low = (low >>> 16) | (high << 48);
+                high = high >>> 16;
                 lastPart = false;
             }
             if (ipv6str == null)
@@ -183,18 +158,135 @@ public class NetworkSpace {
 
         public boolean containsNet(ipAddress network) {
             // this.first >= net.first &&  this.last <= net.last
-            BigInteger ourFirst = getFirstAddress();
-            BigInteger ourLast = getLastAddress();
-            BigInteger netFirst = network.getFirstAddress();
-            BigInteger netLast = network.getLastAddress();
-
-            boolean a = ourFirst.compareTo(netFirst) != 1;
-            boolean b = ourLast.compareTo(netLast) != -1;
+            boolean a = compareUnsigned(firstHigh, firstLow, network.firstHigh, network.firstLow) <= 0;
+            boolean b = compareUnsigned(lastHigh, lastLow, network.lastHigh, network.lastLow) >= 0;
             return a && b;
 
         }
     }
 
+    /**
+     * Assigns consecutive address ranges to included or excluded, merges adjacent included
+     * ranges and splits each of them into the fewest networks.
+     */
+    private static class RouteCollector {
+        private final boolean isV4;
+        private final int width;
+        private final Vector<ipAddress> routes = new Vector<ipAddress>();
+
+        // First address which is not assigned yet
+        private long positionHigh;
+        private long positionLow;
+        private boolean isExhausted;
+
+        private boolean hasPending;
+        private long startHigh;
+        private long startLow;
+        private long endHigh;
+        private long endLow;
+
+        RouteCollector(boolean isV4) {
+            this.isV4 = isV4;
+            this.width = getWidth(isV4);
+        }
+
+        void moveTo(long high, long low) {
+            positionHigh = high;
+            positionLow = low;
+        }
+
+        /**
+         * Assigns the addresses from the current position up to, but not including, the given one.
+         */
+        void assignBefore(long high, long low, boolean included) {
+            if (isExhausted || compareUnsigned(positionHigh, positionLow, high, low) >= 0)
+                return;
+            long lastHigh = low == 0 ? high - 1 : high;
+            assignThrough(lastHigh, low - 1, included);
+        }
+
+        /**
+         * Assigns the addresses from the current position up to and including the given one.
+         */
+        void assignThrough(long high, long low, boolean included) {
+            if (isExhausted || compareUnsigned(positionHigh, positionLow, high, low) > 0)
+                return;
+            if (included)
+                addRange(positionHigh, positionLow, high, low);
+
+            if (low != -1L) {
+                positionHigh = high;
+                positionLow = low + 1;
+            } else if (high != -1L) {
+                positionHigh = high + 1;
+                positionLow = 0;
+            } else {
+                isExhausted = true;
+            }
+        }
+
+        private void addRange(long fromHigh, long fromLow, long toHigh, long toLow) {
+            if (hasPending && endLow + 1 == fromLow && (endLow == -1L ? endHigh + 1 : endHigh) == fromHigh) {
+                endHigh = toHigh;
+                endLow = toLow;
+                return;
+            }
+            flush();
+            hasPending = true;
+            startHigh = fromHigh;
+            startLow = fromLow;
+            endHigh = toHigh;
+            endLow = toLow;
+        }
+
+        void flush() {
+            if (!hasPending)
+                return;
+            hasPending = false;
+
+            long high = startHigh;
+            long low = startLow;
+            while (true) {
+                // Largest network which starts at this address and doesn't exceed the range
+                int hostBits = low != 0 ? Long.numberOfTrailingZeros(low)
+                        : 64 + Long.numberOfTrailingZeros(high);
+                hostBits = Math.min(hostBits, width);
+                long lastHigh = high | hostMaskHigh(hostBits);
+                long lastLow = low | hostMaskLow(hostBits);
+                while (compareUnsigned(lastHigh, lastLow, endHigh, endLow) > 0) {
+                    hostBits--;
+                    lastHigh = high | hostMaskHigh(hostBits);
+                    lastLow = low | hostMaskLow(hostBits);
+                }
+                routes.add(new ipAddress(high, low, width - hostBits, true, isV4));
+
+                if (lastHigh == endHigh && lastLow == endLow)
+                    return;
+                if (lastLow != -1L) {
+                    high = lastHigh;
+                    low = lastLow + 1;
+                } else {
+                    high = lastHigh + 1;
+                    low = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders containing networks before the networks inside them, unlike {@link ipAddress#compareTo}
+     */
+    private static final Comparator<ipAddress> OUTER_FIRST = new Comparator<ipAddress>() {
+        @Override
+        public int compare(ipAddress a, ipAddress b) {
+            int comp = compareUnsigned(a.firstHigh, a.firstLow, b.firstHigh, b.firstLow);
+            if (comp != 0)
+                return comp;
+
+            return Integer.compare(a.networkMask, b.networkMask);
+        }
+    };
+
     private TreeSet<ipAddress> mIpAddresses = new TreeSet<ipAddress>();
 
 
@@ -227,103 +319,78 @@ public class NetworkSpace {
         mIpAddresses.add(new ipAddress(address, mask, included));
     }
 
-    private TreeSet<ipAddress> generateIPList() {
-
-        PriorityQueue<ipAddress> networks = new PriorityQueue<ipAddress>(mIpAddresses);
-
-        TreeSet<ipAddress> ipsDone = new TreeSet<ipAddress>();
+    /**
+     * Walks the networks in address order keeping the chain of networks which contain the
+     * current one. Two networks are either disjoint or one contains the other, so every
+     * address belongs to the innermost network of that chain.
+     */
+    public Collection<ipAddress> getPositiveIPList() {
+        if (mIpAddresses.isEmpty())
+            return new Vector<ipAddress>();
+
+        ipAddress[] networks = mIpAddresses.toArray(new ipAddress[0]);
+        Arrays.sort(networks, OUTER_FIRST);
+
+        boolean isV4 = networks[0].isV4;
+        RouteCollector collector = new RouteCollector(isV4);
+        // One network per prefix length at most
+        ipAddress[] chain = new ipAddress[getWidth(isV4) + 1];
+        int depth = 0;
+
+        for (ipAddress network : networks) {
+            while (depth > 0 && compareUnsigned(chain[depth - 1].lastHigh, chain[depth - 1].lastLow,
+                    network.firstHigh, network.firstLow) < 0) {
+                ipAddress outer = chain[--depth];
+                collector.assignThrough(outer.lastHigh, outer.lastLow, outer.included);
+            }
+            if (depth > 0)
+                collector.assignBefore(network.firstHigh, network.firstLow, chain[depth - 1].included);
+            collector.moveTo(network.firstHigh, network.firstLow);
+            chain[depth++] = network;
+        }
+        while (depth > 0) {
+            ipAddress outer = chain[--depth];
+            collector.assignThrough(outer.lastHigh, outer.lastLow, outer.included);
+        }
+        collector.flush();
 
-        ipAddress currentNet = networks.poll();
-        if (currentNet == null)
-            return ipsDone;
+        return collector.routes;
+    }
 
-        while (currentNet != null) {
-            // Check if it and the next of it are compatible
-            ipAddress nextNet = networks.poll();
+    private static int getWidth(boolean isV4) {
+        return isV4 ? 32 : 128;
+    }
 
-            if (BuildConfig.DEBUG) Assert.assertNotNull(currentNet);
-            if (nextNet == null || currentNet.getLastAddress().compareTo(nextNet.getFirstAddress()) == -1) {
-                // Everything good, no overlapping nothing to do
-                ipsDone.add(currentNet);
+    private static int compareUnsigned(long aHigh, long aLow, long bHigh, long bLow) {
+        int comp = Long.compareUnsigned(aHigh, bHigh);
+        return comp != 0 ? comp : Long.compareUnsigned(aLow, bLow);
+    }
 
-                currentNet = nextNet;
-            } else {
-                // This network is smaller or equal to the next but has the same base address
-                if (currentNet.getFirstAddress().equals(nextNet.getFirstAddress()) && currentNet.networkMask >= nextNet.networkMask) {
-                    if (currentNet.included == nextNet.included) {
-                        // Included in the next next and same type
-                        // Simply forget our current network
-                        currentNet = nextNet;
-                    } else {
-                        // our currentNet is included in next and types differ. Need to split the next network
-                        ipAddress[] newNets = nextNet.split();
-
-
-                        // TODO: The contains method of the Priority is stupid linear search
-
-                        // First add the second half to keep the order in networks
-                        if (!networks.contains(newNets[1]))
-                            networks.add(newNets[1]);
-
-                        if (newNets[0].getLastAddress().equals(currentNet.getLastAddress())) {
-                            if (BuildConfig.DEBUG)
-                                assertEquals(newNets[0].networkMask, currentNet.networkMask);
-                            // Don't add the lower half that would conflict with currentNet
-                        } else {
-                            if (!networks.contains(newNets[0]))
-                                networks.add(newNets[0]);
-                        }
-                        // Keep currentNet as is
-                    }
-                } else {
-                    if (BuildConfig.DEBUG) {
-                        assertTrue(currentNet.networkMask < nextNet.networkMask);
-                        assertEquals(1, nextNet.getFirstAddress().compareTo(currentNet.getFirstAddress()));
-                        assertTrue(currentNet.getLastAddress().compareTo(nextNet.getLastAddress()) != -1);
-                    }
-                    // This network is bigger than the next and last ip of current >= next
-
-                    //noinspection StatementWithEmptyBody
-                    if (currentNet.included == nextNet.included) {
-                        // Next network is in included in our network with the same type,
-                        // simply ignore the next and move on
-                    } else {
-                        // We need to split our network
-                        ipAddress[] newNets = currentNet.split();
-
-
-                        if (newNets[1].networkMask == nextNet.networkMask) {
-                            if (BuildConfig.DEBUG) {
-                                assertEquals(newNets[1].getFirstAddress(), nextNet.getFirstAddress());
-                                assertEquals(newNets[1].getLastAddress(), currentNet.getLastAddress());
-                                // split second equal the next network, do not add it
-                            }
-                            networks.add(nextNet);
-                        } else {
-                            // Add the smaller network first
-                            networks.add(newNets[1]);
-                            networks.add(nextNet);
-                        }
-                        currentNet = newNets[0];
-
-                    }
-                }
-            }
+    private static long hostMaskHigh(int hostBits) {
+        if (hostBits <= 64)
+            return 0;
+        return hostBits == 128 ? -1L : (1L << (hostBits - 64)) - 1;
+    }
 
-        }
+    private static long hostMaskLow(int hostBits) {
+        if (hostBits >= 64)
+            return -1L;
+        return (1L << hostBits) - 1;
+    }
 
-        return ipsDone;
+    private static long hostBitHigh(int bit) {
+        return bit >= 64 ? 1L << (bit - 64) : 0;
     }
 
-    public Collection<ipAddress> getPositiveIPList() {
-        TreeSet<ipAddress> ipsSorted = generateIPList();
+    private static long hostBitLow(int bit) {
+        return bit < 64 ? 1L << bit : 0;
+    }
 
-        Vector<ipAddress> ips = new Vector<ipAddress>();
-        for (ipAddress ia : ipsSorted) {
-            if (ia.included)
-                ips.add(ia);
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            result = (result << 8) | (bytes[i] & 0xFF);
         }
-
-        return ips;
+        return result;
     }
 }
\ No newline at end of file
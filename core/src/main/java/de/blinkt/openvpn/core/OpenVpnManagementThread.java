@@ -1,634 +1,664 @@
-/*
- * Copyright (c) 2012-2016 Arne Schwabe
- * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
- */
-
-package de.blinkt.openvpn.core;
-
-import android.content.Context;
-import android.net.LocalServerSocket;
-import android.net.LocalSocket;
-import android.net.LocalSocketAddress;
-import android.os.Handler;
-import android.os.ParcelFileDescriptor;
-import android.util.Log;
-import androidx.annotation.NonNull;
-
-import junit.framework.Assert;
-
-import net.ivpn.core.BuildConfig;
-import net.ivpn.core.IVPNApplication;
-import net.ivpn.core.R;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.io.FileDescriptor;
-import java.io.IOException;
-import java.io.InputStream;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.Locale;
-import java.util.Vector;
-
-import de.blinkt.openvpn.VpnProfile;
-
-public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
-
-    private static final Logger LOGGER = LoggerFactory.getLogger(OpenVpnManagementThread.class);
-
-    private static final String TAG = "openvpn";
-    private final Handler mResumeHandler;
-    private LocalSocket mSocket;
-    private VpnProfile mProfile;
-    private IOpenVpnService mOpenVPNService;
-    private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
-    private LocalServerSocket mServerSocket;
-    private boolean mWaitingForRelease = false;
-    private long mLastHoldRelease = 0;
-
-    private static final Vector<OpenVpnManagementThread> active = new Vector<>();
-    private LocalSocket mServerSocketLocal;
-
-    private pauseReason lastPauseReason = pauseReason.noNetwork;
-    private PausedStateCallback mPauseCallback;
-    private boolean mShuttingDown;
-
-    public OpenVpnManagementThread(VpnProfile profile, IOpenVpnService openVpnService) {
-        mProfile = profile;
-        mOpenVPNService = openVpnService;
-        mResumeHandler = new Handler(openVpnService.getContext().getMainLooper());
-    }
-
-    private Runnable mResumeHoldRunnable = () -> {
-        if (shouldBeRunning()) {
-            releaseHoldCmd();
-        }
-    };
-
-    public boolean openManagementInterface(@NonNull Context c) {
-        // Could take a while to open connection
-        int tries = 8;
-
-        String socketName = (c.getCacheDir().getAbsolutePath() + "/" + "mgmtsocket");
-        // The mServerSocketLocal is transferred to the LocalServerSocket, ignore warning
-
-        mServerSocketLocal = new LocalSocket();
-
-        while (tries > 0 && !mServerSocketLocal.isBound()) {
-            try {
-                mServerSocketLocal.bind(new LocalSocketAddress(socketName,
-                        LocalSocketAddress.Namespace.FILESYSTEM));
-            } catch (IOException e) {
-                // wait 300 ms before retrying
-                try {
-                    Thread.sleep(300);
-                } catch (InterruptedException ignored) {
-                }
-
-            }
-            tries--;
-        }
-
-        try {
-
-            mServerSocket = new LocalServerSocket(mServerSocketLocal.getFileDescriptor());
-            return true;
-        } catch (IOException e) {
-            LOGGER.error(e.getLocalizedMessage());
-        }
-        return false;
-
-
-    }
-
-    /**
-     * @param cmd command to write to management socket
-     * @return true if command have been sent
-     */
-    private boolean managmentCommand(String cmd) {
-        try {
-            if (mSocket != null && mSocket.getOutputStream() != null) {
-                mSocket.getOutputStream().write(cmd.getBytes());
-                mSocket.getOutputStream().flush();
-                return true;
-            }
-        } catch (IOException e) {
-            // Ignore socket stack traces
-        }
-        return false;
-    }
-
-
-    @Override
-    public void run() {
-        byte[] buffer = new byte[2048];
-        //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
-
-        String pendingInput = "";
-        synchronized (active) {
-            active.add(this);
-        }
-
-        try {
-            // Wait for a client to connect
-            mSocket = mServerSocket.accept();
-            InputStream instream = mSocket.getInputStream();
-
-
-            // Close the management socket after client connected
-            try {
-                mServerSocket.close();
-            } catch (IOException e) {
-                LOGGER.error(e.getLocalizedMessage());
-            }
-
-            // Closing one of the two sockets also closes the other
-            //mServerSocketLocal.close();
-
-            while (true) {
-
-                int numbytesread = instream.read(buffer);
-                if (numbytesread == -1)
-                    return;
-
-                FileDescriptor[] fds = null;
-                try {
-                    fds = mSocket.getAncillaryFileDescriptors();
-                } catch (IOException e) {
-                    LOGGER.error("Error reading fds from socket " + e.getLocalizedMessage());
-                }
-                if (fds != null) {
-                    Collections.addAll(mFDList, fds);
-                }
-
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-
-                pendingInput += input;
-
-                pendingInput = processInput(pendingInput);
-
-
-            }
-        } catch (IOException e) {
-            if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer")) {
-                LOGGER.error(e.getLocalizedMessage());
-            }
-        }
-        synchronized (active) {
-            active.remove(this);
-        }
-    }
-
-    //! Hack O Rama 2000!
-    private void protectFileDescriptor(FileDescriptor fd) {
-        try {
-            Method getInt = FileDescriptor.class.getDeclaredMethod("getInt$");
-            int fdint = (Integer) getInt.invoke(fd);
-
-            // You can even get more evil by parsing toString() and extract the int from that :)
-
-            boolean result = mOpenVPNService.protectSocket(fdint);
-            if (!result) {
-                LOGGER.warn("Could not protect VPN socket");
-            }
-
-            //ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(fdint);
-            //pfd.close();
-            NativeUtils.jniclose(fdint);
-            return;
-        } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException | IllegalAccessException | NullPointerException e) {
-            LOGGER.error("Failed to retrieve fd from socket (" + fd + ")", e);
-        }
-
-        Log.d("Openvpn", "Failed to retrieve fd from socket: " + fd);
-
-    }
-
-    private String processInput(String pendingInput) {
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else
-                pendingInput = tokens[1];
-        }
-        return pendingInput;
-    }
-
-
-    private void processCommand(String command) {
-        //Log.i(TAG, "Line from managment" + command);
-
-
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
-
-
-            switch (cmd) {
-                case "INFO":
-                    /* Ignore greeting from management */
-                    return;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown)
-                        processState(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "RSA_SIGN":
-                    processSignCommand(argument);
-                    break;
-                default:
-                    LOGGER.warn("MGMT: Got unrecognized command" + command);
-                    break;
-            }
-        } else if (command.startsWith("SUCCESS:")) {
-            /* Ignore this kind of message too */
-            return;
-        } else if (command.startsWith("PROTECTFD: ")) {
-            FileDescriptor fdtoprotect = mFDList.pollFirst();
-            if (fdtoprotect != null)
-                protectFileDescriptor(fdtoprotect);
-        } else {
-            LOGGER.warn("MGMT: Got unrecognized line from management:" + command);
-        }
-    }
-
-    private void processLogMessage(String argument) {
-        String[] args = argument.split(",", 4);
-        // 0 unix time stamp
-        // 1 log level N,I,E etc.
-                /*
-                  (b) zero or more message flags in a single string:
-          I -- informational
-          F -- fatal error
-          N -- non-fatal error
-          W -- warning
-          D -- debug, and
-                 */
-        // 2 log message
-
-        Log.d("OpenVPN", argument);
-
-        String msg = args[3];
-
-        LOGGER.info(msg);
-    }
-
-    private boolean shouldBeRunning() {
-        if (mPauseCallback == null)
-            return false;
-        else
-            return mPauseCallback.shouldBeRunning();
-    }
-
-    private void handleHold(String argument) {
-        mWaitingForRelease = true;
-        int waittime = Integer.parseInt(argument.split(":")[1].trim());
-        if (shouldBeRunning()) {
-            if (waittime > 1)
-                VpnStatus.updateStateString("CONNECTRETRY", ConnectionStatus.LEVEL_CONNECTING_NO_SERVER_REPLY_YET);
-            mResumeHandler.postDelayed(mResumeHoldRunnable, waittime * 1000);
-            if (waittime > 5) {
-                LOGGER.info(String.format(getString(R.string.state_waitconnectretry), String.valueOf(waittime)));
-            } else {
-                LOGGER.debug(String.format(getString(R.string.state_waitconnectretry), String.valueOf(waittime)));
-            }
-        } else {
-            VpnStatus.updateStatePause(lastPauseReason);
-        }
-    }
-
-    private void releaseHoldCmd() {
-        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
-        if ((System.currentTimeMillis() - mLastHoldRelease) < 5000) {
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException ignored) {
-            }
-
-        }
-        mWaitingForRelease = false;
-        mLastHoldRelease = System.currentTimeMillis();
-        managmentCommand("hold release\n");
-        managmentCommand("bytecount " + mBytecountInterval + "\n");
-        managmentCommand("state on\n");
-    }
-
-
-    private void releaseHold() {
-        if (mWaitingForRelease)
-            releaseHoldCmd();
-    }
-
-    private void processProxyCMD(String argument) {
-        String[] args = argument.split(",", 3);
-        SocketAddress proxyaddr = ProxyDetection.detectProxy(mProfile);
-
-
-        if (args.length >= 2) {
-            String proto = args[1];
-            if (proto.equals("UDP")) {
-                proxyaddr = null;
-            }
-        }
-
-        if (proxyaddr instanceof InetSocketAddress) {
-            InetSocketAddress isa = (InetSocketAddress) proxyaddr;
-
-            LOGGER.info(getString(R.string.using_proxy), isa.getHostName(), isa.getPort());
-
-            String proxycmd = String.format(Locale.ENGLISH, "proxy HTTP %s %d\n", isa.getHostName(), isa.getPort());
-            managmentCommand(proxycmd);
-        } else {
-            managmentCommand("proxy NO_NETWORK\n");
-        }
-    }
-
-    private void processState(String argument) {
-        String[] args = argument.split(",", 3);
-        String currentstate = args[1];
-
-        VpnStatus.updateStateString(currentstate);
-    }
-
-
-    private void processByteCount(String argument) {
-        //Nothing to do here right now.
-    }
-
-    private void processNeedCommand(String argument) {
-        int p1 = argument.indexOf('\'');
-        int p2 = argument.indexOf('\'', p1 + 1);
-
-        String needed = argument.substring(p1 + 1, p2);
-        String extra = argument.split(":", 2)[1];
-
-        String status = "ok";
-
-        switch (needed) {
-            case "PROTECTFD":
-                FileDescriptor fdtoprotect = mFDList.pollFirst();
-                protectFileDescriptor(fdtoprotect);
-                break;
-            case "DNSSERVER":
-            case "DNS6SERVER":
-                mOpenVPNService.addDNS(extra);
-                break;
-            case "DNSDOMAIN":
-                mOpenVPNService.setDomain(extra);
-                break;
-            case "ROUTE": {
-                String[] routeparts = extra.split(" ");
-
-            /*
-            buf_printf (&out, "%s %s %s dev %s", network, netmask, gateway, rgi->iface);
-            else
-            buf_printf (&out, "%s %s %s", network, netmask, gateway);
-            */
-
-                if (routeparts.length == 5) {
-                    if (BuildConfig.DEBUG) Assert.assertEquals("dev", routeparts[3]);
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], routeparts[4]);
-                } else if (routeparts.length >= 3) {
-                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], null);
-                } else {
-                    LOGGER.error("Unrecognized ROUTE cmd:" + Arrays.toString(routeparts) + " | " + argument);
-                }
-
-                break;
-            }
-            case "ROUTE6": {
-                String[] routeparts = extra.split(" ");
-                mOpenVPNService.addRoutev6(routeparts[0], routeparts[1]);
-                break;
-            }
-            case "IFCONFIG":
-                String[] ifconfigparts = extra.split(" ");
-                if (ifconfigparts.length > 3) {
-                    int mtu = Integer.parseInt(ifconfigparts[2]);
-                    mOpenVPNService.setLocalIP(ifconfigparts[0], ifconfigparts[1], mtu, ifconfigparts[3]);
-                } else {
-                    LOGGER.info("processNeedCommand: ERROR, IFCONFIG extra = " + extra);
-                }
-                break;
-            case "IFCONFIG6":
-                mOpenVPNService.setLocalIPv6(extra);
-                break;
-            case "PERSIST_TUN_ACTION":
-                // check if tun cfg stayed the same
-                status = mOpenVPNService.getTunReopenStatus();
-                break;
-            case "OPENTUN":
-                if (sendTunFD(needed, extra))
-                    return;
-                else
-                    status = "cancel";
-                // This not nice or anything but setFileDescriptors accepts only FilDescriptor class :(
-
-                break;
-            default:
-                Log.e(TAG, "Unknown needok command " + argument);
-                return;
-        }
-
-        String cmd = String.format("needok '%s' %s\n", needed, status);
-        managmentCommand(cmd);
-    }
-
-    private boolean sendTunFD(String needed, String extra) {
-        if (!extra.equals("tun")) {
-            // We only support tun
-            LOGGER.error(String.format("Device type %s requested, but only tun is possible with the Android API, sorry!", extra));
-            return false;
-        }
-        ParcelFileDescriptor pfd = mOpenVPNService.openTun();
-        if (pfd == null)
-            return false;
-
-        Method setInt;
-        int fdint = pfd.getFd();
-        try {
-            setInt = FileDescriptor.class.getDeclaredMethod("setInt$", int.class);
-            FileDescriptor fdtosend = new FileDescriptor();
-
-            setInt.invoke(fdtosend, fdint);
-
-            FileDescriptor[] fds = {fdtosend};
-            mSocket.setFileDescriptorsForSend(fds);
-
-            // Trigger a send so we can close the fd on our side of the channel
-            // The API documentation fails to mention that it will not reset the file descriptor to
-            // be send and will happily send the file descriptor on every write ...
-            String cmd = String.format("needok '%s' %s\n", needed, "ok");
-            managmentCommand(cmd);
-
-            // Set the FileDescriptor to null to stop this mad behavior
-            mSocket.setFileDescriptorsForSend(null);
-
-            pfd.close();
-
-            return true;
-        } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException |
-                IOException | IllegalAccessException exp) {
-            LOGGER.error("Could not send fd over socket", exp);
-        }
-
-        return false;
-    }
-
-    private void processPWCommand(String argument) {
-        //argument has the form 	Need 'Private Key' password
-        // or  ">PASSWORD:Verification Failed: '%s' ['%s']"
-        String needed;
-
-        try {
-            int p1 = argument.indexOf('\'');
-            int p2 = argument.indexOf('\'', p1 + 1);
-            needed = argument.substring(p1 + 1, p2);
-            if (argument.startsWith("Verification Failed")) {
-                processPWFailed(needed, argument.substring(p2 + 1));
-                return;
-            }
-        } catch (StringIndexOutOfBoundsException exception) {
-            LOGGER.error("Could not parse management Password command: " + argument);
-            return;
-        }
-
-        String password = null;
-
-        if (needed.equals("Private Key")) {
-            password = mProfile.mPassword;
-        } else if (needed.equals("Auth")) {
-            password = mProfile.mPassword;
-
-            String userCmd = String.format("username '%s' %s\n",
-                    needed, VpnProfile.openVpnEscape(mProfile.mUsername));
-            managmentCommand(userCmd);
-        }
-        if (password != null && !password.isEmpty()) {
-            String cmd = String.format("password '%s' %s\n", needed, VpnProfile.openVpnEscape(password));
-            managmentCommand(cmd);
-        }
-    }
-
-    private void processPWFailed(String needed, String args) {
-        Log.d("Waa", "processPWFailed: needed = " + needed + " args = " + args);
-        VpnStatus.updateStateString("ON_CONNECTION_AUTHENTICATION_ERROR", ConnectionStatus.LEVEL_AUTH_FAILED);
-    }
-
-    private static boolean stopOpenVPN() {
-        synchronized (active) {
-            boolean sendCMD = false;
-            for (OpenVpnManagementThread mt : active) {
-                sendCMD = mt.managmentCommand("signal SIGINT\n");
-                try {
-                    if (mt.mSocket != null)
-                        mt.mSocket.close();
-                } catch (IOException e) {
-                    // Ignore close error on already closed socket
-                }
-            }
-            return sendCMD;
-        }
-    }
-
-    @Override
-    public void networkChange(boolean samenetwork) {
-        if (mWaitingForRelease)
-            releaseHold();
-        else if (samenetwork)
-            managmentCommand("network-change\n");
-        else
-            managmentCommand("network-change\n");
-    }
-
-    @Override
-    public void setPauseCallback(PausedStateCallback callback) {
-        mPauseCallback = callback;
-    }
-
-    private void signalusr1() {
-        Log.d(TAG, "signalusr1: ");
-        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
-        if (!mWaitingForRelease) {
-            managmentCommand("signal SIGUSR1\n");
-        } else {
-            // If signalusr1 is called update the state string
-            // if there is another for stopping
-            VpnStatus.updateStatePause(lastPauseReason);
-        }
-    }
-
-    public void reconnect() {
-        signalusr1();
-        releaseHold();
-    }
-
-    private void processSignCommand(String b64data) {
-
-        String signed_string = mProfile.getSignedData(b64data);
-        if (signed_string == null) {
-            managmentCommand("rsa-sig\n");
-            managmentCommand("\nEND\n");
-            stopOpenVPN();
-            return;
-        }
-        managmentCommand("rsa-sig\n");
-        managmentCommand(signed_string);
-        managmentCommand("\nEND\n");
-    }
-
-    @Override
-    public void pause(pauseReason reason) {
-        lastPauseReason = reason;
-        signalusr1();
-    }
-
-    @Override
-    public void resume() {
-        releaseHold();
-        /* Reset the reason why we are disconnected */
-        lastPauseReason = pauseReason.noNetwork;
-    }
-
-    @Override
-    public boolean stopVPN(boolean replaceConnection) {
-        boolean stopSucceed = stopOpenVPN();
-        if (stopSucceed) {
-            mShuttingDown = true;
-            VpnStatus.updateStateString("DISCONNECTED");
-
-        }
-        return stopSucceed;
-    }
-
-    private static String getString(int resId) {
-        return IVPNApplication.application.getString(resId);
-    }
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import android.content.Context;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+import androidx.annotation.NonNull;
+
+import junit.framework.Assert;
+
+import net.ivpn.core.BuildConfig;
+import net.ivpn.core.IVPNApplication;
+import net.ivpn.core.R;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Vector;
+
+import de.blinkt.openvpn.VpnProfile;
+
+public class OpenVpnManagementThread implements Runnable, OpenVPNManagement, ManagementLineFramer.LineHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(OpenVpnManagementThread.class);
+
+    private static final String TAG = "openvpn";
+
+    // Checked in this order, the frequent real time notifications come first
+    private static final byte[] PREFIX_LOG = ManagementLineFramer.ascii(">LOG:");
+    private static final byte[] PREFIX_BYTECOUNT = ManagementLineFramer.ascii(">BYTECOUNT:");
+    private static final byte[] PREFIX_STATE = ManagementLineFramer.ascii(">STATE:");
+    private static final byte[] PREFIX_INFO = ManagementLineFramer.ascii(">INFO:");
+    private static final byte[] PREFIX_PASSWORD = ManagementLineFramer.ascii(">PASSWORD:");
+    private static final byte[] PREFIX_HOLD = ManagementLineFramer.ascii(">HOLD:");
+    private static final byte[] PREFIX_NEED_OK = ManagementLineFramer.ascii(">NEED-OK:");
+    private static final byte[] PREFIX_PROXY = ManagementLineFramer.ascii(">PROXY:");
+    private static final byte[] PREFIX_RSA_SIGN = ManagementLineFramer.ascii(">RSA_SIGN:");
+    private static final byte[] PREFIX_SUCCESS = ManagementLineFramer.ascii("SUCCESS:");
+    private static final byte[] PREFIX_PROTECTFD = ManagementLineFramer.ascii("PROTECTFD: ");
+
+    private final Handler mResumeHandler;
+    private LocalSocket mSocket;
+    private VpnProfile mProfile;
+    private IOpenVpnService mOpenVPNService;
+    private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
+    private LocalServerSocket mServerSocket;
+    private boolean mWaitingForRelease = false;
+    private long mLastHoldRelease = 0;
+
+    private static final Vector<OpenVpnManagementThread> active = new Vector<>();
+    private LocalSocket mServerSocketLocal;
+
+    private pauseReason lastPauseReason = pauseReason.noNetwork;
+    private PausedStateCallback mPauseCallback;
+    private boolean mShuttingDown;
+    private final ManagementLineFramer mFramer = new ManagementLineFramer();
+
+    public OpenVpnManagementThread(VpnProfile profile, IOpenVpnService openVpnService) {
+        mProfile = profile;
+        mOpenVPNService = openVpnService;
+        mResumeHandler = new Handler(openVpnService.getContext().getMainLooper());
+    }
+
+    private Runnable mResumeHoldRunnable = () -> {
+        if (shouldBeRunning()) {
+            releaseHoldCmd();
+        }
+    };
+
+    public boolean openManagementInterface(@NonNull Context c) {
+        // Could take a while to open connection
+        int tries = 8;
+
+        String socketName = (c.getCacheDir().getAbsolutePath() + "/" + "mgmtsocket");
+        // The mServerSocketLocal is transferred to the LocalServerSocket, ignore warning
+
+        mServerSocketLocal = new LocalSocket();
+
+        while (tries > 0 && !mServerSocketLocal.isBound()) {
+            try {
+                mServerSocketLocal.bind(new LocalSocketAddress(socketName,
+                        LocalSocketAddress.Namespace.FILESYSTEM));
+            } catch (IOException e) {
+                // wait 300 ms before retrying
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException ignored) {
+                }
+
+            }
+            tries--;
+        }
+
+        try {
+
+            mServerSocket = new LocalServerSocket(mServerSocketLocal.getFileDescriptor());
+            return true;
+        } catch (IOException e) {
+            LOGGER.error(e.getLocalizedMessage());
+        }
+        return false;
+
+
+    }
+
+    /**
+     * @param cmd command to write to management socket
+     * @return true if command have been sent
+     */
+    private boolean managmentCommand(String cmd) {
+        try {
+            if (mSocket != null && mSocket.getOutputStream() != null) {
+                mSocket.getOutputStream().write(cmd.getBytes());
+                mSocket.getOutputStream().flush();
+                return true;
+            }
+        } catch (IOException e) {
+            // Ignore socket stack traces
+        }
+        return false;
+    }
+
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[2048];
+        //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
+
+        synchronized (active) {
+            active.add(this);
+        }
+
+        try {
+            // Wait for a client to connect
+            mSocket = mServerSocket.accept();
+            InputStream instream = mSocket.getInputStream();
+
+
+            // Close the management socket after client connected
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                LOGGER.error(e.getLocalizedMessage());
+            }
+
+            // Closing one of the two sockets also closes the other
+            //mServerSocketLocal.close();
+
+            while (true) {
+
+                int numbytesread = instream.read(buffer);
+                if (numbytesread == -1)
+                    return;
+
+                FileDescriptor[] fds = null;
+                try {
+                    fds = mSocket.getAncillaryFileDescriptors();
+                } catch (IOException e) {
+                    LOGGER.error("Error reading fds from socket " + e.getLocalizedMessage());
+                }
+                if (fds != null) {
+                    Collections.addAll(mFDList, fds);
+                }
+
+                mFramer.feed(buffer, 0, numbytesread, this);
+            }
+        } catch (IOException e) {
+            if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer")) {
+                LOGGER.error(e.getLocalizedMessage());
+            }
+        }
+        synchronized (active) {
+            active.remove(this);
+        }
+    }
+
+    //! Hack O Rama 2000!
+    private void protectFileDescriptor(FileDescriptor fd) {
+        try {
+            Method getInt = FileDescriptor.class.getDeclaredMethod("getInt$");
+            int fdint = (Integer) getInt.invoke(fd);
+
+            // You can even get more evil by parsing toString() and extract the int from that :)
+
+            boolean result = mOpenVPNService.protectSocket(fdint);
+            if (!result) {
+                LOGGER.warn("Could not protect VPN socket");
+            }
+
+            //ParcelFileDescriptor pfd = ParcelFileDescriptor.fromFd(fdint);
+            //pfd.close();
+            NativeUtils.jniclose(fdint);
+            return;
+        } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException | IllegalAccessException | NullPointerException e) {
+            LOGGER.error("Failed to retrieve fd from socket (" + fd + ")", e);
+        }
+
+        Log.d("Openvpn", "Failed to retrieve fd from socket: " + fd);
+
+    }
+
+    @Override
+    public void onLine(byte[] line, int offset, int length) {
+        //Log.i(TAG, "Line from managment" + ManagementLineFramer.decode(line, offset, length));
+
+        if (length > 0 && line[offset] == '>') {
+            if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_LOG)) {
+                processLogMessage(argument(line, offset, length, PREFIX_LOG));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_BYTECOUNT)) {
+                processByteCount(line, offset + PREFIX_BYTECOUNT.length, length - PREFIX_BYTECOUNT.length);
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_STATE)) {
+                if (!mShuttingDown)
+                    processState(argument(line, offset, length, PREFIX_STATE));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_INFO)) {
+                /* Ignore greeting from management */
+                return;
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_PASSWORD)) {
+                processPWCommand(argument(line, offset, length, PREFIX_PASSWORD));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_HOLD)) {
+                handleHold(argument(line, offset, length, PREFIX_HOLD));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_NEED_OK)) {
+                processNeedCommand(argument(line, offset, length, PREFIX_NEED_OK));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_PROXY)) {
+                processProxyCMD(argument(line, offset, length, PREFIX_PROXY));
+            } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_RSA_SIGN)) {
+                processSignCommand(argument(line, offset, length, PREFIX_RSA_SIGN));
+            } else if (indexOf(line, offset, length, (byte) ':') != -1) {
+                LOGGER.warn("MGMT: Got unrecognized command" + ManagementLineFramer.decode(line, offset, length));
+            } else {
+                LOGGER.warn("MGMT: Got unrecognized line from management:" + ManagementLineFramer.decode(line, offset, length));
+            }
+        } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_SUCCESS)) {
+            /* Ignore this kind of message too */
+            return;
+        } else if (ManagementLineFramer.startsWith(line, offset, length, PREFIX_PROTECTFD)) {
+            FileDescriptor fdtoprotect = mFDList.pollFirst();
+            if (fdtoprotect != null)
+                protectFileDescriptor(fdtoprotect);
+        } else {
+            LOGGER.warn("MGMT: Got unrecognized line from management:" + ManagementLineFramer.decode(line, offset, length));
+        }
+    }
+
+    private static String argument(byte[] line, int offset, int length, byte[] prefix) {
+        return ManagementLineFramer.decode(line, offset + prefix.length, length - prefix.length);
+    }
+
+    private static int indexOf(byte[] line, int offset, int length, byte value) {
+        for (int i = offset; i < offset + length; i++) {
+            if (line[i] == value)
+                return i;
+        }
+        return -1;
+    }
+
+    private void processLogMessage(String argument) {
+        // 0 unix time stamp
+        // 1 log level N,I,E etc.
+                /*
+                  (b) zero or more message flags in a single string:
+          I -- informational
+          F -- fatal error
+          N -- non-fatal error
+          W -- warning
+          D -- debug, and
+                 */
+        // 2 log message
+
+        Log.d("OpenVPN", argument);
+
+        // Message starts after the third comma, it may contain commas itself
+        int start = 0;
+        for (int field = 0; field < 3 && start != -1; field++) {
+            start = argument.indexOf(',', start);
+            if (start != -1)
+                start++;
+        }
+        String msg = start == -1 ? argument : argument.substring(start);
+
+        LOGGER.info(msg);
+    }
+
+    private boolean shouldBeRunning() {
+        if (mPauseCallback == null)
+            return false;
+        else
+            return mPauseCallback.shouldBeRunning();
+    }
+
+    private void handleHold(String argument) {
+        mWaitingForRelease = true;
+        // argument has the form "Waiting for hold release:<seconds>"
+        int start = argument.indexOf(':') + 1;
+        int end = argument.indexOf(':', start);
+        int waittime = Integer.parseInt((end == -1 ? argument.substring(start) : argument.substring(start, end)).trim());
+        if (shouldBeRunning()) {
+            if (waittime > 1)
+                VpnStatus.updateStateString("CONNECTRETRY", ConnectionStatus.LEVEL_CONNECTING_NO_SERVER_REPLY_YET);
+            mResumeHandler.postDelayed(mResumeHoldRunnable, waittime * 1000);
+            if (waittime > 5) {
+                LOGGER.info(String.format(getString(R.string.state_waitconnectretry), String.valueOf(waittime)));
+            } else {
+                LOGGER.debug(String.format(getString(R.string.state_waitconnectretry), String.valueOf(waittime)));
+            }
+        } else {
+            VpnStatus.updateStatePause(lastPauseReason);
+        }
+    }
+
+    private void releaseHoldCmd() {
+        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        if ((System.currentTimeMillis() - mLastHoldRelease) < 5000) {
+            try {
+                Thread.sleep(3000);
+            } catch (InterruptedException ignored) {
+            }
+
+        }
+        mWaitingForRelease = false;
+        mLastHoldRelease = System.currentTimeMillis();
+        managmentCommand("hold release\n");
+        managmentCommand("bytecount " + mBytecountInterval + "\n");
+        managmentCommand("state on\n");
+    }
+
+
+    private void releaseHold() {
+        if (mWaitingForRelease)
+            releaseHoldCmd();
+    }
+
+    private void processProxyCMD(String argument) {
+        String[] args = argument.split(",", 3);
+        SocketAddress proxyaddr = ProxyDetection.detectProxy(mProfile);
+
+
+        if (args.length >= 2) {
+            String proto = args[1];
+            if (proto.equals("UDP")) {
+                proxyaddr = null;
+            }
+        }
+
+        if (proxyaddr instanceof InetSocketAddress) {
+            InetSocketAddress isa = (InetSocketAddress) proxyaddr;
+
+            LOGGER.info(getString(R.string.using_proxy), isa.getHostName(), isa.getPort());
+
+            String proxycmd = String.format(Locale.ENGLISH, "proxy HTTP %s %d\n", isa.getHostName(), isa.getPort());
+            managmentCommand(proxycmd);
+        } else {
+            managmentCommand("proxy NO_NETWORK\n");
+        }
+    }
+
+    private void processState(String argument) {
+        // argument has the form "<time>,<state>,<description>,..."
+        int start = argument.indexOf(',') + 1;
+        int end = argument.indexOf(',', start);
+        String currentstate = end == -1 ? argument.substring(start) : argument.substring(start, end);
+
+        if ("CONNECTED".equals(currentstate)) {
+            // "<time>,CONNECTED,<description>,<local ip>,<remote ip>,<remote port>,..."
+            String[] fields = argument.split(",", 6);
+            VpnStatus.setConnectedRemote(fields.length > 4 && !fields[4].isEmpty() ? fields[4] : null);
+        } else if ("RECONNECTING".equals(currentstate) || "EXITING".equals(currentstate)) {
+            VpnStatus.setConnectedRemote(null);
+        }
+        VpnStatus.updateStateString(currentstate);
+    }
+
+
+    private void processByteCount(byte[] line, int offset, int length) {
+        // argument has the form "<bytes in>,<bytes out>"
+        long in = 0;
+        long out = 0;
+        boolean isOut = false;
+        for (int i = offset; i < offset + length; i++) {
+            byte value = line[i];
+            if (value == ',') {
+                isOut = true;
+            } else if (value >= '0' && value <= '9') {
+                if (isOut)
+                    out = out * 10 + (value - '0');
+                else
+                    in = in * 10 + (value - '0');
+            }
+        }
+        if (!isOut) {
+            LOGGER.warn("MGMT: Malformed bytecount " + ManagementLineFramer.decode(line, offset, length));
+            return;
+        }
+        mOpenVPNService.onByteCount(in, out);
+    }
+
+    private void processNeedCommand(String argument) {
+        int p1 = argument.indexOf('\'');
+        int p2 = argument.indexOf('\'', p1 + 1);
+
+        String needed = argument.substring(p1 + 1, p2);
+        String extra = argument.split(":", 2)[1];
+
+        String status = "ok";
+
+        switch (needed) {
+            case "PROTECTFD":
+                FileDescriptor fdtoprotect = mFDList.pollFirst();
+                protectFileDescriptor(fdtoprotect);
+                break;
+            case "DNSSERVER":
+            case "DNS6SERVER":
+                mOpenVPNService.addDNS(extra);
+                break;
+            case "DNSDOMAIN":
+                mOpenVPNService.setDomain(extra);
+                break;
+            case "ROUTE": {
+                String[] routeparts = extra.split(" ");
+
+            /*
+            buf_printf (&out, "%s %s %s dev %s", network, netmask, gateway, rgi->iface);
+            else
+            buf_printf (&out, "%s %s %s", network, netmask, gateway);
+            */
+
+                if (routeparts.length == 5) {
+                    if (BuildConfig.DEBUG) Assert.assertEquals("dev", routeparts[3]);
+                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], routeparts[4]);
+                } else if (routeparts.length >= 3) {
+                    mOpenVPNService.addRoute(routeparts[0], routeparts[1], routeparts[2], null);
+                } else {
+                    LOGGER.error("Unrecognized ROUTE cmd:" + Arrays.toString(routeparts) + " | " + argument);
+                }
+
+                break;
+            }
+            case "ROUTE6": {
+                String[] routeparts = extra.split(" ");
+                mOpenVPNService.addRoutev6(routeparts[0], routeparts[1]);
+                break;
+            }
+            case "IFCONFIG":
+                String[] ifconfigparts = extra.split(" ");
+                if (ifconfigparts.length > 3) {
+                    int mtu = Integer.parseInt(ifconfigparts[2]);
+                    mOpenVPNService.setLocalIP(ifconfigparts[0], ifconfigparts[1], mtu, ifconfigparts[3]);
+                } else {
+                    LOGGER.info("processNeedCommand: ERROR, IFCONFIG extra = " + extra);
+                }
+                break;
+            case "IFCONFIG6":
+                mOpenVPNService.setLocalIPv6(extra);
+                break;
+            case "PERSIST_TUN_ACTION":
+                // check if tun cfg stayed the same
+                status = mOpenVPNService.getTunReopenStatus();
+                break;
+            case "OPENTUN":
+                if (sendTunFD(needed, extra))
+                    return;
+                else
+                    status = "cancel";
+                // This not nice or anything but setFileDescriptors accepts only FilDescriptor class :(
+
+                break;
+            default:
+                Log.e(TAG, "Unknown needok command " + argument);
+                return;
+        }
+
+        String cmd = String.format("needok '%s' %s\n", needed, status);
+        managmentCommand(cmd);
+    }
+
+    private boolean sendTunFD(String needed, String extra) {
+        if (!extra.equals("tun")) {
+            // We only support tun
+            LOGGER.error(String.format("Device type %s requested, but only tun is possible with the Android API, sorry!", extra));
+            return false;
+        }
+        ParcelFileDescriptor pfd = mOpenVPNService.openTun();
+        if (pfd == null)
+            return false;
+
+        Method setInt;
+        int fdint = pfd.getFd();
+        try {
+            setInt = FileDescriptor.class.getDeclaredMethod("setInt$", int.class);
+            FileDescriptor fdtosend = new FileDescriptor();
+
+            setInt.invoke(fdtosend, fdint);
+
+            FileDescriptor[] fds = {fdtosend};
+            mSocket.setFileDescriptorsForSend(fds);
+
+            // Trigger a send so we can close the fd on our side of the channel
+            // The API documentation fails to mention that it will not reset the file descriptor to
+            // be send and will happily send the file descriptor on every write ...
+            String cmd = String.format("needok '%s' %s\n", needed, "ok");
+            managmentCommand(cmd);
+
+            // Set the FileDescriptor to null to stop this mad behavior
+            mSocket.setFileDescriptorsForSend(null);
+
+            pfd.close();
+
+            return true;
+        } catch (NoSuchMethodException | IllegalArgumentException | InvocationTargetException |
+                IOException | IllegalAccessException exp) {
+            LOGGER.error("Could not send fd over socket", exp);
+        }
+
+        return false;
+    }
+
+    private void processPWCommand(String argument) {
+        //argument has the form 	Need 'Private Key' password
+        // or  ">PASSWORD:Verification Failed: '%s' ['%s']"
+        String needed;
+
+        try {
+            int p1 = argument.indexOf('\'');
+            int p2 = argument.indexOf('\'', p1 + 1);
+            needed = argument.substring(p1 + 1, p2);
+            if (argument.startsWith("Verification Failed")) {
+                processPWFailed(needed, argument.substring(p2 + 1));
+                return;
+            }
+        } catch (StringIndexOutOfBoundsException exception) {
+            LOGGER.error("Could not parse management Password command: " + argument);
+            return;
+        }
+
+        String password = null;
+
+        if (needed.equals("Private Key")) {
+            password = mProfile.mPassword;
+        } else if (needed.equals("Auth")) {
+            password = mProfile.mPassword;
+
+            String userCmd = String.format("username '%s' %s\n",
+                    needed, VpnProfile.openVpnEscape(mProfile.mUsername));
+            managmentCommand(userCmd);
+        }
+        if (password != null && !password.isEmpty()) {
+            String cmd = String.format("password '%s' %s\n", needed, VpnProfile.openVpnEscape(password));
+            managmentCommand(cmd);
+        }
+    }
+
+    private void processPWFailed(String needed, String args) {
+        Log.d("Waa", "processPWFailed: needed = " + needed + " args = " + args);
+        VpnStatus.updateStateString("ON_CONNECTION_AUTHENTICATION_ERROR", ConnectionStatus.LEVEL_AUTH_FAILED);
+    }
+
+    private static boolean stopOpenVPN() {
+        synchronized (active) {
+            boolean sendCMD = false;
+            for (OpenVpnManagementThread mt : active) {
+                sendCMD = mt.managmentCommand("signal SIGINT\n");
+                try {
+                    if (mt.mSocket != null)
+                        mt.mSocket.close();
+                } catch (IOException e) {
+                    // Ignore close error on already closed socket
+                }
+            }
+            return sendCMD;
+        }
+    }
+
+    @Override
+    public void networkChange(boolean samenetwork) {
+        if (mWaitingForRelease)
+            releaseHold();
+        else if (samenetwork)
+            managmentCommand("network-change\n");
+        else
+            managmentCommand("network-change\n");
+    }
+
+    @Override
+    public void setPauseCallback(PausedStateCallback callback) {
+        mPauseCallback = callback;
+    }
+
+    private void signalusr1() {
+        Log.d(TAG, "signalusr1: ");
+        mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        if (!mWaitingForRelease) {
+            managmentCommand("signal SIGUSR1\n");
+        } else {
+            // If signalusr1 is called update the state string
+            // if there is another for stopping
+            VpnStatus.updateStatePause(lastPauseReason);
+        }
+    }
+
+    public void reconnect() {
+        signalusr1();
+        releaseHold();
+    }
+
+    private void processSignCommand(String b64data) {
+
+        String signed_string = mProfile.getSignedData(b64data);
+        if (signed_string == null) {
+            managmentCommand("rsa-sig\n");
+            managmentCommand("\nEND\n");
+            stopOpenVPN();
+            return;
+        }
+        managmentCommand("rsa-sig\n");
+        managmentCommand(signed_string);
+        managmentCommand("\nEND\n");
+    }
+
+    @Override
+    public void pause(pauseReason reason) {
+        lastPauseReason = reason;
+        signalusr1();
+    }
+
+    @Override
+    public void resume() {
+        releaseHold();
+        /* Reset the reason why we are disconnected */
+        lastPauseReason = pauseReason.noNetwork;
+    }
+
+    @Override
+    public boolean stopVPN(boolean replaceConnection) {
+        boolean stopSucceed = stopOpenVPN();
+        if (stopSucceed) {
+            mShuttingDown = true;
+            VpnStatus.updateStateString("DISCONNECTED");
+
+        }
+        return stopSucceed;
+    }
+
+    private static String getString(int resId) {
+        return IVPNApplication.application.getString(resId);
+    }
 }
\ No newline at end of file
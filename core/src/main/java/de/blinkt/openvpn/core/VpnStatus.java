@@ -20,6 +20,9 @@ public class VpnStatus {
 
     public static ConnectionStatus lastLevel = ConnectionStatus.LEVEL_NOTCONNECTED;
 
+    // Remote address of the established tunnel, null while not connected
+    private static volatile String connectedRemote;
+
     public static boolean isVPNActive() {
         return lastLevel != ConnectionStatus.LEVEL_AUTH_FAILED && lastLevel != ConnectionStatus.LEVEL_NOTCONNECTED
                 && lastLevel != ConnectionStatus.LEVEL_NONETWORK && lastLevel != ConnectionStatus.UNKNOWN_LEVEL;
@@ -100,6 +103,14 @@ public class VpnStatus {
         listeners.remove(stateListener);
     }
 
+    public static String getConnectedRemote() {
+        return connectedRemote;
+    }
+
+    static void setConnectedRemote(String remote) {
+        connectedRemote = remote;
+    }
+
     public synchronized static void updateStateString(String state) {
         updateStateString(state, getLevel(state));
     }
@@ -27,6 +27,7 @@ import com.google.gson.JsonSyntaxException
 import com.google.gson.reflect.TypeToken
 import net.ivpn.core.rest.data.ServersListResponse
 import net.ivpn.core.rest.data.model.AntiTracker
+import net.ivpn.core.rest.data.model.Config
 import net.ivpn.core.rest.data.model.Port
 import net.ivpn.core.rest.data.model.Server
 import net.ivpn.core.rest.data.session.SessionErrorResponse
@@ -91,6 +92,10 @@ object Mapper {
         return Gson().toJson(dns)
     }
 
+    fun stringFromConfig(config: Config?): String {
+        return Gson().toJson(config)
+    }
+
     fun stringFromIps(ips: List<String>?): String? {
         if (ips == null) return null
         return Gson().toJson(ips)
@@ -34,7 +34,6 @@ import net.ivpn.core.common.utils.BitmapUtil
 import net.ivpn.core.common.utils.BitmapUtil.invertColors
 import net.ivpn.core.common.utils.BitmapUtil.toGrayscale
 import net.ivpn.core.rest.data.model.Server
-import net.ivpn.core.v2.splittunneling.items.ApplicationItem
 import java.io.File
 import java.io.IOException
 
@@ -67,12 +66,6 @@ fun setImageResource(imageView: ImageView, server: Server?) {
     }
 }
 
-@BindingAdapter("app:src")
-fun setImageResource(imageView: ImageView, info: ApplicationItem?) {
-    if (info == null) return
-    imageView.setImageDrawable(info.icon)
-}
-
 @BindingAdapter("android:src")
 fun setImageResource(imageView: ImageView, countryCode: String?) {
     var countryCode = countryCode ?: return
@@ -0,0 +1,111 @@
+package net.ivpn.core.common.distance
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Server
+import kotlin.math.asin
+import kotlin.math.cos
+import kotlin.math.min
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+/**
+ * Great-circle distances from one point to every server of a list.
+ *
+ * Server coordinates are converted to radians once and kept in primitive arrays together
+ * with the cosine of the latitude, so a calculation for a new home location is a single
+ * loop over the arrays. Results are immutable [Distances] snapshots which can be shared
+ * between threads.
+ */
+class DistanceEngine(servers: List<Server>) {
+
+    companion object {
+        private const val EARTH_RADIUS_KM = 6371.0
+        private const val DEGREES_TO_RADIANS = Math.PI / 180.0
+
+        /**
+         * Servers are looked up by gateway. Server.equals compares the location only,
+         * while Server.hashCode uses the gateway, so servers can't be hash map keys.
+         */
+        internal fun keyOf(server: Server): String {
+            return server.gateway ?: "${server.countryCode}:${server.city}"
+        }
+    }
+
+    private val servers: List<Server> = ArrayList(servers)
+    private val indexes = HashMap<String, Int>(servers.size * 2)
+    private val latitudes = DoubleArray(servers.size)
+    private val longitudes = DoubleArray(servers.size)
+    private val cosLatitudes = DoubleArray(servers.size)
+
+    init {
+        this.servers.forEachIndexed { index, server ->
+            indexes[keyOf(server)] = index
+            latitudes[index] = server.latitude * DEGREES_TO_RADIANS
+            longitudes[index] = server.longitude * DEGREES_TO_RADIANS
+            cosLatitudes[index] = cos(latitudes[index])
+        }
+    }
+
+    val size: Int
+        get() = servers.size
+
+    /**
+     * Distances in kilometers from the given point, coordinates are in degrees.
+     */
+    fun calculate(latitude: Double, longitude: Double): Distances {
+        val homeLatitude = latitude * DEGREES_TO_RADIANS
+        val homeLongitude = longitude * DEGREES_TO_RADIANS
+        val homeCosLatitude = cos(homeLatitude)
+        val result = FloatArray(latitudes.size)
+        for (i in result.indices) {
+            val sinLatitude = sin((latitudes[i] - homeLatitude) * 0.5)
+            val sinLongitude = sin((longitudes[i] - homeLongitude) * 0.5)
+            val a = sinLatitude * sinLatitude +
+                    homeCosLatitude * cosLatitudes[i] * sinLongitude * sinLongitude
+            result[i] = (2 * EARTH_RADIUS_KM * asin(sqrt(min(1.0, a)))).toFloat()
+        }
+        return Distances(indexes, result)
+    }
+
+    class Distances internal constructor(
+            private val indexes: Map<String, Int>,
+            private val values: FloatArray
+    ) {
+
+        val isEmpty: Boolean
+            get() = values.isEmpty()
+
+        /**
+         * Distance to the server in kilometers or Float.MAX_VALUE if the server is unknown.
+         */
+        operator fun get(server: Server): Float {
+            val index = indexes[keyOf(server)] ?: return Float.MAX_VALUE
+            return values[index]
+        }
+
+        companion object {
+            val EMPTY = Distances(emptyMap(), FloatArray(0))
+        }
+    }
+}
@@ -25,30 +25,37 @@ package net.ivpn.core.common.distance
 import kotlinx.coroutines.*
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.common.prefs.ServersRepository
-import net.ivpn.core.rest.data.model.Server
 import net.ivpn.core.v2.map.model.Location
 import net.ivpn.core.vpn.OnProtocolChangedListener
 import net.ivpn.core.vpn.ProtocolController
-import java.util.*
 import javax.inject.Inject
-import kotlin.collections.HashMap
 import kotlin.math.atan2
 import kotlin.math.cos
 import kotlin.math.sin
 import kotlin.math.sqrt
 
+/**
+ * Distances from the home location to the servers of the current protocol.
+ * They are calculated on a background thread by [DistanceEngine] and published as
+ * an immutable snapshot, so readers on the main thread never see a partial result.
+ */
 @ApplicationScope
 class DistanceProvider @Inject constructor(
     private val serversRepository: ServersRepository,
     protocolController: ProtocolController
 ) {
-    val distances = HashMap<Server, Float>()
+    @Volatile
+    var distances: DistanceEngine.Distances = DistanceEngine.Distances.EMPTY
+        private set
 
+    @Volatile
     var homeLocation: Location? = null
-    var previousCalculationJob: Job? = null
+    @Volatile
+    private var engine: DistanceEngine? = null
+    private var previousCalculationJob: Job? = null
 
-    val distanceCalculationScope = CoroutineScope(Dispatchers.Default)
-    val listeners = mutableSetOf<OnDistanceChangedListener>()
+    private val distanceCalculationScope = CoroutineScope(Dispatchers.Default)
+    private val listeners = mutableSetOf<OnDistanceChangedListener>()
 
     init {
         protocolController.addOnProtocolChangedListener(getOnProtocolChangeListener())
@@ -56,8 +63,9 @@ class DistanceProvider @Inject constructor(
 
     fun updateLocation(location: Location?) {
         location?.let {
+            if (it == homeLocation) return
             homeLocation = it
-            if (distances.isNotEmpty()) {
+            if (engine != null) {
                 calculateDistances()
             }
         }
@@ -73,13 +81,8 @@ class DistanceProvider @Inject constructor(
 
     private fun getOnProtocolChangeListener(): OnProtocolChangedListener {
         return OnProtocolChangedListener {
-            distances.clear()
             serversRepository.getServers(false)?.let {
-                distances.clear()
-                for (server in it) {
-                    distances[server] = Float.MAX_VALUE
-                }
-
+                engine = DistanceEngine(it)
                 if (homeLocation != null) {
                     calculateDistances()
                 }
@@ -91,15 +94,11 @@ class DistanceProvider @Inject constructor(
         previousCalculationJob?.cancel()
 
         previousCalculationJob = distanceCalculationScope.launch {
+            val engine = engine ?: return@launch
             homeLocation?.let {
-                for ((server, _) in distances) {
-                    distances[server] = getDistanceBetween(
-                        it.latitude,
-                        it.longitude,
-                        server.latitude.toFloat(),
-                        server.longitude.toFloat()
-                    )
-                }
+                val result = engine.calculate(it.latitude.toDouble(), it.longitude.toDouble())
+                ensureActive()
+                distances = result
 
                 withContext(Dispatchers.Main) {
                     listeners.forEach { listener -> listener.onDistanceChanged() }
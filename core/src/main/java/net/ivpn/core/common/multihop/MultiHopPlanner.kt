@@ -0,0 +1,146 @@
+package net.ivpn.core.common.multihop
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.common.distance.DistanceProvider
+import net.ivpn.core.common.pinger.OnFastestServerDetectorListener
+import net.ivpn.core.common.pinger.PingProvider
+import net.ivpn.core.common.prefs.ServersRepository
+import net.ivpn.core.rest.data.model.Server
+import org.slf4j.LoggerFactory
+import java.util.*
+import javax.inject.Inject
+
+/**
+ * Ranks entry/exit pairs by estimated end-to-end latency.
+ * The client to entry part is the measured ping of the entry server. The entry to exit part
+ * is estimated from the distance between the servers, as it can't be measured from the device.
+ * Entry and exit have to be in different countries, excluded servers are never picked.
+ */
+@ApplicationScope
+class MultiHopPlanner @Inject constructor(
+        private val pingProvider: PingProvider,
+        private val serversRepository: ServersRepository
+) {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(MultiHopPlanner::class.java)
+
+        //Light covers about 200 km per millisecond in fiber
+        private const val FIBER_KM_PER_MS = 200f
+        //Real routes are longer than the great circle between the servers
+        private const val ROUTE_FACTOR = 1.5f
+        //Forwarding through the entry server
+        private const val HOP_OVERHEAD_MS = 2L
+    }
+
+    data class Route(
+            val entry: Server,
+            val exit: Server,
+            val entryPing: Long,
+            val exitPingEstimate: Long
+    ) {
+        val totalPing: Long
+            get() = entryPing + exitPingEstimate
+    }
+
+    interface OnFastestRouteDetectedListener {
+        /**
+         * Called on the main thread, [route] is null if no server replied to the ping.
+         */
+        fun onFastestRouteDetected(route: Route?)
+    }
+
+    /**
+     * Waits for the running ping scan the same way the fastest single server does,
+     * then picks the best pair.
+     */
+    fun findFastestRoute(listener: OnFastestRouteDetectedListener) {
+        pingProvider.findFastestServer(object : OnFastestServerDetectorListener {
+            override fun onFastestServerDetected(server: Server?) {
+                listener.onFastestRouteDetected(getFastestRoute())
+            }
+
+            override fun onDefaultServerApplied(server: Server?) {
+                listener.onFastestRouteDetected(getFastestRoute())
+            }
+        })
+    }
+
+    fun getFastestRoute(): Route? {
+        return rankRoutes(1).firstOrNull()
+    }
+
+    /**
+     * Returns up to [limit] pairs, fastest first.
+     * Entries are visited in order of their ping, so the search stops as soon as
+     * the entry ping alone can't beat the slowest of the kept pairs.
+     */
+    fun rankRoutes(limit: Int): List<Route> {
+        val servers = serversRepository.getServers(false)
+        if (servers.isNullOrEmpty() || limit <= 0) {
+            return emptyList()
+        }
+        val excluded = HashSet(serversRepository.getExcludedServersList())
+        val candidates = servers.filter { !excluded.contains(it) }
+        val pings = pingProvider.getMeasuredPings()
+        val entries = candidates.filter { pings.containsKey(it) }.sortedBy { pings[it] }
+
+        //Slowest kept pair on top
+        val best = PriorityQueue<Route>(limit, compareByDescending { it.totalPing })
+        for (entry in entries) {
+            val entryPing = pings[entry]!!
+            if (best.size == limit && entryPing + HOP_OVERHEAD_MS >= best.peek()!!.totalPing) {
+                break
+            }
+            for (exit in candidates) {
+                if (!exit.canBeUsedAsMultiHopWith(entry)) {
+                    continue
+                }
+                val route = Route(entry, exit, entryPing, estimatePing(entry, exit))
+                if (best.size < limit) {
+                    best.add(route)
+                } else if (route.totalPing < best.peek()!!.totalPing) {
+                    best.poll()
+                    best.add(route)
+                }
+            }
+        }
+
+        val result = best.sortedBy { it.totalPing }
+        LOGGER.info("Ranked ${result.size} routes from ${entries.size} pinged entries, " +
+                "fastest = ${result.firstOrNull()?.let { "${it.entry.gateway} -> ${it.exit.gateway} ~${it.totalPing} ms" }}")
+        return result
+    }
+
+    private fun estimatePing(entry: Server, exit: Server): Long {
+        val distance = DistanceProvider.getDistanceBetween(
+                entry.latitude.toFloat(),
+                entry.longitude.toFloat(),
+                exit.latitude.toFloat(),
+                exit.longitude.toFloat()
+        )
+        return (2 * distance * ROUTE_FACTOR / FIBER_KM_PER_MS).toLong() + HOP_OVERHEAD_MS
+    }
+}
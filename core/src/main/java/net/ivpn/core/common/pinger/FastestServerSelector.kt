@@ -0,0 +1,198 @@
+package net.ivpn.core.common.pinger
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Server
+import java.util.*
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+
+/**
+ * Keeps track of the fastest server while ping results are streaming in.
+ * Results are kept in a min-heap, so every update costs O(log n) instead of a full rescan.
+ * Outdated and excluded heap entries are dropped lazily when they reach the top,
+ * the heap is rebuilt from the latest pings once the excluded servers change.
+ *
+ * Not thread safe, callers are expected to synchronize access.
+ */
+class FastestServerSelector(private val nanoTime: () -> Long = System::nanoTime) {
+
+    private class Entry(val server: Server, val ping: Long)
+
+    private val heap = PriorityQueue<Entry>(compareBy { it.ping })
+    private val pings = HashMap<Server, Long>()
+    private var excluded: Set<Server> = emptySet()
+    private val pending = HashSet<Server>()
+    //Fastest reply of every pending server so far, its final ping can only be lower or equal
+    private val partialPings = HashMap<Server, Long>()
+    //Moment the last probe of the scans was sent, valid once none of them is sending anymore
+    private var lastSendNanos = 0L
+    private var sendingScans = 0
+
+    var leader: Server? = null
+        private set
+
+    /**
+     * Starts a new scan over [servers]. Returns true if the leader was changed.
+     */
+    fun reset(servers: List<Server>, excluded: Set<Server>): Boolean {
+        heap.clear()
+        pings.clear()
+        pending.clear()
+        partialPings.clear()
+        lastSendNanos = 0L
+        sendingScans = 0
+        startScan(servers)
+        this.excluded = excluded
+        return updateLeader()
+    }
+
+    /**
+     * Marks [servers] as being pinged again, results for them are expected shortly.
+     * Servers still pending from a running scan stay pending. Returns true if the leader was changed.
+     */
+    fun restart(servers: List<Server>): Boolean {
+        if (servers.isEmpty()) {
+            return false
+        }
+        for (server in servers) {
+            pings.remove(server)
+        }
+        startScan(servers)
+        return updateLeader()
+    }
+
+    /**
+     * Called once every probe of a scan started by [reset] or [restart] was sent.
+     */
+    fun onAllProbesSent(sendTimeNanos: Long) {
+        if (sendingScans > 0) {
+            sendingScans--
+        }
+        lastSendNanos = max(lastSendNanos, sendTimeNanos)
+    }
+
+    /**
+     * Records a reply for a [server] which is not finished yet.
+     */
+    fun onPartialResult(server: Server, ping: Long) {
+        if (!pending.contains(server)) {
+            return
+        }
+        val current = partialPings[server]
+        if (current == null || ping < current) {
+            partialPings[server] = ping
+        }
+    }
+
+    /**
+     * Returns true if the leader was changed.
+     */
+    fun onResult(server: Server, ping: Long?): Boolean {
+        pending.remove(server)
+        partialPings.remove(server)
+        if (ping == null || ping == Long.MAX_VALUE) {
+            pings.remove(server)
+        } else {
+            pings[server] = ping
+            heap.add(Entry(server, ping))
+        }
+        return updateLeader()
+    }
+
+    /**
+     * Returns true if the leader was changed.
+     */
+    fun setExcluded(excluded: Set<Server>): Boolean {
+        this.excluded = excluded
+        heap.clear()
+        for ((server, ping) in pings) {
+            heap.add(Entry(server, ping))
+        }
+        return updateLeader()
+    }
+
+    /**
+     * Once the last probe was sent, a reply arriving now has a round trip time of at least
+     * the time passed since then. The leader can't be overtaken when that time exceeds its ping
+     * and no pending server has already received a faster reply from one of its hosts.
+     */
+    fun isSettled(): Boolean {
+        return millisUntilSettled() == 0L
+    }
+
+    /**
+     * Returns 0 if the scan is settled, the time left until it may settle without new results,
+     * or null if it can settle only after more results arrive.
+     */
+    fun millisUntilSettled(): Long? {
+        if (pending.isEmpty()) {
+            return 0L
+        }
+        val ping = leader?.let { pings[it] } ?: return null
+        if (sendingScans > 0) {
+            return null
+        }
+        for ((server, partialPing) in partialPings) {
+            if (partialPing < ping && !excluded.contains(server)) {
+                return null
+            }
+        }
+        val elapsedMillis = TimeUnit.NANOSECONDS.toMillis(nanoTime() - lastSendNanos)
+        return (ping + SETTLE_MARGIN_MILLIS - elapsedMillis + 1).coerceAtLeast(0L)
+    }
+
+    private fun startScan(servers: List<Server>) {
+        for (server in servers) {
+            pending.add(server)
+            partialPings.remove(server)
+        }
+        sendingScans++
+    }
+
+    private fun updateLeader(): Boolean {
+        val newLeader = findLeader()
+        if (newLeader == leader) {
+            return false
+        }
+        leader = newLeader
+        return true
+    }
+
+    private fun findLeader(): Server? {
+        while (heap.isNotEmpty()) {
+            val top = heap.peek()!!
+            if (pings[top.server] != top.ping || excluded.contains(top.server)) {
+                heap.poll()
+                continue
+            }
+            return top.server
+        }
+        //Nothing replied yet, a server which wasn't measured can't be reported as the fastest
+        return null
+    }
+
+    companion object {
+        private const val SETTLE_MARGIN_MILLIS = 20L
+    }
+}
@@ -0,0 +1,128 @@
+package net.ivpn.core.common.pinger
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.rest.data.model.Host
+import java.util.concurrent.ConcurrentHashMap
+import javax.inject.Inject
+
+/**
+ * Latest latency measurements for every probed host, keyed by host address.
+ */
+@ApplicationScope
+class HostLatencyStore @Inject constructor() {
+
+    data class HostLatency(
+        val rttNanos: Long,
+        val sent: Int,
+        val received: Int
+    ) {
+        val isHealthy: Boolean
+            get() = received > 0
+
+        val loss: Float
+            get() = if (sent == 0) 1f else (sent - received).toFloat() / sent
+    }
+
+    private val latencies = ConcurrentHashMap<String, HostLatency>()
+
+    fun put(result: LatencyProber.Result) {
+        latencies[result.address] = HostLatency(result.minRttNanos, result.sent, result.received)
+    }
+
+    /**
+     * Ranks [host] as not replying until it is probed again, so the next connection
+     * goes to another host without waiting for a new ping round.
+     */
+    fun markUnhealthy(host: Host) {
+        host.host?.let { markUnhealthy(it) }
+    }
+
+    fun markUnhealthy(address: String) {
+        latencies[address] = HostLatency(Long.MAX_VALUE, 1, 0)
+    }
+
+    fun get(host: Host): HostLatency? {
+        return host.host?.let { latencies[it] }
+    }
+
+    /**
+     * Returns [addresses] in the order they should be tried: healthy ones by latency and loss,
+     * then the ones which weren't measured yet, then the ones which didn't reply.
+     * Equally ranked addresses are shuffled.
+     */
+    fun sortByLatency(addresses: List<String>): List<String> {
+        return addresses.shuffled()
+            .map { it to latencies[it] }
+            .sortedWith(compareBy<Pair<String, HostLatency?>> { rankOf(it.second) }
+                .thenBy(nullsLast(latencyComparator)) { it.second })
+            .map { it.first }
+    }
+
+    private fun rankOf(latency: HostLatency?): Int {
+        return when {
+            latency == null -> 1
+            latency.isHealthy -> 0
+            else -> 2
+        }
+    }
+
+    /**
+     * Returns the healthy host with the lowest latency and loss.
+     * Hosts which weren't measured yet come next, hosts which didn't reply come last.
+     * A random choice is made only between equally ranked hosts.
+     */
+    fun getBestHost(hosts: List<Host>): Host {
+        val healthy = ArrayList<Pair<Host, HostLatency>>()
+        val unknown = ArrayList<Host>()
+        for (host in hosts) {
+            val latency = get(host)
+            when {
+                latency == null -> unknown.add(host)
+                latency.isHealthy -> healthy.add(host to latency)
+            }
+        }
+        if (healthy.isNotEmpty()) {
+            val best = healthy.minOfWith(latencyComparator) { it.second }
+            return healthy.filter { latencyComparator.compare(it.second, best) == 0 }
+                .random().first
+        }
+        if (unknown.isNotEmpty()) {
+            return unknown.random()
+        }
+        return hosts.random()
+    }
+
+    fun clear() {
+        latencies.clear()
+    }
+
+    companion object {
+        private val latencyComparator = compareBy<HostLatency> { it.loss }
+            .thenBy { it.rttNanos / RTT_BUCKET_NANOS }
+
+        //Hosts closer than this to each other are treated as equally fast
+        private const val RTT_BUCKET_NANOS = 1_000_000L
+    }
+}
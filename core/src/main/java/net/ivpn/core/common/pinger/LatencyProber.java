@@ -0,0 +1,495 @@
+package net.ivpn.core.common.pinger;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process latency prober. All probes of a scan are multiplexed on the calling thread:
+ * echo requests go through unprivileged ICMP datagram sockets and replies are matched
+ * by sequence number. If the platform doesn't allow ICMP sockets, TCP connect time
+ * to {@link #TCP_PROBE_PORT} is measured instead.
+ * <p>
+ * Every round of probes is sent {@link #ROUND_INTERVAL_MILLIS} after the previous one,
+ * so the whole scan takes about one timeout window regardless of the number of hosts.
+ */
+public class LatencyProber {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LatencyProber.class);
+
+    private static final long ROUND_INTERVAL_MILLIS = 100;
+    private static final int TCP_PROBE_PORT = 443;
+
+    private static final int ICMP_HEADER_SIZE = 8;
+    private static final int ICMP_PAYLOAD_SIZE = 24;
+    private static final byte ICMP_ECHO_REQUEST = 8;
+    private static final byte ICMP_ECHO_REPLY = 0;
+    private static final byte ICMPV6_ECHO_REQUEST = (byte) 128;
+    private static final byte ICMPV6_ECHO_REPLY = (byte) 129;
+
+    private final int timeOutMillis;
+    private final int times;
+
+    public LatencyProber(int timeOutMillis, int times) {
+        if (timeOutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout should be greater than 0");
+        }
+        if (times <= 0) {
+            throw new IllegalArgumentException("Times should be greater than 0");
+        }
+        this.timeOutMillis = timeOutMillis;
+        this.times = times;
+    }
+
+    /**
+     * Probes all addresses and blocks until every address either answered all probes
+     * or the timeout window passed. The listener is called exactly once per address,
+     * as soon as its result is final.
+     */
+    public void probe(Collection<String> addresses, OnProbeFinishListener listener) {
+        List<Target> targets = new ArrayList<>(addresses.size());
+        for (String address : addresses) {
+            targets.add(new Target(address));
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        Session session;
+        try {
+            session = new IcmpSession(targets);
+        } catch (ErrnoException exception) {
+            LOGGER.info("ICMP sockets are not available, falling back to TCP probes: " + exception.getMessage());
+            try {
+                session = new TcpSession(targets);
+            } catch (IOException ioException) {
+                LOGGER.error("Unable to start latency probes", ioException);
+                for (Target target : targets) {
+                    listener.onProbeFinished(target.result);
+                }
+                return;
+            }
+        }
+
+        try {
+            session.run(listener);
+        } finally {
+            session.close();
+        }
+    }
+
+    public interface OnProbeFinishListener {
+        void onProbeFinished(Result result);
+
+        /**
+         * Called after the last round of probes was sent, every reply arriving later
+         * has a round trip time of at least the time passed since {@code sendTimeNanos}.
+         */
+        default void onAllProbesSent(long sendTimeNanos) {
+        }
+
+        /**
+         * Called for every reply before the result of the address is final.
+         */
+        default void onProbeReplied(Result result) {
+        }
+    }
+
+    public static final class Result {
+        private final String address;
+        private int sent;
+        private int received;
+        private long minRttNanos = Long.MAX_VALUE;
+
+        Result(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public int getSent() {
+            return sent;
+        }
+
+        public int getReceived() {
+            return received;
+        }
+
+        public long getMinRttNanos() {
+            return minRttNanos;
+        }
+
+        public boolean isReachable() {
+            return received > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "address='" + address + '\'' +
+                    ", sent=" + sent +
+                    ", received=" + received +
+                    ", minRttNanos=" + minRttNanos +
+                    '}';
+        }
+    }
+
+    private static final class Target {
+        final Result result;
+        final InetAddress address;
+        boolean isReported;
+
+        Target(String address) {
+            this.result = new Result(address);
+            this.address = parse(address);
+        }
+
+        private static InetAddress parse(String address) {
+            if (address == null || address.isEmpty()) {
+                return null;
+            }
+            try {
+                return InetAddress.getByName(address);
+            } catch (IOException exception) {
+                return null;
+            }
+        }
+    }
+
+    private abstract class Session {
+        final List<Target> targets;
+        final long[] sendTimes;
+        int pending;
+        OnProbeFinishListener listener;
+
+        Session(List<Target> targets) {
+            this.targets = targets;
+            this.sendTimes = new long[targets.size() * times];
+        }
+
+        abstract boolean send(Target target, int sequence);
+
+        abstract void await(long timeoutMillis);
+
+        abstract void close();
+
+        void run(OnProbeFinishListener listener) {
+            this.listener = listener;
+            long start = System.nanoTime();
+            long roundInterval = TimeUnit.MILLISECONDS.toNanos(ROUND_INTERVAL_MILLIS);
+            long deadline = start + roundInterval * (times - 1) + TimeUnit.MILLISECONDS.toNanos(timeOutMillis);
+            int round = 0;
+            while (true) {
+                long now = System.nanoTime();
+                if (round < times && now >= start + round * roundInterval) {
+                    sendRound(round);
+                    round++;
+                    if (round == times) {
+                        listener.onAllProbesSent(System.nanoTime());
+                    }
+                    continue;
+                }
+                reportFinished(listener);
+                if ((round == times && pending == 0) || now >= deadline) {
+                    break;
+                }
+                long wakeUp = round < times ? Math.min(deadline, start + round * roundInterval) : deadline;
+                await(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeUp - now)));
+            }
+            for (Target target : targets) {
+                report(target, listener);
+            }
+        }
+
+        void onReply(int sequence, long receiveTime) {
+            if (sequence < 0 || sequence >= sendTimes.length || sendTimes[sequence] == 0) {
+                return;
+            }
+            Target target = targets.get(sequence % targets.size());
+            // Pending counter is updated by sendRound right after a synchronous reply.
+            long rtt = receiveTime - sendTimes[sequence];
+            sendTimes[sequence] = 0;
+            pending--;
+            target.result.received++;
+            if (rtt < target.result.minRttNanos) {
+                target.result.minRttNanos = rtt;
+            }
+            if (listener != null && !target.isReported) {
+                listener.onProbeReplied(target.result);
+            }
+        }
+
+        private void sendRound(int round) {
+            for (int i = 0; i < targets.size(); i++) {
+                Target target = targets.get(i);
+                if (target.address == null) {
+                    continue;
+                }
+                int sequence = round * targets.size() + i;
+                sendTimes[sequence] = System.nanoTime();
+                if (send(target, sequence)) {
+                    target.result.sent++;
+                    pending++;
+                } else {
+                    sendTimes[sequence] = 0;
+                }
+            }
+        }
+
+        private void reportFinished(OnProbeFinishListener listener) {
+            for (Target target : targets) {
+                if (!target.isReported && target.result.received == times) {
+                    report(target, listener);
+                }
+            }
+        }
+
+        private void report(Target target, OnProbeFinishListener listener) {
+            if (target.isReported) {
+                return;
+            }
+            target.isReported = true;
+            listener.onProbeFinished(target.result);
+        }
+    }
+
+    private final class IcmpSession extends Session {
+        private final FileDescriptor ipv4Socket;
+        private final FileDescriptor ipv6Socket;
+        private final byte[] packet = new byte[ICMP_HEADER_SIZE + ICMP_PAYLOAD_SIZE];
+        private final byte[] reply = new byte[ICMP_HEADER_SIZE + ICMP_PAYLOAD_SIZE];
+        private final StructPollfd[] pollFds;
+
+        IcmpSession(List<Target> targets) throws ErrnoException {
+            super(targets);
+            if (targets.size() * times > 0xFFFF) {
+                throw new IllegalArgumentException("Too many probes for one session");
+            }
+            boolean hasIpv4 = false;
+            boolean hasIpv6 = false;
+            for (Target target : targets) {
+                if (target.address instanceof Inet6Address) {
+                    hasIpv6 = true;
+                } else if (target.address != null) {
+                    hasIpv4 = true;
+                }
+            }
+            FileDescriptor ipv4 = null;
+            FileDescriptor ipv6 = null;
+            try {
+                if (hasIpv4) {
+                    ipv4 = Os.socket(OsConstants.AF_INET, OsConstants.SOCK_DGRAM, OsConstants.IPPROTO_ICMP);
+                }
+                if (hasIpv6) {
+                    ipv6 = Os.socket(OsConstants.AF_INET6, OsConstants.SOCK_DGRAM, OsConstants.IPPROTO_ICMPV6);
+                }
+            } catch (ErrnoException exception) {
+                closeQuietly(ipv4);
+                throw exception;
+            }
+            ipv4Socket = ipv4;
+            ipv6Socket = ipv6;
+
+            List<StructPollfd> fds = new ArrayList<>(2);
+            for (FileDescriptor socket : new FileDescriptor[]{ipv4Socket, ipv6Socket}) {
+                if (socket != null) {
+                    StructPollfd pollFd = new StructPollfd();
+                    pollFd.fd = socket;
+                    pollFd.events = (short) OsConstants.POLLIN;
+                    fds.add(pollFd);
+                }
+            }
+            pollFds = fds.toArray(new StructPollfd[0]);
+        }
+
+        @Override
+        boolean send(Target target, int sequence) {
+            boolean isIpv6 = target.address instanceof Inet6Address;
+            packet[0] = isIpv6 ? ICMPV6_ECHO_REQUEST : ICMP_ECHO_REQUEST;
+            packet[1] = 0;
+            // Checksum and identifier are filled in by the kernel for ping sockets.
+            packet[2] = 0;
+            packet[3] = 0;
+            packet[4] = 0;
+            packet[5] = 0;
+            packet[6] = (byte) (sequence >> 8);
+            packet[7] = (byte) sequence;
+            try {
+                Os.sendto(isIpv6 ? ipv6Socket : ipv4Socket, packet, 0, packet.length, 0, target.address, 0);
+                return true;
+            } catch (ErrnoException | IOException exception) {
+                LOGGER.debug("Unable to send probe to " + target.result.address + ": " + exception.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        void await(long timeoutMillis) {
+            try {
+                if (Os.poll(pollFds, (int) Math.min(Integer.MAX_VALUE, timeoutMillis)) <= 0) {
+                    return;
+                }
+            } catch (ErrnoException exception) {
+                return;
+            }
+            for (StructPollfd pollFd : pollFds) {
+                if ((pollFd.revents & OsConstants.POLLIN) != 0) {
+                    drain(pollFd.fd);
+                }
+            }
+        }
+
+        private void drain(FileDescriptor socket) {
+            while (true) {
+                int length;
+                try {
+                    length = Os.recvfrom(socket, reply, 0, reply.length, OsConstants.MSG_DONTWAIT, null);
+                } catch (ErrnoException | IOException exception) {
+                    return;
+                }
+                long receiveTime = System.nanoTime();
+                if (length < ICMP_HEADER_SIZE) {
+                    continue;
+                }
+                if (reply[0] != ICMP_ECHO_REPLY && reply[0] != ICMPV6_ECHO_REPLY) {
+                    continue;
+                }
+                onReply(((reply[6] & 0xFF) << 8) | (reply[7] & 0xFF), receiveTime);
+            }
+        }
+
+        @Override
+        void close() {
+            closeQuietly(ipv4Socket);
+            closeQuietly(ipv6Socket);
+        }
+
+        private void closeQuietly(FileDescriptor socket) {
+            if (socket == null) {
+                return;
+            }
+            try {
+                Os.close(socket);
+            } catch (ErrnoException ignored) {
+            }
+        }
+    }
+
+    private final class TcpSession extends Session {
+        private final Selector selector;
+
+        TcpSession(List<Target> targets) throws IOException {
+            super(targets);
+            selector = Selector.open();
+        }
+
+        @Override
+        boolean send(Target target, int sequence) {
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(new InetSocketAddress(target.address, TCP_PROBE_PORT))) {
+                    onReply(sequence, System.nanoTime());
+                    channel.close();
+                    return true;
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, sequence);
+                return true;
+            } catch (IOException exception) {
+                closeQuietly(channel);
+                return false;
+            }
+        }
+
+        @Override
+        void await(long timeoutMillis) {
+            try {
+                if (selector.select(timeoutMillis) == 0) {
+                    return;
+                }
+            } catch (IOException exception) {
+                return;
+            }
+            long receiveTime = System.nanoTime();
+            for (SelectionKey key : selector.selectedKeys()) {
+                SocketChannel channel = (SocketChannel) key.channel();
+                int sequence = (Integer) key.attachment();
+                try {
+                    channel.finishConnect();
+                    onReply(sequence, receiveTime);
+                } catch (ConnectException exception) {
+                    // A refused connection still means the host answered within one round trip.
+                    onReply(sequence, receiveTime);
+                } catch (IOException ignored) {
+                }
+                key.cancel();
+                closeQuietly(channel);
+            }
+            selector.selectedKeys().clear();
+        }
+
+        @Override
+        void close() {
+            for (SelectionKey key : selector.keys()) {
+                closeQuietly((SocketChannel) key.channel());
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void closeQuietly(SocketChannel channel) {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
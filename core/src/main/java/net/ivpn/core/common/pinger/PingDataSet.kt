@@ -22,125 +22,269 @@ package net.ivpn.core.common.pinger
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
+import android.os.Handler
+import android.os.Looper
 import androidx.lifecycle.MutableLiveData
-import androidx.lifecycle.map
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
-import kotlinx.coroutines.sync.Mutex
-import kotlinx.coroutines.sync.withLock
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.common.prefs.ServersRepository
 import net.ivpn.core.rest.data.model.Server
+import net.ivpn.core.rest.data.model.ServerType
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 
 @ApplicationScope
 class PingDataSet @Inject constructor(
-    private val serversRepository: ServersRepository
+    private val serversRepository: ServersRepository,
+    private val hostLatencyStore: HostLatencyStore
 ) {
 
     val pings: MutableLiveData<MutableMap<Server, PingResultFormatter?>> = MutableLiveData()
-    val fastestServer = pings.map { calculateFastestServer(it) }
+    val fastestServer: MutableLiveData<Server?> = MutableLiveData()
 
-    private var _pings: MutableMap<Server, PingResultFormatter?> = mutableMapOf()
+    //Updated in place, observers get a copy at most once per PUBLISH_INTERVAL
+    private val _pings: MutableMap<Server, PingResultFormatter?> = HashMap()
 
     //ToDo try to use coroutineScope
     val scope = CoroutineScope(Dispatchers.IO)
-    private val mutex = Mutex()
+    private val lock = Any()
+    private val prober = LatencyProber(TIMEOUT, TIMES)
+    private val selector = FastestServerSelector()
+    private val fastestServerWaiters = ArrayList<FastestServerWaiter>()
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private var isSelectorInitialised = false
+    private var isPublishScheduled = false
+    private val publishRunnable = Runnable { publishPings() }
+    private val settleCheckRunnable = Runnable { synchronized(lock) { notifySettledWaiters() } }
 
     suspend fun pingAll(servers: List<Server>, shouldResetServers: Boolean) {
         scope.launch {
             if (shouldResetServers) {
                 reset(servers)
+            } else {
+                restart(servers)
             }
-            for (server in servers) {
-                launch {
-                    innerPing(server)
-                }
-            }
+            probe(servers)
         }
     }
 
     suspend fun ping(server: Server) {
         scope.launch {
-            updatePingFor(server, null)
-            launch {
-                innerPing(server)
+            synchronized(lock) {
+                if (selector.restart(listOf(server))) {
+                    fastestServer.postValue(selector.leader)
+                }
+                putPing(server, null)
             }
+            probe(listOf(server))
         }
     }
 
     fun refreshFastestServer() {
-        pings.postValue(_pings.toMutableMap())
-    }
-
-    private suspend fun innerPing(server: Server) {
-        val result = Ping.onAddress(server.ipAddress)
-            .setTimeOutMillis(TIMEOUT)
-            .setTimes(TIMES)
-            .doPing()
-
-        when (result) {
-            is Error -> {
-                updatePingFor(
-                    server,
-                    PingResultFormatter(PingResultFormatter.PingResult.OFFLINE, Long.MAX_VALUE)
-                )
-                result.error?.printStackTrace()
+        synchronized(lock) {
+            if (selector.setExcluded(getExcludedServers())) {
+                fastestServer.postValue(selector.leader)
+            }
+            schedulePublish()
+        }
+    }
+
+    /**
+     * Delivers the fastest server on the main thread as soon as it can't be overtaken
+     * by servers which didn't reply yet, without waiting for the slowest timeout.
+     * Falls back to the default server if no ping results are available.
+     */
+    fun findFastestServer(listener: OnFastestServerDetectorListener) {
+        val waiter = FastestServerWaiter(listener)
+        synchronized(lock) {
+            if (!selector.isSettled()) {
+                fastestServerWaiters.add(waiter)
+                mainHandler.postDelayed({ notifyWaiter(waiter) }, MAX_WAITING_TIME)
+                notifySettledWaiters()
+                return
             }
-            is Success -> {
-                val formatter = if (result.stats.packetsLost == TIMES.toLong()) {
-                    PingResultFormatter(PingResultFormatter.PingResult.OFFLINE, Long.MAX_VALUE)
-                } else {
-                    PingResultFormatter(
-                        PingResultFormatter.PingResult.OK,
-                        result.stats.minTimeTaken.toLong()
-                    )
+        }
+        notifyWaiter(waiter)
+    }
+
+    /**
+     * Returns the latest ping of every server which replied.
+     */
+    fun getMeasuredPings(): Map<Server, Long> {
+        val result = HashMap<Server, Long>()
+        synchronized(lock) {
+            for ((server, ping) in _pings) {
+                if (ping != null && ping.isPingAvailable) {
+                    result[server] = ping.ping
                 }
-                updatePingFor(server, formatter)
             }
         }
+        return result
+    }
+
+    /**
+     * Probes every host of every server. A server is reported with the ping
+     * of its fastest host once all of its hosts are finished.
+     */
+    private fun probe(servers: List<Server>) {
+        val serversByAddress = HashMap<String, MutableList<ServerProbe>>()
+        for (server in servers) {
+            val addresses = server.ipAddresses.ifEmpty { listOf(server.ipAddress) }
+            val serverProbe = ServerProbe(server, addresses.size)
+            addresses.forEach { serversByAddress.getOrPut(it) { ArrayList() }.add(serverProbe) }
+        }
+        prober.probe(serversByAddress.keys, object : LatencyProber.OnProbeFinishListener {
+            override fun onProbeFinished(result: LatencyProber.Result) {
+                hostLatencyStore.put(result)
+                serversByAddress[result.address]?.forEach { serverProbe ->
+                    serverProbe.onHostFinished(result)?.let {
+                        updatePingFor(serverProbe.server, PingResultFormatter.from(it))
+                    }
+                }
+            }
+
+            override fun onAllProbesSent(sendTimeNanos: Long) {
+                synchronized(lock) {
+                    selector.onAllProbesSent(sendTimeNanos)
+                    notifySettledWaiters()
+                }
+            }
+
+            override fun onProbeReplied(result: LatencyProber.Result) {
+                val ping = TimeUnit.NANOSECONDS.toMillis(result.minRttNanos)
+                synchronized(lock) {
+                    serversByAddress[result.address]?.forEach { selector.onPartialResult(it.server, ping) }
+                }
+            }
+        })
     }
 
-    private suspend fun updatePingFor(server: Server, ping: PingResultFormatter?) {
-        mutex.withLock {
-            val newMap = _pings.toMutableMap()
-            newMap[server] = ping
-            _pings = newMap
-            pings.postValue(newMap)
+    private fun updatePingFor(server: Server, ping: PingResultFormatter?) {
+        synchronized(lock) {
+            putPing(server, ping)
+            val value = ping?.takeIf { it.isPingAvailable }?.ping
+            if (selector.onResult(server, value)) {
+                fastestServer.postValue(selector.leader)
+            }
+            notifySettledWaiters()
         }
     }
 
-    private suspend fun reset(servers: List<Server>) {
-        mutex.withLock {
-            _pings = mutableMapOf()
+    /**
+     * Notifies waiters once the selector is settled, otherwise schedules the next check
+     * for the moment it may settle without new results. Should be called under [lock].
+     */
+    private fun notifySettledWaiters() {
+        if (fastestServerWaiters.isEmpty()) {
+            return
+        }
+        mainHandler.removeCallbacks(settleCheckRunnable)
+        val delay = selector.millisUntilSettled() ?: return
+        if (delay > 0) {
+            mainHandler.postDelayed(settleCheckRunnable, delay)
+            return
+        }
+        val waiters = ArrayList(fastestServerWaiters)
+        fastestServerWaiters.clear()
+        mainHandler.post { waiters.forEach { notifyWaiter(it) } }
+    }
+
+    /**
+     * Should be called under [lock].
+     */
+    private fun putPing(server: Server, ping: PingResultFormatter?) {
+        _pings[server] = ping
+        schedulePublish()
+    }
+
+    /**
+     * Coalesces ping updates, so a scan publishes a copy of the map once per interval
+     * instead of once per result. Should be called under [lock].
+     */
+    private fun schedulePublish() {
+        if (isPublishScheduled) {
+            return
+        }
+        isPublishScheduled = true
+        mainHandler.postDelayed(publishRunnable, PUBLISH_INTERVAL)
+    }
+
+    private fun publishPings() {
+        val snapshot: MutableMap<Server, PingResultFormatter?> = synchronized(lock) {
+            isPublishScheduled = false
+            HashMap(_pings)
+        }
+        pings.value = snapshot
+    }
+
+    private fun reset(servers: List<Server>) {
+        synchronized(lock) {
+            _pings.clear()
             servers.forEach { _pings[it] = null }
-            pings.postValue(_pings)
+            schedulePublish()
+            isSelectorInitialised = true
+            if (selector.reset(servers, getExcludedServers())) {
+                fastestServer.postValue(selector.leader)
+            }
         }
     }
 
-    private fun calculateFastestServer(pings: MutableMap<Server, PingResultFormatter?>): Server? {
-        var fastestServer: Server? = null
-        var lowestPing = Long.MAX_VALUE
-        var excludedServers = serversRepository.getExcludedServersList()
-        for ((server, result) in pings) {
-            fastestServer?.let { _ ->
-                result?.let { result ->
-                    if (!excludedServers.contains(server) && result.isPingAvailable && lowestPing > result.ping) {
-                        fastestServer = server
-                        lowestPing = result.ping
-                    }
-                }
-            } ?: run {
-                fastestServer = server
+    private fun restart(servers: List<Server>) {
+        if (!isSelectorInitialised) {
+            reset(servers)
+            return
+        }
+        synchronized(lock) {
+            if (selector.restart(servers)) {
+                fastestServer.postValue(selector.leader)
             }
         }
+    }
+
+    private fun notifyWaiter(waiter: FastestServerWaiter) {
+        val server = synchronized(lock) {
+            if (waiter.isNotified) return
+            waiter.isNotified = true
+            fastestServerWaiters.remove(waiter)
+            selector.leader
+        }
+        if (server != null) {
+            waiter.listener.onFastestServerDetected(server)
+        } else {
+            waiter.listener.onDefaultServerApplied(serversRepository.getDefaultServer(ServerType.ENTRY))
+        }
+    }
+
+    private fun getExcludedServers(): Set<Server> {
+        return HashSet(serversRepository.getExcludedServersList())
+    }
+
+    private class ServerProbe(val server: Server, private var remainingHosts: Int) {
+        private var best: LatencyProber.Result? = null
+
+        /**
+         * Returns the result of the fastest host once the last host of the server is finished.
+         */
+        fun onHostFinished(result: LatencyProber.Result): LatencyProber.Result? {
+            val current = best
+            if (current == null || (result.isReachable && result.minRttNanos < current.minRttNanos)) {
+                best = result
+            }
+            remainingHosts--
+            return if (remainingHosts == 0) best else null
+        }
+    }
 
-        return fastestServer
+    private class FastestServerWaiter(val listener: OnFastestServerDetectorListener) {
+        var isNotified = false
     }
 
     companion object {
         private const val TIMES = 2
         private const val TIMEOUT = 1000
+        private const val MAX_WAITING_TIME = 1500L
+        private const val PUBLISH_INTERVAL = 16L
     }
-}
\ No newline at end of file
+}
@@ -29,6 +29,7 @@ import kotlinx.coroutines.launch
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.common.prefs.OnServerListUpdatedListener
 import net.ivpn.core.common.prefs.ServersRepository
+import net.ivpn.core.common.prefs.ServersDiff
 import net.ivpn.core.common.prefs.ServersPreference
 import net.ivpn.core.common.utils.DateUtil
 import net.ivpn.core.rest.data.model.Server
@@ -83,6 +84,30 @@ class PingProvider @Inject internal constructor(
         }
     }
 
+    /**
+     * Pings only [servers] and keeps results of the others, used when a few servers were changed.
+     */
+    private fun ping(servers: List<Server>) {
+        if (lastPingedProtocol != protocolController.currentProtocol) {
+            pingAll(true)
+            return
+        }
+        if (servers.isEmpty() || isConnected) {
+            return
+        }
+        scope.launch {
+            pingsData.pingAll(servers, false)
+        }
+    }
+
+    fun findFastestServer(listener: OnFastestServerDetectorListener) {
+        pingsData.findFastestServer(listener)
+    }
+
+    fun getMeasuredPings(): Map<Server, Long> {
+        return pingsData.getMeasuredPings()
+    }
+
     private val isFrequencyLimitationSatisfied: Boolean
         get() {
             val currentTimeStamp = System.currentTimeMillis()
@@ -91,12 +116,19 @@ class PingProvider @Inject internal constructor(
 
     private val onServerListUpdatedListener: OnServerListUpdatedListener
         get() = object : OnServerListUpdatedListener {
-            override fun onSuccess(servers: List<Server>, isForced: Boolean) {
-                if (isForced) {
+            override fun onSuccess(servers: List<Server>, diff: ServersDiff, isForced: Boolean) {
+                if (!isForced) {
+                    return
+                }
+                if (diff.removed.isNotEmpty()) {
                     pingAll(true)
+                } else {
+                    ping(diff.updated)
                 }
             }
 
+            override fun onUnchanged(isForced: Boolean) {}
+
             override fun onError(throwable: Throwable) {}
             override fun onError() {}
         }
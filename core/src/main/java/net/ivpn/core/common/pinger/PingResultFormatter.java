@@ -24,8 +24,17 @@ package net.ivpn.core.common.pinger;
 
 import net.ivpn.core.R;
 
+import java.util.concurrent.TimeUnit;
+
 public class PingResultFormatter {
 
+    static PingResultFormatter from(LatencyProber.Result result) {
+        if (!result.isReachable()) {
+            return new PingResultFormatter(PingResult.OFFLINE, Long.MAX_VALUE);
+        }
+        return new PingResultFormatter(PingResult.OK, TimeUnit.NANOSECONDS.toMillis(result.getMinRttNanos()));
+    }
+
     private PingResult result;
     private long ping;
 
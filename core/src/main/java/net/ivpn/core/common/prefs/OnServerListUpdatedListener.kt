@@ -26,7 +26,9 @@ import net.ivpn.core.rest.data.model.Server
 
 interface OnServerListUpdatedListener {
 
-    fun onSuccess(servers: List<Server>, isForced: Boolean)
+    fun onSuccess(servers: List<Server>, diff: ServersDiff, isForced: Boolean)
+
+    fun onUnchanged(isForced: Boolean)
 
     fun onError(throwable: Throwable)
 
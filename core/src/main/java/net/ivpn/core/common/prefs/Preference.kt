@@ -43,6 +43,7 @@ class Preference @Inject constructor() {
         private const val SERVERS_PREF = "SERVERS_PREF"
         private const val WIREGUARD_SERVERS_PREF = "WIREGUARD_SERVERS_PREF"
         private const val DISALLOWED_APPS_PREF = "DISALLOWED_APPS_PREF"
+        private const val PORT_RANKING_PREF = "PORT_RANKING_PREF"
 
         //Don't clear this shared preference after logout
         private const val STICKY_PREF = "STICKY_PREF"
@@ -87,6 +88,7 @@ class Preference @Inject constructor() {
         clear(accountPreference)
         clear(oldAccountSharedPreferences)
         clear(wireguardServersSharedPreferences)
+        clear(portRankingSharedPreferences)
     }
 
     fun removeSessionData() {
@@ -108,26 +110,31 @@ class Preference @Inject constructor() {
         get() = IVPNApplication.application.getSharedPreferences(WIREGUARD_SERVERS_PREF, Context.MODE_PRIVATE)
     val disallowedAppsSharedPreferences: SharedPreferences
         get() = IVPNApplication.application.getSharedPreferences(DISALLOWED_APPS_PREF, Context.MODE_PRIVATE)
+    val portRankingSharedPreferences: SharedPreferences
+        get() = IVPNApplication.application.getSharedPreferences(PORT_RANKING_PREF, Context.MODE_PRIVATE)
     val stickySharedPreferences: SharedPreferences
         get() = IVPNApplication.application.getSharedPreferences(STICKY_PREF, Context.MODE_PRIVATE)
-    val settingsPreference: SharedPreferences
-        get() = EncryptedSharedPreferences.create(
+    //Creating encrypted preferences sets up the keystore backed keysets, so it's done once per process
+    val settingsPreference: SharedPreferences by lazy {
+        EncryptedSharedPreferences.create(
                 IVPNApplication.application,
                 SETTINGS_PREF,
                 mainKey,
                 EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                 EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
         )
+    }
     val oldSettingsPreference: SharedPreferences
         get() = IVPNApplication.application.getSharedPreferences(OLD_SETTINGS_PREF, Context.MODE_PRIVATE)
-    val accountPreference: SharedPreferences
-        get() = EncryptedSharedPreferences.create(
+    val accountPreference: SharedPreferences by lazy {
+        EncryptedSharedPreferences.create(
                 IVPNApplication.application,
                 ACCOUNT_PREF,
                 mainKey,
                 EncryptedSharedPreferences.PrefKeyEncryptionScheme.AES256_SIV,
                 EncryptedSharedPreferences.PrefValueEncryptionScheme.AES256_GCM
         )
+    }
     val oldAccountSharedPreferences: SharedPreferences
         get() = IVPNApplication.application.getSharedPreferences(OLD_ACCOUNT_PREF, Context.MODE_PRIVATE)
     
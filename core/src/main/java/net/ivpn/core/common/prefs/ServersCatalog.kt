@@ -0,0 +1,317 @@
+package net.ivpn.core.common.prefs
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.content.SharedPreferences
+import android.os.Process
+import android.os.SystemClock
+import net.ivpn.core.common.Mapper
+import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.rest.data.model.Server
+import net.ivpn.core.rest.data.model.ServerType
+import net.ivpn.core.vpn.Protocol
+import org.slf4j.LoggerFactory
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import javax.inject.Inject
+
+/**
+ * In-memory copy of the decoded server lists.
+ * Server lists live in [ServersStore], favourites, excluded and current servers in [Preference].
+ * Every list is decoded once per write and handed out as an unmodifiable snapshot,
+ * so readers never touch the disk or Gson on the hot path.
+ * [Server] instances of a snapshot are shared by every reader and must not be changed,
+ * callers which keep per-view state work on [Server.copy].
+ * Snapshots are swapped synchronously, [ServersStore] is written in the background.
+ */
+@ApplicationScope
+class ServersCatalog @Inject constructor(
+        private val preference: Preference,
+        private val store: ServersStore
+) {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(ServersCatalog::class.java)
+
+        const val CURRENT_ENTER_SERVER = "CURRENT_ENTER_SERVER"
+        const val CURRENT_EXIT_SERVER = "CURRENT_EXIT_SERVER"
+        //Legacy keys, server lists are kept in ServersStore now
+        private const val SERVERS_LIST = "SERVERS_LIST"
+        private const val LOCATION_LIST = "LOCATION_LIST"
+        const val FAVOURITES_SERVERS_LIST = "FAVOURITES_SERVERS_LIST"
+        const val EXCLUDED_FASTEST_SERVERS = "EXCLUDED_FASTEST_SERVERS"
+        private const val SERVERS_ETAG = "SERVERS_ETAG"
+        private const val SERVERS_LAST_MODIFIED = "SERVERS_LAST_MODIFIED"
+        private const val SERVERS_CONFIG_HASH = "SERVERS_CONFIG_HASH"
+    }
+
+    /**
+     * HTTP validators of the downloaded server list, sent back with the next request
+     * so the API can answer with 304 if the list wasn't changed.
+     */
+    data class Validators(val eTag: String?, val lastModified: String?)
+
+    data class Snapshot(
+            val version: Long,
+            val servers: List<Server>?,
+            val favourites: List<Server>,
+            val excluded: List<Server>,
+            val entryServer: Server?,
+            val exitServer: Server?
+    ) {
+        fun getCurrentServer(serverType: ServerType): Server? {
+            return if (serverType == ServerType.ENTRY) entryServer else exitServer
+        }
+    }
+
+    private val lock = Any()
+    private val snapshots = EnumMap<Protocol, Snapshot>(Protocol::class.java)
+    //Writes are applied in order on one thread, the last one is awaited before the store is read again
+    private val storeExecutor = Executors.newSingleThreadExecutor { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, "ServersStore").apply { isDaemon = true }
+    }
+    private var pendingStoreTask: Future<*>? = null
+
+    @Volatile
+    var version: Long = 0
+        private set
+
+    fun snapshot(protocol: Protocol): Snapshot {
+        synchronized(lock) {
+            if (snapshots.isEmpty()) {
+                load()
+            }
+            return snapshots[protocol]!!
+        }
+    }
+
+    fun putServers(openvpnServers: List<Server?>, wireguardServers: List<Server?>) {
+        val lists = EnumMap<Protocol, List<Server?>>(Protocol::class.java)
+        lists[Protocol.OPENVPN] = openvpnServers
+        lists[Protocol.WIREGUARD] = wireguardServers
+        val bytes = ServersStore.encode(lists)
+        synchronized(lock) {
+            if (snapshots.isEmpty()) {
+                load()
+            }
+            pendingStoreTask = storeExecutor.submit { store.write(bytes) }
+            //Validators belong to the previous list, the caller stores new ones if it has any
+            preference.serversSharedPreferences.edit()
+                    .remove(SERVERS_ETAG)
+                    .remove(SERVERS_LAST_MODIFIED)
+                    .apply()
+            val decoded = ServersStore.decode(ByteBuffer.wrap(bytes))
+            version++
+            for (protocol in Protocol.values()) {
+                snapshots[protocol] = snapshot(protocol).copy(
+                        version = version,
+                        servers = unmodifiable(decoded[protocol])
+                )
+            }
+        }
+    }
+
+    fun putFavourites(protocol: Protocol, servers: List<Server?>) {
+        val json = Mapper.stringFrom(servers)
+        synchronized(lock) {
+            sharedPreferencesFor(protocol).edit()
+                    .putString(FAVOURITES_SERVERS_LIST, json)
+                    .apply()
+            snapshots[protocol] = snapshot(protocol).copy(
+                    favourites = unmodifiable(Mapper.serverListFrom(json)) ?: emptyList()
+            )
+        }
+    }
+
+    fun putExcluded(protocol: Protocol, servers: List<Server?>) {
+        val json = Mapper.stringFrom(servers)
+        synchronized(lock) {
+            sharedPreferencesFor(protocol).edit()
+                    .putString(EXCLUDED_FASTEST_SERVERS, json)
+                    .apply()
+            snapshots[protocol] = snapshot(protocol).copy(
+                    excluded = unmodifiable(Mapper.serverListFrom(json)) ?: emptyList()
+            )
+        }
+    }
+
+    fun putCurrentServer(protocol: Protocol, serverType: ServerType, server: Server?) {
+        val json = Mapper.from(server)
+        val key = if (serverType == ServerType.ENTRY) CURRENT_ENTER_SERVER else CURRENT_EXIT_SERVER
+        synchronized(lock) {
+            sharedPreferencesFor(protocol).edit()
+                    .putString(key, json)
+                    .apply()
+            val decoded = Mapper.from(json)
+            val snapshot = snapshot(protocol)
+            snapshots[protocol] = if (serverType == ServerType.ENTRY) {
+                snapshot.copy(entryServer = decoded)
+            } else {
+                snapshot.copy(exitServer = decoded)
+            }
+        }
+    }
+
+    /**
+     * Returns null if there is no cached list the validators could refer to.
+     */
+    fun getValidators(): Validators? {
+        synchronized(lock) {
+            if (snapshot(Protocol.OPENVPN).servers == null) {
+                return null
+            }
+            val sharedPreferences = preference.serversSharedPreferences
+            val eTag = sharedPreferences.getString(SERVERS_ETAG, null)
+            val lastModified = sharedPreferences.getString(SERVERS_LAST_MODIFIED, null)
+            if (eTag == null && lastModified == null) {
+                return null
+            }
+            return Validators(eTag, lastModified)
+        }
+    }
+
+    fun putValidators(validators: Validators) {
+        val sharedPreferences = preference.serversSharedPreferences
+        if (sharedPreferences.getString(SERVERS_ETAG, null) == validators.eTag
+                && sharedPreferences.getString(SERVERS_LAST_MODIFIED, null) == validators.lastModified) {
+            return
+        }
+        sharedPreferences.edit()
+                .putString(SERVERS_ETAG, validators.eTag)
+                .putString(SERVERS_LAST_MODIFIED, validators.lastModified)
+                .apply()
+    }
+
+    /**
+     * Hash of the last applied API config (ports, API IPs, AntiTracker lists).
+     */
+    var configHash: Int?
+        get() {
+            val sharedPreferences = preference.serversSharedPreferences
+            return if (sharedPreferences.contains(SERVERS_CONFIG_HASH)) {
+                sharedPreferences.getInt(SERVERS_CONFIG_HASH, 0)
+            } else null
+        }
+        set(value) {
+            val editor = preference.serversSharedPreferences.edit()
+            if (value == null) {
+                editor.remove(SERVERS_CONFIG_HASH)
+            } else {
+                editor.putInt(SERVERS_CONFIG_HASH, value)
+            }
+            editor.apply()
+        }
+
+    fun reset() {
+        synchronized(lock) {
+            preference.serversSharedPreferences.edit()
+                    .remove(SERVERS_ETAG)
+                    .remove(SERVERS_LAST_MODIFIED)
+                    .remove(SERVERS_CONFIG_HASH)
+                    .apply()
+            pendingStoreTask = storeExecutor.submit { store.clear() }
+            version++
+            snapshots.clear()
+        }
+    }
+
+    private fun load() {
+        try {
+            pendingStoreTask?.get()
+        } catch (exception: Exception) {
+            LOGGER.error("Server list write failed", exception)
+        }
+        pendingStoreTask = null
+        val servers = if (store.exists()) store.read() else migrate()
+        for (protocol in Protocol.values()) {
+            snapshots[protocol] = load(protocol, servers?.get(protocol))
+        }
+    }
+
+    private fun load(protocol: Protocol, servers: List<Server>?): Snapshot {
+        val sharedPreferences = sharedPreferencesFor(protocol)
+        return Snapshot(
+                version,
+                unmodifiable(servers),
+                unmodifiable(Mapper.serverListFrom(sharedPreferences.getString(FAVOURITES_SERVERS_LIST, null)))
+                        ?: emptyList(),
+                unmodifiable(Mapper.serverListFrom(sharedPreferences.getString(EXCLUDED_FASTEST_SERVERS, null)))
+                        ?: emptyList(),
+                Mapper.from(sharedPreferences.getString(CURRENT_ENTER_SERVER, null)),
+                Mapper.from(sharedPreferences.getString(CURRENT_EXIT_SERVER, null))
+        )
+    }
+
+    /**
+     * Moves server lists from the JSON strings kept in SharedPreferences by the previous
+     * versions of the app into [ServersStore] and logs how both formats compare.
+     */
+    private fun migrate(): EnumMap<Protocol, List<Server>>? {
+        val lists = EnumMap<Protocol, List<Server?>>(Protocol::class.java)
+        var jsonSize = 0
+        val gsonStart = SystemClock.elapsedRealtimeNanos()
+        for (protocol in Protocol.values()) {
+            val json = sharedPreferencesFor(protocol).getString(SERVERS_LIST, null) ?: continue
+            jsonSize += json.toByteArray(Charsets.UTF_8).size
+            Mapper.serverListFrom(json)?.let { lists[protocol] = it }
+        }
+        val gsonTime = SystemClock.elapsedRealtimeNanos() - gsonStart
+        if (lists.isEmpty()) {
+            return null
+        }
+
+        val bytes = ServersStore.encode(lists)
+        val binaryStart = SystemClock.elapsedRealtimeNanos()
+        val servers = ServersStore.decode(ByteBuffer.wrap(bytes))
+        val binaryTime = SystemClock.elapsedRealtimeNanos() - binaryStart
+        LOGGER.info("Migrating server lists: JSON = $jsonSize bytes decoded in ${gsonTime / 1000} us, " +
+                "binary = ${bytes.size} bytes decoded in ${binaryTime / 1000} us")
+
+        if (store.write(bytes)) {
+            for (protocol in Protocol.values()) {
+                sharedPreferencesFor(protocol).edit()
+                        .remove(SERVERS_LIST)
+                        .remove(LOCATION_LIST)
+                        .apply()
+            }
+        }
+        return servers
+    }
+
+    private fun sharedPreferencesFor(protocol: Protocol): SharedPreferences {
+        return if (protocol == Protocol.WIREGUARD) {
+            preference.wireguardServersSharedPreferences
+        } else {
+            preference.serversSharedPreferences
+        }
+    }
+
+    private fun unmodifiable(servers: List<Server>?): List<Server>? {
+        return servers?.let { Collections.unmodifiableList(it) }
+    }
+}
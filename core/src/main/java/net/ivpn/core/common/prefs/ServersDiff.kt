@@ -0,0 +1,102 @@
+package net.ivpn.core.common.prefs
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Host
+import net.ivpn.core.rest.data.model.Server
+
+/**
+ * Structural difference between the cached and the freshly downloaded server list.
+ * Servers are matched by gateway and compared field by field, because
+ * [Server.equals] only looks at the location.
+ */
+class ServersDiff(
+        val added: List<Server>,
+        val removed: List<Server>,
+        val changed: List<Server>
+) {
+
+    val isEmpty: Boolean
+        get() = added.isEmpty() && removed.isEmpty() && changed.isEmpty()
+
+    val updated: List<Server>
+        get() = added + changed
+
+    override fun toString(): String {
+        return "ServersDiff(added = ${added.size}, removed = ${removed.size}, changed = ${changed.size})"
+    }
+
+    companion object {
+        val EMPTY = ServersDiff(emptyList(), emptyList(), emptyList())
+
+        fun between(cached: List<Server>?, fresh: List<Server?>): ServersDiff {
+            val cachedByGateway = HashMap<String?, Server>()
+            cached?.forEach { cachedByGateway[it.gateway] = it }
+
+            val added = ArrayList<Server>()
+            val changed = ArrayList<Server>()
+            for (server in fresh) {
+                if (server == null) continue
+                val old = cachedByGateway.remove(server.gateway)
+                when {
+                    old == null -> added.add(server)
+                    !isSame(old, server) -> changed.add(server)
+                }
+            }
+            return ServersDiff(added, ArrayList(cachedByGateway.values), changed)
+        }
+
+        private fun isSame(first: Server, second: Server): Boolean {
+            return first.countryCode == second.countryCode
+                    && first.country == second.country
+                    && first.city == second.city
+                    && first.latitude == second.latitude
+                    && first.longitude == second.longitude
+                    && first.type == second.type
+                    && isSame(first.hosts, second.hosts)
+        }
+
+        private fun isSame(first: List<Host>?, second: List<Host>?): Boolean {
+            if (first == null || second == null) {
+                return first == second
+            }
+            if (first.size != second.size) {
+                return false
+            }
+            for (i in first.indices) {
+                val a = first[i]
+                val b = second[i]
+                if (a.hostname != b.hostname
+                        || a.host != b.host
+                        || a.publicKey != b.publicKey
+                        || a.localIp != b.localIp
+                        || a.ipv6?.local_ip != b.ipv6?.local_ip
+                        || (a.ipv6 == null) != (b.ipv6 == null)
+                        || a.multihopPort != b.multihopPort) {
+                    return false
+                }
+            }
+            return true
+        }
+    }
+}
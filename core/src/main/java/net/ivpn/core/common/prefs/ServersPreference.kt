@@ -1,12 +1,8 @@
 package net.ivpn.core.common.prefs
 
-import android.content.SharedPreferences
-import net.ivpn.core.common.Mapper
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.rest.data.model.Server
 import net.ivpn.core.rest.data.model.ServerLocation
-import net.ivpn.core.rest.data.model.ServerLocation.Companion.from
-import net.ivpn.core.rest.data.model.ServerLocation.Companion.stringFrom
 import net.ivpn.core.rest.data.model.ServerType
 import net.ivpn.core.vpn.Protocol
 import net.ivpn.core.vpn.ProtocolController
@@ -38,98 +34,56 @@ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 @ApplicationScope
 class ServersPreference @Inject constructor(
         private val preference: Preference,
-        private val protocolController: ProtocolController
+        private val protocolController: ProtocolController,
+        private val catalog: ServersCatalog
 ) {
 
     companion object {
-        private const val CURRENT_ENTER_SERVER = "CURRENT_ENTER_SERVER"
-        private const val CURRENT_EXIT_SERVER = "CURRENT_EXIT_SERVER"
-        private const val SERVERS_LIST = "SERVERS_LIST"
-        private const val LOCATION_LIST = "LOCATION_LIST"
-        private const val FAVOURITES_SERVERS_LIST = "FAVOURITES_SERVERS_LIST"
-        private const val EXCLUDED_FASTEST_SERVERS = "EXCLUDED_FASTEST_SERVERS"
         private const val SETTINGS_FASTEST_SERVER = "SETTINGS_FASTEST_SERVER"
+        private const val SETTINGS_FASTEST_MULTI_HOP_ROUTE = "SETTINGS_FASTEST_MULTI_HOP_ROUTE"
         private const val SETTINGS_RANDOM_ENTER_SERVER = "SETTINGS_RANDOM_ENTER_SERVER"
         private const val SETTINGS_RANDOM_EXIT_SERVER = "SETTINGS_RANDOM_EXIT_SERVER"
     }
 
     var listeners = ArrayList<OnValueChangeListener>()
 
-    private val properSharedPreference: SharedPreferences
-        get() {
-            val protocol = protocolController.currentProtocol
-            return if (protocol == Protocol.WIREGUARD) {
-                preference.wireguardServersSharedPreferences
-            } else {
-                preference.serversSharedPreferences
-            }
-        }
+    private val properSnapshot: ServersCatalog.Snapshot
+        get() = catalog.snapshot(protocolController.currentProtocol)
+
+    val catalogVersion: Long
+        get() = catalog.version
 
     val serverLocations: List<ServerLocation>?
-        get() {
-            val sharedPreferences = properSharedPreference
-            return from(sharedPreferences.getString(LOCATION_LIST, null))
+        get() = properSnapshot.servers?.map {
+            ServerLocation(it.city, it.countryCode, it.latitude, it.longitude)
         }
 
     val serversList: List<Server>?
-        get() {
-            val sharedPreferences = properSharedPreference
-            return Mapper.serverListFrom(sharedPreferences.getString(SERVERS_LIST, null))
-        }
+        get() = properSnapshot.servers
 
     val openvpnServersList: List<Server>?
-        get() {
-            val sharedPreferences = preference.serversSharedPreferences
-            return Mapper.serverListFrom(sharedPreferences.getString(SERVERS_LIST, null))
-        }
+        get() = catalog.snapshot(Protocol.OPENVPN).servers
 
     val wireguardServersList: List<Server>?
-        get() {
-            val sharedPreferences = preference.wireguardServersSharedPreferences
-            return Mapper.serverListFrom(sharedPreferences.getString(SERVERS_LIST, null))
-        }
+        get() = catalog.snapshot(Protocol.WIREGUARD).servers
 
     val favouritesServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = properSharedPreference
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(FAVOURITES_SERVERS_LIST, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(properSnapshot.favourites)
 
     val openvpnFavouritesServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = preference.serversSharedPreferences
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(FAVOURITES_SERVERS_LIST, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(catalog.snapshot(Protocol.OPENVPN).favourites)
 
     val wireguardFavouritesServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = preference.wireguardServersSharedPreferences
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(FAVOURITES_SERVERS_LIST, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(catalog.snapshot(Protocol.WIREGUARD).favourites)
 
     val excludedServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = properSharedPreference
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(EXCLUDED_FASTEST_SERVERS, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(properSnapshot.excluded)
 
     val openvpnExcludedServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = preference.serversSharedPreferences
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(EXCLUDED_FASTEST_SERVERS, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(catalog.snapshot(Protocol.OPENVPN).excluded)
 
     val wireguardExcludedServersList: MutableList<Server>
-        get() {
-            val sharedPreferences = preference.wireguardServersSharedPreferences
-            val servers = Mapper.serverListFrom(sharedPreferences.getString(EXCLUDED_FASTEST_SERVERS, null))
-            return servers ?: ArrayList()
-        }
+        get() = ArrayList(catalog.snapshot(Protocol.WIREGUARD).excluded)
 
     val settingFastestServer: Boolean
         get() {
@@ -137,52 +91,40 @@ class ServersPreference @Inject constructor(
             return sharedPreferences.getBoolean(SETTINGS_FASTEST_SERVER, true)
         }
 
+    val settingFastestMultiHopRoute: Boolean
+        get() {
+            val sharedPreferences = preference.serversSharedPreferences
+            return sharedPreferences.getBoolean(SETTINGS_FASTEST_MULTI_HOP_ROUTE, false)
+        }
+
     fun setCurrentServer(serverType: ServerType?, server: Server?) {
         if (serverType == null || server == null) return
         val openvpnServer = openvpnServersList?.firstOrNull { it == server }
         val wireguardServer = wireguardServersList?.firstOrNull { it == server }
-        val serverKey = if (serverType == ServerType.ENTRY) CURRENT_ENTER_SERVER else CURRENT_EXIT_SERVER
-        preference.serversSharedPreferences.edit()
-            .putString(serverKey, Mapper.from(openvpnServer))
-            .apply()
-        preference.wireguardServersSharedPreferences.edit()
-            .putString(serverKey, Mapper.from(wireguardServer))
-            .apply()
+        catalog.putCurrentServer(Protocol.OPENVPN, serverType, openvpnServer)
+        catalog.putCurrentServer(Protocol.WIREGUARD, serverType, wireguardServer)
     }
 
-    fun putOpenVpnServerList(servers: List<Server?>?) {
-        val sharedPreferences = preference.serversSharedPreferences
-        sharedPreferences.edit()
-                .putString(SERVERS_LIST, Mapper.stringFrom(servers))
-                .apply()
+    fun putServerLists(openvpnServers: List<Server?>, wireguardServers: List<Server?>) {
+        catalog.putServers(openvpnServers, wireguardServers)
     }
 
-    fun putWireGuardServerList(servers: List<Server?>?) {
-        val sharedPreferences = preference.wireguardServersSharedPreferences
-        sharedPreferences.edit()
-                .putString(SERVERS_LIST, Mapper.stringFrom(servers))
-                .apply()
-    }
+    val serversValidators: ServersCatalog.Validators?
+        get() = catalog.getValidators()
 
-    fun putOpenVPNLocations(locations: List<ServerLocation>) {
-        val sharedPreferences = preference.serversSharedPreferences
-        sharedPreferences.edit()
-                .putString(LOCATION_LIST, stringFrom(locations))
-                .apply()
+    fun putServersValidators(validators: ServersCatalog.Validators) {
+        catalog.putValidators(validators)
     }
 
-    fun putWireGuardLocations(locations: List<ServerLocation>) {
-        val sharedPreferences = preference.wireguardServersSharedPreferences
-        sharedPreferences.edit()
-                .putString(LOCATION_LIST, stringFrom(locations))
-                .apply()
-    }
+    var serversConfigHash: Int?
+        get() = catalog.configHash
+        set(value) {
+            catalog.configHash = value
+        }
 
     fun getCurrentServer(serverType: ServerType?): Server? {
         if (serverType == null) return null
-        val sharedPreferences = properSharedPreference
-        val serverKey = if (serverType == ServerType.ENTRY) CURRENT_ENTER_SERVER else CURRENT_EXIT_SERVER
-        return Mapper.from(sharedPreferences.getString(serverKey, null))
+        return properSnapshot.getCurrentServer(serverType)
     }
 
     fun addFavouriteServer(server: Server?) {
@@ -195,15 +137,11 @@ class ServersPreference @Inject constructor(
         val wireguardServers = wireguardFavouritesServersList
         if (!openvpnServers.contains(openvpnServer)) {
             openvpnServers.add(openvpnServer)
-            preference.serversSharedPreferences.edit()
-                .putString(FAVOURITES_SERVERS_LIST, Mapper.stringFrom(openvpnServers))
-                .apply()
+            catalog.putFavourites(Protocol.OPENVPN, openvpnServers)
         }
         if (!wireguardServers.contains(wireguardServer)) {
             wireguardServers.add(wireguardServer)
-            preference.wireguardServersSharedPreferences.edit()
-                .putString(FAVOURITES_SERVERS_LIST, Mapper.stringFrom(wireguardServers))
-                .apply()
+            catalog.putFavourites(Protocol.WIREGUARD, wireguardServers)
         }
     }
 
@@ -217,30 +155,22 @@ class ServersPreference @Inject constructor(
         val wireguardServers = wireguardFavouritesServersList
         openvpnServers.remove(openvpnServer)
         wireguardServers.remove(wireguardServer)
-        preference.serversSharedPreferences.edit()
-            .putString(FAVOURITES_SERVERS_LIST, Mapper.stringFrom(openvpnServers))
-            .apply()
-        preference.wireguardServersSharedPreferences.edit()
-            .putString(FAVOURITES_SERVERS_LIST, Mapper.stringFrom(wireguardServers))
-            .apply()
+        catalog.putFavourites(Protocol.OPENVPN, openvpnServers)
+        catalog.putFavourites(Protocol.WIREGUARD, wireguardServers)
     }
 
     fun addToExcludedServersList(server: Server?) {
         val openvpnServer = openvpnServersList?.first { it == server }
         val wireguardServer = wireguardServersList?.first { it == server }
-        if (server == null || openvpnServer == null || wireguardServer == null || excludedServersList.contains(server)) {
+        if (server == null || openvpnServer == null || wireguardServer == null || properSnapshot.excluded.contains(server)) {
             return
         }
         val openvpnServers = openvpnExcludedServersList
         val wireguardServers = wireguardExcludedServersList
         openvpnServers.add(openvpnServer)
         wireguardServers.add(wireguardServer)
-        preference.serversSharedPreferences.edit()
-            .putString(EXCLUDED_FASTEST_SERVERS, Mapper.stringFrom(openvpnServers))
-            .apply()
-        preference.wireguardServersSharedPreferences.edit()
-            .putString(EXCLUDED_FASTEST_SERVERS, Mapper.stringFrom(wireguardServers))
-            .apply()
+        catalog.putExcluded(Protocol.OPENVPN, openvpnServers)
+        catalog.putExcluded(Protocol.WIREGUARD, wireguardServers)
         notifyValueChanges()
     }
 
@@ -254,12 +184,8 @@ class ServersPreference @Inject constructor(
         val wireguardServers = wireguardExcludedServersList
         openvpnServers.remove(openvpnServer)
         wireguardServers.remove(wireguardServer)
-        preference.serversSharedPreferences.edit()
-            .putString(EXCLUDED_FASTEST_SERVERS, Mapper.stringFrom(openvpnServers))
-            .apply()
-        preference.wireguardServersSharedPreferences.edit()
-            .putString(EXCLUDED_FASTEST_SERVERS, Mapper.stringFrom(wireguardServers))
-            .apply()
+        catalog.putExcluded(Protocol.OPENVPN, openvpnServers)
+        catalog.putExcluded(Protocol.WIREGUARD, wireguardServers)
         notifyValueChanges()
     }
 
@@ -270,6 +196,13 @@ class ServersPreference @Inject constructor(
                 .apply()
     }
 
+    fun putSettingFastestMultiHopRoute(value: Boolean) {
+        val sharedPreferences = preference.serversSharedPreferences
+        sharedPreferences.edit()
+                .putBoolean(SETTINGS_FASTEST_MULTI_HOP_ROUTE, value)
+                .apply()
+    }
+
     fun putSettingRandomServer(value: Boolean, serverType: ServerType) {
         val key = if (serverType == ServerType.ENTRY)
             SETTINGS_RANDOM_ENTER_SERVER
@@ -291,68 +224,50 @@ class ServersPreference @Inject constructor(
     }
 
     fun updateCurrentServersWithLocation() {
-        updateCurrentServersWithLocationFor(preference.wireguardServersSharedPreferences)
-        updateCurrentServersWithLocationFor(preference.serversSharedPreferences)
+        updateCurrentServersWithLocationFor(Protocol.WIREGUARD)
+        updateCurrentServersWithLocationFor(Protocol.OPENVPN)
     }
 
     fun updateCurrentServersWithPort() {
-        updateCurrentServersWithPortFor(preference.wireguardServersSharedPreferences)
+        updateCurrentServersWithPortFor(Protocol.WIREGUARD)
     }
 
-    private fun updateCurrentServersWithLocationFor(preference: SharedPreferences) {
-        val servers = Mapper.serverListFrom(preference.getString(SERVERS_LIST, null))
+    private fun updateCurrentServersWithLocationFor(protocol: Protocol) {
+        val snapshot = catalog.snapshot(protocol)
+        val servers = snapshot.servers
         if (servers == null || servers.isEmpty()) {
             return
         }
-        val entryServer = Mapper.from(preference.getString(CURRENT_ENTER_SERVER, null))
-        val exitServer = Mapper.from(preference.getString(CURRENT_EXIT_SERVER, null))
+        val entryServer = snapshot.entryServer
+        val exitServer = snapshot.exitServer
         if (entryServer != null && entryServer.latitude == 0.0 && entryServer.longitude == 0.0) {
-            for (server in servers) {
-                if (server == entryServer) {
-                    preference.edit()
-                            .putString(CURRENT_ENTER_SERVER, Mapper.from(server))
-                            .apply()
-                    break
-                }
+            servers.firstOrNull { it == entryServer }?.let {
+                catalog.putCurrentServer(protocol, ServerType.ENTRY, it)
             }
         }
         if (exitServer != null && exitServer.latitude == 0.0 && exitServer.longitude == 0.0) {
-            for (server in servers) {
-                if (server == exitServer) {
-                    preference.edit()
-                            .putString(CURRENT_EXIT_SERVER, Mapper.from(server))
-                            .apply()
-                    break
-                }
+            servers.firstOrNull { it == exitServer }?.let {
+                catalog.putCurrentServer(protocol, ServerType.EXIT, it)
             }
         }
     }
 
-    private fun updateCurrentServersWithPortFor(preference: SharedPreferences) {
-        val servers = Mapper.serverListFrom(preference.getString(SERVERS_LIST, null))
+    private fun updateCurrentServersWithPortFor(protocol: Protocol) {
+        val snapshot = catalog.snapshot(protocol)
+        val servers = snapshot.servers
         if (servers == null || servers.isEmpty()) {
             return
         }
-        val entryServer = Mapper.from(preference.getString(CURRENT_ENTER_SERVER, null))
-        val exitServer = Mapper.from(preference.getString(CURRENT_EXIT_SERVER, null))
+        val entryServer = snapshot.entryServer
+        val exitServer = snapshot.exitServer
         if (entryServer != null && entryServer.hosts.random().multihopPort == 0) {
-            for (server in servers) {
-                if (server == entryServer) {
-                    preference.edit()
-                        .putString(CURRENT_ENTER_SERVER, Mapper.from(server))
-                        .apply()
-                    break
-                }
+            servers.firstOrNull { it == entryServer }?.let {
+                catalog.putCurrentServer(protocol, ServerType.ENTRY, it)
             }
         }
         if (exitServer != null && exitServer.hosts.random().multihopPort == 0) {
-            for (server in servers) {
-                if (server == exitServer) {
-                    preference.edit()
-                        .putString(CURRENT_EXIT_SERVER, Mapper.from(server))
-                        .apply()
-                    break
-                }
+            servers.firstOrNull { it == exitServer }?.let {
+                catalog.putCurrentServer(protocol, ServerType.EXIT, it)
             }
         }
     }
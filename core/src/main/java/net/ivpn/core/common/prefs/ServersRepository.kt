@@ -24,9 +24,9 @@ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 
 import net.ivpn.core.common.Mapper
 import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.rest.ConditionalRequestListener
 import net.ivpn.core.rest.HttpClientFactory
 import net.ivpn.core.rest.IVPNApi
-import net.ivpn.core.rest.RequestListener
 import net.ivpn.core.rest.data.ServersListResponse
 import net.ivpn.core.rest.data.model.AntiTracker
 import net.ivpn.core.rest.data.model.Server
@@ -37,6 +37,7 @@ import net.ivpn.core.rest.requests.common.RequestWrapper
 import net.ivpn.core.vpn.Protocol
 import net.ivpn.core.vpn.ProtocolController
 import net.ivpn.core.vpn.controller.VpnBehavior.OnRandomServerSelectionListener
+import okhttp3.Headers
 import org.slf4j.LoggerFactory
 import java.io.Serializable
 import java.util.*
@@ -118,33 +119,7 @@ class ServersRepository @Inject constructor(
     }
 
     val locations: List<ServerLocation>?
-        get() {
-            var locations = serversPreference.serverLocations
-            if (locations == null) {
-                updateLocations()
-                locations = serversPreference.serverLocations
-            }
-            return locations
-        }
-
-    private fun updateLocations() {
-        val servers = serversPreference.serversList
-        val locations: MutableList<ServerLocation> = ArrayList()
-        if (servers == null) return
-        for (server in servers) {
-            locations.add(ServerLocation(
-                    server.city,
-                    server.countryCode,
-                    server.latitude,
-                    server.longitude
-            ))
-        }
-        if (protocolController.currentProtocol == Protocol.OPENVPN) {
-            serversPreference.putOpenVPNLocations(locations)
-        } else {
-            serversPreference.putWireGuardLocations(locations)
-        }
-    }
+        get() = serversPreference.serverLocations
 
     fun getFavouritesServers(): List<Server> {
         return serversPreference.favouritesServersList
@@ -171,29 +146,33 @@ class ServersRepository @Inject constructor(
         return if (!multiHop) null else serversPreference.getCurrentServer(ServerType.getAnotherType(serverType))
     }
 
+    /**
+     * Sends the validators of the cached list, so an unchanged list costs a single 304.
+     * Changed lists are diffed against the cached catalog and only written,
+     * and reported to the listeners, if some server was actually changed.
+     */
     fun updateServerList(isForced: Boolean) {
         LOGGER.info("Updating server list, isForced = $isForced")
+        val validators = serversPreference.serversValidators
         request = Request(settings, httpClientFactory, this, Request.Duration.SHORT, RequestWrapper.IpMode.IPv4)
-        request?.start({ obj: IVPNApi -> obj.servers }, object : RequestListener<ServersListResponse> {
+        request?.start({ obj: IVPNApi -> obj.getServers(validators?.eTag, validators?.lastModified) },
+                object : ConditionalRequestListener<ServersListResponse> {
+            override fun onSuccess(response: ServersListResponse, headers: Headers) {
+                LOGGER.info("Updating server list, state = SUCCESS_STR")
+                onServerListDownloaded(response, isForced)
+                serversPreference.putServersValidators(
+                        ServersCatalog.Validators(headers["ETag"], headers["Last-Modified"]))
+            }
+
             override fun onSuccess(response: ServersListResponse) {
                 LOGGER.info("Updating server list, state = SUCCESS_STR")
-                LOGGER.info(response.toString())
-                response.markServerTypes()
-                setServerList(response.openVpnServerList, response.wireGuardServerList)
-                updateLocations()
-                settings.setIpList(Mapper.stringFromIps(response.config.api.ips))
-                settings.setIPv6List(Mapper.stringFromIps(response.config.api.ipv6s))
-                settings.wireGuardPorts = response.config.ports.wireguard.filter { it.portNumber > 0 }
-                settings.openVpnPorts = response.config.ports.openvpn.filter { it.portNumber > 0 }
-                settings.wireGuardPortRanges = response.config.ports.wireguard.filter { it.range != null }
-                settings.openVpnPortRanges = response.config.ports.openvpn.filter { it.range != null }
-                settings.antiTrackerList = response.config.antiTrackerPlus.list
-                if (settings.antiTracker == null) {
-                    val defaultDns = AntiTracker()
-                    settings.antiTracker = defaultDns.getDefaultList(settings.antiTrackerList, settings, userPreference)
-                }
+                onServerListDownloaded(response, isForced)
+            }
+
+            override fun onNotModified() {
+                LOGGER.info("Updating server list, state = NOT_MODIFIED")
                 for (listener in onServerListUpdatedListeners) {
-                    listener.onSuccess(getSuitableServers(response), isForced)
+                    listener.onUnchanged(isForced)
                 }
             }
 
@@ -213,6 +192,48 @@ class ServersRepository @Inject constructor(
         })
     }
 
+    private fun onServerListDownloaded(response: ServersListResponse, isForced: Boolean) {
+        response.markServerTypes()
+        applyConfig(response)
+        val openvpnDiff = ServersDiff.between(serversPreference.openvpnServersList, response.openVpnServerList)
+        val wireguardDiff = ServersDiff.between(serversPreference.wireguardServersList, response.wireGuardServerList)
+        LOGGER.info("Server list changes: OpenVpn $openvpnDiff, WireGuard $wireguardDiff")
+        if (!openvpnDiff.isEmpty || !wireguardDiff.isEmpty) {
+            setServerList(response.openVpnServerList, response.wireGuardServerList)
+        }
+
+        val diff = if (currentProtocolType == Protocol.WIREGUARD) wireguardDiff else openvpnDiff
+        for (listener in onServerListUpdatedListeners) {
+            if (diff.isEmpty) {
+                listener.onUnchanged(isForced)
+            } else {
+                listener.onSuccess(getSuitableServers(response), diff, isForced)
+            }
+        }
+    }
+
+    /**
+     * Stores ports, API IPs and AntiTracker lists, unless the same config was applied before.
+     */
+    private fun applyConfig(response: ServersListResponse) {
+        val configHash = Mapper.stringFromConfig(response.config).hashCode()
+        if (configHash == serversPreference.serversConfigHash && !settings.ipList.isNullOrEmpty()) {
+            return
+        }
+        settings.setIpList(Mapper.stringFromIps(response.config.api.ips))
+        settings.setIPv6List(Mapper.stringFromIps(response.config.api.ipv6s))
+        settings.wireGuardPorts = response.config.ports.wireguard.filter { it.portNumber > 0 }
+        settings.openVpnPorts = response.config.ports.openvpn.filter { it.portNumber > 0 }
+        settings.wireGuardPortRanges = response.config.ports.wireguard.filter { it.range != null }
+        settings.openVpnPortRanges = response.config.ports.openvpn.filter { it.range != null }
+        settings.antiTrackerList = response.config.antiTrackerPlus.list
+        if (settings.antiTracker == null) {
+            val defaultDns = AntiTracker()
+            settings.antiTracker = defaultDns.getDefaultList(settings.antiTrackerList, settings, userPreference)
+        }
+        serversPreference.serversConfigHash = configHash
+    }
+
     fun fastestServerSelected() {
         serversPreference.putSettingFastestServer(true)
         serversPreference.putSettingRandomServer(false, ServerType.ENTRY)
@@ -221,8 +242,18 @@ class ServersRepository @Inject constructor(
         }
     }
 
+    fun fastestMultiHopRouteSelected() {
+        serversPreference.putSettingFastestMultiHopRoute(true)
+        serversPreference.putSettingRandomServer(false, ServerType.ENTRY)
+        serversPreference.putSettingRandomServer(false, ServerType.EXIT)
+        for (listener in onServerChangedListeners) {
+            listener.onServerChanged()
+        }
+    }
+
     fun randomServerSelected(type: ServerType) {
         serversPreference.putSettingRandomServer(true, type)
+        serversPreference.putSettingFastestMultiHopRoute(false)
         if (type == ServerType.ENTRY) {
             serversPreference.putSettingFastestServer(false)
         }
@@ -244,6 +275,7 @@ class ServersRepository @Inject constructor(
 
     fun serverSelected(server: Server?, type: ServerType) {
         serversPreference.putSettingFastestServer(false)
+        serversPreference.putSettingFastestMultiHopRoute(false)
         serversPreference.putSettingRandomServer(false, type)
         setCurrentServer(type, server)
         for (listener in onServerChangedListeners) {
@@ -263,17 +295,7 @@ class ServersRepository @Inject constructor(
         val response = Mapper.getProtocolServers(ServersLoader.load())
         response?.let{
             it.markServerTypes()
-            settings.setIpList(Mapper.stringFromIps(it.config.api.ips))
-            settings.setIPv6List(Mapper.stringFromIps(it.config.api.ipv6s))
-            settings.wireGuardPorts = response.config.ports.wireguard.filter { it.portNumber > 0 }
-            settings.openVpnPorts = response.config.ports.openvpn.filter { it.portNumber > 0 }
-            settings.wireGuardPortRanges = response.config.ports.wireguard.filter { it.range != null }
-            settings.openVpnPortRanges = response.config.ports.openvpn.filter { it.range != null }
-            settings.antiTrackerList = response.config.antiTrackerPlus.list
-            if (settings.antiTracker == null) {
-                val defaultDns = AntiTracker()
-                settings.antiTracker = defaultDns.getDefaultList(settings.antiTrackerList, settings, userPreference)
-            }
+            applyConfig(it)
             setServerList(it.openVpnServerList, it.wireGuardServerList)
         }
     }
@@ -284,17 +306,7 @@ class ServersRepository @Inject constructor(
         }
         val response = Mapper.getProtocolServers(ServersLoader.load())
         response?.let {
-            settings.wireGuardPorts = response.config.ports.wireguard.filter { it.portNumber > 0 }
-            settings.openVpnPorts = response.config.ports.openvpn.filter { it.portNumber > 0 }
-            settings.wireGuardPortRanges = response.config.ports.wireguard.filter { it.range != null }
-            settings.openVpnPortRanges = response.config.ports.openvpn.filter { it.range != null }
-            settings.antiTrackerList = response.config.antiTrackerPlus.list
-            if (settings.antiTracker == null) {
-                val defaultDns = AntiTracker()
-                settings.antiTracker = defaultDns.getDefaultList(settings.antiTrackerList, settings, userPreference)
-            }
-            settings.setIpList(Mapper.stringFromIps(it.config.api.ips))
-            settings.setIPv6List(Mapper.stringFromIps(it.config.api.ipv6s))
+            applyConfig(it)
         }
     }
 
@@ -307,26 +319,6 @@ class ServersRepository @Inject constructor(
         val response = Mapper.getProtocolServers(ServersLoader.load())
         response?.let {
             it.markServerTypes()
-            val locations: MutableList<ServerLocation> = ArrayList()
-            for (server in it.openVpnServerList) {
-                locations.add(ServerLocation(
-                        server.city,
-                        server.countryCode,
-                        server.latitude,
-                        server.longitude
-                ))
-            }
-            serversPreference.putOpenVPNLocations(locations)
-            locations.clear()
-            for (server in it.wireGuardServerList) {
-                locations.add(ServerLocation(
-                        server.city,
-                        server.countryCode,
-                        server.latitude,
-                        server.longitude
-                ))
-            }
-            serversPreference.putWireGuardLocations(locations)
             setServerList(it.openVpnServerList, it.wireGuardServerList)
             updateCurrentServersWithLocation()
             currentServers[Protocol.OPENVPN] = EnumMap(ServerType::class.java)
@@ -338,16 +330,9 @@ class ServersRepository @Inject constructor(
         serversPreference.updateCurrentServersWithLocation()
     }
 
-    fun setLocationList(openVpnLocations: List<ServerLocation>, wireguardLocations: List<ServerLocation>) {
-        LOGGER.info("Putting locations, OpenVPN locations list size = " + openVpnLocations.size + " WireGuard = " + wireguardLocations.size)
-        serversPreference.putOpenVPNLocations(openVpnLocations)
-        serversPreference.putWireGuardLocations(wireguardLocations)
-    }
-
     fun setServerList(openvpnServers: List<Server?>, wireguardServers: List<Server?>) {
         LOGGER.info("Putting servers, OpenVpn servers list size = " + openvpnServers.size + " WireGuard = " + wireguardServers.size)
-        serversPreference.putOpenVpnServerList(openvpnServers)
-        serversPreference.putWireGuardServerList(wireguardServers)
+        serversPreference.putServerLists(openvpnServers, wireguardServers)
     }
 
     fun addToExcludedServersList(server: Server) {
@@ -368,6 +353,10 @@ class ServersRepository @Inject constructor(
         return serversPreference.settingFastestServer
     }
 
+    fun getSettingFastestMultiHopRoute(): Boolean {
+        return serversPreference.settingFastestMultiHopRoute
+    }
+
     fun getSettingRandomServer(serverType: ServerType): Boolean {
         return serversPreference.getSettingRandomServer(serverType)
     }
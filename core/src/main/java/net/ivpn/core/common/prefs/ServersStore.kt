@@ -0,0 +1,228 @@
+package net.ivpn.core.common.prefs
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.IVPNApplication
+import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.rest.data.model.Host
+import net.ivpn.core.rest.data.model.Ipv6
+import net.ivpn.core.rest.data.model.Server
+import net.ivpn.core.vpn.Protocol
+import org.slf4j.LoggerFactory
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.util.*
+import javax.inject.Inject
+
+/**
+ * Versioned binary storage for the OpenVPN and WireGuard server lists.
+ *
+ * Layout: header (magic, format version), a table of interned strings
+ * (countries, cities, hostnames, keys...), then for every protocol a list of packed
+ * server records referencing that table by index. Both lists are written together
+ * into a temporary file which replaces the previous one, and are read back through
+ * a single memory-mapped buffer.
+ */
+@ApplicationScope
+class ServersStore @Inject constructor() {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(ServersStore::class.java)
+
+        private const val FILE_NAME = "servers.bin"
+        private const val MAGIC = 0x49565353
+        private const val FORMAT_VERSION = 1
+        private const val NO_VALUE = -1
+
+        fun encode(lists: Map<Protocol, List<Server?>>): ByteArray {
+            val strings = LinkedHashMap<String, Int>()
+            fun index(value: String?): Int {
+                if (value == null) return NO_VALUE
+                return strings.getOrPut(value) { strings.size }
+            }
+
+            val records = ByteArrayOutputStream()
+            DataOutputStream(records).use { out ->
+                out.writeInt(lists.size)
+                for ((protocol, servers) in lists) {
+                    val nonNullServers = servers.filterNotNull()
+                    out.writeByte(protocol.ordinal)
+                    out.writeInt(nonNullServers.size)
+                    for (server in nonNullServers) {
+                        out.writeInt(index(server.gateway))
+                        out.writeInt(index(server.countryCode))
+                        out.writeInt(index(server.country))
+                        out.writeInt(index(server.city))
+                        out.writeDouble(server.latitude)
+                        out.writeDouble(server.longitude)
+                        out.writeByte(server.type?.ordinal ?: NO_VALUE)
+                        val hosts = server.hosts
+                        out.writeInt(hosts?.size ?: NO_VALUE)
+                        hosts?.forEach { host ->
+                            out.writeInt(index(host.hostname))
+                            out.writeInt(index(host.host))
+                            out.writeInt(index(host.publicKey))
+                            out.writeInt(index(host.localIp))
+                            out.writeBoolean(host.ipv6 != null)
+                            out.writeInt(index(host.ipv6?.local_ip))
+                            out.writeInt(host.multihopPort)
+                        }
+                    }
+                }
+            }
+
+            val result = ByteArrayOutputStream(records.size() + strings.size * 16)
+            DataOutputStream(result).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(FORMAT_VERSION)
+                out.writeInt(strings.size)
+                for (value in strings.keys) {
+                    val bytes = value.toByteArray(Charsets.UTF_8)
+                    out.writeInt(bytes.size)
+                    out.write(bytes)
+                }
+                records.writeTo(out)
+            }
+            return result.toByteArray()
+        }
+
+        fun decode(buffer: ByteBuffer): EnumMap<Protocol, List<Server>> {
+            require(buffer.int == MAGIC) { "Unknown servers store format" }
+            require(buffer.int == FORMAT_VERSION) { "Unsupported servers store version" }
+
+            val stringCount = buffer.int
+            //Lengths are checked before anything is allocated for them, a damaged file must not exhaust memory
+            require(stringCount in 0..buffer.remaining() / Int.SIZE_BYTES) { "Damaged servers store" }
+            val strings = arrayOfNulls<String>(stringCount)
+            for (i in strings.indices) {
+                val length = buffer.int
+                require(length in 0..buffer.remaining()) { "Damaged servers store" }
+                val bytes = ByteArray(length)
+                buffer.get(bytes)
+                strings[i] = String(bytes, Charsets.UTF_8)
+            }
+            fun string(index: Int): String? {
+                return if (index == NO_VALUE) null else strings[index]
+            }
+
+            val protocols = Protocol.values()
+            val result = EnumMap<Protocol, List<Server>>(Protocol::class.java)
+            repeat(buffer.int) {
+                val protocol = protocols[buffer.get().toInt()]
+                val count = buffer.int
+                require(count in 0..buffer.remaining()) { "Damaged servers store" }
+                val servers = ArrayList<Server>(count)
+                repeat(count) {
+                    val server = Server()
+                    server.gateway = string(buffer.int)
+                    server.countryCode = string(buffer.int)
+                    server.country = string(buffer.int)
+                    server.city = string(buffer.int)
+                    server.latitude = buffer.double
+                    server.longitude = buffer.double
+                    val type = buffer.get().toInt()
+                    server.type = if (type == NO_VALUE) null else protocols[type]
+                    val hostCount = buffer.int
+                    if (hostCount != NO_VALUE) {
+                        require(hostCount in 0..buffer.remaining()) { "Damaged servers store" }
+                        val hosts = ArrayList<Host>(hostCount)
+                        repeat(hostCount) {
+                            val host = Host()
+                            host.hostname = string(buffer.int)
+                            host.host = string(buffer.int)
+                            host.publicKey = string(buffer.int)
+                            host.localIp = string(buffer.int)
+                            val hasIpv6 = buffer.get().toInt() != 0
+                            val ipv6LocalIp = string(buffer.int)
+                            if (hasIpv6) {
+                                host.ipv6 = Ipv6().apply { local_ip = ipv6LocalIp }
+                            }
+                            host.multihopPort = buffer.int
+                            hosts.add(host)
+                        }
+                        server.hosts = hosts
+                    }
+                    servers.add(server)
+                }
+                result[protocol] = servers
+            }
+            return result
+        }
+
+        /**
+         * Returns null if the [file] is missing or can't be decoded.
+         */
+        fun read(file: File): EnumMap<Protocol, List<Server>>? {
+            if (!file.exists()) return null
+            return try {
+                RandomAccessFile(file, "r").use { randomAccessFile ->
+                    val channel = randomAccessFile.channel
+                    decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                }
+            } catch (exception: Exception) {
+                LOGGER.error("Unable to read servers store", exception)
+                null
+            }
+        }
+    }
+
+    private val file: File
+        get() = File(IVPNApplication.application.filesDir, FILE_NAME)
+
+    fun exists(): Boolean {
+        return file.exists()
+    }
+
+    fun read(): EnumMap<Protocol, List<Server>>? {
+        return read(file)
+    }
+
+    fun write(bytes: ByteArray): Boolean {
+        val file = file
+        val tempFile = File(file.parentFile, "$FILE_NAME.tmp")
+        return try {
+            FileOutputStream(tempFile).use { out ->
+                out.write(bytes)
+                out.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Unable to replace ${file.name}")
+            }
+            true
+        } catch (exception: IOException) {
+            LOGGER.error("Unable to write servers store", exception)
+            tempFile.delete()
+            false
+        }
+    }
+
+    fun clear() {
+        file.delete()
+    }
+}
@@ -34,6 +34,8 @@ import net.ivpn.core.rest.data.model.Port
 import net.ivpn.core.v2.serverlist.dialog.Filters
 import net.ivpn.core.vpn.Protocol
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import javax.inject.Inject
 import kotlin.collections.List
 
@@ -48,6 +50,46 @@ class Settings @Inject constructor(
         private val TAG = Settings::class.java.simpleName
     }
 
+    private class CachedSnapshot(val version: Int, val snapshot: SettingsSnapshot)
+
+    private val cachedSnapshot = AtomicReference<CachedSnapshot?>()
+    private val snapshotVersion = AtomicInteger()
+
+    /**
+     * Decoded connection parameters. Rebuilt on the first access after one of them was changed,
+     * so the connect path reads them without touching the encrypted preferences.
+     * The cached snapshot keeps the version it was read at and is used only while that version
+     * is current, so a snapshot read concurrently with a change is never served afterwards.
+     */
+    val snapshot: SettingsSnapshot
+        get() {
+            val cached = cachedSnapshot.get()
+            val version = snapshotVersion.get()
+            if (cached != null && cached.version == version) {
+                return cached.snapshot
+            }
+            val snapshot = SettingsSnapshot(
+                    isKillSwitchEnabled = isKillSwitchEnabled,
+                    isMultiHopEnabled = isMultiHopEnabled,
+                    isLocalBypassEnabled = localBypass,
+                    isIPv6Enabled = ipv6Setting,
+                    dns = dns,
+                    openVpnPort = openVpnPort,
+                    wireGuardPort = wireGuardPort,
+                    wireGuardPrivateKey = wireGuardPrivateKey,
+                    wireGuardPublicKey = wireGuardPublicKey,
+                    wireGuardPresharedKey = wireGuardPresharedKey,
+                    wireGuardIpAddress = wireGuardIpAddress
+            )
+            cachedSnapshot.compareAndSet(cached, CachedSnapshot(version, snapshot))
+            return snapshot
+        }
+
+    fun invalidateSnapshot() {
+        snapshotVersion.incrementAndGet()
+        cachedSnapshot.set(null)
+    }
+
     val dns: String?
         get() {
             val isAntiSurveillanceEnabled = isAntiSurveillanceEnabled
@@ -111,12 +153,14 @@ class Settings @Inject constructor(
         get() = settingsPreference.killSwitch
         set(value) {
             settingsPreference.killSwitch = value
+            invalidateSnapshot()
         }
 
     var isMultiHopEnabled: Boolean
         get() = settingsPreference.getSettingMultiHop()
         set(value) {
             settingsPreference.putSettingMultiHop(value)
+            invalidateSnapshot()
         }
 
     var isMultiHopSameProviderAllowed: Boolean
@@ -135,6 +179,7 @@ class Settings @Inject constructor(
         get() = settingsPreference.isCustomDNSEnabled()
         set(value) {
             settingsPreference.putSettingCustomDNS(value)
+            invalidateSnapshot()
         }
 
     var isStartOnBootEnabled: Boolean
@@ -147,12 +192,14 @@ class Settings @Inject constructor(
         get() = settingsPreference.getIsAntiSurveillanceEnabled()
         set(value) {
             settingsPreference.putAntiSurveillance(value)
+            invalidateSnapshot()
         }
 
     var isAntiSurveillanceHardcoreEnabled: Boolean
         get() = settingsPreference.getIsAntiSurveillanceHardcoreEnabled()
         set(value) {
             settingsPreference.putAntiSurveillanceHardcore(value)
+            invalidateSnapshot()
         }
 
     var isAdvancedKillSwitchDialogEnabled: Boolean
@@ -188,6 +235,7 @@ class Settings @Inject constructor(
         }
         set(port) {
             settingsPreference.setOpenvpnPort(port.toJson())
+            invalidateSnapshot()
         }
 
     var openVpnPorts: List<Port>
@@ -223,6 +271,7 @@ class Settings @Inject constructor(
         }
         set(port) {
             settingsPreference.setWgPort(port.toJson())
+            invalidateSnapshot()
         }
 
     var wireGuardPorts: List<Port>
@@ -255,6 +304,7 @@ class Settings @Inject constructor(
         get() = settingsPreference.getCustomDNSValue()
         set(dns) {
             settingsPreference.setCustomDNSValue(dns)
+            invalidateSnapshot()
         }
 
     val isGenerationTimeExist: Boolean
@@ -282,6 +332,7 @@ class Settings @Inject constructor(
         get() = settingsPreference.getSettingsWgIpAddress()
         set(ipAddress) {
             settingsPreference.setSettingsWgIpAddress(ipAddress)
+            invalidateSnapshot()
         }
 
     val wireGuardPresharedKey: String?
@@ -302,6 +353,7 @@ class Settings @Inject constructor(
         }
         set(dns) {
             settingsPreference.setAntiTracker(Mapper.stringFromAntiTracker(dns))
+            invalidateSnapshot()
         }
 
     fun nextPort() {
@@ -321,12 +373,14 @@ class Settings @Inject constructor(
         get() = settingsPreference.bypassLocalSettings
         set(value) {
             settingsPreference.bypassLocalSettings = value
+            invalidateSnapshot()
         }
 
     var ipv6Setting: Boolean
         get() = settingsPreference.ipv6Settings
         set(value) {
             settingsPreference.ipv6Settings = value
+            invalidateSnapshot()
         }
 
     var showAllServersSetting: Boolean
@@ -341,14 +395,11 @@ class Settings @Inject constructor(
             settingsPreference.putRegenerationPeriod(value)
         }
 
-    fun generateWireGuardKeys(): Keypair {
-        return Keypair()
-    }
-
     fun removeWireGuardKeys() {
         settingsPreference.setSettingsWgPrivateKey("")
         settingsPreference.setSettingsWgPublicKey("")
         settingsPreference.setSettingsWgPresharedKey("")
+        invalidateSnapshot()
     }
 
     fun saveWireGuardKeypair(keypair: Keypair?) {
@@ -358,9 +409,11 @@ class Settings @Inject constructor(
         val alarm = IVPNApplication.appComponent.provideGlobalWireGuardAlarm()
         alarm.stop()
         alarm.start()
+        invalidateSnapshot()
     }
 
     fun saveWireGuardPresharedKey(key: String?) {
         settingsPreference.setSettingsWgPresharedKey(key)
+        invalidateSnapshot()
     }
 }
\ No newline at end of file
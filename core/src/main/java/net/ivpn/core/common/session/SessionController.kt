@@ -30,6 +30,7 @@ import net.ivpn.core.common.prefs.ServersRepository
 import net.ivpn.core.common.prefs.Settings
 import net.ivpn.core.common.utils.KEM
 import net.ivpn.core.common.utils.KemAlgorithm
+import net.ivpn.core.common.utils.KeyMaterialPool
 import net.ivpn.core.rest.HttpClientFactory
 import net.ivpn.core.rest.IVPNApi
 import net.ivpn.core.rest.RequestListener
@@ -54,7 +55,8 @@ class SessionController @Inject constructor(
         private val vpnBehaviorController: VpnBehaviorController,
         private val protocolController: ProtocolController,
         private val clientFactory: HttpClientFactory,
-        private val serversRepository: ServersRepository
+        private val serversRepository: ServersRepository,
+        private val keyMaterialPool: KeyMaterialPool
 ) {
     companion object {
         private val LOGGER = LoggerFactory.getLogger(LoginViewModel::class.java)
@@ -66,7 +68,11 @@ class SessionController @Inject constructor(
 
     private val listeners = arrayListOf<SessionListener>()
 
-    private var kem = KEM()
+    private var kem: KEM? = null
+
+    init {
+        keyMaterialPool.warmUp()
+    }
 
     fun subscribe(listener: SessionListener) {
         listeners.add(listener)
@@ -120,11 +126,13 @@ class SessionController @Inject constructor(
 
                     override fun onError(throwable: Throwable) {
                         LOGGER.error("On create session throwable = $throwable")
+                        releaseKeyMaterial(keys)
                         onCreateError(throwable, null)
                     }
 
                     override fun onError(error: String) {
                         LOGGER.error("On create session error = $error")
+                        releaseKeyMaterial(keys)
                         val errorResponse = Mapper.sessionErrorResponseFrom(error)
                         if (errorResponse != null) {
                             errorResponse.isAccountNewStyle = AccountViewModel.isNewStyleAccount(body.username)
@@ -225,12 +233,15 @@ class SessionController @Inject constructor(
 
     private fun onCreateSuccess(response: SessionNewResponse, keys: Keypair?) {
         if (response.status == null) {
+            releaseKeyMaterial(keys)
             return
         }
 
         if (response.status == Responses.SUCCESS) {
             putUserData(response)
             handleWireGuardResponse(response.wireGuard, keys)
+        } else {
+            releaseKeyMaterial(keys)
         }
 
         for (listener in listeners) {
@@ -278,14 +289,16 @@ class SessionController @Inject constructor(
 
     private fun getKeypair(): Keypair? {
         return if (getProtocol() == Protocol.WIREGUARD) {
-            settings.generateWireGuardKeys()
+            keyMaterialPool.takeKeypair()
         } else {
             null
         }
     }
 
     private fun getKemPublicKey(): String {
-        kem = KEM()
+        kem?.dispose()
+        val kem = keyMaterialPool.takeKem()
+        this.kem = kem
         return kem.getPublicKey(KemAlgorithm.Kyber1024)
     }
 
@@ -331,6 +344,7 @@ class SessionController @Inject constructor(
     private fun handleWireGuardResponse(wireGuard: WireGuard?, keys: Keypair?) {
         LOGGER.info("Handle WireGuard response: $wireGuard")
         if (wireGuard == null || wireGuard.status == null) {
+            releaseKeyMaterial(keys)
             resetWireGuard()
             return
         }
@@ -340,6 +354,7 @@ class SessionController @Inject constructor(
             settings.saveWireGuardKeypair(keys)
         } else {
             LOGGER.error("Error received: ${wireGuard.status} ${wireGuard.message}")
+            releaseKeyMaterial(keys)
             resetWireGuard()
         }
     }
@@ -347,14 +362,26 @@ class SessionController @Inject constructor(
     private fun putWireGuardData(wireGuard: WireGuard) {
         LOGGER.info("Save WireGuard data")
         settings.wireGuardIpAddress = wireGuard.ipAddress
-        if (wireGuard.kemCipher1.isNotEmpty()) {
+        val kem = kem
+        this.kem = null
+        if (kem != null && wireGuard.kemCipher1.isNotEmpty()) {
             kem.setCipher(KemAlgorithm.Kyber1024, wireGuard.kemCipher1)
             settings.saveWireGuardPresharedKey(kem.calculatePresharedKey())
         } else {
+            kem?.dispose()
             settings.saveWireGuardPresharedKey(null)
         }
     }
 
+    /**
+     * Disposes the KEM and wipes the keypair of a session which wasn't created.
+     */
+    private fun releaseKeyMaterial(keys: Keypair?) {
+        kem?.dispose()
+        kem = null
+        keys?.destroy()
+    }
+
     private fun resetWireGuard() {
         LOGGER.info("Reset WireGuard protocol")
         protocolController.currentProtocol = Protocol.OPENVPN
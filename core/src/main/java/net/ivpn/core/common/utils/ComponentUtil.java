@@ -32,6 +32,7 @@ import net.ivpn.core.common.dagger.ApplicationScope;
 import net.ivpn.core.common.migration.MigrationController;
 import net.ivpn.core.common.pinger.PingProvider;
 import net.ivpn.core.common.prefs.Preference;
+import net.ivpn.core.common.prefs.ServersCatalog;
 import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.common.prefs.Settings;
 import net.ivpn.core.common.prefs.StickyPreference;
@@ -60,6 +61,8 @@ public class ComponentUtil {
     private final PingProvider pingProvider;
     private final MockLocationController mockLocationController;
     private final StickyPreference stickyPreference;
+    private final ServersCatalog serversCatalog;
+    private final KeyMaterialPool keyMaterialPool;
 
     @Inject
     ComponentUtil(LogUtil logUtil, Preference preference, Settings settings,
@@ -67,7 +70,8 @@ public class ComponentUtil {
                   ProtocolController protocolController, NetworkController networkController,
                   ConfigManager configManager, ProfileManager profileManager,
                   MigrationController migrationController, PingProvider pingProvider,
-                  MockLocationController mockLocationController, StickyPreference stickyPreference) {
+                  MockLocationController mockLocationController, StickyPreference stickyPreference,
+                  ServersCatalog serversCatalog, KeyMaterialPool keyMaterialPool) {
         this.logUtil = logUtil;
         this.settings = settings;
         this.preference = preference;
@@ -81,6 +85,8 @@ public class ComponentUtil {
         this.pingProvider = pingProvider;
         this.mockLocationController = mockLocationController;
         this.stickyPreference = stickyPreference;
+        this.serversCatalog = serversCatalog;
+        this.keyMaterialPool = keyMaterialPool;
     }
 
     public void performBaseComponentsInit() {
@@ -99,6 +105,8 @@ public class ComponentUtil {
 
     public void resetComponents() {
         preference.removeAll();
+        settings.invalidateSnapshot();
+        serversCatalog.reset();
         stickyPreference.partlyReset();
         networkController.finishAll();
         globalBehaviorController.finishAll();
@@ -106,6 +114,7 @@ public class ComponentUtil {
         IVPNApplication.updatesController.resetComponent();
         logUtil.resetAll();
         mockLocationController.reset();
+        keyMaterialPool.clear();
 
         NotificationManagerCompat.from(IVPNApplication.application).cancelAll();
     }
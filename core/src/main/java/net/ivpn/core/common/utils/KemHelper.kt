@@ -31,19 +31,29 @@ enum class KemAlgorithm(val value: String) {
     Kyber1024("Kyber1024")
 }
 
+/**
+ * Client side of the KEM exchange, one keypair per algorithm.
+ * Secret keys stay inside the native handles, which are freed and wiped
+ * once the preshared key is calculated or [dispose] is called.
+ */
 class KEM {
 
     private val algorithms: List<KemAlgorithm> = listOf(KemAlgorithm.Kyber1024)
+    private val clients = mutableListOf<KeyEncapsulation>()
     private val publicKeys = mutableListOf<String>()
-    private val privateKeys = mutableListOf<String>()
     private val ciphers = mutableListOf<String>()
-    private val secrets = mutableListOf<String>()
+    private var isDisposed = false
 
     init {
-        algorithms.forEach {
-            val keyPair = generateKeys(it)
-            publicKeys.add(keyPair.first)
-            privateKeys.add(keyPair.second)
+        try {
+            algorithms.forEach {
+                val client = KeyEncapsulation(it.toString())
+                clients.add(client)
+                publicKeys.add(Base64.encode(client.generate_keypair(), Base64.DEFAULT).decodeToString())
+            }
+        } catch (exception: RuntimeException) {
+            dispose()
+            throw exception
         }
     }
 
@@ -56,42 +66,38 @@ class KEM {
         ciphers.add(cipher)
     }
 
+    @Synchronized
     fun calculatePresharedKey(): String? {
-        decodeCiphers(ciphers)
-        return hashSecrets(secrets)
-    }
-
-    private fun generateKeys(algorithm: KemAlgorithm): Pair<String, String> {
-        val client = KeyEncapsulation(algorithm.toString())
-        val publicKey = client.generate_keypair()
-        val secretKey = client.export_secret_key()
-        val publicKeyBase64 = Base64.encode(publicKey, Base64.DEFAULT).decodeToString()
-        val secretKeyBase64 = Base64.encode(secretKey, Base64.DEFAULT).decodeToString()
-        return Pair(publicKeyBase64, secretKeyBase64)
-    }
-
-    private fun decodeCipher(algorithm: KemAlgorithm, privateKeyBase64: String, cipherBase64: String): String {
-        val secretKey = Base64.decode(privateKeyBase64, Base64.DEFAULT)
-        val client = KeyEncapsulation(algorithm.toString(), secretKey)
-        val cipherText = Base64.decode(cipherBase64, Base64.DEFAULT)
-        val sharedSecret = client.decap_secret(cipherText)
-        return Base64.encode(sharedSecret, Base64.DEFAULT).decodeToString()
+        if (isDisposed) {
+            return null
+        }
+        val secrets = ArrayList<ByteArray>()
+        try {
+            ciphers.forEachIndexed { index, cipher ->
+                secrets.add(clients[index].decap_secret(Base64.decode(cipher, Base64.DEFAULT)))
+            }
+            return hashSecrets(secrets)
+        } finally {
+            secrets.forEach { it.fill(0) }
+            dispose()
+        }
     }
 
-    private fun decodeCiphers(ciphers: List<String>) {
-        ciphers.forEachIndexed { index, cipher ->
-            val algo = algorithms[index]
-            val privateKey = privateKeys[index]
-            secrets.add(decodeCipher(algo, privateKey, cipher))
+    @Synchronized
+    fun dispose() {
+        if (isDisposed) {
+            return
         }
+        isDisposed = true
+        clients.forEach { it.dispose_KEM() }
+        clients.clear()
     }
 
-    private fun hashSecrets(secrets: List<String>): String? {
+    private fun hashSecrets(secrets: List<ByteArray>): String? {
         return try {
             val digest = MessageDigest.getInstance("SHA-256")
             for (secret in secrets) {
-                val secretBytes: ByteArray = Base64.decode(secret, Base64.DEFAULT)
-                digest.update(secretBytes)
+                digest.update(secret)
             }
             val hashBytes = digest.digest()
             Base64.encode(hashBytes, Base64.DEFAULT).decodeToString().trim()
@@ -0,0 +1,129 @@
+package net.ivpn.core.common.utils
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.os.Process
+import com.wireguard.android.crypto.Keypair
+import net.ivpn.core.common.dagger.ApplicationScope
+import org.slf4j.LoggerFactory
+import java.util.*
+import java.util.concurrent.Executors
+import javax.inject.Inject
+
+/**
+ * Keeps a KEM and a WireGuard keypair generated ahead of time on a background thread,
+ * so login and key rotation don't wait for key generation.
+ * Every handed out item is replaced in the background. Pooled secrets are wiped on [clear].
+ */
+@ApplicationScope
+class KeyMaterialPool @Inject constructor() {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(KeyMaterialPool::class.java)
+
+        private const val POOL_SIZE = 1
+    }
+
+    private val executor = Executors.newSingleThreadExecutor { runnable ->
+        Thread({
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND)
+            runnable.run()
+        }, "KeyMaterialPool").apply { isDaemon = true }
+    }
+
+    private val lock = Any()
+    private val kems = ArrayDeque<KEM>()
+    private val keypairs = ArrayDeque<Keypair>()
+    private var isRefillScheduled = false
+
+    fun warmUp() {
+        scheduleRefill()
+    }
+
+    /**
+     * Returns a pooled KEM or generates one on the calling thread if the pool is empty.
+     * The caller owns the result and has to dispose it.
+     */
+    fun takeKem(): KEM {
+        val kem = synchronized(lock) { kems.pollFirst() }
+        scheduleRefill()
+        return kem ?: KEM()
+    }
+
+    /**
+     * Returns a pooled keypair or generates one on the calling thread if the pool is empty.
+     */
+    fun takeKeypair(): Keypair {
+        val keypair = synchronized(lock) { keypairs.pollFirst() }
+        scheduleRefill()
+        return keypair ?: Keypair()
+    }
+
+    /**
+     * Wipes the pooled secrets and generates fresh ones in the background for the next login.
+     */
+    fun clear() {
+        synchronized(lock) {
+            kems.forEach { it.dispose() }
+            kems.clear()
+            keypairs.forEach { it.destroy() }
+            keypairs.clear()
+        }
+        scheduleRefill()
+    }
+
+    private fun scheduleRefill() {
+        synchronized(lock) {
+            if (isRefillScheduled) return
+            isRefillScheduled = true
+        }
+        executor.execute { refill() }
+    }
+
+    private fun refill() {
+        try {
+            while (true) {
+                val (isKemNeeded, isKeypairNeeded) = synchronized(lock) {
+                    val isKemNeeded = kems.size < POOL_SIZE
+                    val isKeypairNeeded = keypairs.size < POOL_SIZE
+                    if (!isKemNeeded && !isKeypairNeeded) {
+                        isRefillScheduled = false
+                        return
+                    }
+                    isKemNeeded to isKeypairNeeded
+                }
+                if (isKemNeeded) {
+                    val kem = KEM()
+                    synchronized(lock) { kems.addLast(kem) }
+                }
+                if (isKeypairNeeded) {
+                    val keypair = Keypair()
+                    synchronized(lock) { keypairs.addLast(keypair) }
+                }
+            }
+        } catch (exception: Throwable) {
+            LOGGER.error("Unable to pre-generate key material", exception)
+            synchronized(lock) { isRefillScheduled = false }
+        }
+    }
+}
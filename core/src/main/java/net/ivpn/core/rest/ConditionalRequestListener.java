@@ -0,0 +1,38 @@
+package net.ivpn.core.rest;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import okhttp3.Headers;
+
+/**
+ * Listener for requests sent with If-None-Match / If-Modified-Since validators.
+ * Successful responses are delivered together with their headers, so new validators
+ * can be stored, and 304 responses are reported instead of being treated as errors.
+ */
+public interface ConditionalRequestListener<T> extends RequestListener<T> {
+
+    void onSuccess(T response, Headers headers);
+
+    void onNotModified();
+
+}
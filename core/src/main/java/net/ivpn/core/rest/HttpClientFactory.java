@@ -28,6 +28,8 @@ import net.ivpn.core.IVPNApplication;
 import net.ivpn.core.common.BuildController;
 import net.ivpn.core.common.dagger.ApplicationScope;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
@@ -38,6 +40,8 @@ import okhttp3.CertificatePinner;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
 
 @ApplicationScope
 public class HttpClientFactory {
@@ -45,23 +49,64 @@ public class HttpClientFactory {
     private BuildController buildController;
     private String baseUrl;
 
+    private OkHttpClient baseClient;
+    private final Map<Integer, OkHttpClient> clients = new ConcurrentHashMap<>();
+    private final Map<String, IVPNApi> apis = new ConcurrentHashMap<>();
+    private final GsonConverterFactory converterFactory = GsonConverterFactory.create();
+
     @Inject
     public HttpClientFactory(BuildController buildController) {
         this.buildController = buildController;
         baseUrl = buildController.getBaseUrl();
     }
 
+    /**
+     * All clients share one connection pool and dispatcher, only timeouts differ.
+     */
     public OkHttpClient getHttpClient(int timeOut) {
-        Log.d("HttpClientFactory", "getHttpClient: BASE_URL = " + baseUrl);
-        OkHttpClient.Builder httpClientBuilder = new OkHttpClient.Builder();
-        httpClientBuilder.addInterceptor(getInterceptor());
+        OkHttpClient client = clients.get(timeOut);
+        if (client != null) {
+            return client;
+        }
+        client = getBaseClient().newBuilder()
+                .readTimeout(timeOut, TimeUnit.SECONDS)
+                .connectTimeout(timeOut, TimeUnit.SECONDS)
+                .build();
+        OkHttpClient existing = clients.putIfAbsent(timeOut, client);
+        return existing != null ? existing : client;
+    }
 
-        httpClientBuilder.hostnameVerifier(getHostnameVerifier());
-        httpClientBuilder.certificatePinner(getCertificatePinner());
-        httpClientBuilder.readTimeout(timeOut, TimeUnit.SECONDS);
-        httpClientBuilder.connectTimeout(timeOut, TimeUnit.SECONDS);
+    /**
+     * Returns API proxy for the given base url, proxies are reused between requests
+     * so warm connections to the same endpoint are kept alive.
+     */
+    public IVPNApi getApi(String baseUrl, int timeOut) {
+        String key = timeOut + baseUrl;
+        IVPNApi api = apis.get(key);
+        if (api != null) {
+            return api;
+        }
+        api = new Retrofit.Builder()
+                .baseUrl(baseUrl)
+                .addConverterFactory(converterFactory)
+                .client(getHttpClient(timeOut))
+                .build()
+                .create(IVPNApi.class);
+        IVPNApi existing = apis.putIfAbsent(key, api);
+        return existing != null ? existing : api;
+    }
+
+    private synchronized OkHttpClient getBaseClient() {
+        if (baseClient == null) {
+            Log.d("HttpClientFactory", "getBaseClient: BASE_URL = " + baseUrl);
+            OkHttpClient.Builder httpClientBuilder = new OkHttpClient.Builder();
+            httpClientBuilder.addInterceptor(getInterceptor());
 
-        return httpClientBuilder.build();
+            httpClientBuilder.hostnameVerifier(getHostnameVerifier());
+            httpClientBuilder.certificatePinner(getCertificatePinner());
+            baseClient = httpClientBuilder.build();
+        }
+        return baseClient;
     }
 
     private Interceptor getInterceptor() {
@@ -46,12 +46,14 @@ import net.ivpn.core.rest.data.wireguard.AddWireGuardPublicKeyResponse;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.Header;
 import retrofit2.http.POST;
 
 public interface IVPNApi {
 
     @GET("v5/servers.json")
-    Call<ServersListResponse> getServers();
+    Call<ServersListResponse> getServers(@Header("If-None-Match") String eTag,
+                                         @Header("If-Modified-Since") String lastModified);
 
     @GET("v4/geo-lookup")
     Call<LocationResponse> getLocation();
@@ -24,6 +24,7 @@ package net.ivpn.core.rest;
 
 public interface Responses {
     int SUCCESS = 200;
+    int NOT_MODIFIED = 304;
     int BAD_REQUEST = 400;
     int INVALID_CREDENTIALS = 401;
     int NOT_ACTIVE = 402;
@@ -187,6 +187,27 @@ public class Server implements ConnectionOption {
         this.distance = distance;
     }
 
+    /**
+     * Returns a shallow copy, so view state (latency, distance, favourite flag)
+     * can be changed without touching the instances shared by the server catalog.
+     */
+    public Server copy() {
+        Server server = new Server();
+        server.gateway = gateway;
+        server.countryCode = countryCode;
+        server.country = country;
+        server.city = city;
+        server.latitude = latitude;
+        server.longitude = longitude;
+        server.ipAddresses = ipAddresses;
+        server.hosts = hosts;
+        server.type = type;
+        server.isFavourite = isFavourite;
+        server.latency = latency;
+        server.distance = distance;
+        return server;
+    }
+
     public boolean canBeUsedAsMultiHopWith(Server server) {
         if (server == null) return true;
         return !this.countryCode.equalsIgnoreCase(server.countryCode);
@@ -22,8 +22,12 @@ package net.ivpn.core.rest.requests.common;
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
+import android.os.Handler;
+import android.os.Looper;
+
 import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.common.prefs.Settings;
+import net.ivpn.core.rest.ConditionalRequestListener;
 import net.ivpn.core.rest.HttpClientFactory;
 import net.ivpn.core.rest.IVPNApi;
 import net.ivpn.core.rest.RequestListener;
@@ -34,46 +38,66 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.LinkedList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.List;
+import java.util.Set;
 
-import okhttp3.OkHttpClient;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
-import retrofit2.Retrofit;
-import retrofit2.converter.gson.GsonConverterFactory;
 
-public class RequestWrapper<T> implements Callback<T> {
+/**
+ * Races API endpoints for idempotent requests: the next endpoint is tried every
+ * {@link #ATTEMPT_DELAY_MILLIS} or as soon as the previous attempt fails, without
+ * waiting for its timeout. The first received response wins, all other attempts
+ * are cancelled and the winning endpoint is tried first by the following requests.
+ * Requests that change state on the server (account, payment, session creation...)
+ * are never raced, the next endpoint is tried only after the current one has failed.
+ */
+public class RequestWrapper<T> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RequestWrapper.class);
 
     private static final String BASE_URL = "api.ivpn.net";
     private static final String HTTPS = "https://";
     private static final String SLASH = "/";
+    private static final long ATTEMPT_DELAY_MILLIS = 1500;
+    private static final Set<String> IDEMPOTENT_POST_PATHS = new HashSet<>(Arrays.asList(
+            "/v4/session/status",
+            "/subscriptions/validate"
+    ));
 
     private final IpMode mode;
     private LinkedList<String> ips;
-    private String testingIp;
 
     private volatile boolean isCancelled;
 
     private CallBuilder<T> callBuilder;
-    private final OkHttpClient httpClient;
-    private Call<T> call;
+    private final HttpClientFactory httpClientFactory;
+    private final int timeOut;
     private RequestListener listener;
 
     private final Settings settings;
     private final ServersRepository serversRepository;
 
-    private AtomicInteger currentAttempt = new AtomicInteger(0);
-    private int maxAttempts;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable nextAttemptRunnable = this::startNextAttempt;
+    private final List<Attempt> attempts = new ArrayList<>();
+    private List<String> endpoints;
+    private int nextEndpoint;
+    private boolean isFinished;
+    private boolean isRacing;
+    private Throwable lastError;
 
     RequestWrapper(Settings settings, HttpClientFactory httpClientFactory, ServersRepository serversRepository,
                    int timeOut, IpMode mode) {
         this.settings = settings;
         this.serversRepository = serversRepository;
-        this.httpClient = httpClientFactory.getHttpClient(timeOut);
+        this.httpClientFactory = httpClientFactory;
+        this.timeOut = timeOut;
         this.mode = mode;
     }
 
@@ -85,18 +109,51 @@ public class RequestWrapper<T> implements Callback<T> {
         this.callBuilder = callBuilder;
     }
 
-    void perform() {
-        testingIp = getIps().isEmpty() ? null : getIps().getFirst();
-        LOGGER.info("Perform with testingIp = " + testingIp);
-        String baseUrl = generateURL(testingIp);
-        LOGGER.info("Perform with baseUrl = " + baseUrl);
-        perform(baseUrl);
+    synchronized void perform() {
+        endpoints = getEndpoints();
+        nextEndpoint = 0;
+        isFinished = false;
+        lastError = null;
+        attempts.clear();
+        LOGGER.info("Perform with endpoints = " + endpoints);
+        startNextAttempt();
+    }
+
+    private synchronized void startNextAttempt() {
+        handler.removeCallbacks(nextAttemptRunnable);
+        if (isFinished || isCancelled) {
+            return;
+        }
+        if (nextEndpoint >= endpoints.size()) {
+            if (attempts.isEmpty()) {
+                finishWithError();
+            }
+            return;
+        }
+
+        String ip = endpoints.get(nextEndpoint++);
+        String baseUrl = generateURL(ip);
+        LOGGER.info("Trying baseUrl = " + baseUrl);
+        Attempt attempt = new Attempt(ip);
+        attempts.add(attempt);
+        attempt.call = callBuilder.createCall(generateApi(baseUrl));
+        if (nextEndpoint == 1) {
+            isRacing = isIdempotent(attempt.call);
+        }
+        attempt.call.enqueue(attempt);
+
+        if (isRacing && nextEndpoint < endpoints.size()) {
+            handler.postDelayed(nextAttemptRunnable, ATTEMPT_DELAY_MILLIS);
+        }
     }
 
-    private void perform(String baseUrl) {
-        currentAttempt.incrementAndGet();
-        call = callBuilder.createCall(generateApi(baseUrl));
-        call.enqueue(this);
+    private boolean isIdempotent(Call<T> call) {
+        okhttp3.Request request = call.request();
+        String method = request.method();
+        if ("GET".equals(method) || "HEAD".equals(method)) {
+            return true;
+        }
+        return "POST".equals(method) && IDEMPOTENT_POST_PATHS.contains(request.url().encodedPath());
     }
 
     private String generateURL(String ip) {
@@ -106,58 +163,68 @@ public class RequestWrapper<T> implements Callback<T> {
         return HTTPS + ip + SLASH;
     }
 
-    private void getNextBaseUrlAndTry(Throwable throwable) {
-        LOGGER.info("Get next url and try again currentAttempt = " + currentAttempt.get()
-                + " maxAttempts = " + maxAttempts);
-        if (currentAttempt.get() > maxAttempts || getIps() == null) {
-            currentAttempt.set(0);
-            listener.onError(throwable);
-            return;
+    /**
+     * Endpoints in the order they are tried: the last winning one first,
+     * then IPv4 and IPv6 addresses interleaved, then the host name.
+     */
+    private List<String> getEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        LinkedList<String> ips = getIps();
+        if (ips != null) {
+            endpoints.addAll(ips);
         }
-
-        String baseUrl;
-        if (testingIp == null) {
-            testingIp = getIps().getFirst();
-        } else if (testingIp.equals(getIps().getLast())) {
-            switch (mode) {
-                case IPv6:
-                    testingIp = getIps().getFirst();
-                    break;
-                case IPv4:
-                case BOTH:
-                    testingIp = null;
-                    break;
-            }
-        } else {
-            int index = getIps().indexOf(testingIp);
-            testingIp = getIps().get(index + 1);
+        if (mode != IpMode.IPv6) {
+            endpoints.add(null);
         }
 
-        baseUrl = generateURL(testingIp);
-        perform(baseUrl);
+        String lastUsedIp = settings.getLastUsedIp();
+        String sticky = BASE_URL.equals(lastUsedIp) ? null : lastUsedIp;
+        if (lastUsedIp != null && endpoints.remove(sticky)) {
+            endpoints.add(0, sticky);
+        }
+        return endpoints;
     }
 
-    public void cancel() {
-        if (call == null) return;
+    public synchronized void cancel() {
         isCancelled = true;
-        call.cancel();
+        handler.removeCallbacks(nextAttemptRunnable);
+        for (Attempt attempt : attempts) {
+            attempt.cancel();
+        }
+        attempts.clear();
     }
 
     private IVPNApi generateApi(String baseUrl) {
-        return new Retrofit.Builder()
-                .baseUrl(baseUrl)
-                .addConverterFactory(GsonConverterFactory.create())
-                .client(httpClient)
-                .build()
-                .create(IVPNApi.class);
+        return httpClientFactory.getApi(baseUrl, timeOut);
     }
 
-    @Override
-    public void onResponse(@NotNull Call<T> call,@NotNull Response<T> response) {
-        LOGGER.info("Response received for " + mode);
-        currentAttempt.set(0);
-        if (isCancelled || listener == null) return;
-
+    private synchronized void onAttemptResponse(Attempt winner, Response<T> response) {
+        LOGGER.info("Response received for " + mode + " from " + winner.ip);
+        if (isFinished || isCancelled) {
+            return;
+        }
+        isFinished = true;
+        handler.removeCallbacks(nextAttemptRunnable);
+        for (Attempt attempt : attempts) {
+            if (attempt != winner) {
+                attempt.cancel();
+            }
+        }
+        attempts.clear();
+        settings.setLastUsedIp(winner.ip == null ? BASE_URL : winner.ip);
+        if (listener == null) return;
+
+        if (listener instanceof ConditionalRequestListener) {
+            ConditionalRequestListener conditionalListener = (ConditionalRequestListener) listener;
+            if (response.code() == Responses.NOT_MODIFIED) {
+                conditionalListener.onNotModified();
+                return;
+            }
+            if (response.code() == Responses.SUCCESS) {
+                conditionalListener.onSuccess(response.body(), response.headers());
+                return;
+            }
+        }
         if (response.code() == Responses.SUCCESS) {
             listener.onSuccess(response.body());
         } else {
@@ -171,21 +238,56 @@ public class RequestWrapper<T> implements Callback<T> {
         }
     }
 
-    @Override
-    public void onFailure(@NotNull Call<T> call,@NotNull Throwable throwable) {
-        LOGGER.error("Failed with ip = " + getTestingIp() + " ", throwable);
-        if (isCancelled) {
+    private synchronized void onAttemptFailure(Attempt attempt, Throwable throwable) {
+        LOGGER.error("Failed with ip = " + attempt.ip + " ", throwable);
+        attempts.remove(attempt);
+        if (isFinished || isCancelled || attempt.isCancelled) {
             return;
         }
-        getNextBaseUrlAndTry(throwable);
+        lastError = throwable;
+        if (nextEndpoint < endpoints.size()) {
+            startNextAttempt();
+        } else if (attempts.isEmpty()) {
+            finishWithError();
+        }
+    }
+
+    private void finishWithError() {
+        isFinished = true;
+        if (listener != null) {
+            listener.onError(lastError != null ? lastError : new IOException("No API endpoints available"));
+        }
     }
 
     public interface CallBuilder<T> {
         Call<T> createCall(IVPNApi api);
     }
 
-    private String getTestingIp() {
-        return testingIp;
+    private class Attempt implements Callback<T> {
+        private final String ip;
+        private Call<T> call;
+        private volatile boolean isCancelled;
+
+        Attempt(String ip) {
+            this.ip = ip;
+        }
+
+        void cancel() {
+            isCancelled = true;
+            if (call != null) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public void onResponse(@NotNull Call<T> call, @NotNull Response<T> response) {
+            onAttemptResponse(this, response);
+        }
+
+        @Override
+        public void onFailure(@NotNull Call<T> call, @NotNull Throwable throwable) {
+            onAttemptFailure(this, throwable);
+        }
     }
 
     private LinkedList<String> getIps() {
@@ -217,18 +319,21 @@ public class RequestWrapper<T> implements Callback<T> {
                 }
                 break;
             case BOTH:
-                tempIps = settings.getIpList();
-                if (tempIps != null) {
-                    ips.addAll(tempIps);
-                }
-                tempIps = settings.getIpv6List();
-                for (String ip :tempIps) {
-                    ips.add("[" + ip +"]");
+                //Interleave address families, so a broken one doesn't delay the race
+                LinkedList<String> ipv4List = settings.getIpList();
+                LinkedList<String> ipv6List = settings.getIpv6List();
+                int ipv4Count = ipv4List != null ? ipv4List.size() : 0;
+                int ipv6Count = ipv6List != null ? ipv6List.size() : 0;
+                for (int i = 0; i < Math.max(ipv4Count, ipv6Count); i++) {
+                    if (i < ipv4Count) {
+                        ips.add(ipv4List.get(i));
+                    }
+                    if (i < ipv6Count) {
+                        ips.add("[" + ipv6List.get(i) + "]");
+                    }
                 }
                 break;
         }
-        maxAttempts = ips.size();
-        LOGGER.info("Sex max attempts count as " + maxAttempts);
 
         return ips;
     }
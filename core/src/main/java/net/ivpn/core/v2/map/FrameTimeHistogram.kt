@@ -0,0 +1,111 @@
+package net.ivpn.core.v2.map
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.TimeUnit
+
+/**
+ * Histogram of frame intervals with 1 ms buckets. Recording doesn't allocate,
+ * so it can be used from a frame callback. Percentiles may be read from any thread.
+ */
+class FrameTimeHistogram {
+
+    private val buckets = IntArray(BUCKETS_COUNT)
+    private var count = 0
+    private var jankCount = 0
+    private var maxNanos = 0L
+
+    /**
+     * Frames longer than this missed at least one vsync.
+     */
+    @Volatile
+    var jankThresholdNanos = DEFAULT_JANK_THRESHOLD_NANOS
+
+    @Synchronized
+    fun record(frameNanos: Long) {
+        val millis = TimeUnit.NANOSECONDS.toMillis(frameNanos).toInt()
+        buckets[millis.coerceIn(0, BUCKETS_COUNT - 1)]++
+        count++
+        if (frameNanos > jankThresholdNanos) {
+            jankCount++
+        }
+        if (frameNanos > maxNanos) {
+            maxNanos = frameNanos
+        }
+    }
+
+    val framesCount: Int
+        @Synchronized get() = count
+
+    /**
+     * Number of frames longer than [jankThresholdNanos].
+     */
+    val jankFramesCount: Int
+        @Synchronized get() = jankCount
+
+    val p50: Int
+        get() = percentile(50f)
+
+    val p95: Int
+        get() = percentile(95f)
+
+    val p99: Int
+        get() = percentile(99f)
+
+    /**
+     * Returns the upper bound in milliseconds of the bucket containing the given percentile.
+     * The last bucket collects all frames slower than [BUCKETS_COUNT] - 1 ms.
+     */
+    @Synchronized
+    fun percentile(percentile: Float): Int {
+        if (count == 0) return 0
+        val target = (count * percentile / 100f).toInt().coerceIn(1, count)
+        var accumulated = 0
+        for (i in buckets.indices) {
+            accumulated += buckets[i]
+            if (accumulated >= target) {
+                return i + 1
+            }
+        }
+        return BUCKETS_COUNT
+    }
+
+    @Synchronized
+    fun reset() {
+        buckets.fill(0)
+        count = 0
+        jankCount = 0
+        maxNanos = 0
+    }
+
+    @Synchronized
+    override fun toString(): String {
+        return "frames = $count, p50 = $p50 ms, p95 = $p95 ms, p99 = $p99 ms, max = ${TimeUnit.NANOSECONDS.toMillis(maxNanos)} ms, jank = $jankCount"
+    }
+
+    companion object {
+        private const val BUCKETS_COUNT = 64
+        //One and a half frames of a 60 Hz display
+        private val DEFAULT_JANK_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(25_000)
+    }
+}
@@ -24,27 +24,54 @@ package net.ivpn.core.v2.map
 
 import android.content.Context
 import android.graphics.Bitmap
+import android.graphics.BitmapFactory
 import androidx.collection.LruCache
 import androidx.core.content.res.ResourcesCompat
 import androidx.core.graphics.drawable.toBitmap
 import net.ivpn.core.IVPNApplication
 import net.ivpn.core.R
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
 import kotlin.system.measureTimeMillis
 
+/**
+ * Map tiles are rasterized from vector drawables once per (tile, size) and kept in a disk cache,
+ * keyed by the app install, theme, screen density and map color. Later requests decode the cached
+ * file into a bitmap taken from [TileBitmapPool], instead of rendering the vector again.
+ */
 object MapHolder {
 
+    private val LOGGER = LoggerFactory.getLogger(MapHolder::class.java)
+
+    private const val TILES_DIR = "map_tiles"
+    private const val TILE_EXTENSION = ".png"
+
     var memoryCache: LruCache<String, Bitmap?>? = null
+    private var memoryCacheKey: String? = null
+
+    private val bitmapPool = TileBitmapPool((Runtime.getRuntime().maxMemory() / 16).toInt())
 
-    fun getTilesFor(): LruCache<String, Bitmap?> {
+    //An evicted tile may still be part of the frame being drawn, so it is pooled only
+    //once a frame which started after the eviction was drawn
+    private val evictionLock = Any()
+    private var evictedTiles = ArrayList<Bitmap>()
+    private var evictedBeforeLastFrame = ArrayList<Bitmap>()
+
+    fun getTilesFor(path: String): LruCache<String, Bitmap?> {
         memoryCache?.let {
-            it.evictAll()
+            //Tiles of the other theme can't be reused
+            if (memoryCacheKey != path) {
+                it.evictAll()
+                memoryCacheKey = path
+            }
             return it
         }
 
         val maxMemory = (Runtime.getRuntime().maxMemory() / 1024).toInt()
-        println("Max memory = $maxMemory in Kb")
-        val cacheSize = maxMemory / 4
-        println("Cache size = $cacheSize in Kb")
+        val cacheSize = maxMemory / 8
+        LOGGER.info("Max memory = $maxMemory Kb, tiles cache size = $cacheSize Kb")
 
         val memoryCacheImpl = object : LruCache<String, Bitmap?>(cacheSize) {
 
@@ -56,14 +83,44 @@ object MapHolder {
 
             override fun entryRemoved(evicted: Boolean, key: String, oldValue: Bitmap, newValue: Bitmap?) {
                 super.entryRemoved(evicted, key, oldValue, newValue)
-                oldValue.recycle()
+                synchronized(evictionLock) {
+                    evictedTiles.add(oldValue)
+                }
             }
         }
         memoryCache = memoryCacheImpl
+        memoryCacheKey = path
 
         return memoryCacheImpl
     }
 
+    /**
+     * Called by the map before it draws a frame. Tiles evicted before the previous frame
+     * weren't part of it, so their bitmaps can be reused now.
+     */
+    fun onFrameStarted() {
+        val offScreen: List<Bitmap>
+        synchronized(evictionLock) {
+            if (evictedTiles.isEmpty() && evictedBeforeLastFrame.isEmpty()) {
+                return
+            }
+            offScreen = evictedBeforeLastFrame
+            evictedBeforeLastFrame = evictedTiles
+            evictedTiles = ArrayList()
+        }
+        offScreen.forEach { bitmapPool.put(it) }
+    }
+
+    /**
+     * Called once the map stops drawing, evicted tiles are left to the garbage collector.
+     */
+    fun dropEvictedTiles() {
+        synchronized(evictionLock) {
+            evictedTiles = ArrayList()
+            evictedBeforeLastFrame = ArrayList()
+        }
+    }
+
     private var thumbnailsKey: String? = null
     private var thumbnails: HashMap<String, Bitmap?>? = null
     fun getThumbnails(path: String, context: Context): HashMap<String, Bitmap?>? {
@@ -80,11 +137,12 @@ object MapHolder {
         val executionTime = measureTimeMillis {
             for (i in 1..MapMath.tilesCount) {
                 for (j in 1..MapMath.visibleYCount) {
-                    thumbnailsImpl["ic_row_${j}_col_${i}"] = getBitmapFrom(context, "ic_row_${j}_col_${i}")
+                    thumbnailsImpl["ic_row_${j}_col_${i}"] = getTile(context, path, "ic_row_${j}_col_${i}",
+                            MapMath.defaultTileWidth / 4, MapMath.defaultTileHeight / 4)
                 }
             }
         }
-        println("Bitmap init time = $executionTime")
+        LOGGER.info("Thumbnails init time = $executionTime ms")
         thumbnails = thumbnailsImpl
         return thumbnailsImpl
     }
@@ -95,7 +153,55 @@ object MapHolder {
         }
     }
 
-    private fun getBitmapFrom(context: Context, name: String): Bitmap? {
+    /**
+     * Returns the tile [name] of the given size, decoded from the disk cache if possible.
+     * Returns null if the tile can't be rendered.
+     */
+    fun getTile(context: Context, path: String, name: String, width: Int, height: Int): Bitmap? {
+        val file = File(getTilesDir(context, path), "${name}_${width}x${height}$TILE_EXTENSION")
+        if (file.exists()) {
+            decode(file, width, height)?.let { return it }
+            file.delete()
+        }
+
+        val bitmap = rasterize(context, name, width, height) ?: return null
+        write(file, bitmap)
+        return bitmap
+    }
+
+    private fun decode(file: File, width: Int, height: Int): Bitmap? {
+        val options = BitmapFactory.Options().apply {
+            inMutable = true
+            inPreferredConfig = Bitmap.Config.ARGB_8888
+            inBitmap = bitmapPool.obtain(width, height)
+        }
+        return try {
+            BitmapFactory.decodeFile(file.path, options)
+        } catch (exception: IllegalArgumentException) {
+            //Pooled bitmap can't be reused for this file
+            options.inBitmap?.let { bitmapPool.put(it) }
+            options.inBitmap = null
+            BitmapFactory.decodeFile(file.path, options)
+        }
+    }
+
+    private fun write(file: File, bitmap: Bitmap) {
+        val tempFile = File(file.parentFile, file.name + ".tmp")
+        try {
+            FileOutputStream(tempFile).use {
+                //Lossless, tiles are flat color areas which compress very well
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, it)
+            }
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete()
+            }
+        } catch (exception: IOException) {
+            LOGGER.error("Unable to cache tile ${file.name}", exception)
+            tempFile.delete()
+        }
+    }
+
+    private fun rasterize(context: Context, name: String, width: Int, height: Int): Bitmap? {
         try {
             val drawable = ResourcesCompat.getDrawable(
                     context.resources,
@@ -111,13 +217,40 @@ object MapHolder {
                     )
             )
 
-            return drawable?.toBitmap(MapMath.defaultTileWidth / 4, MapMath.defaultTileHeight / 4, null)
+            return drawable?.toBitmap(width, height, Bitmap.Config.ARGB_8888)
         } catch (e: Exception) {
         }
         return null
     }
 
+    private var tilesDir: File? = null
+    private var tilesDirKey: String? = null
+
+    @Synchronized
+    private fun getTilesDir(context: Context, path: String): File {
+        val resources = context.resources
+        val color = ResourcesCompat.getColor(resources, R.color.map_fill, null)
+        val key = "${path}_${resources.displayMetrics.densityDpi}_${Integer.toHexString(color)}"
+        tilesDir?.let {
+            if (key == tilesDirKey) return it
+        }
+
+        //Tiles rendered by the previous app version may differ, so they are kept per install
+        val version = context.packageManager.getPackageInfo(context.packageName, 0).lastUpdateTime.toString()
+        val root = File(context.cacheDir, TILES_DIR)
+        root.listFiles()?.forEach {
+            if (it.name != version) {
+                it.deleteRecursively()
+            }
+        }
+        val dir = File(File(root, version), key)
+        dir.mkdirs()
+        tilesDir = dir
+        tilesDirKey = key
+        return dir
+    }
+
     private fun getIdentifier(context: Context, name: String): Int {
         return context.resources.getIdentifier(name, "drawable", IVPNApplication.application.packageName)
     }
-}
\ No newline at end of file
+}
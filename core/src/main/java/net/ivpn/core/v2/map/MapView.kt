@@ -29,6 +29,7 @@ import android.graphics.Canvas
 import android.graphics.Paint
 import android.graphics.Rect
 import android.util.AttributeSet
+import android.view.Choreographer
 import android.view.GestureDetector
 import android.view.MotionEvent
 import android.view.ScaleGestureDetector
@@ -39,7 +40,6 @@ import androidx.core.content.res.ResourcesCompat
 import androidx.core.graphics.drawable.toBitmap
 import androidx.core.view.ViewCompat
 import kotlinx.coroutines.*
-import net.ivpn.core.IVPNApplication
 import net.ivpn.core.R
 import net.ivpn.core.rest.data.model.ServerLocation
 import net.ivpn.core.v2.connect.createSession.ConnectionState
@@ -49,9 +49,12 @@ import net.ivpn.core.v2.map.location.LocationData
 import net.ivpn.core.v2.map.location.LocationDrawer
 import net.ivpn.core.v2.map.model.Location
 import net.ivpn.core.v2.map.servers.ServerLocationDrawer
+import net.ivpn.core.v2.map.servers.ServerLocationsIndex
 import net.ivpn.core.v2.map.servers.model.ServerLocationsData
 import net.ivpn.core.v2.viewmodel.LocationViewModel
+import org.slf4j.LoggerFactory
 import java.util.*
+import java.util.concurrent.TimeUnit
 import kotlin.collections.ArrayList
 import kotlin.collections.HashMap
 import kotlin.math.*
@@ -69,6 +72,44 @@ class MapView @JvmOverloads constructor(
 
     private val bitmapPaint = Paint()
 
+    //Scratch objects of the draw path, onDraw doesn't allocate in steady state
+    private val srcRect = Rect()
+    private val tileRect = Rect()
+    private val intersectionRect = Rect()
+    private val relativeRect = Rect()
+    private val tileNames = Array(MapMath.visibleYCount) { row ->
+        Array(MapMath.tilesCount) { column -> "ic_row_${row + 1}_col_${column + 1}" }
+    }
+    private val tileKeys = Array(MAX_ZOOM_LEVEL) { level ->
+        Array(MapMath.visibleYCount) { row ->
+            Array(MapMath.tilesCount) { column -> "${tileNames[row][column]}_${level + 1}" }
+        }
+    }
+
+    /**
+     * Intervals between the frames shown while the map is panned or flung, since it was attached.
+     */
+    val frameTimeHistogram = FrameTimeHistogram()
+
+    private var isTouched = false
+    private var isTrackingFrames = false
+    private var lastFrameTimeNanos = 0L
+    private val frameCallback = object : Choreographer.FrameCallback {
+        override fun doFrame(frameTimeNanos: Long) {
+            if (lastFrameTimeNanos != 0L) {
+                frameTimeHistogram.record(frameTimeNanos - lastFrameTimeNanos)
+            }
+            lastFrameTimeNanos = frameTimeNanos
+            if (isTouched || !scroller.isFinished) {
+                Choreographer.getInstance().postFrameCallback(this)
+            } else {
+                isTrackingFrames = false
+                lastFrameTimeNanos = 0L
+                LOGGER.debug("Map frame times: $frameTimeHistogram")
+            }
+        }
+    }
+
     private var serverLocationDrawer = ServerLocationDrawer(resources)
     private var serverLocationsData = ServerLocationsData()
     private var nearestServers: ArrayList<ServerLocation>? = null
@@ -174,6 +215,13 @@ class MapView @JvmOverloads constructor(
 
     @SuppressLint("ClickableViewAccessibility")
     override fun onTouchEvent(event: MotionEvent?): Boolean {
+        when (event?.actionMasked) {
+            MotionEvent.ACTION_DOWN -> {
+                isTouched = true
+                startFrameTracking()
+            }
+            MotionEvent.ACTION_UP, MotionEvent.ACTION_CANCEL -> isTouched = false
+        }
         if (event != null) {
             scaleGestureDetector.onTouchEvent(event)
         }
@@ -216,10 +264,27 @@ class MapView @JvmOverloads constructor(
         )
         // Invalidates to trigger computeScroll()
         ViewCompat.postInvalidateOnAnimation(this)
+        startFrameTracking()
+    }
+
+    private fun startFrameTracking() {
+        if (isTrackingFrames || !isAttachedToWindow) {
+            return
+        }
+        isTrackingFrames = true
+        Choreographer.getInstance().postFrameCallback(frameCallback)
+    }
+
+    private fun stopFrameTracking() {
+        Choreographer.getInstance().removeFrameCallback(frameCallback)
+        isTrackingFrames = false
+        isTouched = false
+        lastFrameTimeNanos = 0L
     }
 
     override fun onDraw(canvas: Canvas) {
         super.onDraw(canvas)
+        MapHolder.onFrameStarted()
         if (!isInit || location == null) {
             return
         }
@@ -229,6 +294,8 @@ class MapView @JvmOverloads constructor(
         with(serverLocationsData) {
             left = math.totalX
             top = math.totalY
+            width = this@MapView.width.toFloat()
+            height = this@MapView.height.toFloat()
             scale = math.scaleFactor
         }
         serverLocationDrawer.draw(canvas, serverLocationsData)
@@ -246,6 +313,24 @@ class MapView @JvmOverloads constructor(
         locationDrawer.draw(canvas, locationData)
     }
 
+    override fun onAttachedToWindow() {
+        super.onAttachedToWindow()
+        display?.refreshRate?.takeIf { it > 0f }?.let {
+            //A frame is late once it missed its vsync by more than half a frame
+            frameTimeHistogram.jankThresholdNanos = (1.5f * TimeUnit.SECONDS.toNanos(1) / it).toLong()
+        }
+    }
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        stopFrameTracking()
+        MapHolder.dropEvictedTiles()
+        if (frameTimeHistogram.framesCount > 0) {
+            LOGGER.info("Map frame times: $frameTimeHistogram")
+            frameTimeHistogram.reset()
+        }
+    }
+
     private fun checkTap(event: MotionEvent) {
         locationData.location?.coordinate?.let {
             val distance: Float = sqrt((it.first - math.totalX - event.x).pow(2)
@@ -261,18 +346,10 @@ class MapView @JvmOverloads constructor(
             }
         }
 
-        serverLocationDrawer.serverLocations?.let {
+        serverLocationDrawer.index?.let {
             val servers = arrayListOf<ServerLocation>()
-            var distance: Float
-            for (serverLocation in it) {
-                distance = sqrt((serverLocation.x - math.totalX - event.x).pow(2)
-                        + (serverLocation.y - math.totalY - event.y).pow(2))
-
-                if (distance < serverLocationDrawer.tapRadius) {
-                    servers.add(serverLocation)
-                    serverLocation.distanceToTap = distance
-                }
-            }
+            it.queryNearby(math.totalX + event.x, math.totalY + event.y,
+                    serverLocationDrawer.tapRadius, servers)
             Collections.sort(servers, ServerLocation.tapComparator)
             nearestServers = servers
 
@@ -292,8 +369,6 @@ class MapView @JvmOverloads constructor(
     }
 
     private fun drawMap(canvas: Canvas) {
-        val srcRect = Rect()
-
         with(srcRect) {
             left = (math.totalX).toInt()
             right = (math.totalX + width).toInt()
@@ -301,26 +376,21 @@ class MapView @JvmOverloads constructor(
             bottom = (math.totalY + height).toInt()
         }
 
-        val intersectionRect = Rect()
-        val relativeRect = Rect()
-
         val fromX: Int = max(ceil(srcRect.left / math.tileWidth.toFloat()).toInt(), 1)
         val toX: Int = min(ceil(srcRect.right / math.tileWidth.toFloat()).toInt(), MapMath.tilesCount)
 
         val fromY: Int = max(ceil(srcRect.top / math.tileHeight.toFloat()).toInt(), 1)
         val toY: Int = min(ceil(srcRect.bottom / math.tileHeight.toFloat()).toInt(), MapMath.visibleYCount)
 
-        var tileRect: Rect
-
         for (i in fromX..toX) {
             for (j in fromY..toY) {
-                tileRect = Rect(
+                tileRect.set(
                         math.tileWidth * (i - 1), math.tileHeight * (j - 1),
                         math.tileWidth * i,
                         math.tileHeight * j
                 )
 
-                getBitmap("ic_row_${j}_col_${i}")?.also { bitmap ->
+                getBitmap(i, j)?.also { bitmap ->
                     if (intersectionRect.setIntersect(tileRect, srcRect)) {
                         with(relativeRect) {
                             left = (intersectionRect.left - math.totalX).toInt()
@@ -399,7 +469,7 @@ class MapView @JvmOverloads constructor(
                 location.x = pair.first
                 location.y = pair.second
             }
-            ServerLocationsHolder.createAndFillRect(it, context)
+            ServerLocationsHolder.createAndFillRect(it, context, math.tileWidth)
         }
         invalidate()
     }
@@ -489,9 +559,11 @@ class MapView @JvmOverloads constructor(
 
         var locationCopy: Location? = null
         val serverLocationCopy = ArrayList<ServerLocation>()
+        var index: ServerLocationsIndex? = null
 
         coordinateJob = GlobalScope.launch(Dispatchers.Default) {
             serverLocations?.let {
+                val zoomKey = math.tileWidth
 
                 var pair: Pair<Float, Float>
                 var serverLocation: ServerLocation
@@ -502,7 +574,10 @@ class MapView @JvmOverloads constructor(
                     serverLocation.y = pair.second
                     serverLocationCopy.add(serverLocation)
                 }
-                ServerLocationsHolder.createAndFillRect(serverLocationCopy, context)
+                //Don't cache placement if the scale was changed while coordinates were calculated
+                ServerLocationsHolder.createAndFillRect(serverLocationCopy, context,
+                        zoomKey.takeIf { it == math.tileWidth })
+                index = ServerLocationsIndex(serverLocationCopy, serverLocationDrawer.tapRadius * INDEX_CELL_SIZE_FACTOR)
             }
             location?.let {
                 locationCopy = it.copy()
@@ -512,7 +587,7 @@ class MapView @JvmOverloads constructor(
 
         coordinateJob?.invokeOnCompletion {
             serverLocations = serverLocationCopy
-            serverLocationDrawer.serverLocations = serverLocationCopy
+            serverLocationDrawer.index = index
 
 
             location = locationCopy
@@ -531,40 +606,45 @@ class MapView @JvmOverloads constructor(
 
     private var bitmapCache: LruCache<String, Bitmap?>? = null
     private var thumbnails: HashMap<String, Bitmap?>? = null
+    private var tilesPath: String = ""
     private fun initTiles() {
         val path = resources.getString(R.string.path_to_tiles)
-        bitmapCache = MapHolder.getTilesFor()
+        tilesPath = path
+        bitmapCache = MapHolder.getTilesFor(path)
         thumbnails = MapHolder.getThumbnails(path, context)
     }
 
     val tasks = HashMap<String, Job>()
-    private fun getBitmap(name: String): Bitmap? {
-        val key = "${name}_${String.format("%.0f", math.scaleFactor)}"
+    private fun getBitmap(column: Int, row: Int): Bitmap? {
+        val name = tileNames[row - 1][column - 1]
         if (math.scaleFactor >= 4.0f) return thumbnails?.get(name)
+        //Tiles are rendered once per integer zoom level and scaled in between
+        val zoomLevel = max(1, math.scaleFactor.roundToInt())
+        val key = tileKeys[zoomLevel - 1][row - 1][column - 1]
 
         bitmapCache?.get(key)?.also {
             return it
         } ?: run {
             tasks[key]?.also { jobObject ->
                 if (jobObject.isCompleted) {
-                    runNewTask(name, key)
+                    runNewTask(name, key, zoomLevel)
                 }
             } ?: run {
-                runNewTask(name, key)
+                runNewTask(name, key, zoomLevel)
             }
             return thumbnails?.get(name)
         }
         return thumbnails?.get(name)
     }
 
-    private fun runNewTask(name: String, path: String) {
-        val prepareBitmapJob = prepareBitmap(name, path)
+    private fun runNewTask(name: String, path: String, zoomLevel: Int) {
+        val prepareBitmapJob = prepareBitmap(name, path, zoomLevel)
         tasks[path] = prepareBitmapJob
     }
 
-    private fun prepareBitmap(name: String, path: String): Job {
+    private fun prepareBitmap(name: String, path: String, zoomLevel: Int): Job {
         val prepareBitmapJob = GlobalScope.launch(Dispatchers.Default) {
-            getBitmapFrom(context, name).also { bitmap ->
+            getBitmapFrom(context, name, zoomLevel).also { bitmap ->
                 bitmap?.let {
                     bitmapCache?.put(path, it)
                 }
@@ -585,30 +665,11 @@ class MapView @JvmOverloads constructor(
             null
     )
 
-    private fun getBitmapFrom(context: Context, name: String): Bitmap? {
-        try {
-            val drawable = ResourcesCompat.getDrawable(
-                    context.resources,
-                    getIdentifier(context, name),
-                    null
-            )
-            drawable?.setTint(
-                    ResourcesCompat.getColor(
-                            context.resources,
-                            R.color.map_fill,
-                            null
-                    )
-            )
-
-            return drawable?.toBitmap(math.tileWidth, math.tileHeight, null)
-        } catch (e: Exception) {
-            return defaultTransparentDrawable?.toBitmap(math.tileWidth, math.tileHeight, null)
-        }
-    }
-
-    @SuppressLint("DiscouragedApi")
-    private fun getIdentifier(context: Context, name: String): Int {
-        return context.resources.getIdentifier(name, "drawable", IVPNApplication.application.packageName)
+    private fun getBitmapFrom(context: Context, name: String, zoomLevel: Int): Bitmap? {
+        val width = MapMath.defaultTileWidth / zoomLevel
+        val height = MapMath.defaultTileHeight / zoomLevel
+        return MapHolder.getTile(context, tilesPath, name, width, height)
+                ?: defaultTransparentDrawable?.toBitmap(width, height, null)
     }
 
     private fun getAnimatorListener(): MapAnimator.AnimatorListener {
@@ -706,6 +767,11 @@ class MapView @JvmOverloads constructor(
     }
 
     companion object {
+        private val LOGGER = LoggerFactory.getLogger(MapView::class.java)
+
+        //Higher scales use thumbnails
+        private const val MAX_ZOOM_LEVEL = 4
+
         const val WAVE_ANIMATION_DURATION = 2000L
         const val HIDE_ANIMATION_DURATION = 500L
         const val MOVEMENT_ANIMATION_DURATION = 550L
@@ -713,5 +779,8 @@ class MapView @JvmOverloads constructor(
         const val CENTER_ANIMATION_DURATION = 300L
 
         const val MAX_ALPHA = 255
+
+        //Grid cells of the server locations index are this many tap radii wide
+        private const val INDEX_CELL_SIZE_FACTOR = 4f
     }
 }
\ No newline at end of file
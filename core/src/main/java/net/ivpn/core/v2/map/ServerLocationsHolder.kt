@@ -28,225 +28,234 @@ import android.graphics.Paint
 import android.graphics.Rect
 import android.graphics.Typeface
 import android.text.TextPaint
+import androidx.collection.LruCache
 import androidx.core.content.res.ResourcesCompat
 import net.ivpn.core.R
 import net.ivpn.core.rest.data.model.ServerLocation
 import java.util.*
 import kotlin.collections.HashMap
 
+/**
+ * Places server location dots and labels, so labels don't overlap each other or other dots.
+ *
+ * Locations are processed in X-sorted order as a sweep line: dots are kept sorted by their left
+ * edge and found by binary search, placed labels stay in the active list only while they can still
+ * reach candidates of the following locations. Placement results are cached per zoom level.
+ */
 object ServerLocationsHolder {
 
-    private var locations: HashMap<ServerLocation, Rect>? = null
-    private var locationTitles: HashMap<ServerLocation, Rect>? = null
+    private const val CANDIDATES_COUNT = 12
+    private const val ZOOM_LEVELS_CACHE_SIZE = 8
+
+    private class Placement(val signature: Int, val rects: HashMap<ServerLocation, Pair<Rect, Rect?>>)
+
+    private val placements = LruCache<Int, Placement>(ZOOM_LEVELS_CACHE_SIZE)
 
     fun fill(serverLocations: ArrayList<ServerLocation>, context: Context) {
-        if (locations == null || locationTitles == null) {
-            createAndFillRect(serverLocations, context)
-        }
+        createAndFillRect(serverLocations, context)
     }
 
-    fun createAndFillRect(serverLocations: List<ServerLocation>, context: Context) {
-        val textPaint = getServerLocationTextPaint(context.resources)
-        val pointRadius = context.resources.getDimension(R.dimen.point_radius)
-        val distanceFromDot = context.resources.getDimension(R.dimen.location_distance_from_dot)
-        val shift = context.resources.getDimension(R.dimen.location_label_shift)
-
-        val locationDots = HashMap<ServerLocation, Rect>()
-        val locationLabels = HashMap<ServerLocation, Rect>()
+    /**
+     * @param zoomKey identifies the zoom level the coordinates of [serverLocations] were
+     * calculated for, placements for the same key and the same locations are reused.
+     */
+    fun createAndFillRect(serverLocations: List<ServerLocation>, context: Context, zoomKey: Int? = null) {
+        //Doesn't depend on the order, lists come both sorted and unsorted
+        var signature = serverLocations.size
+        for (location in serverLocations) {
+            signature += location.hashCode()
+        }
+        if (zoomKey != null && applyCached(serverLocations, zoomKey, signature)) {
+            return
+        }
 
         Collections.sort(serverLocations, ServerLocation.comparatorByX)
+        place(serverLocations, context.resources)
 
-        var locationRect: Rect
-        for (location in serverLocations) {
-            locationRect = Rect().also {
-                it.left = (location.x - pointRadius).toInt()
-                it.right = (location.x + pointRadius).toInt()
-                it.top = (location.y - pointRadius).toInt()
-                it.bottom = (location.y + pointRadius).toInt()
+        if (zoomKey != null) {
+            val rects = HashMap<ServerLocation, Pair<Rect, Rect?>>(serverLocations.size)
+            for (location in serverLocations) {
+                location.pointRect?.let { rects[location] = Pair(it, location.labelRect) }
             }
-            locationDots[location] = locationRect
-            location.pointRect = locationRect
+            placements.put(zoomKey, Placement(signature, rects))
         }
+    }
 
-        var labelRect: Rect
-        var testLabelRect: Rect
-        val labelBound = Rect()
+    private fun applyCached(serverLocations: List<ServerLocation>, zoomKey: Int, signature: Int): Boolean {
+        val placement = placements.get(zoomKey) ?: return false
+        if (placement.signature != signature) {
+            return false
+        }
         for (location in serverLocations) {
-            textPaint.getTextBounds(location.city, 0, location.city.length, labelBound)
-
-//          top position, no shift
-            labelRect = Rect().also {
-                it.left = (location.x - labelBound.width() / 2f).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - distanceFromDot - pointRadius).toInt()
-                it.top = it.bottom - labelBound.height()
-            }
-            if (isNotIntersected(labelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = labelRect
-                locationLabels[location] = labelRect
-                continue
-            }
-
-//          top position, shift right
-            testLabelRect = Rect().also {
-                it.left = (labelRect.left + shift).toInt()
-                it.right = (labelRect.right + shift).toInt()
-                it.top = labelRect.top
-                it.bottom = labelRect.bottom
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
-            }
-
-//          right position, top shift
-            testLabelRect = Rect().also {
-                it.left = (location.x + pointRadius + distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f - shift).toInt()
-                it.top = (it.bottom - labelBound.height())
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
-            }
-
-//          right position, no shift
-            testLabelRect = Rect().also {
-                it.left = (location.x + pointRadius + distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f).toInt()
-                it.top = it.bottom - labelBound.height()
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
-            }
-
-//          right position, bottom shift
-            testLabelRect = Rect().also {
-                it.left = (location.x + pointRadius + distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f + shift).toInt()
-                it.top = (it.bottom - labelBound.height())
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+            if (placement.rects[location] == null) {
+                return false
             }
+        }
+        Collections.sort(serverLocations, ServerLocation.comparatorByX)
+        for (location in serverLocations) {
+            val rects = placement.rects[location]!!
+            location.pointRect = rects.first
+            location.labelRect = rects.second
+        }
+        return true
+    }
 
+    private fun place(serverLocations: List<ServerLocation>, resources: Resources) {
+        val textPaint = getServerLocationTextPaint(resources)
+        val pointRadius = resources.getDimension(R.dimen.point_radius)
+        val distanceFromDot = resources.getDimension(R.dimen.location_distance_from_dot)
+        val shift = resources.getDimension(R.dimen.location_label_shift)
 
-//            bottom position, right shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() / 2f + shift).toInt()
-                it.right = (it.left + labelBound.width())
-                it.bottom = (location.y + distanceFromDot + pointRadius + labelBound.height()).toInt()
-                it.top = it.bottom - labelBound.height()
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+        val count = serverLocations.size
+        val dotLefts = IntArray(count)
+        var dotSpan = 0
+        for (i in 0 until count) {
+            val location = serverLocations[i]
+            val dot = Rect().also {
+                it.left = (location.x - pointRadius).toInt()
+                it.right = (location.x + pointRadius).toInt()
+                it.top = (location.y - pointRadius).toInt()
+                it.bottom = (location.y + pointRadius).toInt()
             }
+            location.pointRect = dot
+            dotLefts[i] = dot.left
+            dotSpan = maxOf(dotSpan, dot.width())
+        }
 
-//            bottom position, no shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() / 2f).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y + distanceFromDot + pointRadius + labelBound.height()).toInt()
-                it.top = it.bottom - labelBound.height()
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
-            }
+        val labelBounds = Array(count) { Rect() }
+        var maxLabelWidth = 0
+        for (i in 0 until count) {
+            val city = serverLocations[i].city
+            textPaint.getTextBounds(city, 0, city.length, labelBounds[i])
+            maxLabelWidth = maxOf(maxLabelWidth, labelBounds[i].width())
+        }
+        //No candidate of a location reaches further to the left than this
+        val reach = maxLabelWidth + pointRadius + distanceFromDot + shift + 2
 
-//            bottom position, left shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() / 2f - shift).toInt()
-                it.right = (it.left + labelBound.width())
-                it.bottom = (location.y + distanceFromDot + pointRadius + labelBound.height()).toInt()
-                it.top = it.bottom - labelBound.height()
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
-            }
+        val activeLabels = ArrayList<Rect>()
+        val candidate = Rect()
+        for (i in 0 until count) {
+            val location = serverLocations[i]
+            evict(activeLabels, (location.x - reach).toInt())
 
-//          left position, bottom shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() - pointRadius - distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f + shift).toInt()
-                it.top = (it.bottom - labelBound.height())
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+            location.labelRect = null
+            for (position in 0 until CANDIDATES_COUNT) {
+                setCandidate(candidate, position, location, labelBounds[i], pointRadius, distanceFromDot, shift)
+                if (isNotIntersected(candidate, serverLocations, dotLefts, dotSpan, activeLabels)) {
+                    val labelRect = Rect(candidate)
+                    location.labelRect = labelRect
+                    activeLabels.add(labelRect)
+                    break
+                }
             }
+        }
+    }
 
-//          left position, no shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() - pointRadius - distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f).toInt()
-                it.top = it.bottom - labelBound.height()
+    /**
+     * Candidate label positions in the order of preference: top, top shifted right,
+     * right (shifted up, centered, shifted down), bottom (shifted right, centered, shifted left),
+     * left (shifted down, centered, shifted up) and top shifted left.
+     */
+    private fun setCandidate(rect: Rect, position: Int, location: ServerLocation, labelBound: Rect,
+                             pointRadius: Float, distanceFromDot: Float, shift: Float) {
+        val width = labelBound.width()
+        val height = labelBound.height()
+        val centerY = location.y - labelBound.top / 2f - labelBound.bottom / 2f
+        when (position) {
+            0, 1, 11 -> {
+                val left = (location.x - width / 2f).toInt()
+                rect.left = when (position) {
+                    1 -> (left + shift).toInt()
+                    11 -> (left - shift).toInt()
+                    else -> left
+                }
+                rect.right = when (position) {
+                    1 -> (left + width + shift).toInt()
+                    11 -> (left + width - shift).toInt()
+                    else -> left + width
+                }
+                rect.bottom = (location.y - distanceFromDot - pointRadius).toInt()
+                rect.top = rect.bottom - height
             }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+            2, 3, 4 -> {
+                rect.left = (location.x + pointRadius + distanceFromDot).toInt()
+                rect.right = rect.left + width
+                rect.bottom = when (position) {
+                    2 -> (centerY - shift).toInt()
+                    3 -> centerY.toInt()
+                    else -> (centerY + shift).toInt()
+                }
+                rect.top = rect.bottom - height
             }
-
-//          left position, top shift
-            testLabelRect = Rect().also {
-                it.left = (location.x - labelBound.width() - pointRadius - distanceFromDot).toInt()
-                it.right = it.left + labelBound.width()
-                it.bottom = (location.y - labelBound.top / 2f - labelBound.bottom / 2f - shift).toInt()
-                it.top = (it.bottom - labelBound.height())
+            5, 6, 7 -> {
+                rect.left = when (position) {
+                    5 -> (location.x - width / 2f + shift).toInt()
+                    6 -> (location.x - width / 2f).toInt()
+                    else -> (location.x - width / 2f - shift).toInt()
+                }
+                rect.right = rect.left + width
+                rect.bottom = (location.y + distanceFromDot + pointRadius + height).toInt()
+                rect.top = rect.bottom - height
             }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+            else -> {
+                rect.left = (location.x - width - pointRadius - distanceFromDot).toInt()
+                rect.right = rect.left + width
+                rect.bottom = when (position) {
+                    8 -> (centerY + shift).toInt()
+                    9 -> centerY.toInt()
+                    else -> (centerY - shift).toInt()
+                }
+                rect.top = rect.bottom - height
             }
+        }
+    }
 
-//            top position, shift left
-            testLabelRect = Rect().also {
-                it.left = (labelRect.left - shift).toInt()
-                it.right = (labelRect.right - shift).toInt()
-                it.top = labelRect.top
-                it.bottom = labelRect.bottom
-            }
-            if (isNotIntersected(testLabelRect, locationDots.values, locationLabels.values)) {
-                location.labelRect = testLabelRect
-                locationLabels[location] = testLabelRect
-                continue
+    private fun evict(activeLabels: ArrayList<Rect>, minLeft: Int) {
+        var size = 0
+        for (i in activeLabels.indices) {
+            val label = activeLabels[i]
+            if (label.right > minLeft) {
+                activeLabels[size++] = label
             }
         }
+        while (activeLabels.size > size) {
+            activeLabels.removeAt(activeLabels.size - 1)
+        }
     }
 
-    private fun isNotIntersected(labelRect: Rect, dots: Collection<Rect>, labels: Collection<Rect>): Boolean {
-        for (rect in dots) {
-            if (Rect.intersects(rect, labelRect)) {
-                return false
+    private fun isNotIntersected(labelRect: Rect, serverLocations: List<ServerLocation>,
+                                 dotLefts: IntArray, dotSpan: Int, labels: List<Rect>): Boolean {
+        var index = lowerBound(dotLefts, labelRect.left - dotSpan)
+        while (index < dotLefts.size && dotLefts[index] < labelRect.right) {
+            serverLocations[index].pointRect?.let {
+                if (Rect.intersects(it, labelRect)) {
+                    return false
+                }
             }
+            index++
         }
-        for (rect in labels) {
-            if (Rect.intersects(rect, labelRect)) {
+        for (i in labels.indices) {
+            if (Rect.intersects(labels[i], labelRect)) {
                 return false
             }
         }
         return true
     }
 
+    private fun lowerBound(values: IntArray, value: Int): Int {
+        var low = 0
+        var high = values.size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (values[middle] < value) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+
     private fun getServerLocationTextPaint(resources: Resources): TextPaint {
         return TextPaint().also {
             it.isAntiAlias = true
@@ -258,4 +267,4 @@ object ServerLocationsHolder {
             it.style = Paint.Style.FILL_AND_STROKE
         }
     }
-}
\ No newline at end of file
+}
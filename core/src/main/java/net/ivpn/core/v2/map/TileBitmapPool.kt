@@ -0,0 +1,79 @@
+package net.ivpn.core.v2.map
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.graphics.Bitmap
+import java.util.*
+
+/**
+ * Bounded pool of tile bitmaps evicted from the memory cache,
+ * decoding of the next tiles reuses their memory instead of allocating new large bitmaps.
+ * Only bitmaps which are no longer drawn may be put here, their pixels get overwritten.
+ * Bitmaps which don't fit are left to the garbage collector.
+ */
+class TileBitmapPool(private val maxBytes: Int) {
+
+    private val bitmaps = LinkedList<Bitmap>()
+    private var size = 0
+
+    @Synchronized
+    fun put(bitmap: Bitmap) {
+        if (bitmap.isRecycled || !bitmap.isMutable || bitmap.config != Bitmap.Config.ARGB_8888) {
+            return
+        }
+        bitmaps.addLast(bitmap)
+        size += bitmap.allocationByteCount
+        while (size > maxBytes && bitmaps.isNotEmpty()) {
+            size -= bitmaps.removeFirst().allocationByteCount
+        }
+    }
+
+    /**
+     * Returns a bitmap which is large enough to be reused for decoding a tile of the given size.
+     */
+    @Synchronized
+    fun obtain(width: Int, height: Int): Bitmap? {
+        val requiredBytes = width * height * BYTES_PER_PIXEL
+        val iterator = bitmaps.iterator()
+        while (iterator.hasNext()) {
+            val bitmap = iterator.next()
+            if (bitmap.allocationByteCount >= requiredBytes) {
+                iterator.remove()
+                size -= bitmap.allocationByteCount
+                return bitmap
+            }
+        }
+        return null
+    }
+
+    @Synchronized
+    fun clear() {
+        bitmaps.forEach { it.recycle() }
+        bitmaps.clear()
+        size = 0
+    }
+
+    companion object {
+        private const val BYTES_PER_PIXEL = 4
+    }
+}
@@ -45,6 +45,15 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
     var infoButtonRect = Rect()
     var connectButtonRect = RectF()
 
+    //Reused between frames, the dialogue is redrawn on every map frame while it is shown
+    private val dialogueRect = RectF()
+    private val dialoguePath = Path()
+    private val locationRect = Rect()
+    private val countryBound = Rect()
+    private val connectTextRect = Rect()
+    private var flagCountryCode: String? = null
+    private var flagDrawable: Drawable? = null
+
     init {
         val resources = context.resources
 
@@ -87,7 +96,6 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
             return
         }
 
-        val dialogueRect = RectF()
         with(dialogueRect) {
             left = data.x - utils.contentWidth / 2f
             top = data.y + utils.topMargin + utils.arrowHeight
@@ -112,7 +120,8 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
     }
 
     private fun drawDialogueBackground(canvas: Canvas, data: DialogueData, dialogueRect: RectF) {
-        val path = Path()
+        val path = dialoguePath
+        path.reset()
         path.moveTo(data.x, data.y + utils.topMargin)
         path.lineTo(data.x - utils.arrowWidth / 2, data.y + utils.topMargin + utils.arrowHeight)
         path.lineTo(data.x + utils.arrowWidth / 2, data.y + utils.topMargin + utils.arrowHeight)
@@ -123,17 +132,11 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
         path.close()
 
         canvas.drawPath(path, dialoguePaint)
-
-        val locationRect = Rect()
-        data.dialogueLocationData.description?.let {
-            locationTextPaint.getTextBounds(it, 0, it.length, locationRect)
-        }
     }
 
     private fun drawContentForProtectedState(canvas: Canvas, data: DialogueData, dialogueRect: RectF) {
         val drawable: Drawable? = getCountryDrawable(data.dialogueLocationData)
-        val countryBound = Rect()
-        val locationRect = Rect()
+        locationRect.setEmpty()
         data.dialogueLocationData.description?.let {
             locationTextPaint.getTextBounds(it, 0, it.length, locationRect)
         }
@@ -178,8 +181,7 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
 
     private fun drawContentForUnProtectedState(canvas: Canvas, data: DialogueData, dialogueRect: RectF) {
         val drawable: Drawable? = getCountryDrawable(data.dialogueLocationData)
-        val countryBound = Rect()
-        val locationRect = Rect()
+        locationRect.setEmpty()
 
         data.dialogueLocationData.description?.let {
             locationTextPaint.getTextBounds(it, 0, it.length, locationRect)
@@ -225,8 +227,7 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
 
     private fun drawContentForGateway(canvas: Canvas, data: DialogueData, dialogueRect: RectF) {
         val drawable: Drawable? = getCountryDrawable(data.dialogueLocationData)
-        val countryBound = Rect()
-        val locationRect = Rect()
+        locationRect.setEmpty()
         data.dialogueLocationData.description?.let {
             locationTextPaint.getTextBounds(it, 0, it.length, locationRect)
         }
@@ -269,7 +270,6 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
 
         canvas.drawRoundRect(connectButtonRect, 20f, 20f, connectButton)
 
-        val connectTextRect = Rect()
         connectTextPaint.getTextBounds(utils.connectText, 0, utils.connectText.length, connectTextRect)
         canvas.drawText(utils.connectText,
                 connectButtonRect.centerX() - connectTextRect.width() / 2f,
@@ -286,11 +286,15 @@ class DialogueDrawer(private val utils: DialogueUtil, private val context: Conte
             dialogueLocationData.countryCode = "gb"
         }
 
-        var path: String
         dialogueLocationData.countryCode?.let {
-            path = ("flag" + File.separator
+            if (it == flagCountryCode) {
+                return flagDrawable
+            }
+            val path = ("flag" + File.separator
                     + it.toLowerCase(Locale.getDefault()) + ".png")
-            return Drawable.createFromStream(context.assets.open(path), null)
+            flagDrawable = Drawable.createFromStream(context.assets.open(path), null)
+            flagCountryCode = it
+            return flagDrawable
         } ?: return null
     }
 
@@ -52,6 +52,7 @@ class LocationDrawer(resources: Resources) {
 
     private var locationPaint = TextPaint()
     private var locationPaintStroke = TextPaint()
+    private val textBounds = Rect()
 
     init {
         with(pointPaint) {
@@ -142,18 +143,17 @@ class LocationDrawer(resources: Resources) {
             )
 
             if (!it.isConnected) {
-                val bounds = Rect()
                 it.city?.let { city ->
-                    locationPaint.getTextBounds(city, 0, city.length, bounds)
+                    locationPaint.getTextBounds(city, 0, city.length, textBounds)
                     locationPaint.alpha = alpha
                     locationPaintStroke.alpha = alpha
                     canvas.drawText(
-                            city, ((location.first - data.screen.left - bounds.width() / 2)),
-                            ((location.second - data.screen.top - bounds.height() / 2 - pointRadius)), locationPaintStroke
+                            city, ((location.first - data.screen.left - textBounds.width() / 2)),
+                            ((location.second - data.screen.top - textBounds.height() / 2 - pointRadius)), locationPaintStroke
                     )
                     canvas.drawText(
-                            city, ((location.first - data.screen.left - bounds.width() / 2)),
-                            ((location.second - data.screen.top - bounds.height() / 2 - pointRadius)), locationPaint
+                            city, ((location.first - data.screen.left - textBounds.width() / 2)),
+                            ((location.second - data.screen.top - textBounds.height() / 2 - pointRadius)), locationPaint
                     )
                 }
             }
@@ -203,18 +203,17 @@ class LocationDrawer(resources: Resources) {
             )
 
             if (!it.isConnected) {
-                val bounds = Rect()
                 it.city?.let { city ->
-                    locationPaint.getTextBounds(city, 0, city.length, bounds)
+                    locationPaint.getTextBounds(city, 0, city.length, textBounds)
                     locationPaint.alpha = alpha
                     locationPaintStroke.alpha = alpha
                     canvas.drawText(
-                            city, ((location.first - data.screen.left - bounds.width() / 2)),
-                            ((location.second - data.screen.top - bounds.height() / 2 - pointRadius)), locationPaintStroke
+                            city, ((location.first - data.screen.left - textBounds.width() / 2)),
+                            ((location.second - data.screen.top - textBounds.height() / 2 - pointRadius)), locationPaintStroke
                     )
                     canvas.drawText(
-                            city, ((location.first - data.screen.left - bounds.width() / 2)),
-                            ((location.second - data.screen.top - bounds.height() / 2 - pointRadius)), locationPaint
+                            city, ((location.first - data.screen.left - textBounds.width() / 2)),
+                            ((location.second - data.screen.top - textBounds.height() / 2 - pointRadius)), locationPaint
                     )
                 }
             }
@@ -39,7 +39,9 @@ class ServerLocationDrawer(resources: Resources) {
 
     val tapRadius = resources.getDimension(R.dimen.server_tap_radius)
 
-    var serverLocations: List<ServerLocation>? = null
+    var index: ServerLocationsIndex? = null
+
+    private val visibleLocations = ArrayList<ServerLocation>()
 
     init {
         with(serverPointPaint) {
@@ -72,8 +74,9 @@ class ServerLocationDrawer(resources: Resources) {
 
         val scaleFactor = (data.scale - 1) / 2.5f + 1f
 
-        serverLocations?.let {
-            for (location in it) {
+        index?.let {
+            it.query(data.left, data.top, data.left + data.width, data.top + data.height, visibleLocations)
+            for (location in visibleLocations) {
                 location.pointRect?.let { pointRectObj ->
                     canvas.drawCircle(
                             (pointRectObj.exactCenterX() - data.left),
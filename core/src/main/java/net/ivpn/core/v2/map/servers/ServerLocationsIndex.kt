@@ -0,0 +1,197 @@
+package net.ivpn.core.v2.map.servers
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.ServerLocation
+import java.util.*
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sqrt
+
+/**
+ * Uniform grid over projected server location coordinates.
+ * Every location is registered in all cells covered by its dot and label,
+ * so viewport and tap queries only visit locations from the nearby cells
+ * instead of the whole list. Built off the main thread for every scale,
+ * queries are expected to be made from the main thread only.
+ */
+class ServerLocationsIndex(locations: List<ServerLocation>, private val cellSize: Float) {
+
+    private val locations = locations.toTypedArray()
+    //left, top, right, bottom of every location
+    private val bounds = FloatArray(this.locations.size * 4)
+
+    private val originX: Float
+    private val originY: Float
+    private val columns: Int
+    private val rows: Int
+
+    //Cell content in compressed form: items of cell i are cellItems[cellStart[i] until cellStart[i + 1]]
+    private val cellStart: IntArray
+    private val cellItems: IntArray
+
+    private val marks = IntArray(this.locations.size)
+    private var stamp = 0
+    private val found = IntArray(this.locations.size)
+
+    init {
+        var minX = Float.MAX_VALUE
+        var minY = Float.MAX_VALUE
+        var maxX = -Float.MAX_VALUE
+        var maxY = -Float.MAX_VALUE
+        for (i in this.locations.indices) {
+            val location = this.locations[i]
+            var left = location.x
+            var top = location.y
+            var right = location.x
+            var bottom = location.y
+            location.pointRect?.let {
+                left = min(left, it.left.toFloat())
+                top = min(top, it.top.toFloat())
+                right = max(right, it.right.toFloat())
+                bottom = max(bottom, it.bottom.toFloat())
+            }
+            location.labelRect?.let {
+                left = min(left, it.left.toFloat())
+                top = min(top, it.top.toFloat())
+                right = max(right, it.right.toFloat())
+                bottom = max(bottom, it.bottom.toFloat())
+            }
+            bounds[i * 4] = left
+            bounds[i * 4 + 1] = top
+            bounds[i * 4 + 2] = right
+            bounds[i * 4 + 3] = bottom
+            minX = min(minX, left)
+            minY = min(minY, top)
+            maxX = max(maxX, right)
+            maxY = max(maxY, bottom)
+        }
+        if (this.locations.isEmpty()) {
+            minX = 0f
+            minY = 0f
+            maxX = 0f
+            maxY = 0f
+        }
+        originX = minX
+        originY = minY
+        columns = ((maxX - minX) / cellSize).toInt() + 1
+        rows = ((maxY - minY) / cellSize).toInt() + 1
+
+        val counts = IntArray(columns * rows + 1)
+        forEachCell { _, cell -> counts[cell + 1]++ }
+        for (i in 1 until counts.size) {
+            counts[i] += counts[i - 1]
+        }
+        cellStart = counts.copyOf()
+        cellItems = IntArray(counts[counts.size - 1])
+        forEachCell { index, cell -> cellItems[counts[cell]++] = index }
+    }
+
+    val size: Int
+        get() = locations.size
+
+    /**
+     * Fills [result] with locations whose dot or label intersects the given rectangle,
+     * in the order they were passed to the index.
+     */
+    fun query(left: Float, top: Float, right: Float, bottom: Float, result: MutableList<ServerLocation>) {
+        result.clear()
+        val count = collect(left, top, right, bottom) { index ->
+            bounds[index * 4] <= right && bounds[index * 4 + 2] >= left
+                    && bounds[index * 4 + 1] <= bottom && bounds[index * 4 + 3] >= top
+        }
+        for (i in 0 until count) {
+            result.add(locations[found[i]])
+        }
+    }
+
+    /**
+     * Fills [result] with locations which dots are closer than [radius] to the given point
+     * and stores that distance in [ServerLocation.distanceToTap].
+     */
+    fun queryNearby(x: Float, y: Float, radius: Float, result: MutableList<ServerLocation>) {
+        result.clear()
+        val radiusSquared = radius * radius
+        val count = collect(x - radius, y - radius, x + radius, y + radius) { index ->
+            val location = locations[index]
+            val dx = location.x - x
+            val dy = location.y - y
+            dx * dx + dy * dy < radiusSquared
+        }
+        for (i in 0 until count) {
+            val location = locations[found[i]]
+            val dx = location.x - x
+            val dy = location.y - y
+            location.distanceToTap = sqrt(dx * dx + dy * dy)
+            result.add(location)
+        }
+    }
+
+    private inline fun collect(left: Float, top: Float, right: Float, bottom: Float,
+                               predicate: (Int) -> Boolean): Int {
+        if (locations.isEmpty()) return 0
+        stamp++
+        if (stamp == 0) {
+            Arrays.fill(marks, 0)
+            stamp = 1
+        }
+        val fromColumn = column(left)
+        val toColumn = column(right)
+        val fromRow = row(top)
+        val toRow = row(bottom)
+        var count = 0
+        for (row in fromRow..toRow) {
+            for (column in fromColumn..toColumn) {
+                val cell = row * columns + column
+                for (i in cellStart[cell] until cellStart[cell + 1]) {
+                    val index = cellItems[i]
+                    if (marks[index] == stamp) continue
+                    marks[index] = stamp
+                    if (predicate(index)) {
+                        found[count++] = index
+                    }
+                }
+            }
+        }
+        Arrays.sort(found, 0, count)
+        return count
+    }
+
+    private inline fun forEachCell(action: (index: Int, cell: Int) -> Unit) {
+        for (i in locations.indices) {
+            for (row in row(bounds[i * 4 + 1])..row(bounds[i * 4 + 3])) {
+                for (column in column(bounds[i * 4])..column(bounds[i * 4 + 2])) {
+                    action(i, row * columns + column)
+                }
+            }
+        }
+    }
+
+    private fun column(x: Float): Int {
+        return ((x - originX) / cellSize).toInt().coerceIn(0, columns - 1)
+    }
+
+    private fun row(y: Float): Int {
+        return ((y - originY) / cellSize).toInt().coerceIn(0, rows - 1)
+    }
+}
@@ -25,4 +25,6 @@ package net.ivpn.core.v2.map.servers.model
 class ServerLocationsData(var isReady: Boolean = false,
                           var left: Float = 0f,
                           var top: Float = 0f,
+                          var width: Float = 0f,
+                          var height: Float = 0f,
                           var scale: Float = 1f)
\ No newline at end of file
@@ -0,0 +1,191 @@
+package net.ivpn.core.v2.serverlist
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.os.Handler
+import android.os.Looper
+import android.view.Choreographer
+import androidx.recyclerview.widget.AdapterListUpdateCallback
+import androidx.recyclerview.widget.AsyncDifferConfig
+import androidx.recyclerview.widget.AsyncListDiffer
+import androidx.recyclerview.widget.DiffUtil
+import androidx.recyclerview.widget.RecyclerView
+import net.ivpn.core.rest.data.model.Server
+import net.ivpn.core.v2.serverlist.dialog.Filters
+import net.ivpn.core.v2.serverlist.items.ConnectionOption
+import java.util.*
+import java.util.concurrent.Executors
+
+/**
+ * Sorts and diffs the rows of a server list off the main thread.
+ *
+ * Pings and distances arrive in bursts during a ping sweep, so submitted lists are coalesced
+ * and at most one sort starts per frame. Latencies and distances are copied on the main thread
+ * before sorting, the servers keep changing while the background sort runs.
+ * Rows are matched by gateway and only rebound when the server instance changes,
+ * latency and filter changes are delivered to the bound rows as payloads.
+ */
+class ServerListDiffer(adapter: RecyclerView.Adapter<*>) {
+
+    companion object {
+        const val PAYLOAD_LATENCY = "PAYLOAD_LATENCY"
+        const val PAYLOAD_FILTER = "PAYLOAD_FILTER"
+
+        private val EXECUTOR = Executors.newSingleThreadExecutor { runnable ->
+            Thread(runnable, "ServerListDiffer").apply { isDaemon = true }
+        }
+
+        private fun keyOf(server: Server): String {
+            return server.gateway ?: "${server.countryCode}:${server.city}"
+        }
+
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<ConnectionOption>() {
+            override fun areItemsTheSame(oldItem: ConnectionOption, newItem: ConnectionOption): Boolean {
+                if (oldItem is Server && newItem is Server) {
+                    return keyOf(oldItem) == keyOf(newItem)
+                }
+                return oldItem.javaClass == newItem.javaClass
+            }
+
+            override fun areContentsTheSame(oldItem: ConnectionOption, newItem: ConnectionOption): Boolean {
+                if (oldItem is Server && newItem is Server) {
+                    return oldItem === newItem
+                }
+                return oldItem.javaClass == newItem.javaClass
+            }
+        }
+    }
+
+    private class Snapshot(
+            val header: List<ConnectionOption>,
+            val servers: Array<Server>,
+            val latencies: LongArray,
+            val distances: FloatArray,
+            val filter: Filters?,
+            val ranks: IntArray?
+    )
+
+    private val differ = AsyncListDiffer(AdapterListUpdateCallback(adapter),
+            AsyncDifferConfig.Builder(DIFF_CALLBACK).setBackgroundThreadExecutor(EXECUTOR).build())
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    private var pendingHeader: List<ConnectionOption> = emptyList()
+    private var pendingServers: List<Server>? = null
+    private var pendingFilter: Filters? = null
+    private var pendingRanks: IntArray? = null
+    private var isFrameScheduled = false
+
+    private val ids = HashMap<String, Long>()
+    private val headerIds = HashMap<Class<*>, Long>()
+
+    private val frameCallback = Choreographer.FrameCallback {
+        isFrameScheduled = false
+        pendingServers?.let {
+            pendingServers = null
+            sort(snapshot(pendingHeader, it, pendingFilter, pendingRanks))
+        }
+    }
+
+    val currentList: List<ConnectionOption>
+        get() = differ.currentList
+
+    /**
+     * Shows [header] rows followed by [servers] sorted by [filter]. If [ranks] of the servers are given,
+     * e.g. search relevance, servers are sorted by rank first. Must be called on the main thread,
+     * only the last list submitted within a frame is sorted.
+     */
+    fun submit(header: List<ConnectionOption>, servers: List<Server>, filter: Filters?, ranks: IntArray? = null) {
+        pendingHeader = header
+        pendingServers = servers
+        pendingFilter = filter
+        pendingRanks = ranks
+        if (!isFrameScheduled) {
+            isFrameScheduled = true
+            Choreographer.getInstance().postFrameCallback(frameCallback)
+        }
+    }
+
+    /**
+     * Stable id of the row, servers keep their id while they move around the list.
+     */
+    fun getItemId(position: Int): Long {
+        val item = differ.currentList[position]
+        if (item is Server) {
+            return ids.getOrPut(keyOf(item)) { ids.size.toLong() }
+        }
+        return headerIds.getOrPut(item.javaClass) { -1L - headerIds.size }
+    }
+
+    fun release() {
+        if (isFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback)
+            isFrameScheduled = false
+        }
+        pendingServers = null
+        pendingRanks = null
+    }
+
+    private fun snapshot(header: List<ConnectionOption>, servers: List<Server>, filter: Filters?, ranks: IntArray?): Snapshot {
+        val array = servers.toTypedArray()
+        val latencies = LongArray(array.size)
+        val distances = FloatArray(array.size)
+        for (i in array.indices) {
+            latencies[i] = array[i].latency
+            distances[i] = array[i].distance
+        }
+        return Snapshot(ArrayList(header), array, latencies, distances, filter,
+                ranks?.takeIf { it.size == array.size })
+    }
+
+    private fun sort(snapshot: Snapshot) {
+        EXECUTOR.execute {
+            val servers = snapshot.servers
+            val order = Array(servers.size) { it }
+            val filterComparator: Comparator<Int> = when (snapshot.filter) {
+                Filters.LATENCY -> Comparator { first, second ->
+                    snapshot.latencies[first].compareTo(snapshot.latencies[second])
+                }
+                Filters.DISTANCE -> Comparator { first, second ->
+                    snapshot.distances[first].compareTo(snapshot.distances[second])
+                }
+                else -> {
+                    val serverComparator = snapshot.filter?.getServerComparator() ?: Server.comparator
+                    Comparator { first, second -> serverComparator.compare(servers[first], servers[second]) }
+                }
+            }
+            val ranks = snapshot.ranks
+            val comparator = if (ranks == null) filterComparator else Comparator<Int> { first, second ->
+                val result = ranks[first].compareTo(ranks[second])
+                if (result != 0) result else filterComparator.compare(first, second)
+            }
+            Arrays.sort(order, comparator)
+
+            val rows = ArrayList<ConnectionOption>(snapshot.header.size + servers.size)
+            rows.addAll(snapshot.header)
+            order.forEach { rows.add(servers[it]) }
+            mainHandler.post {
+                differ.submitList(rows)
+            }
+        }
+    }
+}
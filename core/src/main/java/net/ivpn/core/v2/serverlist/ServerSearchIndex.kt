@@ -0,0 +1,166 @@
+package net.ivpn.core.v2.serverlist
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Server
+import java.text.Normalizer
+import java.util.*
+
+/**
+ * Search index over a server list, built once per catalog version.
+ *
+ * City, country, country code, gateway and host names are normalized once: lower case
+ * with accents removed. Whole names and their words are kept in a sorted array,
+ * so a prefix lookup is a binary search. A server matches if any of its names contains
+ * the query. Exact words rank first, then word prefixes, then any other substring.
+ * A query which extends the previous one only checks the previous matches.
+ */
+class ServerSearchIndex(servers: List<Server>) {
+
+    companion object {
+        const val RANK_EXACT = 0
+        const val RANK_PREFIX = 1
+        const val RANK_SUBSTRING = 2
+
+        private val MARKS = Regex("\\p{Mn}+")
+        private val SEPARATORS = Regex("[^\\p{L}\\p{N}]+")
+
+        fun normalize(text: String): String {
+            return MARKS.replace(Normalizer.normalize(text, Normalizer.Form.NFD), "")
+                    .toLowerCase(Locale.ROOT)
+        }
+
+        private fun keyOf(server: Server): String {
+            return server.gateway ?: "${server.countryCode}:${server.city}"
+        }
+    }
+
+    /**
+     * Matching positions in the indexed list, ordered by rank, and the rank of each of them.
+     */
+    class Result(val positions: IntArray, val ranks: IntArray)
+
+    private val keys = Array(servers.size) { keyOf(servers[it]) }
+    //All normalized names of a server separated by new lines
+    private val texts = arrayOfNulls<String>(servers.size)
+    private val words: Array<String>
+    private val wordServers: IntArray
+
+    private var lastQuery: String? = null
+    private var lastMatches: IntArray? = null
+
+    /**
+     * Number of servers the last search had to check, only the previous matches if it extended the previous query.
+     */
+    var scannedCount = 0
+        @Synchronized get
+        private set
+
+    init {
+        val entries = ArrayList<Pair<String, Int>>()
+        servers.forEachIndexed { position, server ->
+            val names = LinkedHashSet<String>()
+            names.add(normalize(server.getDescription()))
+            names.add(normalize("${server.countryCode}, ${server.city}"))
+            server.city?.let { names.add(normalize(it)) }
+            server.country?.let { names.add(normalize(it)) }
+            server.countryCode?.let { names.add(normalize(it)) }
+            server.gateway?.let { names.add(normalize(it)) }
+            server.hosts?.forEach { host -> host.hostname?.let { names.add(normalize(it)) } }
+
+            val tokens = LinkedHashSet<String>()
+            for (name in names) {
+                tokens.add(name)
+                name.split(SEPARATORS).filterTo(tokens) { it.isNotEmpty() }
+            }
+            tokens.forEach { entries.add(it to position) }
+            texts[position] = names.joinToString("\n")
+        }
+        entries.sortBy { it.first }
+        words = Array(entries.size) { entries[it].first }
+        wordServers = IntArray(entries.size) { entries[it].second }
+    }
+
+    /**
+     * True if the index was built for the same servers in the same order.
+     */
+    fun isBuiltFor(servers: List<Server>): Boolean {
+        if (servers.size != keys.size) return false
+        for (i in keys.indices) {
+            if (keys[i] != keyOf(servers[i])) return false
+        }
+        return true
+    }
+
+    @Synchronized
+    fun search(query: String): Result {
+        val normalized = normalize(query).trim()
+        if (normalized.isEmpty()) {
+            lastQuery = null
+            lastMatches = null
+            scannedCount = 0
+            return Result(IntArray(keys.size) { it }, IntArray(keys.size) { RANK_SUBSTRING })
+        }
+
+        val ranks = IntArray(keys.size) { RANK_SUBSTRING }
+        var i = lowerBound(normalized)
+        while (i < words.size && words[i].startsWith(normalized)) {
+            val rank = if (words[i].length == normalized.length) RANK_EXACT else RANK_PREFIX
+            if (rank < ranks[wordServers[i]]) {
+                ranks[wordServers[i]] = rank
+            }
+            i++
+        }
+
+        //Everything which contains the longer query contains the previous one as well
+        val previousQuery = lastQuery
+        val candidates = lastMatches?.takeIf { previousQuery != null && normalized.contains(previousQuery) }
+        val matches = ArrayList<Int>()
+        if (candidates != null) {
+            candidates.filterTo(matches) { texts[it]!!.contains(normalized) }
+            scannedCount = candidates.size
+        } else {
+            keys.indices.filterTo(matches) { texts[it]!!.contains(normalized) }
+            scannedCount = keys.size
+        }
+        lastQuery = normalized
+        lastMatches = matches.toIntArray()
+
+        val positions = matches.sortedWith(compareBy({ ranks[it] }, { it })).toIntArray()
+        return Result(positions, IntArray(positions.size) { ranks[positions[it]] })
+    }
+
+    private fun lowerBound(prefix: String): Int {
+        var low = 0
+        var high = words.size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (words[middle] < prefix) {
+                low = middle + 1
+            } else {
+                high = middle
+            }
+        }
+        return low
+    }
+}
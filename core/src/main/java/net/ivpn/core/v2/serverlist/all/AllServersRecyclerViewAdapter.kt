@@ -27,13 +27,13 @@ import android.os.Looper
 import android.view.LayoutInflater
 import android.view.ViewGroup
 import android.widget.Filter
-import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import net.ivpn.core.IVPNApplication
 import net.ivpn.core.R
 import net.ivpn.core.common.distance.DistanceProvider
 import net.ivpn.core.common.distance.OnDistanceChangedListener
 import net.ivpn.core.common.pinger.PingResultFormatter
+import net.ivpn.core.common.prefs.ServersPreference
 import net.ivpn.core.databinding.FastestServerItemBinding
 import net.ivpn.core.databinding.RandomServerItemBinding
 import net.ivpn.core.databinding.SearchItemBinding
@@ -42,6 +42,8 @@ import net.ivpn.core.rest.data.model.Server
 import net.ivpn.core.v2.serverlist.AdapterListener
 import net.ivpn.core.v2.serverlist.FavouriteServerListener
 import net.ivpn.core.v2.serverlist.ServerBasedRecyclerViewAdapter
+import net.ivpn.core.v2.serverlist.ServerListDiffer
+import net.ivpn.core.v2.serverlist.ServerSearchIndex
 import net.ivpn.core.v2.serverlist.dialog.Filters
 import net.ivpn.core.v2.serverlist.holders.*
 import net.ivpn.core.v2.serverlist.items.ConnectionOption
@@ -49,10 +51,8 @@ import net.ivpn.core.v2.serverlist.items.FastestServerItem
 import net.ivpn.core.v2.serverlist.items.RandomServerItem
 import net.ivpn.core.v2.serverlist.items.SearchServerItem
 import org.slf4j.LoggerFactory
-import java.util.*
 import javax.inject.Inject
 import kotlin.collections.ArrayList
-import kotlin.collections.HashMap
 
 class AllServersRecyclerViewAdapter(
         private val navigator: AdapterListener,
@@ -64,11 +64,17 @@ class AllServersRecyclerViewAdapter(
     @Inject
     lateinit var distanceProvider: DistanceProvider
 
-    private var bindings = HashMap<ServerItemBinding, Server>()
+    @Inject
+    lateinit var serversPreference: ServersPreference
+
     private var searchBinding: SearchItemBinding? = null
     private var servers = arrayListOf<Server>()
     private var filteredServers = arrayListOf<Server>()
-    private var displayServers = arrayListOf<ConnectionOption>()
+    //Search ranks of the filtered servers, null if the list isn't searched
+    private var filteredRanks: IntArray? = null
+    private var searchIndex: ServerSearchIndex? = null
+    private var searchIndexVersion = -1L
+    private val differ = ServerListDiffer(this)
     private var forbiddenServer: Server? = null
     private var isFiltering = false
 
@@ -84,32 +90,25 @@ class AllServersRecyclerViewAdapter(
     init {
         IVPNApplication.appComponent.provideActivityComponent().create().inject(this)
         distanceProvider.subscribe(distanceChangedListener)
+        setHasStableIds(true)
     }
 
     private var pings: Map<Server, PingResultFormatter?>? = null
 
     override fun getItemViewType(position: Int): Int {
-        if (isFiltering) {
-            return when (position) {
-                0 -> SEARCH_ITEM
-                else -> SERVER_ITEM
-            }
-        } else {
-            return when (position) {
-                0 -> SEARCH_ITEM
-                1 -> RANDOM_ITEM
-                2 -> {
-                    if (isFastestServerAllowed) {
-                        FASTEST_SERVER_ITEM
-                    } else {
-                        SERVER_ITEM
-                    }
-                }
-                else -> SERVER_ITEM
-            }
+        //The shown list is replaced asynchronously, so the type comes from the item itself
+        return when (getServerFor(position)) {
+            is SearchServerItem -> SEARCH_ITEM
+            is RandomServerItem -> RANDOM_ITEM
+            is FastestServerItem -> FASTEST_SERVER_ITEM
+            else -> SERVER_ITEM
         }
     }
 
+    override fun getItemId(position: Int): Long {
+        return differ.getItemId(position)
+    }
+
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): RecyclerView.ViewHolder {
         val layoutInflater = LayoutInflater.from(parent.context)
         return when (viewType) {
@@ -134,10 +133,16 @@ class AllServersRecyclerViewAdapter(
 
     override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int, payloads: MutableList<Any>) {
         if (payloads.isNotEmpty()) {
-            val payload = payloads[0]
-            if (payload is Boolean && holder is ServerViewHolder) {
-                holder.binding.star.setImageResource(if (payload) R.drawable.ic_star_on else R.drawable.ic_star_off)
+            if (holder !is ServerViewHolder) return
+            val server = getServerFor(position) as? Server ?: return
+            for (payload in payloads) {
+                when (payload) {
+                    is Boolean -> holder.binding.star.setImageResource(if (payload) R.drawable.ic_star_on else R.drawable.ic_star_off)
+                    ServerListDiffer.PAYLOAD_LATENCY -> setPing(holder.binding, server)
+                    ServerListDiffer.PAYLOAD_FILTER -> holder.binding.filter = filter
+                }
             }
+            holder.binding.executePendingBindings()
         } else {
             super.onBindViewHolder(holder, position, payloads)
         }
@@ -147,7 +152,6 @@ class AllServersRecyclerViewAdapter(
         if (holder is ServerViewHolder) {
             val server: ConnectionOption = getServerFor(position)
             if (server is Server) {
-                bindings[holder.binding] = server
                 setPing(holder.binding, server)
                 holder.bind(server, forbiddenServer, isIPv6Enabled, filter)
             }
@@ -167,7 +171,7 @@ class AllServersRecyclerViewAdapter(
     }
 
     override fun getItemCount(): Int {
-        return displayServers.size
+        return differ.currentList.size
     }
 
     override fun replaceData(items: List<Server>) {
@@ -181,9 +185,7 @@ class AllServersRecyclerViewAdapter(
         this.pings = pings
         setLatencies()
 
-        bindings.forEach {(binding, server) ->
-            setPing(binding, server)
-        }
+        notifyItemRangeChanged(0, itemCount, ServerListDiffer.PAYLOAD_LATENCY)
         if (filter == Filters.LATENCY) {
             applyFilter()
         }
@@ -191,10 +193,7 @@ class AllServersRecyclerViewAdapter(
 
     override fun setFilter(filter: Filters?) {
         this@AllServersRecyclerViewAdapter.filter = filter
-        for ((binding, _) in bindings) {
-            binding.filter = filter
-            binding.executePendingBindings()
-        }
+        notifyItemRangeChanged(0, itemCount, ServerListDiffer.PAYLOAD_FILTER)
         if (filter == Filters.DISTANCE) {
             setDistances()
         }
@@ -218,10 +217,10 @@ class AllServersRecyclerViewAdapter(
     private fun setDistances() {
         val distances = distanceProvider.distances
         servers.forEach {
-            it.distance = distances[it] ?: Float.MAX_VALUE
+            it.distance = distances[it]
         }
         filteredServers.forEach {
-            it.distance = distances[it] ?: Float.MAX_VALUE
+            it.distance = distances[it]
         }
     }
 
@@ -229,11 +228,13 @@ class AllServersRecyclerViewAdapter(
         this.servers = servers
         setDistances()
         setLatencies()
+        updateSearchIndex()
 
         searchBinding?.search?.let {
             searchFilter.filter(it.query)
         } ?: run {
             filteredServers = servers
+            filteredRanks = null
             if (pings.isNullOrEmpty() && filter == Filters.LATENCY) {
                 Handler(Looper.getMainLooper()).postDelayed({
                     applyFilter()
@@ -244,27 +245,25 @@ class AllServersRecyclerViewAdapter(
         }
     }
 
-    private fun sortServers(servers: ArrayList<Server>) {
-        filter?.let {
-            Collections.sort(servers, it.getServerComparator())
-        } ?: run {
-            Collections.sort(servers, Server.comparator)
-        }
+    private fun updateSearchIndex() {
+        val version = serversPreference.catalogVersion
+        if (version == searchIndexVersion && searchIndex?.isBuiltFor(servers) == true) return
+
+        searchIndex = ServerSearchIndex(servers)
+        searchIndexVersion = version
     }
 
-    private fun prepareDataToShow(servers: ArrayList<Server>): ArrayList<ConnectionOption> {
-        val listToShow = ArrayList<ConnectionOption>()
-        listToShow.add(SearchServerItem())
+    private fun getHeader(): ArrayList<ConnectionOption> {
+        val header = ArrayList<ConnectionOption>()
+        header.add(SearchServerItem())
         if (!isFiltering) {
-            listToShow.add(RandomServerItem())
+            header.add(RandomServerItem())
             if (isFastestServerAllowed) {
-                listToShow.add(FastestServerItem())
+                header.add(FastestServerItem())
             }
         }
-        sortServers(servers)
-        listToShow.addAll(servers)
 
-        return listToShow
+        return header
     }
 
     override fun setForbiddenServer(server: Server?) {
@@ -272,89 +271,56 @@ class AllServersRecyclerViewAdapter(
     }
 
     private fun getPositionFor(server: Server): Int {
-        return displayServers.indexOf(server)
+        return differ.currentList.indexOf(server)
     }
 
     private fun getServerFor(position: Int): ConnectionOption {
-        return displayServers[position]
+        return differ.currentList[position]
     }
 
     private val searchFilter: Filter = object : Filter() {
         override fun performFiltering(constraint: CharSequence?): FilterResults {
-            val filteredList = ArrayList<Server>()
+            val servers = servers
+            val results = FilterResults()
 
-            if (constraint == null || constraint.isEmpty()) {
+            if (constraint == null || constraint.isBlank()) {
                 isFiltering = false
-                filteredList.addAll(servers)
+                results.values = SearchResult(servers, null)
             } else {
                 isFiltering = true
-                val filterPattern = constraint.toString().toLowerCase(Locale.getDefault()).trim { it <= ' ' }
-                for (server in servers) {
-                    if (server.getDescription(filter).toLowerCase(Locale.getDefault()).contains(filterPattern)) {
-                        filteredList.add(server)
-                    }
-                }
+                //The list may have been replaced after the filter was requested
+                val index = searchIndex?.takeIf { it.isBuiltFor(servers) } ?: ServerSearchIndex(servers)
+                val result = index.search(constraint.toString())
+                val filteredList = ArrayList<Server>(result.positions.size)
+                result.positions.forEach { filteredList.add(servers[it]) }
+                results.values = SearchResult(filteredList, result.ranks)
             }
-            val results = FilterResults()
-            results.values = filteredList
             return results
         }
 
         override fun publishResults(constraint: CharSequence?, results: FilterResults) {
-            if (results.values is List<*>) {
-                filteredServers = results.values as ArrayList<Server>
+            (results.values as? SearchResult)?.let {
+                filteredServers = it.servers
+                filteredRanks = it.ranks
                 applyFilter()
             }
         }
     }
 
-    @Volatile
-    var isUpdating = false
-    val updateHandler = Handler(Looper.getMainLooper())
-    val updateInterval = 500L
+    private class SearchResult(val servers: ArrayList<Server>, val ranks: IntArray?)
 
     private fun applyFilter() {
         if (servers.isEmpty()) return
-        if (isUpdating) {
-            updateHandler.postDelayed({
-                isUpdating = false
-                applyFilter()
-            }, updateInterval)
-        } else {
-            isUpdating = true
-            val oldList = ArrayList(displayServers)
-            notifyChanges(oldList, prepareDataToShow(filteredServers))
-            updateHandler.post {
-                isUpdating = false
-            }
-        }
-    }
-
-    fun notifyChanges(oldList: List<ConnectionOption>, newList: ArrayList<ConnectionOption>) {
-        val diff = DiffUtil.calculateDiff(object : DiffUtil.Callback() {
-            override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-                return oldList[oldItemPosition] == newList[newItemPosition]
-            }
-
-            override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-                val item1 = oldList[oldItemPosition]
-                val item2 = newList[newItemPosition]
-                return item1.equals(item2)
-            }
-
-            override fun getOldListSize() = oldList.size
-            override fun getNewListSize() = newList.size
-        })
-        displayServers = newList
-        diff.dispatchUpdatesTo(this)
+        differ.submit(getHeader(), filteredServers, filter, filteredRanks)
     }
 
     fun release() {
         distanceProvider.unsubscribe(distanceChangedListener)
+        differ.release()
     }
 
     override fun onChangeState(server: Server, isFavourite: Boolean) {
-        var position = displayServers.indexOf(server)
+        var position = getPositionFor(server)
         if (position < 0) return
         notifyItemChanged(position, isFavourite)
 
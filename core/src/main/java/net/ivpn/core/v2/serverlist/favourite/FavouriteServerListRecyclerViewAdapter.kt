@@ -22,11 +22,8 @@ package net.ivpn.core.v2.serverlist.favourite
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
-import android.os.Handler
-import android.os.Looper
 import android.view.LayoutInflater
 import android.view.ViewGroup
-import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.RecyclerView
 import net.ivpn.core.IVPNApplication
 import net.ivpn.core.R
@@ -40,12 +37,10 @@ import net.ivpn.core.rest.data.model.Server
 import net.ivpn.core.v2.serverlist.AdapterListener
 import net.ivpn.core.v2.serverlist.FavouriteServerListener
 import net.ivpn.core.v2.serverlist.ServerBasedRecyclerViewAdapter
+import net.ivpn.core.v2.serverlist.ServerListDiffer
 import net.ivpn.core.v2.serverlist.dialog.Filters
 import net.ivpn.core.v2.serverlist.holders.HolderListener
 import net.ivpn.core.v2.serverlist.holders.ServerViewHolder
-import net.ivpn.core.v2.serverlist.items.ConnectionOption
-import java.util.*
-import java.util.concurrent.ConcurrentHashMap
 import javax.inject.Inject
 import kotlin.collections.ArrayList
 
@@ -58,10 +53,8 @@ class FavouriteServerListRecyclerViewAdapter(
     @Inject
     lateinit var distanceProvider: DistanceProvider
 
-    private var bindings = HashMap<ServerItemBinding, Server>()
-
     private var rawServers = arrayListOf<Server>()
-    private var serversToDisplay = arrayListOf<Server>()
+    private val differ = ServerListDiffer(this)
     private var forbiddenServer: Server? = null
 
     val distanceChangedListener = object : OnDistanceChangedListener {
@@ -76,6 +69,7 @@ class FavouriteServerListRecyclerViewAdapter(
     init {
         IVPNApplication.appComponent.provideActivityComponent().create().inject(this)
         distanceProvider.subscribe(distanceChangedListener)
+        setHasStableIds(true)
     }
 
     private var pings: Map<Server, PingResultFormatter?>? = null
@@ -84,6 +78,10 @@ class FavouriteServerListRecyclerViewAdapter(
         return SERVER_ITEM
     }
 
+    override fun getItemId(position: Int): Long {
+        return differ.getItemId(position)
+    }
+
     override fun onCreateViewHolder(parent: ViewGroup, viewType: Int): RecyclerView.ViewHolder {
         val layoutInflater = LayoutInflater.from(parent.context)
         val binding = ServerItemBinding.inflate(layoutInflater, parent, false)
@@ -92,10 +90,16 @@ class FavouriteServerListRecyclerViewAdapter(
 
     override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int, payloads: MutableList<Any>) {
         if (payloads.isNotEmpty()) {
-            val payload = payloads[0]
-            if (payload is Boolean && holder is ServerViewHolder) {
-                holder.binding.star.setImageResource(if (payload) R.drawable.ic_star_on else R.drawable.ic_star_off)
+            if (holder !is ServerViewHolder) return
+            val server = getServerFor(position)
+            for (payload in payloads) {
+                when (payload) {
+                    is Boolean -> holder.binding.star.setImageResource(if (payload) R.drawable.ic_star_on else R.drawable.ic_star_off)
+                    ServerListDiffer.PAYLOAD_LATENCY -> setPing(holder.binding, server)
+                    ServerListDiffer.PAYLOAD_FILTER -> holder.binding.filter = filter
+                }
             }
+            holder.binding.executePendingBindings()
         } else {
             super.onBindViewHolder(holder, position, payloads)
         }
@@ -104,7 +108,6 @@ class FavouriteServerListRecyclerViewAdapter(
     override fun onBindViewHolder(holder: RecyclerView.ViewHolder, position: Int) {
         if (holder is ServerViewHolder) {
             val server: Server = getServerFor(position)
-            bindings[holder.binding] = server
             setPing(holder.binding, server)
             holder.bind(server, forbiddenServer, isIPv6BadgeEnabled, filter)
         }
@@ -121,7 +124,7 @@ class FavouriteServerListRecyclerViewAdapter(
     }
 
     override fun getItemCount(): Int {
-        return serversToDisplay.size
+        return differ.currentList.size
     }
 
     private fun removeFavouriteServer(server: Server) {
@@ -147,30 +150,6 @@ class FavouriteServerListRecyclerViewAdapter(
         applyFilter()
     }
 
-    private fun sortServers(servers: ArrayList<Server>) {
-        filter?.let {
-            Collections.sort(servers, it.getServerComparator())
-        } ?: run {
-            Collections.sort(servers, Server.comparator)
-        }
-    }
-
-    private fun notifyChanges(oldList: List<ConnectionOption>, newList: List<ConnectionOption>) {
-        val diff = DiffUtil.calculateDiff(object : DiffUtil.Callback() {
-            override fun areItemsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-                return oldList[oldItemPosition] == newList[newItemPosition]
-            }
-
-            override fun areContentsTheSame(oldItemPosition: Int, newItemPosition: Int): Boolean {
-                return oldList[oldItemPosition] == newList[newItemPosition]
-            }
-
-            override fun getOldListSize() = oldList.size
-            override fun getNewListSize() = newList.size
-        })
-        diff.dispatchUpdatesTo(this)
-    }
-
     override fun setForbiddenServer(server: Server?) {
         forbiddenServer = server
     }
@@ -181,10 +160,7 @@ class FavouriteServerListRecyclerViewAdapter(
 
     override fun setFilter(filter: Filters?) {
         this.filter = filter
-        for ((binding, _) in bindings) {
-            binding.filter = filter
-            binding.executePendingBindings()
-        }
+        notifyItemRangeChanged(0, itemCount, ServerListDiffer.PAYLOAD_FILTER)
         if (filter == Filters.DISTANCE) {
             setDistances()
         }
@@ -195,9 +171,7 @@ class FavouriteServerListRecyclerViewAdapter(
         this.pings = pings
         setLatencies()
 
-        bindings.forEach {(binding, server) ->
-            setPing(binding, server)
-        }
+        notifyItemRangeChanged(0, itemCount, ServerListDiffer.PAYLOAD_LATENCY)
         if (filter == Filters.LATENCY) {
             applyFilter()
         }
@@ -214,36 +188,20 @@ class FavouriteServerListRecyclerViewAdapter(
     private fun setDistances() {
         val distances = distanceProvider.distances
         rawServers.forEach {
-            it.distance = distances[it] ?: Float.MAX_VALUE
+            it.distance = distances[it]
         }
     }
 
-    @Volatile
-    var isUpdating = false
-    val updateHandler = Handler(Looper.getMainLooper())
-    val updateInterval = 500L
-
     private fun applyFilter() {
-        if (isUpdating) {
-            updateHandler.postDelayed({
-                isUpdating = false
-                applyFilter()
-            }, updateInterval)
-        } else {
-            isUpdating = true
-            val oldList = serversToDisplay
-            serversToDisplay = ArrayList(rawServers)
-            sortServers(serversToDisplay)
-            notifyChanges(oldList, serversToDisplay)
-        }
+        differ.submit(emptyList(), rawServers, filter)
     }
 
     private fun getPositionFor(server: Server): Int {
-        return serversToDisplay.indexOf(server)
+        return differ.currentList.indexOf(server)
     }
 
     private fun getServerFor(position: Int): Server {
-        return serversToDisplay[position]
+        return differ.currentList[position] as Server
     }
 
     companion object {
@@ -252,6 +210,7 @@ class FavouriteServerListRecyclerViewAdapter(
 
     fun release() {
         distanceProvider.unsubscribe(distanceChangedListener)
+        differ.release()
     }
 
     override fun onChangeState(server: Server, isFavourite: Boolean) {
@@ -0,0 +1,271 @@
+package net.ivpn.core.v2.splittunneling
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.Manifest
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageManager
+import android.graphics.drawable.Drawable
+import android.os.SystemClock
+import androidx.collection.LruCache
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import net.ivpn.core.common.dagger.ApplicationScope
+import org.slf4j.LoggerFactory
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.*
+import javax.inject.Inject
+
+/**
+ * Installed applications which can be excluded from the VPN.
+ *
+ * Labels and flags are resolved once per package version and kept on disk, keyed by
+ * package name and lastUpdateTime, so only new and updated packages hit the PackageManager.
+ * While the app is running the catalog follows package broadcasts instead of rescanning.
+ * Icons are loaded on demand and kept in a small LRU cache.
+ */
+@ApplicationScope
+class ApplicationCatalog @Inject constructor(context: Context) {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(ApplicationCatalog::class.java)
+
+        private const val FILE_NAME = "app_catalog.bin"
+        private const val FORMAT_VERSION = 1
+        private const val PAGE_SIZE = 32
+        private const val ICON_CACHE_SIZE = 64
+
+        private const val FLAG_INTERNET = 1
+        private const val FLAG_USER_VISIBLE = 2
+    }
+
+    data class Entry(
+            val packageName: String,
+            val label: String,
+            val lastUpdateTime: Long,
+            val flags: Int
+    ) {
+        val hasInternetPermission: Boolean
+            get() = flags and FLAG_INTERNET != 0
+
+        //Launchable or installed by the user, shown without the "system apps" toggle
+        val isUserVisible: Boolean
+            get() = flags and FLAG_USER_VISIBLE != 0
+    }
+
+    interface OnApplicationsLoadedListener {
+        /**
+         * Called on the main thread once per loaded page and once more with [isComplete] set.
+         */
+        fun onApplicationsLoaded(entries: List<Entry>, isComplete: Boolean)
+    }
+
+    interface OnIconLoadedListener {
+        fun onIconLoaded(packageName: String, icon: Drawable?)
+    }
+
+    private val context = context.applicationContext
+    private val packageManager: PackageManager = this.context.packageManager
+    private val file = File(this.context.filesDir, FILE_NAME)
+
+    private val lock = Any()
+    private var entries: MutableMap<String, Entry>? = null
+    private var isSynced = false
+    private var isWriteNeeded = false
+    private val changedPackages = HashSet<String>()
+    private val icons = LruCache<String, Drawable>(ICON_CACHE_SIZE)
+    private val scope = CoroutineScope(Dispatchers.IO)
+
+    private val packagesReceiver = object : BroadcastReceiver() {
+        override fun onReceive(context: Context, intent: Intent) {
+            val packageName = intent.data?.schemeSpecificPart ?: return
+            synchronized(lock) {
+                changedPackages.add(packageName)
+            }
+            icons.remove(packageName)
+        }
+    }
+
+    init {
+        val filter = IntentFilter().apply {
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addDataScheme("package")
+        }
+        this.context.registerReceiver(packagesReceiver, filter)
+    }
+
+    fun load(listener: OnApplicationsLoadedListener) {
+        scope.launch {
+            val start = SystemClock.elapsedRealtime()
+            val stale = synchronized(lock) { findStalePackages() }
+            for (page in stale.chunked(PAGE_SIZE)) {
+                val resolved = page.mapNotNull { resolve(it) }
+                val snapshot = synchronized(lock) {
+                    val entries = entries!!
+                    page.forEach { entries.remove(it) }
+                    resolved.forEach { entries[it.packageName] = it }
+                    ArrayList(entries.values)
+                }
+                withContext(Dispatchers.Main) {
+                    listener.onApplicationsLoaded(snapshot, false)
+                }
+            }
+            val snapshot = synchronized(lock) {
+                if (isWriteNeeded || stale.isNotEmpty()) {
+                    write(entries!!.values)
+                    isWriteNeeded = false
+                }
+                ArrayList(entries!!.values)
+            }
+            LOGGER.info("Loaded ${snapshot.size} applications, ${stale.size} resolved " +
+                    "in ${SystemClock.elapsedRealtime() - start} ms")
+            withContext(Dispatchers.Main) {
+                listener.onApplicationsLoaded(snapshot, true)
+            }
+        }
+    }
+
+    fun getCachedIcon(packageName: String): Drawable? {
+        return icons.get(packageName)
+    }
+
+    fun loadIcon(packageName: String, listener: OnIconLoadedListener) {
+        scope.launch {
+            val icon = icons.get(packageName) ?: try {
+                packageManager.getApplicationIcon(packageName).also { icons.put(packageName, it) }
+            } catch (exception: PackageManager.NameNotFoundException) {
+                null
+            }
+            withContext(Dispatchers.Main) {
+                listener.onIconLoaded(packageName, icon)
+            }
+        }
+    }
+
+    /**
+     * Returns packages which have to be resolved again, entries of uninstalled packages are dropped.
+     * The first call in the process compares the whole catalog with the installed packages,
+     * later calls only look at packages reported by the broadcasts.
+     */
+    private fun findStalePackages(): List<String> {
+        val entries = entries ?: read().also { entries = it }
+        if (isSynced) {
+            val changed = ArrayList(changedPackages)
+            changedPackages.clear()
+            return changed
+        }
+
+        changedPackages.clear()
+        val installed = HashSet<String>()
+        val stale = ArrayList<String>()
+        for (info in packageManager.getInstalledPackages(0)) {
+            installed.add(info.packageName)
+            if (entries[info.packageName]?.lastUpdateTime != info.lastUpdateTime) {
+                stale.add(info.packageName)
+            }
+        }
+        isWriteNeeded = entries.keys.retainAll(installed)
+        isSynced = true
+        return stale
+    }
+
+    private fun resolve(packageName: String): Entry? {
+        return try {
+            val packageInfo = packageManager.getPackageInfo(packageName, 0)
+            val info = packageInfo.applicationInfo ?: return null
+            var flags = 0
+            if (packageManager.checkPermission(Manifest.permission.INTERNET, packageName) == PackageManager.PERMISSION_GRANTED) {
+                flags = flags or FLAG_INTERNET
+                if (packageManager.getLaunchIntentForPackage(packageName) != null
+                        || packageManager.getLeanbackLaunchIntentForPackage(packageName) != null
+                        || (packageManager.getInstallerPackageName(packageName) != null
+                                && info.flags and ApplicationInfo.FLAG_SYSTEM == 0)) {
+                    flags = flags or FLAG_USER_VISIBLE
+                }
+            }
+            Entry(packageName, info.loadLabel(packageManager).toString(), packageInfo.lastUpdateTime, flags)
+        } catch (exception: PackageManager.NameNotFoundException) {
+            null
+        } catch (exception: Exception) {
+            LOGGER.error("Unable to resolve $packageName", exception)
+            null
+        }
+    }
+
+    private fun read(): MutableMap<String, Entry> {
+        val result = HashMap<String, Entry>()
+        if (!file.exists()) return result
+        try {
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                //Labels are localized, a catalog written for another locale is resolved again
+                if (input.readInt() != FORMAT_VERSION || input.readUTF() != Locale.getDefault().toLanguageTag()) {
+                    return result
+                }
+                repeat(input.readInt()) {
+                    val entry = Entry(input.readUTF(), input.readUTF(), input.readLong(), input.readInt())
+                    result[entry.packageName] = entry
+                }
+            }
+        } catch (exception: IOException) {
+            LOGGER.error("Unable to read application catalog", exception)
+            result.clear()
+        }
+        return result
+    }
+
+    private fun write(entries: Collection<Entry>) {
+        val tempFile = File(file.parentFile, "$FILE_NAME.tmp")
+        try {
+            DataOutputStream(FileOutputStream(tempFile).buffered()).use { output ->
+                output.writeInt(FORMAT_VERSION)
+                output.writeUTF(Locale.getDefault().toLanguageTag())
+                output.writeInt(entries.size)
+                for (entry in entries) {
+                    output.writeUTF(entry.packageName)
+                    output.writeUTF(entry.label)
+                    output.writeLong(entry.lastUpdateTime)
+                    output.writeInt(entry.flags)
+                }
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Unable to replace ${file.name}")
+            }
+        } catch (exception: IOException) {
+            LOGGER.error("Unable to write application catalog", exception)
+            tempFile.delete()
+        }
+    }
+}
@@ -84,7 +84,7 @@ class SplitTunnelingFragment : Fragment() {
     }
 
     private fun getAllApplications() {
-        viewModel.getApplicationsList(requireContext().packageManager)
+        viewModel.getApplicationsList()
     }
 
     private fun initToolbar() {
@@ -38,8 +38,9 @@ import net.ivpn.core.v2.splittunneling.items.SplitTunnelingItem
 import java.util.*
 import javax.inject.Inject
 
-class SplitTunnelingRecyclerViewAdapter @Inject internal constructor()
-    : RecyclerView.Adapter<RecyclerView.ViewHolder>() {
+class SplitTunnelingRecyclerViewAdapter @Inject internal constructor(
+        private val applicationCatalog: ApplicationCatalog
+) : RecyclerView.Adapter<RecyclerView.ViewHolder>() {
 
     private var allApps: ArrayList<ApplicationItem> = ArrayList()
     private var disallowedApps: MutableSet<String> = HashSet()
@@ -70,7 +71,7 @@ class SplitTunnelingRecyclerViewAdapter @Inject internal constructor()
             APP_ITEM -> {
                 val binding = ApplicationItemBinding.inflate(layoutInflater, parent, false)
                 bindings.add(binding)
-                ApplicationInfoViewHolder(binding, itemListener)
+                ApplicationInfoViewHolder(binding, itemListener, applicationCatalog)
             }
             else -> {
                 DescriptionViewHolder(layoutInflater.inflate(R.layout.description_item, parent, false))
@@ -22,16 +22,20 @@ package net.ivpn.core.v2.splittunneling.holder
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
+import android.graphics.drawable.Drawable
 import android.widget.CompoundButton
 import androidx.recyclerview.widget.RecyclerView
 import net.ivpn.core.databinding.ApplicationItemBinding
+import net.ivpn.core.v2.splittunneling.ApplicationCatalog
 import net.ivpn.core.v2.splittunneling.OnApplicationItemAction
 import net.ivpn.core.v2.splittunneling.items.ApplicationItem
 
 class ApplicationInfoViewHolder(
         private val binding: ApplicationItemBinding,
-        private val listener: OnApplicationItemAction
-) : RecyclerView.ViewHolder(binding.root), CompoundButton.OnCheckedChangeListener {
+        private val listener: OnApplicationItemAction,
+        private val applicationCatalog: ApplicationCatalog
+) : RecyclerView.ViewHolder(binding.root), CompoundButton.OnCheckedChangeListener,
+        ApplicationCatalog.OnIconLoadedListener {
 
     private var applicationItem: ApplicationItem? = null
 
@@ -41,6 +45,22 @@ class ApplicationInfoViewHolder(
         binding.checkbox.isChecked = applicationItem.isAllowed
         binding.checkbox.setOnCheckedChangeListener(this)
         binding.executePendingBindings()
+        bindIcon(applicationItem.packageName)
+    }
+
+    private fun bindIcon(packageName: String) {
+        val icon = applicationCatalog.getCachedIcon(packageName)
+        binding.applicationIcon.setImageDrawable(icon)
+        if (icon == null) {
+            applicationCatalog.loadIcon(packageName, this)
+        }
+    }
+
+    override fun onIconLoaded(packageName: String, icon: Drawable?) {
+        //The holder could be rebound to another application while the icon was loading
+        if (applicationItem?.packageName == packageName) {
+            binding.applicationIcon.setImageDrawable(icon)
+        }
     }
 
     override fun onCheckedChanged(compoundButton: CompoundButton, isSelected: Boolean) {
@@ -22,21 +22,17 @@ package net.ivpn.core.v2.splittunneling.items;
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
-import android.graphics.drawable.Drawable;
-
 import java.util.Comparator;
 
 public class ApplicationItem implements SplitTunnelingItem {
     private String applicationName;
     private String packageName;
-    private Drawable icon;
     private boolean isAllowed;
 
     public static Comparator<ApplicationItem> comparator = (item1, item2) -> item1.getApplicationName().toLowerCase().compareTo(item2.getApplicationName().toLowerCase());
 
-    public ApplicationItem(String applicationName, String packageName, Drawable icon) {
+    public ApplicationItem(String applicationName, String packageName) {
         this.applicationName = applicationName;
-        this.icon = icon;
         this.packageName = packageName;
     }
 
@@ -56,14 +52,6 @@ public class ApplicationItem implements SplitTunnelingItem {
         this.packageName = packageName;
     }
 
-    public Drawable getIcon() {
-        return icon;
-    }
-
-    public void setIcon(Drawable icon) {
-        this.icon = icon;
-    }
-
     public boolean isAllowed() {
         return isAllowed;
     }
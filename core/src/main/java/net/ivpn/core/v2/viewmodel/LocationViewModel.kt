@@ -29,6 +29,7 @@ import androidx.lifecycle.ViewModel
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.common.distance.DistanceProvider
 import net.ivpn.core.common.prefs.OnServerListUpdatedListener
+import net.ivpn.core.common.prefs.ServersDiff
 import net.ivpn.core.common.prefs.ServersRepository
 import net.ivpn.core.common.prefs.Settings
 import net.ivpn.core.rest.HttpClientFactory
@@ -377,9 +378,10 @@ class LocationViewModel @Inject constructor(
 
     private fun getOnServerListUpdatedListener(): OnServerListUpdatedListener {
         return object : OnServerListUpdatedListener {
-            override fun onSuccess(servers: List<Server>, isForced: Boolean) {
+            override fun onSuccess(servers: List<Server>, diff: ServersDiff, isForced: Boolean) {
                 locations.set(serversRepository.locations)
             }
+            override fun onUnchanged(isForced: Boolean) {}
             override fun onError(throwable: Throwable) {}
             override fun onError() {}
         }
@@ -31,6 +31,7 @@ import net.ivpn.core.common.multihop.MultiHopController
 import net.ivpn.core.common.pinger.PingProvider
 import net.ivpn.core.common.prefs.OnServerListUpdatedListener
 import net.ivpn.core.rest.data.model.ServerType
+import net.ivpn.core.common.prefs.ServersDiff
 import net.ivpn.core.common.prefs.ServersRepository
 import net.ivpn.core.common.prefs.Settings
 import net.ivpn.core.rest.data.model.Server
@@ -102,14 +103,19 @@ class ServerListViewModel @Inject constructor(
     }
 
     private var listener: OnServerListUpdatedListener = object : OnServerListUpdatedListener {
-        override fun onSuccess(servers: List<Server>, isForced: Boolean) {
+        override fun onSuccess(servers: List<Server>, diff: ServersDiff, isForced: Boolean) {
             dataRefreshing.set(false)
             dataLoading.set(false)
             all.clear()
-            all.addAll(servers)
+            all.addAll(copyOf(servers))
             applyFavourites()
         }
 
+        override fun onUnchanged(isForced: Boolean) {
+            dataRefreshing.set(false)
+            dataLoading.set(false)
+        }
+
         override fun onError(throwable: Throwable) {
             dataRefreshing.set(false)
         }
@@ -143,12 +149,12 @@ class ServerListViewModel @Inject constructor(
         this.serverType = serverType
         forbiddenServer.set(getForbiddenServer(serverType))
         favourites.clear()
-        favourites.addAll(serversRepository.getFavouritesServers())
+        favourites.addAll(copyOf(serversRepository.getFavouritesServers()))
 
         if (isServersListExist()) {
             getCachedServersList()?.let {
                 all.clear()
-                all.addAll(it)
+                all.addAll(copyOf(it))
                 applyFavourites()
             }
         } else {
@@ -170,6 +176,14 @@ class ServerListViewModel @Inject constructor(
         serversRepository.removeOnServersListUpdatedListener(listener)
     }
 
+    /**
+     * Servers of the catalog are shared by every reader, the lists keep their own copies
+     * because adapters store latency, distance and favourite state in them.
+     */
+    private fun copyOf(servers: List<Server>): List<Server> {
+        return servers.map { it.copy() }
+    }
+
     private fun applyFavourites() {
         for (server in all) {
             server.isFavourite = favourites.contains(server)
@@ -202,7 +216,11 @@ class ServerListViewModel @Inject constructor(
     }
 
     fun setSettingFastestServer() {
-        serversRepository.fastestServerSelected()
+        if (multiHopController.getIsEnabled()) {
+            serversRepository.fastestMultiHopRouteSelected()
+        } else {
+            serversRepository.fastestServerSelected()
+        }
     }
 
     fun setSettingRandomServer() {
@@ -213,7 +231,8 @@ class ServerListViewModel @Inject constructor(
 
     fun isFastestServerAllowed(): Boolean {
 //        return !settings.isMultiHopEnabled
-        return !multiHopController.getIsEnabled()
+        //With Multi-Hop the entry list offers the fastest entry/exit pair instead
+        return !multiHopController.getIsEnabled() || serverType == ServerType.ENTRY
     }
 
     private fun getCachedServersList(): List<Server>? {
@@ -111,9 +111,12 @@ class ServersViewModel @Inject constructor(
     }
 
     private fun isFastestServerEnabled(): Boolean {
-        if (multiHopController.isEnabled || isVpnActive()) {
+        if (isVpnActive()) {
             return false
         }
+        if (multiHopController.isEnabled) {
+            return serversRepository.getSettingFastestMultiHopRoute()
+        }
 
         return serversRepository.getSettingFastestServer()
     }
@@ -133,6 +136,12 @@ class ServersViewModel @Inject constructor(
                 mapServer.set(if (multiHopController.isEnabled) exitServer.get() else entryServer.get())
             }
 
+            override fun notifyServersAsFastestRoute(entry: Server, exit: Server) {
+                entryServer.set(entry)
+                exitServer.set(exit)
+                mapServer.set(exit)
+            }
+
             override fun notifyServerAsRandom(server: Server, serverType: ServerType) {
                 when(serverType) {
                     ServerType.ENTRY -> entryServer.set(server)
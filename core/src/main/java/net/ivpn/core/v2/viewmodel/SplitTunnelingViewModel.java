@@ -22,10 +22,6 @@ package net.ivpn.core.v2.viewmodel;
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
-import android.Manifest;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 import android.widget.CompoundButton;
 
 import androidx.databinding.ObservableArrayList;
@@ -33,12 +29,14 @@ import androidx.databinding.ObservableBoolean;
 import androidx.databinding.ObservableField;
 
 import net.ivpn.core.common.prefs.PackagesPreference;
+import net.ivpn.core.v2.splittunneling.ApplicationCatalog;
 import net.ivpn.core.v2.splittunneling.OnApplicationItemSelectionChangedListener;
 import net.ivpn.core.v2.splittunneling.SplitTunnelingRecyclerViewAdapter;
 import net.ivpn.core.v2.splittunneling.items.ApplicationItem;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -72,18 +70,22 @@ public class SplitTunnelingViewModel {
 
     private SplitTunnelingRecyclerViewAdapter.MenuHandler menuHandler;
     private PackagesPreference preference;
+    private ApplicationCatalog applicationCatalog;
 
     @Inject
-    SplitTunnelingViewModel(SplitTunnelingRecyclerViewAdapter adapter, PackagesPreference preference) {
+    SplitTunnelingViewModel(SplitTunnelingRecyclerViewAdapter adapter, PackagesPreference preference,
+                            ApplicationCatalog applicationCatalog) {
         this.adapter.set(adapter);
         this.menuHandler = adapter.getMenuHandler();
         this.preference = preference;
+        this.applicationCatalog = applicationCatalog;
         reloadDisallowedApps();
         isAllItemsAllowed.set(disallowedApps.size() == 0);
     }
 
-    public void getApplicationsList(PackageManager packageManager) {
-        new InflateApplicationInfoAsyncTask(packageManager).execute();
+    public void getApplicationsList() {
+        dataLoading.set(true);
+        applicationCatalog.load(this::onApplicationsLoaded);
     }
 
     public void selectAll() {
@@ -138,64 +140,31 @@ public class SplitTunnelingViewModel {
         return preference.getDisallowedPackages();
     }
 
-    private class InflateApplicationInfoAsyncTask extends AsyncTask<Void, Void, List<ApplicationItem>> {
-
-        private List<ApplicationInfo> applicationInfoList;
-        private PackageManager packageManager;
-
-        InflateApplicationInfoAsyncTask(PackageManager packageManager) {
-            this.packageManager = packageManager;
-            try {
-                this.applicationInfoList = packageManager.getInstalledApplications(PackageManager.GET_META_DATA);
-            } catch (Exception e) {
-                e.printStackTrace();
+    private void onApplicationsLoaded(List<ApplicationCatalog.Entry> entries, boolean isComplete) {
+        List<ApplicationCatalog.Entry> sortedEntries = new ArrayList<>(entries);
+        Collections.sort(sortedEntries, (entry1, entry2) -> entry1.getPackageName().compareTo(entry2.getPackageName()));
+
+        List<ApplicationItem> items = new ArrayList<>();
+        List<ApplicationItem> systemItems = new ArrayList<>();
+        Set<String> labels = new HashSet<>();
+        Set<String> systemLabels = new HashSet<>();
+        for (ApplicationCatalog.Entry entry : sortedEntries) {
+            if (!entry.getHasInternetPermission()) {
+                continue;
             }
-        }
-
-        @Override
-        protected void onPreExecute() {
-            super.onPreExecute();
-            dataLoading.set(true);
-        }
-
-        @Override
-        protected List<ApplicationItem> doInBackground(Void... voids) {
-            List<ApplicationItem> items = new LinkedList<>();
-            List<ApplicationItem> systemItems = new LinkedList<>();
-            Set<String> packageNames = new HashSet<>();
-            Set<String> systemPackageNames = new HashSet<>();
-            for (ApplicationInfo info : applicationInfoList) {
-                try {
-                    if (PackageManager.PERMISSION_GRANTED == packageManager.checkPermission(Manifest.permission.INTERNET, info.packageName)) {
-                        if ((null != packageManager.getLaunchIntentForPackage(info.packageName) ||
-                                null != packageManager.getLeanbackLaunchIntentForPackage(info.packageName) ||
-                                null != packageManager.getInstallerPackageName(info.packageName) &&
-                                        (info.flags & ApplicationInfo.FLAG_SYSTEM) == 0)
-                        ) {
-                            if (packageNames.add(info.loadLabel(packageManager).toString())) {
-                                items.add(new ApplicationItem(info.loadLabel(packageManager).toString(), info.packageName,
-                                        info.loadIcon(packageManager)));
-                            }
-                        }
-                        if (systemPackageNames.add(info.loadLabel(packageManager).toString())) {
-                            systemItems.add(new ApplicationItem(info.loadLabel(packageManager).toString(), info.packageName,
-                                    info.loadIcon(packageManager)));
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
+            if (entry.isUserVisible() && labels.add(entry.getLabel())) {
+                items.add(new ApplicationItem(entry.getLabel(), entry.getPackageName()));
+            }
+            if (systemLabels.add(entry.getLabel())) {
+                systemItems.add(new ApplicationItem(entry.getLabel(), entry.getPackageName()));
             }
-            apps.clear();
-            apps.addAll(items);
-            systemApps.clear();
-            systemApps.addAll(systemItems);
-            return items;
         }
-
-        @Override
-        protected void onPostExecute(List<ApplicationItem> applicationItems) {
+        apps.clear();
+        apps.addAll(items);
+        systemApps.clear();
+        systemApps.addAll(systemItems);
+        if (isComplete) {
             dataLoading.set(false);
         }
     }
-}
\ No newline at end of file
+}
@@ -26,6 +26,7 @@ import androidx.databinding.BaseObservable;
 import androidx.databinding.ObservableBoolean;
 
 import net.ivpn.core.common.prefs.OnServerListUpdatedListener;
+import net.ivpn.core.common.prefs.ServersDiff;
 import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.rest.data.model.Server;
 import net.ivpn.core.v2.sync.SyncServersNavigator;
@@ -44,7 +45,13 @@ public class SyncServersViewModel extends BaseObservable {
 
     private OnServerListUpdatedListener listener = new OnServerListUpdatedListener() {
         @Override
-        public void onSuccess(List<? extends Server> servers, boolean isForced) {
+        public void onSuccess(List<? extends Server> servers, ServersDiff diff, boolean isForced) {
+            loading.set(false);
+            navigator.onGetServers();
+        }
+
+        @Override
+        public void onUnchanged(boolean isForced) {
             loading.set(false);
             navigator.onGetServers();
         }
@@ -0,0 +1,226 @@
+package net.ivpn.core.vpn
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.os.SystemClock
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import net.ivpn.core.common.dagger.ApplicationScope
+import org.slf4j.LoggerFactory
+import javax.inject.Inject
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Traffic counters of the active tunnel, fed by OpenVPN BYTECOUNT notifications
+ * or sampled from the WireGuard UAPI config.
+ * Throughput is averaged over the last [WINDOW_SIZE] samples.
+ */
+@ApplicationScope
+class TunnelStatsProvider @Inject constructor() {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(TunnelStatsProvider::class.java)
+
+        private const val WINDOW_SIZE = 5
+        private const val MIN_SAMPLING_INTERVAL = 1000L
+        private const val MAX_SAMPLING_INTERVAL = 8000L
+
+        private const val RX_BYTES = "rx_bytes="
+        private const val TX_BYTES = "tx_bytes="
+        private const val LAST_HANDSHAKE_TIME_SEC = "last_handshake_time_sec="
+    }
+
+    data class TunnelStats(
+            val rxBytes: Long,
+            val txBytes: Long,
+            val rxBytesPerSecond: Long,
+            val txBytesPerSecond: Long,
+            //Wall clock time of the last WireGuard handshake, null for OpenVPN or before the first one
+            val lastHandshakeMillis: Long?,
+            //SystemClock.elapsedRealtime() of the sample, 0 if there is no active tunnel
+            val sampleTime: Long
+    ) {
+        val handshakeAgeMillis: Long?
+            get() = lastHandshakeMillis?.let { System.currentTimeMillis() - it }
+
+        companion object {
+            val EMPTY = TunnelStats(0, 0, 0, 0, null, 0)
+        }
+    }
+
+    interface UapiConfigSource {
+        /**
+         * Returns the UAPI config of the running tunnel or null if it's down.
+         */
+        fun getConfig(): String?
+    }
+
+    private val _stats = MutableStateFlow(TunnelStats.EMPTY)
+    val stats: StateFlow<TunnelStats> = _stats
+
+    private val lock = Any()
+    private val sampleTimes = LongArray(WINDOW_SIZE)
+    private val rxSamples = LongArray(WINDOW_SIZE)
+    private val txSamples = LongArray(WINDOW_SIZE)
+    private var samplesCount = 0
+    private var nextSample = 0
+    //Incremented whenever sampling is started or stopped, so in-flight samples of a closed tunnel are dropped
+    private var samplingGeneration = 0
+
+    private val scope = CoroutineScope(Dispatchers.IO)
+    private var samplingJob: Job? = null
+
+    fun onByteCount(rxBytes: Long, txBytes: Long) {
+        synchronized(lock) {
+            record(rxBytes, txBytes, null)
+        }
+    }
+
+    /**
+     * Polls [source] until it reports that the tunnel is down or [stop] is called.
+     * Sampling is done every second while the traffic is flowing and somebody collects [stats],
+     * otherwise the interval is doubled up to [MAX_SAMPLING_INTERVAL].
+     */
+    fun startWireGuardSampling(source: UapiConfigSource) {
+        synchronized(lock) {
+            samplingJob?.cancel()
+            resetWindow()
+            val generation = ++samplingGeneration
+            samplingJob = scope.launch {
+                var interval = MIN_SAMPLING_INTERVAL
+                while (isActive) {
+                    val config = source.getConfig() ?: break
+                    val previous = _stats.value
+                    val current = parseUapiConfig(config, generation) ?: break
+                    val isIdle = current.rxBytes == previous.rxBytes && current.txBytes == previous.txBytes
+                    interval = if (isIdle || _stats.subscriptionCount.value == 0) {
+                        min(interval * 2, MAX_SAMPLING_INTERVAL)
+                    } else {
+                        MIN_SAMPLING_INTERVAL
+                    }
+                    delay(interval)
+                }
+            }
+        }
+    }
+
+    fun stop() {
+        synchronized(lock) {
+            samplingJob?.cancel()
+            samplingJob = null
+            samplingGeneration++
+            resetWindow()
+            _stats.value = TunnelStats.EMPTY
+        }
+    }
+
+    /**
+     * Returns null and drops the sample if sampling was stopped or restarted since [generation].
+     */
+    private fun parseUapiConfig(config: String, generation: Int): TunnelStats? {
+        var rxBytes = 0L
+        var txBytes = 0L
+        var lastHandshakeSec = 0L
+        var lineStart = 0
+        while (lineStart < config.length) {
+            var lineEnd = config.indexOf('\n', lineStart)
+            if (lineEnd == -1) {
+                lineEnd = config.length
+            }
+            //Counters are reported per peer, the tunnel total is their sum
+            when {
+                config.startsWith(RX_BYTES, lineStart) ->
+                    rxBytes += parseLong(config, lineStart + RX_BYTES.length, lineEnd)
+                config.startsWith(TX_BYTES, lineStart) ->
+                    txBytes += parseLong(config, lineStart + TX_BYTES.length, lineEnd)
+                config.startsWith(LAST_HANDSHAKE_TIME_SEC, lineStart) ->
+                    lastHandshakeSec = max(lastHandshakeSec,
+                            parseLong(config, lineStart + LAST_HANDSHAKE_TIME_SEC.length, lineEnd))
+            }
+            lineStart = lineEnd + 1
+        }
+        synchronized(lock) {
+            if (generation != samplingGeneration) {
+                return null
+            }
+            return record(rxBytes, txBytes, if (lastHandshakeSec > 0) lastHandshakeSec * 1000 else null)
+        }
+    }
+
+    private fun parseLong(value: String, start: Int, end: Int): Long {
+        var result = 0L
+        for (i in start until end) {
+            val digit = value[i] - '0'
+            if (digit < 0 || digit > 9) {
+                break
+            }
+            result = result * 10 + digit
+        }
+        return result
+    }
+
+    /**
+     * Should be called under [lock].
+     */
+    private fun record(rxBytes: Long, txBytes: Long, lastHandshakeMillis: Long?): TunnelStats {
+        val now = SystemClock.elapsedRealtime()
+        if (samplesCount > 0) {
+            val last = (nextSample + WINDOW_SIZE - 1) % WINDOW_SIZE
+            if (rxBytes < rxSamples[last] || txBytes < txSamples[last]) {
+                //Counters were reset by a reconnection
+                LOGGER.info("Tunnel counters were reset")
+                resetWindow()
+            }
+        }
+        sampleTimes[nextSample] = now
+        rxSamples[nextSample] = rxBytes
+        txSamples[nextSample] = txBytes
+        nextSample = (nextSample + 1) % WINDOW_SIZE
+        samplesCount = min(samplesCount + 1, WINDOW_SIZE)
+
+        val oldest = (nextSample + WINDOW_SIZE - samplesCount) % WINDOW_SIZE
+        val duration = now - sampleTimes[oldest]
+        val stats = TunnelStats(
+                rxBytes,
+                txBytes,
+                if (duration > 0) (rxBytes - rxSamples[oldest]) * 1000 / duration else 0,
+                if (duration > 0) (txBytes - txSamples[oldest]) * 1000 / duration else 0,
+                lastHandshakeMillis,
+                now
+        )
+        _stats.value = stats
+        return stats
+    }
+
+    private fun resetWindow() {
+        samplesCount = 0
+        nextSample = 0
+    }
+}
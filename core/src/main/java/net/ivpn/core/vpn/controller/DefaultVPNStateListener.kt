@@ -43,6 +43,9 @@ open class DefaultVPNStateListener: VpnStateListener {
     override fun notifyServerAsFastest(server: Server) {
     }
 
+    override fun notifyServersAsFastestRoute(entryServer: Server, exitServer: Server) {
+    }
+
     override fun notifyServerAsRandom(server: Server, serverType: ServerType) {
     }
 
@@ -31,12 +31,13 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import net.ivpn.core.IVPNApplication;
 import net.ivpn.core.common.multihop.MultiHopController;
+import net.ivpn.core.common.multihop.MultiHopPlanner;
+import net.ivpn.core.common.pinger.HostLatencyStore;
+import net.ivpn.core.common.pinger.OnFastestServerDetectorListener;
 import net.ivpn.core.common.pinger.PingProvider;
 import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.common.prefs.Settings;
@@ -48,6 +49,7 @@ import net.ivpn.core.vpn.OnVpnStatusChangedListener;
 import net.ivpn.core.vpn.ServiceConstants;
 import net.ivpn.core.vpn.VPNConnectionState;
 import net.ivpn.core.vpn.openvpn.IVPNService;
+import net.ivpn.core.vpn.openvpn.PortSelector;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,7 +61,6 @@ import javax.inject.Inject;
 
 import de.blinkt.openvpn.core.ConnectionStatus;
 import de.blinkt.openvpn.core.VpnStatus;
-import kotlin.jvm.Volatile;
 
 import static net.ivpn.core.v2.connect.createSession.ConnectionState.CONNECTED;
 import static net.ivpn.core.v2.connect.createSession.ConnectionState.CONNECTING;
@@ -87,6 +88,15 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
     private DomainResolver domainResolver;
     private BroadcastReceiver connectionStatusReceiver;
     private MultiHopController multiHopController;
+    private MultiHopPlanner multiHopPlanner;
+    private TunnelHealthMonitor healthMonitor;
+    private PortSelector portSelector;
+    private HostLatencyStore hostLatencyStore;
+
+    //Incremented for every port selection, so a cancelled one doesn't start the VPN
+    private int portSelectionId;
+    private boolean isSelectingPort;
+    private boolean isPortRetry;
 
     private Handler handler;
     private Runnable commonRunnable = () -> {
@@ -112,29 +122,25 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         reset();
     };
 
-    @Volatile
-    private Server _fastestServer = null;
-    private final Observer<Server> fastestServerObserver = server -> {
-        _fastestServer = server;
-    };
-    private final LiveData<Server> fastestServer;
-
     @Inject
     OpenVpnBehavior(ServersRepository serversRepository,
                     Settings settings, PingProvider pingProvider,
-                    DomainResolver domainResolver, MultiHopController multiHopController) {
+                    DomainResolver domainResolver, MultiHopController multiHopController,
+                    MultiHopPlanner multiHopPlanner, TunnelHealthMonitor healthMonitor,
+                    PortSelector portSelector, HostLatencyStore hostLatencyStore) {
         LOGGER.info("OpenVpn behaviour");
         this.serversRepository = serversRepository;
         this.settings = settings;
         this.pingProvider = pingProvider;
         this.domainResolver = domainResolver;
         this.multiHopController = multiHopController;
+        this.multiHopPlanner = multiHopPlanner;
+        this.healthMonitor = healthMonitor;
+        this.portSelector = portSelector;
+        this.hostLatencyStore = hostLatencyStore;
         handler = new Handler(Looper.myLooper());
         listeners.add(pingProvider.getVPNStateListener());
 
-        fastestServer = pingProvider.getFastestServer();
-        fastestServer.observeForever(fastestServerObserver);
-
         init();
     }
 
@@ -199,6 +205,7 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
     public void stop() {
         LOGGER.info("Stop, state = " + state);
         timer.stopTimer();
+        cancelPortSelection();
         state = NOT_CONNECTED;
         sendConnectionState();
         forceStopVpn();
@@ -210,6 +217,8 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         if (state == NOT_CONNECTED || state == PAUSED) {
             if (isFastestServerEnabled() && !multiHopController.isEnabled()) {
                 startConnectWithFastestServer();
+            } else if (isFastestMultiHopRouteEnabled()) {
+                startConnectWithFastestRoute();
             } else {
                 checkRandomServerOptions();
                 startConnectProcess();
@@ -240,10 +249,10 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
     @Override
     public void destroy() {
         LOGGER.info("destroy");
+        healthMonitor.stop();
         stop();
         unregisterReceivers();
         listeners.clear();
-        fastestServer.removeObserver(fastestServerObserver);
     }
 
     @Override
@@ -266,6 +275,8 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         LOGGER.info("Reconnect, state = " + state);
         if (isFastestServerEnabled() && !multiHopController.isEnabled()) {
             startReconnectWithFastestServer();
+        } else if (isFastestMultiHopRouteEnabled()) {
+            startReconnectWithFastestRoute();
         } else {
             checkRandomServerOptions();
             startReconnectProcess();
@@ -340,6 +351,8 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         } else {
             if (isFastestServerEnabled() && !multiHopController.isEnabled()) {
                 startConnectWithFastestServer();
+            } else if (isFastestMultiHopRouteEnabled()) {
+                startConnectWithFastestRoute();
             } else {
                 checkRandomServerOptions();
                 startConnectProcess();
@@ -354,23 +367,20 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
             listener.onFindingFastestServer();
         }
 
-        //ToDo Migrate class to Kotlin and rewrite with coroutines
-        if (_fastestServer != null) {
-            for (VpnStateListener listener : listeners) {
-                listener.notifyServerAsFastest(_fastestServer);
+        pingProvider.findFastestServer(new OnFastestServerDetectorListener() {
+            @Override
+            public void onFastestServerDetected(Server server) {
+                checkFastestServerAndConnect(server);
             }
-            serversRepository.setCurrentServer(ServerType.ENTRY, _fastestServer);
 
-            startConnectProcess();
-        } else {
-            new Handler().postDelayed(this::checkFastestServerAndConnect, 1000);
-        }
+            @Override
+            public void onDefaultServerApplied(Server server) {
+                checkFastestServerAndConnect(server);
+            }
+        });
     }
 
-    private void checkFastestServerAndConnect() {
-        Server serverToConnect = _fastestServer != null ?
-                _fastestServer : serversRepository.getDefaultServer(ServerType.ENTRY);
-
+    private void checkFastestServerAndConnect(Server serverToConnect) {
         for (VpnStateListener listener : listeners) {
             listener.notifyServerAsFastest(serverToConnect);
         }
@@ -385,22 +395,20 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
             listener.onFindingFastestServer();
         }
 
-        if (_fastestServer != null) {
-            for (VpnStateListener listener : listeners) {
-                listener.notifyServerAsFastest(_fastestServer);
+        pingProvider.findFastestServer(new OnFastestServerDetectorListener() {
+            @Override
+            public void onFastestServerDetected(Server server) {
+                checkFastestServerAndReconnect(server);
             }
-            serversRepository.setCurrentServer(ServerType.ENTRY, _fastestServer);
 
-            startReconnectProcess();
-        } else {
-            new Handler().postDelayed(this::checkFastestServerAndReconnect, 1000);
-        }
+            @Override
+            public void onDefaultServerApplied(Server server) {
+                checkFastestServerAndReconnect(server);
+            }
+        });
     }
 
-    private void checkFastestServerAndReconnect() {
-        Server serverToConnect = _fastestServer != null ?
-                _fastestServer : serversRepository.getDefaultServer(ServerType.ENTRY);
-
+    private void checkFastestServerAndReconnect(Server serverToConnect) {
         for (VpnStateListener listener : listeners) {
             listener.notifyServerAsFastest(serverToConnect);
         }
@@ -409,16 +417,82 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         startReconnectProcess();
     }
 
+    private void startConnectWithFastestRoute() {
+        LOGGER.info("startConnectWithFastestRoute: state = " + state);
+        for (VpnStateListener listener : listeners) {
+            listener.onFindingFastestServer();
+        }
+
+        multiHopPlanner.findFastestRoute(new MultiHopPlanner.OnFastestRouteDetectedListener() {
+            @Override
+            public void onFastestRouteDetected(MultiHopPlanner.Route route) {
+                applyFastestRoute(route);
+                startConnectProcess();
+            }
+        });
+    }
+
+    private void startReconnectWithFastestRoute() {
+        LOGGER.info("startReconnectWithFastestRoute: state = " + state);
+        for (VpnStateListener listener : listeners) {
+            listener.onFindingFastestServer();
+        }
+
+        multiHopPlanner.findFastestRoute(new MultiHopPlanner.OnFastestRouteDetectedListener() {
+            @Override
+            public void onFastestRouteDetected(MultiHopPlanner.Route route) {
+                applyFastestRoute(route);
+                startReconnectProcess();
+            }
+        });
+    }
+
+    private void applyFastestRoute(MultiHopPlanner.Route route) {
+        if (route == null) {
+            LOGGER.info("No ping results, keep the selected servers");
+            return;
+        }
+        for (VpnStateListener listener : listeners) {
+            listener.notifyServersAsFastestRoute(route.getEntry(), route.getExit());
+        }
+        serversRepository.setCurrentServer(ServerType.ENTRY, route.getEntry());
+        serversRepository.setCurrentServer(ServerType.EXIT, route.getExit());
+    }
+
     private void startConnectProcess() {
         LOGGER.info("startConnectProcess: state = " + state);
         state = CONNECTING;
         sendConnectionState();
         handler.postDelayed(commonRunnable, COMMON_TIME_OUT);
-        handler.postDelayed(portCheckRunnable, PORT_CHECK_TIME_OUT);
         domainResolver.tryResolveCurrentServerDomain(null);
+        if (isPortRetry) {
+            //Port was already chosen from the last probe after the handshake timeout
+            isPortRetry = false;
+            startVpnOnSelectedPort();
+            return;
+        }
+
+        int selectionId = ++portSelectionId;
+        isSelectingPort = true;
+        portSelector.selectPort(port -> {
+            if (selectionId != portSelectionId || !state.equals(CONNECTING)) {
+                return;
+            }
+            isSelectingPort = false;
+            startVpnOnSelectedPort();
+        });
+    }
+
+    private void startVpnOnSelectedPort() {
+        handler.postDelayed(portCheckRunnable, PORT_CHECK_TIME_OUT);
         startVpn();
     }
 
+    private void cancelPortSelection() {
+        portSelectionId++;
+        isSelectingPort = false;
+    }
+
     private void startReconnectProcess() {
         state = CONNECTING;
         sendConnectionState();
@@ -428,8 +502,32 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         reconnectVpn();
     }
 
+    private void onTunnelStalled() {
+        LOGGER.info("onTunnelStalled: state = " + state);
+        if (!state.equals(CONNECTED)) {
+            return;
+        }
+        // Remotes are ordered by latency on restart, so the stalled one is tried last
+        String remote = VpnStatus.getConnectedRemote();
+        if (remote != null) {
+            LOGGER.info("Marking " + remote + " as unhealthy");
+            hostLatencyStore.markUnhealthy(remote);
+        }
+        startReconnectProcess();
+    }
+
     private void startDisconnectProcess() {
         LOGGER.info("startDisconnectProcess: state = " + state);
+        //A pending port retry must not skip the probe of the next user initiated connection
+        isPortRetry = false;
+        if (isSelectingPort) {
+            //OpenVPN isn't started yet, so there is no status to wait for
+            cancelPortSelection();
+            handler.removeCallbacksAndMessages(null);
+            state = NOT_CONNECTED;
+            sendConnectionState();
+            return;
+        }
         state = DISCONNECTING;
         sendConnectionState();
         stopVpn();
@@ -449,6 +547,8 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
     private void reset() {
         LOGGER.info("Reset");
         handler.removeCallbacksAndMessages(null);
+        cancelPortSelection();
+        isPortRetry = false;
         state = NOT_CONNECTED;
         for (VpnStateListener listener : listeners) {
             listener.onCheckSessionState();
@@ -466,6 +566,7 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
 
         new Handler().postDelayed(() -> {
             selectNextPort();
+            isPortRetry = true;
             performConnectionAction();
         }, 500);
     }
@@ -480,7 +581,7 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
 
     private void selectNextPort() {
         LOGGER.info("selectNextPort");
-        settings.nextPort();
+        portSelector.selectNextPort();
     }
 
     private void onReceiveConnectionStatus(ConnectionStatus status) {
@@ -496,6 +597,8 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
                 state = CONNECTED;
                 sendConnectionState();
                 handler.removeCallbacksAndMessages(null);
+                portSelector.onPortConnected();
+                healthMonitor.start(this::onTunnelStalled);
                 break;
             case UNKNOWN_LEVEL:
             case LEVEL_AUTH_FAILED:
@@ -503,6 +606,7 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
                 onAuthFailed();
                 break;
             case LEVEL_NOTCONNECTED:
+                healthMonitor.stop();
                 behaviourListener.updateVpnConnectionState(VPNConnectionState.DISCONNECTED);
                 if (state.equals(NOT_CONNECTED) || state.equals(CONNECTING) || state.equals(PAUSED)) {
                     return;
@@ -546,6 +650,10 @@ public class OpenVpnBehavior extends VpnBehavior implements OnVpnStatusChangedLi
         return serversRepository.getSettingFastestServer();
     }
 
+    private boolean isFastestMultiHopRouteEnabled() {
+        return multiHopController.isEnabled() && serversRepository.getSettingFastestMultiHopRoute();
+    }
+
     private void checkRandomServerOptions() {
         if (isRandomEntryServerEnabled()) {
             serversRepository.getRandomServerFor(ServerType.ENTRY, getRandomServerSelectionListener());
@@ -0,0 +1,119 @@
+package net.ivpn.core.vpn.controller
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.flow.collect
+import kotlinx.coroutines.launch
+import net.ivpn.core.vpn.TunnelStatsProvider
+import org.slf4j.LoggerFactory
+import javax.inject.Inject
+
+/**
+ * Watches the counters of a connected tunnel and reports it as stalled when traffic is sent
+ * but nothing comes back for [stallWindowMillis], or when WireGuard keeps sending on a session
+ * whose last handshake stays older than the protocol allows for the whole [stallWindowMillis].
+ * Both windows start at the first outbound traffic, so idle periods never count as silence.
+ * Reports at most once per [start], the owner is expected to reconnect and start it again.
+ */
+class TunnelHealthMonitor @Inject constructor(
+        private val tunnelStatsProvider: TunnelStatsProvider
+) {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(TunnelHealthMonitor::class.java)
+
+        private const val DEFAULT_STALL_WINDOW = 30_000L
+        //WireGuard drops session keys 180 seconds after the handshake (REJECT_AFTER_TIME)
+        private const val HANDSHAKE_TIMEOUT = 180_000L
+    }
+
+    interface OnTunnelStalledListener {
+        fun onTunnelStalled()
+    }
+
+    var stallWindowMillis = DEFAULT_STALL_WINDOW
+
+    private val scope = CoroutineScope(Dispatchers.Main)
+    private var job: Job? = null
+
+    fun start(listener: OnTunnelStalledListener) {
+        stop()
+        LOGGER.info("Start monitoring, stall window = $stallWindowMillis ms")
+        job = scope.launch {
+            var lastRxBytes = -1L
+            var lastTxBytes = -1L
+            var lastRxTime = 0L
+            //Time of the first outbound traffic nothing has answered yet, 0 when nothing is pending
+            var unansweredSince = 0L
+            //Time WireGuard started sending on an expired session, 0 when the session is fresh
+            var expiredSince = 0L
+            tunnelStatsProvider.stats.collect { stats ->
+                if (stats.sampleTime == 0L) {
+                    return@collect
+                }
+                if (lastRxBytes == -1L || stats.rxBytes < lastRxBytes) {
+                    //First sample or the counters were reset, start the window from here
+                    lastRxBytes = stats.rxBytes
+                    lastTxBytes = stats.txBytes
+                    lastRxTime = stats.sampleTime
+                    unansweredSince = 0L
+                    expiredSince = 0L
+                    return@collect
+                }
+                val isTxAdvanced = stats.txBytes != lastTxBytes
+                lastTxBytes = stats.txBytes
+                if (stats.rxBytes != lastRxBytes) {
+                    lastRxBytes = stats.rxBytes
+                    lastRxTime = stats.sampleTime
+                    unansweredSince = 0L
+                } else if (isTxAdvanced && unansweredSince == 0L) {
+                    unansweredSince = stats.sampleTime
+                }
+
+                val handshakeAge = stats.handshakeAgeMillis
+                if (handshakeAge == null || handshakeAge <= HANDSHAKE_TIMEOUT) {
+                    expiredSince = 0L
+                } else if (isTxAdvanced && expiredSince == 0L) {
+                    expiredSince = stats.sampleTime
+                }
+
+                val isSilent = unansweredSince != 0L && stats.sampleTime - unansweredSince > stallWindowMillis
+                val isHandshakeExpired = expiredSince != 0L && stats.sampleTime - expiredSince > stallWindowMillis
+                if (isSilent || isHandshakeExpired) {
+                    LOGGER.warn("Tunnel is stalled: no inbound traffic for ${stats.sampleTime - lastRxTime} ms, " +
+                            "handshake age = $handshakeAge ms")
+                    stop()
+                    listener.onTunnelStalled()
+                }
+            }
+        }
+    }
+
+    fun stop() {
+        job?.cancel()
+        job = null
+    }
+}
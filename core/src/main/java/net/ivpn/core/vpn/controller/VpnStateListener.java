@@ -52,6 +52,8 @@ public interface VpnStateListener {
 
     void notifyServerAsFastest(Server server);
 
+    void notifyServersAsFastestRoute(Server entryServer, Server exitServer);
+
     void notifyServerAsRandom(Server server, ServerType serverType);
 
     void notifyNoNetworkConnection();
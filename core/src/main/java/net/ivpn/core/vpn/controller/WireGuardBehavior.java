@@ -27,10 +27,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
-import android.os.Handler;
 
-import androidx.lifecycle.LiveData;
-import androidx.lifecycle.Observer;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.wireguard.android.backend.WireGuardUiService;
@@ -39,6 +36,8 @@ import com.wireguard.android.model.Tunnel;
 import net.ivpn.core.IVPNApplication;
 import net.ivpn.core.common.Mapper;
 import net.ivpn.core.common.multihop.MultiHopController;
+import net.ivpn.core.common.multihop.MultiHopPlanner;
+import net.ivpn.core.common.pinger.OnFastestServerDetectorListener;
 import net.ivpn.core.common.pinger.PingProvider;
 import net.ivpn.core.rest.data.model.ServerType;
 import net.ivpn.core.common.prefs.ServersRepository;
@@ -62,8 +61,6 @@ import java.util.List;
 
 import javax.inject.Inject;
 
-import kotlin.jvm.Volatile;
-
 import static net.ivpn.core.v2.connect.createSession.ConnectionState.CONNECTED;
 import static net.ivpn.core.v2.connect.createSession.ConnectionState.CONNECTING;
 import static net.ivpn.core.v2.connect.createSession.ConnectionState.DISCONNECTING;
@@ -85,13 +82,9 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
     private ConfigManager configManager;
     private PingProvider pingProvider;
     private MultiHopController multiHopController;
+    private MultiHopPlanner multiHopPlanner;
+    private TunnelHealthMonitor healthMonitor;
 
-    @Volatile
-    private Server _fastestServer = null;
-    private Observer<Server> fastestServerObserver = server -> {
-        _fastestServer = server;
-    };
-    private LiveData<Server> fastestServer;
     private long pauseDuration = 0;
 
     @Inject
@@ -99,20 +92,21 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
                       ServersRepository serversRepository,
                       ConfigManager configManager,
                       PingProvider pingProvider,
-                      MultiHopController multiHopController) {
+                      MultiHopController multiHopController,
+                      MultiHopPlanner multiHopPlanner,
+                      TunnelHealthMonitor healthMonitor) {
         LOGGER.info("Creating");
         keyController = wireGuardKeyController;
         this.serversRepository = serversRepository;
         this.configManager = configManager;
         this.pingProvider = pingProvider;
         this.multiHopController = multiHopController;
+        this.multiHopPlanner = multiHopPlanner;
+        this.healthMonitor = healthMonitor;
 
         configManager.setListener(this);
         listeners.add(pingProvider.getVPNStateListener());
 
-        fastestServer = pingProvider.getFastestServer();
-        fastestServer.observeForever(fastestServerObserver);
-
         init();
     }
 
@@ -181,10 +175,10 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
     public void destroy() {
         LOGGER.info("destroy, remove all registers and listeners");
         configManager.setListener(null);
+        healthMonitor.stop();
         unregisterReceivers();
         stop();
         listeners.clear();
-        fastestServer.removeObserver(fastestServerObserver);
     }
 
     @Override
@@ -252,22 +246,20 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
             listener.onFindingFastestServer();
         }
 
-        if (_fastestServer != null) {
-            for (VpnStateListener listener : listeners) {
-                listener.notifyServerAsFastest(_fastestServer);
+        pingProvider.findFastestServer(new OnFastestServerDetectorListener() {
+            @Override
+            public void onFastestServerDetected(Server server) {
+                checkFastestServerAndConnect(server);
             }
-            serversRepository.setCurrentServer(ServerType.ENTRY, _fastestServer);
 
-            connect();
-        } else {
-            new Handler().postDelayed(this::checkFastestServerAndConnect, 1000);
-        }
+            @Override
+            public void onDefaultServerApplied(Server server) {
+                checkFastestServerAndConnect(server);
+            }
+        });
     }
 
-    private void checkFastestServerAndConnect() {
-        Server serverToConnect = _fastestServer != null ?
-                _fastestServer : serversRepository.getDefaultServer(ServerType.ENTRY);
-
+    private void checkFastestServerAndConnect(Server serverToConnect) {
         for (VpnStateListener listener : listeners) {
             listener.notifyServerAsFastest(serverToConnect);
         }
@@ -276,6 +268,34 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
         connect();
     }
 
+    private void findFastestRouteAndConnect() {
+        LOGGER.info("findFastestRouteAndConnect: state = " + state);
+        for (VpnStateListener listener : listeners) {
+            listener.onFindingFastestServer();
+        }
+
+        multiHopPlanner.findFastestRoute(new MultiHopPlanner.OnFastestRouteDetectedListener() {
+            @Override
+            public void onFastestRouteDetected(MultiHopPlanner.Route route) {
+                checkFastestRouteAndConnect(route);
+            }
+        });
+    }
+
+    private void checkFastestRouteAndConnect(MultiHopPlanner.Route route) {
+        if (route != null) {
+            for (VpnStateListener listener : listeners) {
+                listener.notifyServersAsFastestRoute(route.getEntry(), route.getExit());
+            }
+            serversRepository.setCurrentServer(ServerType.ENTRY, route.getEntry());
+            serversRepository.setCurrentServer(ServerType.EXIT, route.getExit());
+        } else {
+            LOGGER.info("No ping results, keep the selected servers");
+        }
+
+        connect();
+    }
+
     @Override
     public void resume() {
         LOGGER.info("Resume, state = " + state);
@@ -306,6 +326,8 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
         System.out.println("RANDOM: isFastestServerEnabled = " + isFastestServerEnabled());
         if (isFastestServerEnabled() && !multiHopController.isEnabled()) {
             findFastestServerAndConnect();
+        } else if (isFastestMultiHopRouteEnabled()) {
+            findFastestRouteAndConnect();
         } else {
             checkRandomServerOptions();
             connect();
@@ -330,6 +352,10 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
         return serversRepository.getSettingFastestServer();
     }
 
+    private boolean isFastestMultiHopRouteEnabled() {
+        return multiHopController.isEnabled() && serversRepository.getSettingFastestMultiHopRoute();
+    }
+
     @Override
     public void disconnect() {
         LOGGER.info("Disconnect, state = " + state);
@@ -385,6 +411,15 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
         startConnecting();
     }
 
+    private void onTunnelStalled() {
+        LOGGER.info("onTunnelStalled: state = " + state);
+        if (state != CONNECTED) {
+            return;
+        }
+        configManager.onTunnelStalled();
+        reconnect();
+    }
+
     private void stopWireGuard() {
         configManager.stopWireGuard();
     }
@@ -559,7 +594,9 @@ public class WireGuardBehavior extends VpnBehavior implements ServiceConstants,
         if (newState == Tunnel.State.UP) {
             setState(CONNECTED);
             behaviourListener.updateVpnConnectionState(VPNConnectionState.CONNECTED);
+            healthMonitor.start(this::onTunnelStalled);
         } else {
+            healthMonitor.stop();
             if (state == PAUSING) {
                 setState(PAUSED);
             } else {
@@ -30,6 +30,7 @@ import net.ivpn.core.common.prefs.ServersRepository;
 import net.ivpn.core.common.prefs.Settings;
 import net.ivpn.core.common.utils.DateUtil;
 import net.ivpn.core.common.utils.KemAlgorithm;
+import net.ivpn.core.common.utils.KeyMaterialPool;
 import net.ivpn.core.rest.HttpClientFactory;
 import net.ivpn.core.rest.RequestListener;
 import net.ivpn.core.rest.Responses;
@@ -53,16 +54,20 @@ public class WireGuardKeyController {
     private EncryptedUserPreference userPreference;
     private HttpClientFactory clientFactory;
     private ServersRepository serversRepository;
+    private KeyMaterialPool keyMaterialPool;
 
     private Request<AddWireGuardPublicKeyResponse> addKeyRequest = null;
 
     @Inject
     public WireGuardKeyController(Settings settings, EncryptedUserPreference userPreference,
-                                  HttpClientFactory clientFactory, ServersRepository serversRepository) {
+                                  HttpClientFactory clientFactory, ServersRepository serversRepository,
+                                  KeyMaterialPool keyMaterialPool) {
         this.settings = settings;
         this.userPreference = userPreference;
         this.clientFactory = clientFactory;
         this.serversRepository = serversRepository;
+        this.keyMaterialPool = keyMaterialPool;
+        keyMaterialPool.warmUp();
     }
 
     public void setKeysEventsListener(WireGuardKeysEventsListener keysEventsListener) {
@@ -135,9 +140,9 @@ public class WireGuardKeyController {
     }
 
     private void setKey(boolean provideOldKey) {
-        Keypair keys = settings.generateWireGuardKeys();
+        Keypair keys = keyMaterialPool.takeKeypair();
         String oldPublicKey = settings.getWireGuardPublicKey();
-        KEM kem = new KEM();
+        KEM kem = keyMaterialPool.takeKem();
         String kemPublicKey = kem.getPublicKey(KemAlgorithm.Kyber1024);
 
         AddWireGuardPublicKeyRequestBody requestBody;
@@ -157,6 +162,7 @@ public class WireGuardKeyController {
             public void onSuccess(AddWireGuardPublicKeyResponse response) {
                 LOGGER.info("generateKeys onSuccess " + response);
                 if (response == null) {
+                    kem.dispose();
                     keysEventsListener.onKeyGeneratedError(null, null);
                     return;
                 }
@@ -168,10 +174,12 @@ public class WireGuardKeyController {
                         kem.setCipher(KemAlgorithm.Kyber1024, response.getKemCipher1());
                         settings.saveWireGuardPresharedKey(kem.calculatePresharedKey());
                     } else {
+                        kem.dispose();
                         settings.saveWireGuardPresharedKey(null);
                     }
                     keysEventsListener.onKeyGeneratedSuccess();
                 } else {
+                    kem.dispose();
                     keysEventsListener.onKeyGeneratedError(null, null);
                 }
             }
@@ -179,12 +187,14 @@ public class WireGuardKeyController {
             @Override
             public void onError(Throwable throwable) {
                 LOGGER.info("generateKeys onError throwable = " + throwable);
+                kem.dispose();
                 keysEventsListener.onKeyGeneratedError(null, throwable);
             }
 
             @Override
             public void onError(String error) {
                 LOGGER.info("generateKeys error = " + error);
+                kem.dispose();
                 keysEventsListener.onKeyGeneratedError(error, null);
             }
         });
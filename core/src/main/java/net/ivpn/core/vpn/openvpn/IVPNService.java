@@ -53,6 +53,7 @@ import net.ivpn.core.common.utils.DateUtil;
 import net.ivpn.core.v2.MainActivity;
 import net.ivpn.core.v2.timepicker.TimePickerActivity;
 import net.ivpn.core.vpn.ServiceConstants;
+import net.ivpn.core.vpn.TunnelStatsProvider;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -97,6 +98,8 @@ public class IVPNService extends VpnService implements VpnStatus.StateListener,
     ProfileManager profileManager;
     @Inject
     ServiceConfiguration serviceConfiguration;
+    @Inject
+    TunnelStatsProvider tunnelStatsProvider;
 
     private int notificationId;
     private long lastTick;
@@ -267,6 +270,7 @@ public class IVPNService extends VpnService implements VpnStatus.StateListener,
         }
         unregisterDeviceStateReceiver();
         openVPNThread = null;
+        tunnelStatsProvider.stop();
         LOGGER.info("endVpnService: starting");
         cancelTimer();
         if (!starting) {
@@ -315,7 +319,7 @@ public class IVPNService extends VpnService implements VpnStatus.StateListener,
         LOGGER.info("showNotification: status = " + status);
         int icon = R.drawable.ic_stat_name;
         String title;
-        boolean isMultiHopEnabled = settings.isMultiHopEnabled();
+        boolean isMultiHopEnabled = settings.getSnapshot().isMultiHopEnabled();
 
         if (isPaused) {
             title = getString(R.string.notification_paused);
@@ -470,7 +474,7 @@ public class IVPNService extends VpnService implements VpnStatus.StateListener,
 
         try {
             LOGGER.info("startOpenVPN: profile " + profile.getName());
-            profile.writeConfigFile(this);
+            profileManager.writeConfigFile(profile, this);
         } catch (IOException e) {
             LOGGER.error("Error writing config file", e);
             endVpnService();
@@ -658,6 +662,11 @@ public class IVPNService extends VpnService implements VpnStatus.StateListener,
         return management;
     }
 
+    @Override
+    public void onByteCount(long in, long out) {
+        tunnelStatsProvider.onByteCount(in, out);
+    }
+
     @Override
     public String getTunReopenStatus() {
         return serviceConfiguration.getTunReopenStatus();
@@ -0,0 +1,365 @@
+package net.ivpn.core.vpn.openvpn;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import androidx.annotation.Nullable;
+
+import net.ivpn.core.rest.data.model.Port;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Checks which OpenVPN ports of a gateway are reachable from the current network.
+ * <p>
+ * Every port gets the first packet of an OpenVPN session (P_CONTROL_HARD_RESET_CLIENT_V2),
+ * so ports which are open but filtered by protocol inspection are detected as well.
+ * A port is reachable as soon as the server answers. When the profile uses tls-auth
+ * the packet is signed with the static key, otherwise the server drops it silently.
+ * All probes are multiplexed on the calling thread, UDP probes are resent every
+ * {@link #RESEND_INTERVAL_MILLIS} until the timeout passes.
+ */
+public class PortProber {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PortProber.class);
+
+    private static final long RESEND_INTERVAL_MILLIS = 700;
+    private static final int REPLY_BUFFER_SIZE = 1500;
+
+    private static final byte P_CONTROL_HARD_RESET_CLIENT_V2 = 7;
+    private static final int P_OPCODE_SHIFT = 3;
+
+    private static final String HMAC_ALGORITHM = "HmacSHA1";
+    private static final int STATIC_KEY_SIZE = 256;
+    private static final int STATIC_KEY_SLOT_SIZE = 64;
+    private static final int HMAC_KEY_SIZE = 20;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int timeOutMillis;
+    @Nullable
+    private final byte[] hmacKey;
+
+    public PortProber(int timeOutMillis, @Nullable byte[] hmacKey) {
+        if (timeOutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout should be greater than 0");
+        }
+        this.timeOutMillis = timeOutMillis;
+        this.hmacKey = hmacKey;
+    }
+
+    public interface OnPortReachableListener {
+        void onPortReachable(Port port, long rttNanos);
+    }
+
+    /**
+     * Probes all ports and blocks until every port either answered or failed, or the timeout passed.
+     * The listener is called on the calling thread for every port as soon as it answers.
+     *
+     * @return reachable ports in the order they answered
+     */
+    public List<Port> probe(InetAddress address, List<Port> ports, OnPortReachableListener listener) {
+        List<Port> reachable = new ArrayList<>();
+        if (ports.isEmpty()) {
+            return reachable;
+        }
+
+        Selector selector;
+        try {
+            selector = Selector.open();
+        } catch (IOException exception) {
+            LOGGER.error("Unable to start port probes", exception);
+            return reachable;
+        }
+
+        List<Probe> probes = new ArrayList<>(ports.size());
+        long start = System.nanoTime();
+        try {
+            int pending = 0;
+            for (Port port : ports) {
+                Probe probe = new Probe(port);
+                probes.add(probe);
+                try {
+                    probe.open(selector, new InetSocketAddress(address, port.getPortNumber()));
+                    pending++;
+                } catch (IOException exception) {
+                    LOGGER.debug("Unable to probe " + port.toThumbnail() + ": " + exception.getMessage());
+                    probe.close();
+                }
+            }
+
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeOutMillis);
+            long resendInterval = TimeUnit.MILLISECONDS.toNanos(RESEND_INTERVAL_MILLIS);
+            long nextResend = start + resendInterval;
+            ByteBuffer reply = ByteBuffer.allocate(REPLY_BUFFER_SIZE);
+            while (pending > 0) {
+                long now = System.nanoTime();
+                if (now >= deadline) {
+                    break;
+                }
+                if (now >= nextResend) {
+                    for (Probe probe : probes) {
+                        probe.resend();
+                    }
+                    nextResend += resendInterval;
+                    continue;
+                }
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(Math.min(deadline, nextResend) - now)));
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Probe probe = (Probe) key.attachment();
+                    boolean isReplied;
+                    try {
+                        isReplied = probe.onReady(key, reply);
+                    } catch (IOException exception) {
+                        LOGGER.debug(probe.port.toThumbnail() + " is not reachable: " + exception.getMessage());
+                        probe.close();
+                        pending--;
+                        continue;
+                    }
+                    if (isReplied) {
+                        long rtt = System.nanoTime() - start;
+                        probe.close();
+                        pending--;
+                        reachable.add(probe.port);
+                        listener.onPortReachable(probe.port, rtt);
+                    }
+                }
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Port probes were interrupted", exception);
+        } finally {
+            for (Probe probe : probes) {
+                probe.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+        LOGGER.info("Probed " + ports.size() + " ports in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + reachable.size() + " reachable");
+        return reachable;
+    }
+
+    /**
+     * Reads the key which signs packets sent by the client from a tls-auth static key.
+     *
+     * @param staticKey content of the static key file, may be embedded
+     * @param direction key-direction of the profile, null if the key is bidirectional
+     * @return HMAC key or null if the static key can't be parsed
+     */
+    @Nullable
+    static byte[] readTlsAuthHmacKey(@Nullable String staticKey, @Nullable String direction) {
+        if (staticKey == null) {
+            return null;
+        }
+        if (VpnProfile.isEmbedded(staticKey)) {
+            staticKey = VpnProfile.getEmbeddedContent(staticKey);
+        }
+        StringBuilder hex = new StringBuilder(STATIC_KEY_SIZE * 2);
+        for (String line : staticKey.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#") || line.startsWith("-----")) {
+                continue;
+            }
+            hex.append(line);
+        }
+        if (hex.length() != STATIC_KEY_SIZE * 2) {
+            return null;
+        }
+
+        byte[] key = new byte[STATIC_KEY_SIZE];
+        for (int i = 0; i < key.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            key[i] = (byte) ((high << 4) | low);
+        }
+        // The static key holds two cipher/HMAC slot pairs. Direction 1 signs with the second
+        // HMAC slot, direction 0 and bidirectional keys sign with the first one.
+        int offset = "1".equals(direction) ? 3 * STATIC_KEY_SLOT_SIZE : STATIC_KEY_SLOT_SIZE;
+        byte[] hmacKey = new byte[HMAC_KEY_SIZE];
+        System.arraycopy(key, offset, hmacKey, 0, HMAC_KEY_SIZE);
+        return hmacKey;
+    }
+
+    private byte[] buildHardReset(boolean isTcp) {
+        byte opcode = (byte) (P_CONTROL_HARD_RESET_CLIENT_V2 << P_OPCODE_SHIFT);
+        long sessionId = RANDOM.nextLong();
+        int time = (int) TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        byte[] hmac = sign(opcode, sessionId, time);
+
+        int length = 1 + 8 + 1 + 4;
+        if (hmac != null) {
+            length += hmac.length + 4 + 4;
+        }
+        ByteBuffer packet = ByteBuffer.allocate(length + (isTcp ? 2 : 0));
+        if (isTcp) {
+            packet.putShort((short) length);
+        }
+        packet.put(opcode);
+        packet.putLong(sessionId);
+        if (hmac != null) {
+            packet.put(hmac);
+            packet.putInt(1);
+            packet.putInt(time);
+        }
+        // Empty ack array and message id 0
+        packet.put((byte) 0);
+        packet.putInt(0);
+        return packet.array();
+    }
+
+    /**
+     * The HMAC covers the replay protection fields first and then the rest of the packet.
+     */
+    @Nullable
+    private byte[] sign(byte opcode, long sessionId, int time) {
+        if (hmacKey == null) {
+            return null;
+        }
+        ByteBuffer signed = ByteBuffer.allocate(4 + 4 + 1 + 8 + 1 + 4);
+        signed.putInt(1);
+        signed.putInt(time);
+        signed.put(opcode);
+        signed.putLong(sessionId);
+        signed.put((byte) 0);
+        signed.putInt(0);
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(new SecretKeySpec(hmacKey, HMAC_ALGORITHM));
+            return mac.doFinal(signed.array());
+        } catch (GeneralSecurityException exception) {
+            LOGGER.error("Unable to sign probe", exception);
+            return null;
+        }
+    }
+
+    private final class Probe {
+        final Port port;
+        private SelectableChannel channel;
+        private ByteBuffer packet;
+        private boolean isClosed;
+
+        Probe(Port port) {
+            this.port = port;
+        }
+
+        void open(Selector selector, InetSocketAddress target) throws IOException {
+            packet = ByteBuffer.wrap(buildHardReset(!port.isUDP()));
+            if (port.isUDP()) {
+                DatagramChannel datagram = DatagramChannel.open();
+                channel = datagram;
+                datagram.configureBlocking(false);
+                datagram.connect(target);
+                datagram.write(packet.duplicate());
+                datagram.register(selector, SelectionKey.OP_READ, this);
+            } else {
+                SocketChannel socket = SocketChannel.open();
+                channel = socket;
+                socket.configureBlocking(false);
+                if (socket.connect(target)) {
+                    socket.write(packet.duplicate());
+                    socket.register(selector, SelectionKey.OP_READ, this);
+                } else {
+                    socket.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+            }
+        }
+
+        void resend() {
+            if (isClosed || !(channel instanceof DatagramChannel)) {
+                return;
+            }
+            try {
+                ((DatagramChannel) channel).write(packet.duplicate());
+            } catch (IOException exception) {
+                LOGGER.debug("Unable to resend probe to " + port.toThumbnail() + ": " + exception.getMessage());
+            }
+        }
+
+        /**
+         * @return true once the server answered
+         * @throws IOException if the port is refused or the connection is closed
+         */
+        boolean onReady(SelectionKey key, ByteBuffer reply) throws IOException {
+            if (key.isConnectable()) {
+                SocketChannel socket = (SocketChannel) channel;
+                socket.finishConnect();
+                socket.write(packet.duplicate());
+                key.interestOps(SelectionKey.OP_READ);
+                return false;
+            }
+            if (!key.isReadable()) {
+                return false;
+            }
+            reply.clear();
+            int read = channel instanceof DatagramChannel
+                    ? ((DatagramChannel) channel).read(reply)
+                    : ((SocketChannel) channel).read(reply);
+            if (read < 0) {
+                throw new IOException("Connection closed by the server");
+            }
+            return read > 0;
+        }
+
+        void close() {
+            if (isClosed || channel == null) {
+                isClosed = true;
+                return;
+            }
+            isClosed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
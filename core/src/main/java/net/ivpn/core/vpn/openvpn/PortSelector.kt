@@ -0,0 +1,218 @@
+package net.ivpn.core.vpn.openvpn
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.content.Context
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import net.ivpn.core.common.Mapper
+import net.ivpn.core.common.dagger.ApplicationScope
+import net.ivpn.core.common.multihop.MultiHopController
+import net.ivpn.core.common.prefs.Preference
+import net.ivpn.core.common.prefs.ServersRepository
+import net.ivpn.core.common.prefs.Settings
+import net.ivpn.core.common.utils.NetworkUtil
+import net.ivpn.core.rest.data.model.Port
+import net.ivpn.core.rest.data.model.ServerType
+import net.ivpn.core.vpn.model.NetworkSource
+import org.slf4j.LoggerFactory
+import java.net.InetAddress
+import javax.inject.Inject
+
+/**
+ * Picks the OpenVPN port before connecting instead of waiting for a handshake timeout
+ * on a blocked port. All configured ports are probed in parallel against the entry gateway
+ * and the first one which answers is used. The answer order is kept per network,
+ * so a port which failed the handshake is skipped next time on the same network.
+ */
+@ApplicationScope
+class PortSelector @Inject constructor(
+        context: Context,
+        private val settings: Settings,
+        private val serversRepository: ServersRepository,
+        private val multiHopController: MultiHopController,
+        private val profileManager: ProfileManager,
+        private val preference: Preference
+) {
+
+    companion object {
+        private val LOGGER = LoggerFactory.getLogger(PortSelector::class.java)
+
+        private const val PROBE_TIME_OUT = 2500
+
+        private const val RANKING_KEY = "RANKING_"
+        private const val FAILED_KEY = "FAILED_"
+        private const val UNKNOWN_WIFI = "WIFI"
+        private const val MOBILE_DATA = "MOBILE_DATA"
+
+        //Ports which are commonly allowed by restrictive networks, probed if a port range includes them
+        private val WELL_KNOWN_PORTS = listOf(443, 80, 53, 1194, 8080)
+    }
+
+    interface OnPortSelectedListener {
+        /**
+         * Called on the main thread, [port] is null if the current port should be kept.
+         */
+        fun onPortSelected(port: Port?)
+    }
+
+    private val context = context.applicationContext
+    private val scope = CoroutineScope(Dispatchers.IO)
+
+    /**
+     * Probes the candidate ports and stores the first reachable one as the current OpenVPN port.
+     * Ports which failed the handshake on this network are used only if nothing else answers.
+     */
+    fun selectPort(listener: OnPortSelectedListener) {
+        val server = serversRepository.getCurrentServer(ServerType.ENTRY)
+        val address = server?.ipAddresses?.firstOrNull() ?: server?.ipAddress
+        //Multi-Hop connects to the port of the exit server, there is nothing to choose from
+        if (multiHopController.isReadyToUse() || address.isNullOrEmpty()) {
+            listener.onPortSelected(null)
+            return
+        }
+
+        val network = getNetworkKey()
+        val candidates = getCandidates()
+        val failed = network?.let { getPorts(FAILED_KEY + it) } ?: emptyList()
+        val hmacKey = profileManager.tlsAuthHmacKey
+        scope.launch {
+            var selected: Port? = null
+            val reachable = try {
+                PortProber(PROBE_TIME_OUT, hmacKey).probe(InetAddress.getByName(address), candidates) { port, _ ->
+                    if (selected == null && !failed.contains(port)) {
+                        selected = port
+                        deliver(port, listener)
+                    }
+                }
+            } catch (exception: Exception) {
+                LOGGER.error("Unable to probe ports", exception)
+                emptyList<Port>()
+            }
+            network?.let { putPorts(RANKING_KEY + it, reachable) }
+            if (selected == null) {
+                deliver(reachable.firstOrNull(), listener)
+            }
+        }
+    }
+
+    /**
+     * Called when the handshake on the current port timed out. Moves to the next port
+     * which answered the last probe on this network, or to the next configured port.
+     */
+    fun selectNextPort() {
+        val current = settings.openVpnPort
+        val network = getNetworkKey()
+        if (network == null) {
+            settings.nextPort()
+            return
+        }
+
+        val failed = getPorts(FAILED_KEY + network).toMutableList()
+        if (!failed.contains(current)) {
+            failed.add(current)
+            putPorts(FAILED_KEY + network, failed)
+        }
+        val next = getPorts(RANKING_KEY + network).firstOrNull { !failed.contains(it) }
+        if (next != null) {
+            LOGGER.info("Port ${current.toThumbnail()} failed, switching to ${next.toThumbnail()}")
+            settings.openVpnPort = next
+        } else {
+            settings.nextPort()
+        }
+    }
+
+    fun onPortConnected() {
+        val network = getNetworkKey() ?: return
+        val current = settings.openVpnPort
+        val failed = getPorts(FAILED_KEY + network)
+        if (failed.contains(current)) {
+            putPorts(FAILED_KEY + network, failed.filter { it != current })
+        }
+    }
+
+    private fun deliver(port: Port?, listener: OnPortSelectedListener) {
+        scope.launch(Dispatchers.Main) {
+            if (port != null && port != settings.openVpnPort) {
+                LOGGER.info("Selected port ${port.toThumbnail()}")
+                settings.openVpnPort = port
+            }
+            listener.onPortSelected(port)
+        }
+    }
+
+    /**
+     * Configured and custom ports with the current one first. Port ranges are too wide
+     * to probe completely, so only their lower bound and well-known ports inside are tried.
+     */
+    private fun getCandidates(): List<Port> {
+        val candidates = ArrayList<Port>()
+        fun add(port: Port) {
+            //Port doesn't override hashCode, so distinct() can't be used
+            if (!candidates.contains(port)) {
+                candidates.add(port)
+            }
+        }
+
+        add(settings.openVpnPort)
+        settings.openVpnPorts.forEach { add(it) }
+        settings.openVpnCustomPorts.forEach { add(it) }
+        val ranges: List<Port>? = try {
+            settings.openVpnPortRanges
+        } catch (exception: Exception) {
+            null
+        }
+        ranges?.forEach { range ->
+            if (range.range.min <= 0 || range.range.max < range.range.min) return@forEach
+            add(Port(range.protocol, range.range.min))
+            WELL_KNOWN_PORTS.filter { it in range.range.min..range.range.max }
+                    .forEach { add(Port(range.protocol, it)) }
+        }
+        return candidates
+    }
+
+    private fun getNetworkKey(): String? {
+        return when (NetworkUtil.getCurrentSource(context)) {
+            NetworkSource.WIFI -> NetworkUtil.getCurrentWifiSsid(context)
+                    ?.takeIf { it.isNotEmpty() && it != "<unknown ssid>" } ?: UNKNOWN_WIFI
+            NetworkSource.MOBILE_DATA -> MOBILE_DATA
+            else -> null
+        }
+    }
+
+    private fun getPorts(key: String): List<Port> {
+        val json = preference.portRankingSharedPreferences.getString(key, null) ?: return emptyList()
+        return try {
+            Mapper.portsFrom(json)
+        } catch (exception: Exception) {
+            emptyList()
+        }
+    }
+
+    private fun putPorts(key: String, ports: List<Port>) {
+        preference.portRankingSharedPreferences.edit()
+                .putString(key, Mapper.stringFromPorts(ports))
+                .apply()
+    }
+}
@@ -22,9 +22,11 @@ package net.ivpn.core.vpn.openvpn;
  along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
 */
 
+import android.content.Context;
+
 import androidx.annotation.Nullable;
 
-import net.ivpn.core.common.ProfileStorage;
+import net.ivpn.core.IVPNApplication;
 import net.ivpn.core.common.dagger.ApplicationScope;
 import net.ivpn.core.common.multihop.MultiHopController;
 import net.ivpn.core.common.prefs.EncryptedUserPreference;
@@ -37,9 +39,12 @@ import net.ivpn.core.rest.data.model.Server;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+
 import javax.inject.Inject;
 
 import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.VPNLaunchHelper;
 
 /**
  * Class ProfileManager is used to update and access valid {@link VpnProfile}
@@ -49,6 +54,7 @@ public class ProfileManager {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ProfileManager.class);
     private VpnProfile currentProfile;
+    private ProfileTemplate template;
 
     private EncryptedUserPreference userPreference;
     private MultiHopController multiHopController;
@@ -88,7 +94,25 @@ public class ProfileManager {
     public void readDefaultProfile() {
         LOGGER.info("readDefaultProfile");
         currentProfile = ConfigLoader.load();
-        ProfileStorage.writeProfile(currentProfile);
+        if (currentProfile != null) {
+            getTemplate(IVPNApplication.application);
+        }
+    }
+
+    /**
+     * Writes the config of the profile returned by {@link #getVpnProfile()}
+     * from the precompiled template.
+     */
+    void writeConfigFile(VpnProfile profile, Context context) throws IOException {
+        getTemplate(context).writeConfigFile(profile, VPNLaunchHelper.getConfigFilePath(context));
+    }
+
+    private synchronized ProfileTemplate getTemplate(Context context) {
+        if (template == null) {
+            template = ProfileTemplate.load(context.getApplicationContext(), getProfile());
+        }
+
+        return template;
     }
 
     private void updatePassword(VpnProfile profile) {
@@ -111,9 +135,22 @@ public class ProfileManager {
         profile.mUsername = username;
     }
 
+    /**
+     * Key which signs control packets sent to the server, null if the profile doesn't use tls-auth.
+     */
+    @Nullable
+    byte[] getTlsAuthHmacKey() {
+        VpnProfile profile = getProfile();
+        if (profile == null || !profile.mUseTLSAuth || "tls-crypt".equals(profile.mTLSAuthDirection)) {
+            return null;
+        }
+
+        return PortProber.readTlsAuthHmacKey(profile.mTLSAuthFilename, profile.mTLSAuthDirection);
+    }
+
     private VpnProfile getProfile() {
         if (currentProfile == null) {
-            currentProfile = ProfileStorage.readProfile();
+            currentProfile = ConfigLoader.load();
         }
 
         return currentProfile;
@@ -127,18 +164,16 @@ public class ProfileManager {
             return;
         }
 
-        VpnProfile suitableProfile = getProfile().copy(entryServer.getCountry());
-        suitableProfile.mServerName = entryServer.getGateway();
-        suitableProfile.mPassword = null;
-        suitableProfile.mName = entryServer.getDescription();
-        suitableProfile.ipAddresses = entryServer.getIpAddresses();
-        suitableProfile.moveOptionsToConnection();
+        //Only the gateway differs between connections, so the profile is updated in place
+        VpnProfile profile = getProfile();
+        profile.mServerName = entryServer.getGateway();
+        profile.mName = entryServer.getDescription();
+        profile.ipAddresses = entryServer.getIpAddresses();
+        profile.moveOptionsToConnection();
         if (multiHopController.isReadyToUse()) {
-            suitableProfile.mRemoteCN = StringUtil.getLocationFromGateway(exitServer.getGateway());
+            profile.mRemoteCN = StringUtil.getLocationFromGateway(exitServer.getGateway());
         } else {
-            suitableProfile.mRemoteCN = StringUtil.getLocationFromGateway(entryServer.getGateway());
+            profile.mRemoteCN = StringUtil.getLocationFromGateway(entryServer.getGateway());
         }
-
-        currentProfile = suitableProfile;
     }
 }
\ No newline at end of file
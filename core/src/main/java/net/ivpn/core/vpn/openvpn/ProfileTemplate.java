@@ -0,0 +1,177 @@
+package net.ivpn.core.vpn.openvpn;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.text.TextUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.Connection;
+
+/**
+ * Immutable OpenVPN config with placeholders for the parts which depend on the server.
+ * <p>
+ * Everything else in the config is the same for every connection, so it is rendered from
+ * the bundled profile once per app install or update and kept in {@link #FILE}.
+ * At connect time only the remote lines and the expected server name are spliced in.
+ */
+public final class ProfileTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ProfileTemplate.class);
+
+    private static final String FILE = "config_template.ovpn";
+    private static final String VERSION_PREFIX = "# template ";
+    // Profiles were stored with Java serialization before the template was introduced
+    private static final String LEGACY_PROFILE_FILE = "profile.vp";
+
+    private final String[] segments;
+    private final String[] tags;
+    private final int length;
+
+    private ProfileTemplate(String text) {
+        List<String> segments = new ArrayList<>();
+        List<String> tags = new ArrayList<>();
+        int start = 0;
+        while (true) {
+            int remotes = text.indexOf(VpnProfile.REMOTES_TAG, start);
+            int remoteCN = text.indexOf(VpnProfile.REMOTE_CN_TAG, start);
+            if (remotes < 0 && remoteCN < 0) {
+                break;
+            }
+            boolean isRemotes = remotes >= 0 && (remoteCN < 0 || remotes < remoteCN);
+            String tag = isRemotes ? VpnProfile.REMOTES_TAG : VpnProfile.REMOTE_CN_TAG;
+            int position = isRemotes ? remotes : remoteCN;
+            segments.add(text.substring(start, position));
+            tags.add(tag);
+            start = position + tag.length();
+        }
+        segments.add(text.substring(start));
+
+        this.segments = segments.toArray(new String[0]);
+        this.tags = tags.toArray(new String[0]);
+        this.length = text.length();
+    }
+
+    /**
+     * Reads the template compiled for the installed version of the app, or compiles it from the profile.
+     */
+    static ProfileTemplate load(Context context, VpnProfile profile) {
+        long version = getVersion(context);
+        File file = new File(context.getFilesDir(), FILE);
+        String text = read(file, version);
+        if (text == null) {
+            LOGGER.info("Compiling OpenVPN config template...");
+            text = profile.getConfigTemplate(context);
+            write(file, version, text);
+            context.deleteFile(LEGACY_PROFILE_FILE);
+        }
+
+        return new ProfileTemplate(text);
+    }
+
+    /**
+     * Writes the config of the profile with a single buffered write.
+     */
+    void writeConfigFile(VpnProfile profile, String path) throws IOException {
+        Connection connection = profile.mConnections[0];
+        String remotes = connection.getConnectionBlock();
+        String remoteCN = VpnProfile.openVpnEscape(TextUtils.isEmpty(profile.mRemoteCN)
+                ? connection.mServerName : profile.mRemoteCN);
+
+        StringBuilder config = new StringBuilder(length + remotes.length() + remoteCN.length());
+        for (int i = 0; i < segments.length; i++) {
+            config.append(segments[i]);
+            if (i < tags.length) {
+                config.append(VpnProfile.REMOTES_TAG.equals(tags[i]) ? remotes : remoteCN);
+            }
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(path), StandardCharsets.UTF_8)) {
+            writer.write(config.toString());
+        }
+    }
+
+    /**
+     * Changes with every install or update of the app, which invalidates the stored template.
+     */
+    private static long getVersion(Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException exception) {
+            return 0;
+        }
+    }
+
+    private static String read(File file, long version) {
+        if (!file.exists()) {
+            return null;
+        }
+        StringBuilder text = new StringBuilder((int) file.length());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            if (!(VERSION_PREFIX + version).equals(reader.readLine())) {
+                return null;
+            }
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+        } catch (IOException exception) {
+            LOGGER.error("Unable to read OpenVPN config template", exception);
+            return null;
+        }
+        return text.toString();
+    }
+
+    private static void write(File file, long version, String text) {
+        File tempFile = new File(file.getParentFile(), FILE + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), StandardCharsets.UTF_8)) {
+            writer.write(VERSION_PREFIX + version + "\n");
+            writer.write(text);
+        } catch (IOException exception) {
+            LOGGER.error("Unable to write OpenVPN config template", exception);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            LOGGER.error("Unable to replace " + file.getName());
+            tempFile.delete();
+        }
+    }
+}
@@ -104,7 +104,7 @@ public class ServiceConfiguration {
     }
 
     private String getDNS() {
-        String dns = settings.getDns();
+        String dns = settings.getSnapshot().getDns();
         if (dns != null) {
             return dns;
         }
@@ -115,7 +115,7 @@ public class ServiceConfiguration {
     private Vector<String> getDnsList() {
         Vector<String> result;
 
-        String dns = settings.getDns();
+        String dns = settings.getSnapshot().getDns();
         if (dns != null) {
             result = new Vector<>();
             result.add(dns);
@@ -126,7 +126,7 @@ public class ServiceConfiguration {
     }
 
     boolean isLocalBypassEnabled() {
-        return settings.getLocalBypass();
+        return settings.getSnapshot().isLocalBypassEnabled();
     }
 
     /**
@@ -7,9 +7,11 @@ import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
 import net.ivpn.core.common.dagger.ApplicationScope
 import net.ivpn.core.common.multihop.MultiHopController
+import net.ivpn.core.common.pinger.HostLatencyStore
 import net.ivpn.core.rest.data.model.ServerType
 import net.ivpn.core.common.prefs.ServersRepository
 import net.ivpn.core.common.prefs.Settings
+import net.ivpn.core.common.prefs.SettingsSnapshot
 import net.ivpn.core.rest.data.model.Host
 import net.ivpn.core.rest.data.model.Port
 import net.ivpn.core.rest.data.model.Server
@@ -43,7 +45,8 @@ import javax.inject.Inject
 class ConfigManager @Inject constructor(
     private val settings: Settings,
     private val serversRepository: ServersRepository,
-    private val multiHopController: MultiHopController
+    private val multiHopController: MultiHopController,
+    private val hostLatencyStore: HostLatencyStore
 ) {
     var tunnel: Tunnel? = null
     var listener: Tunnel.OnStateChangedListener? = null
@@ -51,6 +54,8 @@ class ConfigManager @Inject constructor(
             tunnel?.listener = value
             field = value
         }
+    //Host the current config connects to, the entry host for multi-hop
+    private var entryHost: Host? = null
 
     fun init() {
         LOGGER.info("init")
@@ -80,33 +85,35 @@ class ConfigManager @Inject constructor(
 
     private fun generateConfig(): Config? {
         val server = serversRepository.getCurrentServer(ServerType.ENTRY)
+        val snapshot = settings.snapshot
         return if (multiHopController.isReadyToUse()) {
             val exitServer = serversRepository.getCurrentServer(ServerType.EXIT)
-            generateConfigForMultiHop(server, exitServer)
+            generateConfigForMultiHop(server, exitServer, snapshot)
         } else {
-            val port = settings.wireGuardPort
-            generateConfig(server, port)
+            generateConfig(server, snapshot.wireGuardPort, snapshot)
         }
     }
 
-    private fun generateConfig(server: Server?, port: Port): Config? {
+    private fun generateConfig(server: Server?, port: Port, snapshot: SettingsSnapshot): Config? {
         val config = Config()
-        val privateKey = settings.wireGuardPrivateKey
+        val privateKey = snapshot.wireGuardPrivateKey
 
         LOGGER.info("Generating config:")
         if (server == null || server.hosts == null) {
             return null
         }
 
-        val host = server.hosts.random()
+        val host = hostLatencyStore.getBestHost(server.hosts)
+        entryHost = host
+        LOGGER.info("Selected host ${host.hostname}, latency = ${hostLatencyStore.get(host)}")
 
         if (config.getInterface().publicKey == null) {
             config.getInterface().privateKey = privateKey
         }
 
-        setAddress(config, listOf(host))
+        setAddress(config, listOf(host), snapshot)
 
-        val dnsString = getDNS(host)
+        val dnsString = getDNS(host, snapshot)
         println("Config dns = $dnsString")
         config.getInterface().setDnsString(dnsString)
 
@@ -116,17 +123,18 @@ class ConfigManager @Inject constructor(
             it.publicKey = host.publicKey
         }
 
-        if (!settings.wireGuardPresharedKey.isNullOrEmpty()) {
-            peer.preSharedKey = settings.wireGuardPresharedKey
+        if (!snapshot.wireGuardPresharedKey.isNullOrEmpty()) {
+            peer.preSharedKey = snapshot.wireGuardPresharedKey
         }
 
         config.peers = listOf(peer)
         return config
     }
 
-    private fun generateConfigForMultiHop(entryServer: Server?, exitServer: Server?): Config? {
+    private fun generateConfigForMultiHop(entryServer: Server?, exitServer: Server?,
+                                          snapshot: SettingsSnapshot): Config? {
         val config = Config()
-        val privateKey = settings.wireGuardPrivateKey
+        val privateKey = snapshot.wireGuardPrivateKey
 
         LOGGER.info("Generating config for multihop:")
         if (entryServer == null || entryServer.hosts == null || exitServer == null || exitServer.hosts == null) {
@@ -136,12 +144,14 @@ class ConfigManager @Inject constructor(
             config.getInterface().privateKey = privateKey
         }
 
-        val entryHost = entryServer.hosts.random()
-        val exitHost = exitServer.hosts.random()
+        val entryHost = hostLatencyStore.getBestHost(entryServer.hosts)
+        val exitHost = hostLatencyStore.getBestHost(exitServer.hosts)
+        this.entryHost = entryHost
+        LOGGER.info("Selected hosts ${entryHost.hostname} -> ${exitHost.hostname}")
 
-        setAddress(config, listOf(entryHost, exitHost))
+        setAddress(config, listOf(entryHost, exitHost), snapshot)
 
-        val dnsString = getDNS(entryHost)
+        val dnsString = getDNS(entryHost, snapshot)
         println("Config dns = $dnsString")
         config.getInterface().setDnsString(dnsString)
 
@@ -151,17 +161,17 @@ class ConfigManager @Inject constructor(
             it.publicKey = exitHost.publicKey
         }
 
-        if (!settings.wireGuardPresharedKey.isNullOrEmpty()) {
-            peer.preSharedKey = settings.wireGuardPresharedKey
+        if (!snapshot.wireGuardPresharedKey.isNullOrEmpty()) {
+            peer.preSharedKey = snapshot.wireGuardPresharedKey
         }
 
         config.peers = listOf(peer)
         return config
     }
 
-    private fun setAddress(config: Config, hosts: List<Host>) {
-        val ipAddress = settings.wireGuardIpAddress
-        val ipv6Setting = settings.ipv6Setting
+    private fun setAddress(config: Config, hosts: List<Host>, snapshot: SettingsSnapshot) {
+        val ipAddress = snapshot.wireGuardIpAddress
+        val ipv6Setting = snapshot.isIPv6Enabled
 
         if (hosts.isEmpty()) {
             return
@@ -186,8 +196,8 @@ class ConfigManager @Inject constructor(
             .setAddressString("$ipAddress/32,${localIPv6AddressForEntry!!.split('/')[0]}$ipAddress/128")
     }
 
-    private fun getDNS(host: Host): String {
-        val dns = settings.dns
+    private fun getDNS(host: Host, snapshot: SettingsSnapshot): String {
+        val dns = snapshot.dns
         if (dns != null) {
             return dns
         }
@@ -196,6 +206,17 @@ class ConfigManager @Inject constructor(
         } else host.localIp.split("/".toRegex()).toTypedArray()[0]
     }
 
+    /**
+     * Moves the host of the stalled tunnel to the end of the latency ranking,
+     * so the following reconnection picks the next best host of the same server.
+     */
+    fun onTunnelStalled() {
+        entryHost?.let {
+            LOGGER.info("Marking ${it.hostname} as unhealthy")
+            hostLatencyStore.markUnhealthy(it)
+        }
+    }
+
     fun onTunnelStateChanged(state: Tunnel.State) {
         GlobalScope.launch {
             tunnel?.setState(state)
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Feeds {@link ManagementLineFramer} the way the management socket does, in reads that
+ * cut lines at arbitrary bytes, and compares the lines it hands out with the transcript.
+ */
+public class ManagementLineFramerTest {
+
+    private static final String[] TRANSCRIPT = {
+            ">INFO:OpenVPN Management Interface Version 3 -- type 'help' for more info",
+            "SUCCESS: real-time state notification set to ON",
+            "SUCCESS: bytecount interval changed",
+            ">HOLD:Waiting for hold release:0",
+            "SUCCESS: hold release succeeded",
+            ">LOG:1700000000,I,OpenVPN 2.6.8 [git:makepkg/3b0d9489cc423da3+] arm64-v8a-linux-android",
+            ">LOG:1700000000,I,library versions: OpenSSL 3.1.4 24 Oct 2023, LZO 2.10",
+            ">STATE:1700000000,RESOLVE,,,,,,",
+            ">STATE:1700000000,WAIT,,,,,,",
+            ">LOG:1700000001,I,TCP/UDP: Preserving recently used remote address: [AF_INET]185.102.219.26:2049",
+            ">PROTECTFD: 103",
+            "SUCCESS: protectfd succeeded",
+            ">STATE:1700000001,AUTH,,,,,,",
+            ">PASSWORD:Need 'Auth' username/password",
+            "SUCCESS: 'Auth' username entered, but not yet verified",
+            "SUCCESS: 'Auth' password entered, but not yet verified",
+            ">LOG:1700000002,I,[nl1.gw.ivpn.net] Peer Connection Initiated with [AF_INET]185.102.219.26:2049",
+            ">STATE:1700000002,GET_CONFIG,,,,,,",
+            ">NEED-OK:Need 'IFCONFIG' confirmation MSG:10.10.0.2 255.255.0.0 1500 tun",
+            "SUCCESS: needok command succeeded",
+            ">NEED-OK:Need 'ROUTE' confirmation MSG:0.0.0.0 0.0.0.0 10.10.0.1",
+            "SUCCESS: needok command succeeded",
+            ">NEED-OK:Need 'OPENTUN' confirmation",
+            ">STATE:1700000003,CONNECTED,SUCCESS,10.10.0.2,185.102.219.26,2049,,",
+            ">BYTECOUNT:4096,2048",
+            ">BYTECOUNT:1048576,65536",
+            ">LOG:1700000004,W,WARNING: 'link-mtu' is used inconsistently, local='link-mtu 1549', remote='link-mtu 1550'",
+            ">BYTECOUNT:2097152,131072",
+    };
+
+    private static final int WARM_UP_ROUNDS = 200;
+    private static final int BENCHMARK_ROUNDS = 2000;
+
+    @Test
+    public void completeLinesOfSingleRead() {
+        assertEquals(Arrays.asList(TRANSCRIPT), frame(join(TRANSCRIPT, "\n"), Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void linesSplitAcrossReads() {
+        byte[] data = join(TRANSCRIPT, "\n");
+        for (int chunk = 1; chunk <= 97; chunk++) {
+            assertEquals("read size " + chunk, Arrays.asList(TRANSCRIPT), frame(data, chunk));
+        }
+    }
+
+    @Test
+    public void crLfAndLfEndings() {
+        List<String> expected = Arrays.asList(TRANSCRIPT);
+        byte[] crLf = join(TRANSCRIPT, "\r\n");
+        assertEquals(expected, frame(crLf, Integer.MAX_VALUE));
+        //"\r" and "\n" of the same line end up in different reads
+        for (int chunk = 1; chunk <= 31; chunk++) {
+            assertEquals("read size " + chunk, expected, frame(crLf, chunk));
+        }
+
+        StringBuilder mixed = new StringBuilder();
+        for (int i = 0; i < TRANSCRIPT.length; i++) {
+            mixed.append(TRANSCRIPT[i]).append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        assertEquals(expected, frame(mixed.toString().getBytes(StandardCharsets.UTF_8), 7));
+    }
+
+    @Test
+    public void emptyLinesAreKept() {
+        assertEquals(Arrays.asList("", ">HOLD:Waiting for hold release:0", "", ""),
+                frame("\n>HOLD:Waiting for hold release:0\r\n\r\n\n".getBytes(StandardCharsets.UTF_8), 3));
+    }
+
+    @Test
+    public void unfinishedLineIsHeldBack() {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        List<String> lines = new ArrayList<>();
+        byte[] data = ">STATE:1700000000,WAIT".getBytes(StandardCharsets.UTF_8);
+        framer.feed(data, 0, data.length, collector(lines));
+        assertEquals(0, lines.size());
+
+        data = ",,,,,,\n".getBytes(StandardCharsets.UTF_8);
+        framer.feed(data, 0, data.length, collector(lines));
+        assertEquals(Arrays.asList(">STATE:1700000000,WAIT,,,,,,"), lines);
+    }
+
+    @Test
+    public void resetDropsUnfinishedLine() {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        List<String> lines = new ArrayList<>();
+        byte[] data = ">LOG:1700000000,I,cut off".getBytes(StandardCharsets.UTF_8);
+        framer.feed(data, 0, data.length, collector(lines));
+        framer.reset();
+
+        data = ">HOLD:Waiting for hold release:0\n".getBytes(StandardCharsets.UTF_8);
+        framer.feed(data, 0, data.length, collector(lines));
+        assertEquals(Arrays.asList(">HOLD:Waiting for hold release:0"), lines);
+    }
+
+    @Test
+    public void multibyteCharacterSplitAcrossReads() {
+        String line = ">LOG:1700000002,I,[Zürich ✓ 東京 🔒] Peer Connection Initiated";
+        byte[] data = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        //Every position is tried, so each character is cut between any two of its bytes once
+        for (int split = 1; split < data.length; split++) {
+            ManagementLineFramer framer = new ManagementLineFramer();
+            List<String> lines = new ArrayList<>();
+            framer.feed(data, 0, split, collector(lines));
+            framer.feed(data, split, data.length - split, collector(lines));
+            assertEquals("split at " + split, Arrays.asList(line), lines);
+        }
+    }
+
+    @Test
+    public void lineLongerThanBuffer() {
+        StringBuilder longLine = new StringBuilder(">LOG:1700000000,D,");
+        while (longLine.length() < 100_000) {
+            longLine.append("0123456789abcdef");
+        }
+        String[] transcript = {TRANSCRIPT[0], longLine.toString(), TRANSCRIPT[1], longLine.toString(), TRANSCRIPT[2]};
+        byte[] data = join(transcript, "\r\n");
+
+        assertEquals(Arrays.asList(transcript), frame(data, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(transcript), frame(data, 1000));
+        assertEquals(Arrays.asList(transcript), frame(data, 4093));
+    }
+
+    @Test
+    public void replayTranscriptBenchmark() {
+        byte[] data = join(TRANSCRIPT, "\n");
+        //Reads of a socket rarely end on a line boundary
+        int[] readSizes = {8192, 1024, 61};
+
+        for (int readSize : readSizes) {
+            long checksum = 0;
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                checksum += replay(data, readSize);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+                checksum += replay(data, readSize);
+            }
+            long elapsed = System.nanoTime() - start;
+            long lines = (long) BENCHMARK_ROUNDS * TRANSCRIPT.length;
+
+            System.out.printf("ManagementLineFramer: read size %d, %d lines in %.2f ms, %d ns per line%n",
+                    readSize, lines, elapsed / 1_000_000.0, elapsed / lines);
+            assertEquals((long) (WARM_UP_ROUNDS + BENCHMARK_ROUNDS) * expectedLength(), checksum);
+        }
+    }
+
+    private static long replay(byte[] data, int readSize) {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        long[] total = new long[1];
+        ManagementLineFramer.LineHandler handler = (buffer, offset, length) -> total[0] += length;
+        for (int offset = 0; offset < data.length; offset += readSize) {
+            framer.feed(data, offset, Math.min(readSize, data.length - offset), handler);
+        }
+        return total[0];
+    }
+
+    private static long expectedLength() {
+        long length = 0;
+        for (String line : TRANSCRIPT) {
+            length += line.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return length;
+    }
+
+    private static List<String> frame(byte[] data, int readSize) {
+        ManagementLineFramer framer = new ManagementLineFramer();
+        List<String> lines = new ArrayList<>();
+        ManagementLineFramer.LineHandler handler = collector(lines);
+        readSize = Math.min(readSize, data.length);
+        //Reads land at different offsets of a larger buffer, like the socket reads do
+        byte[] readBuffer = new byte[readSize + 3];
+        for (int offset = 0; offset < data.length; offset += readSize) {
+            int count = Math.min(readSize, data.length - offset);
+            int at = offset % 4 == 0 ? 0 : 3;
+            at = Math.min(at, readBuffer.length - count);
+            System.arraycopy(data, offset, readBuffer, at, count);
+            framer.feed(readBuffer, at, count, handler);
+        }
+        return lines;
+    }
+
+    private static ManagementLineFramer.LineHandler collector(List<String> lines) {
+        return (buffer, offset, length) -> lines.add(ManagementLineFramer.decode(buffer, offset, length));
+    }
+
+    private static byte[] join(String[] lines, String separator) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines) {
+            builder.append(line).append(separator);
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
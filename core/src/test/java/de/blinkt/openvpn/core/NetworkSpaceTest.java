@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares {@link NetworkSpace#getPositiveIPList()} with a longest-prefix match on BigInteger
+ * addresses: an address is routed if the most specific network containing it is included.
+ */
+public class NetworkSpaceTest {
+
+    private static final int ITERATIONS = 3000;
+    private static final int RANDOM_PROBES = 200;
+
+    @Test
+    public void nestedExclusionInsideExclusion() throws UnknownHostException {
+        List<Network> networks = new ArrayList<>();
+        networks.add(Network.v4("0.0.0.0", 0, true));
+        networks.add(Network.v4("10.0.0.0", 8, false));
+        networks.add(Network.v4("10.1.0.0", 16, true));
+        networks.add(Network.v4("10.1.2.0", 24, false));
+
+        Collection<NetworkSpace.ipAddress> routes = verify(networks, new Random(0));
+        assertFalse(contains(routes, address("10.1.2.7")));
+        assertTrue(contains(routes, address("10.1.3.7")));
+        assertFalse(contains(routes, address("10.2.0.1")));
+    }
+
+    @Test
+    public void adjacentRoutesAreMerged() throws UnknownHostException {
+        List<Network> networks = new ArrayList<>();
+        networks.add(Network.v4("192.168.0.0", 25, true));
+        networks.add(Network.v4("192.168.0.128", 25, true));
+
+        Collection<NetworkSpace.ipAddress> routes = verify(networks, new Random(0));
+        assertEquals(1, routes.size());
+        assertEquals("192.168.0.0/24", routes.iterator().next().toString());
+    }
+
+    @Test
+    public void randomIPv4Sets() throws UnknownHostException {
+        Random random = new Random(19);
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<Network> networks = new ArrayList<>();
+            if (random.nextBoolean()) {
+                networks.add(Network.v4("0.0.0.0", 0, random.nextBoolean()));
+            }
+            // 10.0.0.0/12 keeps the networks close enough to nest and touch each other
+            BigInteger region = new BigInteger(1, InetAddress.getByName("10.0.0.0").getAddress());
+            addRandomNetworks(networks, random, region, 32, 12, 20, 1 + random.nextInt(30));
+            verify(networks, random);
+        }
+    }
+
+    @Test
+    public void randomIPv6Sets() throws UnknownHostException {
+        Random random = new Random(23);
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<Network> networks = new ArrayList<>();
+            if (random.nextBoolean()) {
+                networks.add(Network.v6(BigInteger.ZERO, 0, random.nextBoolean()));
+            }
+            // Prefixes around 64 bits cross the boundary of the two longs, the ones near 128 don't
+            BigInteger region = new BigInteger(1, InetAddress.getByName("2001:db8::").getAddress());
+            addRandomNetworks(networks, random, region, 128, 48, 32, 1 + random.nextInt(20));
+            addRandomNetworks(networks, random, region.setBit(8), 128, 112, 16, 1 + random.nextInt(20));
+            verify(networks, random);
+        }
+    }
+
+    @Test
+    public void largeIPv4Set() throws UnknownHostException {
+        Random random = new Random(31);
+        List<Network> networks = new ArrayList<>();
+        networks.add(Network.v4("0.0.0.0", 0, true));
+        addRandomNetworks(networks, random, BigInteger.ZERO, 32, 0, 32, 5000);
+        verify(networks, random);
+    }
+
+    private static void addRandomNetworks(List<Network> networks, Random random, BigInteger region, int width,
+                                          int regionMask, int maskSpan, int count) {
+        Set<String> keys = new HashSet<>();
+        for (Network network : networks) {
+            keys.add(network.first + "/" + network.mask);
+        }
+        for (int i = 0; i < count; i++) {
+            int mask = regionMask + random.nextInt(maskSpan + 1);
+            BigInteger address = region.or(new BigInteger(width - regionMask, random));
+            Network network = new Network(address, mask, random.nextBoolean(), width);
+            // The space keeps only the first of two equal networks
+            if (keys.add(network.first + "/" + network.mask)) {
+                networks.add(network);
+            }
+        }
+    }
+
+    /**
+     * Checks every network boundary, the addresses right outside of it and random addresses.
+     */
+    private static Collection<NetworkSpace.ipAddress> verify(List<Network> networks, Random random)
+            throws UnknownHostException {
+        NetworkSpace space = new NetworkSpace();
+        for (Network network : networks) {
+            network.addTo(space);
+        }
+        Collection<NetworkSpace.ipAddress> routes = space.getPositiveIPList();
+        List<Route> parsedRoutes = new ArrayList<>();
+        for (NetworkSpace.ipAddress route : routes) {
+            parsedRoutes.add(Route.parse(route));
+        }
+        assertDisjointAndMerged(parsedRoutes, networks);
+
+        int width = networks.get(0).width;
+        BigInteger max = BigInteger.ONE.shiftLeft(width).subtract(BigInteger.ONE);
+        List<BigInteger> probes = new ArrayList<>();
+        for (Network network : networks) {
+            probes.add(network.first);
+            probes.add(network.last);
+            if (network.first.signum() > 0) {
+                probes.add(network.first.subtract(BigInteger.ONE));
+            }
+            if (network.last.compareTo(max) < 0) {
+                probes.add(network.last.add(BigInteger.ONE));
+            }
+            probes.add(network.first.add(new BigInteger(width, random).mod(network.last.subtract(network.first)
+                    .add(BigInteger.ONE))));
+        }
+        for (int i = 0; i < RANDOM_PROBES; i++) {
+            probes.add(new BigInteger(width, random));
+        }
+
+        for (BigInteger probe : probes) {
+            boolean expected = isIncluded(networks, probe);
+            if (expected != isRouted(parsedRoutes, probe)) {
+                fail("Address " + probe.toString(16) + " should be " + (expected ? "routed" : "excluded")
+                        + " in " + networks + " -> " + routes);
+            }
+        }
+        return routes;
+    }
+
+    private static boolean isIncluded(List<Network> networks, BigInteger address) {
+        Network best = null;
+        for (Network network : networks) {
+            if (network.contains(address) && (best == null || network.mask > best.mask)) {
+                best = network;
+            }
+        }
+        return best != null && best.included;
+    }
+
+    /**
+     * Routes are sorted and disjoint, so only the last route starting before the address may contain it.
+     */
+    private static boolean isRouted(List<Route> routes, BigInteger address) {
+        int low = 0;
+        int high = routes.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (routes.get(middle).first.compareTo(address) <= 0) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high >= 0 && routes.get(high).contains(address);
+    }
+
+    /**
+     * Routes must not overlap and two halves of one network must be returned as that network.
+     */
+    private static void assertDisjointAndMerged(List<Route> routes, List<Network> networks) {
+        for (int i = 1; i < routes.size(); i++) {
+            Route previous = routes.get(i - 1);
+            Route current = routes.get(i);
+            if (previous.last.compareTo(current.first) >= 0) {
+                fail("Routes overlap in " + networks);
+            }
+            boolean isSiblings = previous.mask == current.mask && previous.mask > 0
+                    && previous.last.add(BigInteger.ONE).equals(current.first)
+                    && !previous.first.testBit(previous.width - previous.mask);
+            if (isSiblings) {
+                fail("Routes " + previous + " and " + current + " are not merged");
+            }
+        }
+    }
+
+    private static boolean contains(Collection<NetworkSpace.ipAddress> routes, BigInteger address)
+            throws UnknownHostException {
+        for (NetworkSpace.ipAddress route : routes) {
+            if (Route.parse(route).contains(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BigInteger address(String address) throws UnknownHostException {
+        return new BigInteger(1, InetAddress.getByName(address).getAddress());
+    }
+
+    private static class Route {
+        final BigInteger first;
+        final BigInteger last;
+        final int mask;
+        final int width;
+
+        Route(BigInteger address, int mask, int width) {
+            BigInteger hostMask = BigInteger.ONE.shiftLeft(width - mask).subtract(BigInteger.ONE);
+            this.first = address.andNot(hostMask);
+            this.last = first.or(hostMask);
+            this.mask = mask;
+            this.width = width;
+        }
+
+        static Route parse(NetworkSpace.ipAddress route) throws UnknownHostException {
+            String[] parts = route.toString().split("/");
+            byte[] bytes = InetAddress.getByName(parts[0]).getAddress();
+            return new Route(new BigInteger(1, bytes), route.networkMask, bytes.length * 8);
+        }
+
+        boolean contains(BigInteger address) {
+            return first.compareTo(address) <= 0 && last.compareTo(address) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return first.toString(16) + "/" + mask;
+        }
+    }
+
+    private static class Network extends Route {
+        final boolean included;
+
+        Network(BigInteger address, int mask, boolean included, int width) {
+            super(address, mask, width);
+            this.included = included;
+        }
+
+        static Network v4(String address, int mask, boolean included) throws UnknownHostException {
+            return new Network(address(address), mask, included, 32);
+        }
+
+        static Network v6(BigInteger address, int mask, boolean included) {
+            return new Network(address, mask, included, 128);
+        }
+
+        void addTo(NetworkSpace space) throws UnknownHostException {
+            byte[] bytes = toBytes(first, width / 8);
+            if (width == 32) {
+                space.addIP(new CIDRIP(InetAddress.getByAddress(bytes).getHostAddress(), mask), included);
+            } else {
+                space.addIPv6((Inet6Address) InetAddress.getByAddress(bytes), mask, included);
+            }
+        }
+
+        private static byte[] toBytes(BigInteger value, int length) {
+            byte[] raw = value.toByteArray();
+            byte[] bytes = new byte[length];
+            int copy = Math.min(raw.length, length);
+            System.arraycopy(raw, raw.length - copy, bytes, length - copy, copy);
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return (included ? "+" : "-") + super.toString();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package net.ivpn.core.common.pinger;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Server;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FastestServerSelectorTest {
+
+    private final Server amsterdam = server("nl1", "NL", "Amsterdam");
+    private final Server berlin = server("de1", "DE", "Berlin");
+    private final Server chicago = server("us1", "US", "Chicago");
+    private final Server dallas = server("us2", "US", "Dallas");
+
+    private long now;
+    private FastestServerSelector selector;
+
+    @Before
+    public void setUp() {
+        now = TimeUnit.SECONDS.toNanos(100);
+        selector = new FastestServerSelector(() -> now);
+    }
+
+    @Test
+    public void leaderIsNullUntilSomethingReplied() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        assertNull(selector.getLeader());
+
+        selector.onResult(amsterdam, null);
+        assertNull(selector.getLeader());
+
+        selector.onResult(berlin, 80L);
+        assertEquals(berlin, selector.getLeader());
+    }
+
+    @Test
+    public void leaderIsFastestNotExcludedServer() {
+        selector.reset(Arrays.asList(amsterdam, berlin, chicago), Collections.emptySet());
+        assertTrue(selector.onResult(amsterdam, 60L));
+        assertTrue(selector.onResult(berlin, 20L));
+        assertFalse(selector.onResult(chicago, 90L));
+        assertEquals(berlin, selector.getLeader());
+
+        assertTrue(selector.setExcluded(Collections.singleton(berlin)));
+        assertEquals(amsterdam, selector.getLeader());
+
+        assertTrue(selector.setExcluded(new HashSet<>(Arrays.asList(amsterdam, berlin, chicago))));
+        assertNull(selector.getLeader());
+    }
+
+    @Test
+    public void notSettledWhileProbesAreSent() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onResult(amsterdam, 50L);
+        advance(1000);
+
+        assertNull(selector.millisUntilSettled());
+        assertFalse(selector.isSettled());
+    }
+
+    @Test
+    public void settlesOnceLeaderPingPassedSinceLastSend() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onAllProbesSent(now);
+        advance(30);
+        selector.onResult(amsterdam, 50L);
+
+        assertEquals(Long.valueOf(41), selector.millisUntilSettled());
+        assertFalse(selector.isSettled());
+
+        advance(41);
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void fasterPartialReplyPreventsSettling() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onAllProbesSent(now);
+        selector.onPartialResult(berlin, 10);
+        advance(60);
+        selector.onResult(amsterdam, 50L);
+        advance(1000);
+
+        assertNull(selector.millisUntilSettled());
+
+        selector.onResult(berlin, 10L);
+        assertEquals(berlin, selector.getLeader());
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void fasterPartialReplyOfExcludedServerIsIgnored() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.singleton(berlin));
+        selector.onAllProbesSent(now);
+        selector.onPartialResult(berlin, 10);
+        advance(60);
+        selector.onResult(amsterdam, 50L);
+        advance(20);
+
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void slowerPartialReplyDoesNotPreventSettling() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onAllProbesSent(now);
+        selector.onPartialResult(berlin, 120);
+        advance(60);
+        selector.onResult(amsterdam, 50L);
+        advance(20);
+
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void settledOnceEveryServerReported() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onResult(amsterdam, null);
+        assertFalse(selector.isSettled());
+
+        selector.onResult(berlin, null);
+        assertTrue(selector.isSettled());
+        assertNull(selector.getLeader());
+    }
+
+    @Test
+    public void restartKeepsPendingServersOfRunningScan() {
+        selector.reset(Arrays.asList(amsterdam, berlin, chicago, dallas), Collections.emptySet());
+        selector.onAllProbesSent(now);
+        selector.onResult(amsterdam, 50L);
+        selector.onResult(berlin, 60L);
+
+        //Berlin is pinged again while the sweep still waits for Chicago and Dallas
+        selector.restart(Collections.singletonList(berlin));
+        selector.onAllProbesSent(now);
+        advance(10);
+        selector.onResult(berlin, 70L);
+
+        assertEquals(amsterdam, selector.getLeader());
+        assertFalse(selector.isSettled());
+
+        advance(61);
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void restartWaitsForItsOwnProbes() {
+        selector.reset(Arrays.asList(amsterdam, berlin, chicago), Collections.emptySet());
+        selector.onAllProbesSent(now);
+        selector.onResult(amsterdam, 50L);
+
+        selector.restart(Collections.singletonList(berlin));
+        advance(1000);
+        assertNull(selector.millisUntilSettled());
+
+        selector.onAllProbesSent(now);
+        advance(71);
+        assertTrue(selector.isSettled());
+    }
+
+    @Test
+    public void restartOfLeaderDropsItsPing() {
+        selector.reset(Arrays.asList(amsterdam, berlin), Collections.emptySet());
+        selector.onResult(amsterdam, 50L);
+        selector.onResult(berlin, 60L);
+
+        assertTrue(selector.restart(Collections.singletonList(amsterdam)));
+        assertEquals(berlin, selector.getLeader());
+        assertFalse(selector.restart(Collections.emptyList()));
+    }
+
+    private void advance(long millis) {
+        now += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static Server server(String gateway, String countryCode, String city) {
+        Server server = new Server();
+        server.setGateway(gateway);
+        server.setCountryCode(countryCode);
+        server.setCity(city);
+        return server;
+    }
+}
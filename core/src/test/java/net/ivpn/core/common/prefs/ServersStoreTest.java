@@ -0,0 +1,261 @@
+package net.ivpn.core.common.prefs;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Host;
+import net.ivpn.core.rest.data.model.Ipv6;
+import net.ivpn.core.rest.data.model.Server;
+import net.ivpn.core.vpn.Protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ServersStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("servers", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void serversWithHostsSurviveRoundTrip() {
+        Server server = server("de1.gw.ivpn.net", "DE", "Germany", "Frankfurt", Protocol.WIREGUARD);
+        server.setLatitude(50.110924);
+        server.setLongitude(8.682127);
+        Host ipv6Host = host("de1.wg.ivpn.net", "185.102.219.26", "key1=", "172.16.0.1/12", 20401);
+        Ipv6 ipv6 = new Ipv6();
+        ipv6.setLocal_ip("fd00:4956:504e:ffff::/96");
+        ipv6Host.setIpv6(ipv6);
+        server.setHosts(Arrays.asList(ipv6Host, host("de2.wg.ivpn.net", "185.102.219.27", "key2=", null, 0)));
+
+        Server decoded = roundTrip(Protocol.WIREGUARD, server).get(Protocol.WIREGUARD).get(0);
+
+        assertEquals("de1.gw.ivpn.net", decoded.getGateway());
+        assertEquals("DE", decoded.getCountryCode());
+        assertEquals("Germany", decoded.getCountry());
+        assertEquals("Frankfurt", decoded.getCity());
+        assertEquals(50.110924, decoded.getLatitude(), 0.0);
+        assertEquals(8.682127, decoded.getLongitude(), 0.0);
+        assertEquals(Protocol.WIREGUARD, decoded.getType());
+        assertEquals(Arrays.asList("185.102.219.26", "185.102.219.27"), decoded.getIpAddresses());
+
+        Host first = decoded.getHosts().get(0);
+        assertEquals("de1.wg.ivpn.net", first.getHostname());
+        assertEquals("185.102.219.26", first.getHost());
+        assertEquals("key1=", first.getPublicKey());
+        assertEquals("172.16.0.1/12", first.getLocalIp());
+        assertEquals(20401, first.getMultihopPort());
+        assertEquals("fd00:4956:504e:ffff::/96", first.getIpv6().getLocal_ip());
+
+        Host second = decoded.getHosts().get(1);
+        assertEquals("de2.wg.ivpn.net", second.getHostname());
+        assertNull(second.getLocalIp());
+        assertNull(second.getIpv6());
+        assertEquals(0, second.getMultihopPort());
+    }
+
+    @Test
+    public void nullFieldsSurviveRoundTrip() {
+        Server empty = new Server();
+        Host emptyHost = new Host();
+        emptyHost.setIpv6(new Ipv6());
+        Server withEmptyHost = server("nl1.gw.ivpn.net", null, null, null, null);
+        withEmptyHost.setHosts(Collections.singletonList(emptyHost));
+        Server withoutHosts = server("us1.gw.ivpn.net", "US", null, "Dallas", Protocol.OPENVPN);
+        withoutHosts.setHosts(Collections.emptyList());
+
+        List<Server> decoded = roundTrip(Protocol.OPENVPN, empty, null, withEmptyHost, withoutHosts)
+                .get(Protocol.OPENVPN);
+
+        //Null entries of the list are skipped
+        assertEquals(3, decoded.size());
+        Server first = decoded.get(0);
+        assertNull(first.getGateway());
+        assertNull(first.getCountryCode());
+        assertNull(first.getCountry());
+        assertNull(first.getCity());
+        assertNull(first.getType());
+        assertNull(first.getHosts());
+
+        Host host = decoded.get(1).getHosts().get(0);
+        assertNull(host.getHostname());
+        assertNull(host.getHost());
+        assertNull(host.getPublicKey());
+        assertNull(host.getLocalIp());
+        assertNotNull(host.getIpv6());
+        assertNull(host.getIpv6().getLocal_ip());
+
+        Server third = decoded.get(2);
+        assertNull(third.getCountry());
+        assertEquals("Dallas", third.getCity());
+        assertTrue(third.getHosts().isEmpty());
+    }
+
+    @Test
+    public void repeatedStringsAreStoredOnce() {
+        List<Server> servers = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Server server = server("de" + i + ".gw.ivpn.net", "DE", "Germany", "Frankfurt", Protocol.OPENVPN);
+            server.setHosts(Collections.singletonList(host("de" + i + ".ivpn.net", "10.0.0." + i, null, "172.16.0.1/12", 0)));
+            servers.add(server);
+        }
+        Map<Protocol, List<Server>> lists = new EnumMap<>(Protocol.class);
+        lists.put(Protocol.OPENVPN, servers);
+        lists.put(Protocol.WIREGUARD, servers);
+
+        byte[] bytes = ServersStore.Companion.encode(lists);
+        //Gateway, hostname and address of every server, then the country code, country, city and
+        //local IP shared by all servers of both lists
+        assertEquals(10 * 3 + 4, ByteBuffer.wrap(bytes, 8, 4).getInt());
+
+        EnumMap<Protocol, List<Server>> decoded = ServersStore.Companion.decode(ByteBuffer.wrap(bytes));
+        Server openvpn = decoded.get(Protocol.OPENVPN).get(3);
+        Server wireguard = decoded.get(Protocol.WIREGUARD).get(7);
+        assertEquals("de3.gw.ivpn.net", openvpn.getGateway());
+        assertEquals("de7.gw.ivpn.net", wireguard.getGateway());
+        assertSame(openvpn.getCountry(), wireguard.getCountry());
+        assertSame(openvpn.getCity(), wireguard.getCity());
+        assertSame(openvpn.getHosts().get(0).getLocalIp(), wireguard.getHosts().get(0).getLocalIp());
+    }
+
+    @Test
+    public void storedFileIsReadBack() throws IOException {
+        Server server = server("se1.gw.ivpn.net", "SE", "Sweden", "Stockholm", Protocol.OPENVPN);
+        write(encode(Protocol.OPENVPN, server));
+
+        EnumMap<Protocol, List<Server>> servers = ServersStore.Companion.read(file);
+        assertNotNull(servers);
+        assertEquals("Stockholm", servers.get(Protocol.OPENVPN).get(0).getCity());
+    }
+
+    @Test
+    public void missingFileIsEmpty() {
+        assertTrue(file.delete());
+        assertNull(ServersStore.Companion.read(file));
+    }
+
+    @Test
+    public void wrongMagicIsEmpty() throws IOException {
+        byte[] bytes = encode(Protocol.OPENVPN, server("se1.gw.ivpn.net", "SE", "Sweden", "Stockholm", Protocol.OPENVPN));
+        bytes[0] ^= 0x7f;
+        write(bytes);
+
+        assertNull(ServersStore.Companion.read(file));
+    }
+
+    @Test
+    public void unknownVersionIsEmpty() throws IOException {
+        byte[] bytes = encode(Protocol.OPENVPN, server("se1.gw.ivpn.net", "SE", "Sweden", "Stockholm", Protocol.OPENVPN));
+        bytes[7] = 99;
+        write(bytes);
+
+        assertNull(ServersStore.Companion.read(file));
+    }
+
+    @Test
+    public void truncatedFileIsEmpty() throws IOException {
+        Server server = server("se1.gw.ivpn.net", "SE", "Sweden", "Stockholm", Protocol.OPENVPN);
+        server.setHosts(Collections.singletonList(host("se1.ivpn.net", "10.0.0.1", "key=", "172.16.0.1/12", 0)));
+        byte[] bytes = encode(Protocol.OPENVPN, server);
+
+        for (int length = 0; length < bytes.length; length++) {
+            write(Arrays.copyOf(bytes, length));
+            assertNull("truncated to " + length, ServersStore.Companion.read(file));
+        }
+    }
+
+    @Test
+    public void damagedLengthIsEmpty() throws IOException {
+        byte[] bytes = encode(Protocol.OPENVPN, server("se1.gw.ivpn.net", "SE", "Sweden", "Stockholm", Protocol.OPENVPN));
+        //Length of the first string
+        ByteBuffer.wrap(bytes).putInt(12, Integer.MAX_VALUE);
+        write(bytes);
+        assertNull(ServersStore.Companion.read(file));
+
+        //Number of strings
+        ByteBuffer.wrap(bytes).putInt(8, Integer.MAX_VALUE);
+        write(bytes);
+        assertNull(ServersStore.Companion.read(file));
+    }
+
+    private EnumMap<Protocol, List<Server>> roundTrip(Protocol protocol, Server... servers) {
+        return ServersStore.Companion.decode(ByteBuffer.wrap(encode(protocol, servers)));
+    }
+
+    private static byte[] encode(Protocol protocol, Server... servers) {
+        Map<Protocol, List<Server>> lists = new EnumMap<>(Protocol.class);
+        lists.put(protocol, Arrays.asList(servers));
+        return ServersStore.Companion.encode(lists);
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+    }
+
+    private static Server server(String gateway, String countryCode, String country, String city, Protocol type) {
+        Server server = new Server();
+        server.setGateway(gateway);
+        server.setCountryCode(countryCode);
+        server.setCountry(country);
+        server.setCity(city);
+        server.setType(type);
+        return server;
+    }
+
+    private static Host host(String hostname, String address, String publicKey, String localIp, int multihopPort) {
+        Host host = new Host();
+        host.setHostname(hostname);
+        host.setHost(address);
+        host.setPublicKey(publicKey);
+        host.setLocalIp(localIp);
+        host.setMultihopPort(multihopPort);
+        return host;
+    }
+}
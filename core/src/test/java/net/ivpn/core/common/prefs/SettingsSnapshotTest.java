@@ -0,0 +1,166 @@
+package net.ivpn.core.common.prefs;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.common.BuildController;
+import net.ivpn.core.rest.data.model.Port;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that {@link Settings#getSnapshot()} never serves values older than the last change
+ * and compares the connect path reading every setting with reading the snapshot.
+ */
+public class SettingsSnapshotTest {
+
+    private static final int WARM_UP_ITERATIONS = 2_000;
+    private static final int BENCHMARK_ITERATIONS = 20_000;
+
+    private EncryptedSettingsPreference preference;
+    private Settings settings;
+
+    @Before
+    public void setUp() {
+        preference = mock(EncryptedSettingsPreference.class);
+        stubPorts(preference);
+        settings = new Settings(preference, mock(StickyPreference.class), mock(BuildController.class));
+    }
+
+    @Test
+    public void snapshotIsCachedUntilInvalidated() {
+        when(preference.getSettingMultiHop()).thenReturn(false);
+        assertFalse(settings.getSnapshot().isMultiHopEnabled());
+
+        when(preference.getSettingMultiHop()).thenReturn(true);
+        assertFalse(settings.getSnapshot().isMultiHopEnabled());
+
+        settings.invalidateSnapshot();
+        assertTrue(settings.getSnapshot().isMultiHopEnabled());
+        verify(preference, times(2)).getSettingMultiHop();
+    }
+
+    @Test
+    public void snapshotReadDuringChangeIsNotKept() {
+        AtomicBoolean isChanged = new AtomicBoolean();
+        when(preference.getSettingsWgPublicKey()).thenAnswer(invocation -> {
+            if (isChanged.compareAndSet(false, true)) {
+                //The key is replaced while the snapshot is being built
+                settings.invalidateSnapshot();
+                return "old";
+            }
+            return "new";
+        });
+
+        assertEquals("old", settings.getSnapshot().getWireGuardPublicKey());
+        assertEquals("new", settings.getSnapshot().getWireGuardPublicKey());
+        assertEquals("new", settings.getSnapshot().getWireGuardPublicKey());
+    }
+
+    @Test
+    public void connectPathReadBenchmark() {
+        EncryptedSettingsPreference benchmarkPreference = mock(EncryptedSettingsPreference.class,
+                Mockito.withSettings().stubOnly());
+        stubPorts(benchmarkPreference);
+        when(benchmarkPreference.getSettingsWgPrivateKey()).thenReturn("private");
+        when(benchmarkPreference.getSettingsWgPublicKey()).thenReturn("public");
+        Settings benchmarkSettings = new Settings(benchmarkPreference, mock(StickyPreference.class),
+                mock(BuildController.class));
+
+        readEverySetting(benchmarkSettings, WARM_UP_ITERATIONS);
+        readSnapshot(benchmarkSettings, WARM_UP_ITERATIONS);
+
+        long start = System.nanoTime();
+        int checksum = readEverySetting(benchmarkSettings, BENCHMARK_ITERATIONS);
+        long settingsTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        checksum -= readSnapshot(benchmarkSettings, BENCHMARK_ITERATIONS);
+        long snapshotTime = System.nanoTime() - start;
+
+        System.out.println("Connect path settings read: preferences = "
+                + settingsTime / BENCHMARK_ITERATIONS + " ns, snapshot = "
+                + snapshotTime / BENCHMARK_ITERATIONS + " ns per connection");
+        assertEquals(0, checksum);
+    }
+
+    private static void stubPorts(EncryptedSettingsPreference preference) {
+        when(preference.getOpenvpnPort()).thenReturn(Port.Companion.getDefaultOvPort().toJson());
+        when(preference.getWgPort()).thenReturn(Port.Companion.getDefaultWgPort().toJson());
+        when(preference.getAntiTracker()).thenReturn("");
+    }
+
+    /**
+     * The values the connect path used to read from the preferences one by one.
+     */
+    private static int readEverySetting(Settings settings, int iterations) {
+        int checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            checksum += settings.isKillSwitchEnabled() ? 1 : 0;
+            checksum += settings.isMultiHopEnabled() ? 1 : 0;
+            checksum += settings.getLocalBypass() ? 1 : 0;
+            checksum += settings.getIpv6Setting() ? 1 : 0;
+            checksum += hash(settings.getDns());
+            checksum += settings.getOpenVpnPort().getPortNumber();
+            checksum += settings.getWireGuardPort().getPortNumber();
+            checksum += hash(settings.getWireGuardPrivateKey());
+            checksum += hash(settings.getWireGuardPublicKey());
+            checksum += hash(settings.getWireGuardPresharedKey());
+            checksum += hash(settings.getWireGuardIpAddress());
+        }
+        return checksum;
+    }
+
+    private static int readSnapshot(Settings settings, int iterations) {
+        int checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            SettingsSnapshot snapshot = settings.getSnapshot();
+            checksum += snapshot.isKillSwitchEnabled() ? 1 : 0;
+            checksum += snapshot.isMultiHopEnabled() ? 1 : 0;
+            checksum += snapshot.isLocalBypassEnabled() ? 1 : 0;
+            checksum += snapshot.isIPv6Enabled() ? 1 : 0;
+            checksum += hash(snapshot.getDns());
+            checksum += snapshot.getOpenVpnPort().getPortNumber();
+            checksum += snapshot.getWireGuardPort().getPortNumber();
+            checksum += hash(snapshot.getWireGuardPrivateKey());
+            checksum += hash(snapshot.getWireGuardPublicKey());
+            checksum += hash(snapshot.getWireGuardPresharedKey());
+            checksum += hash(snapshot.getWireGuardIpAddress());
+        }
+        return checksum;
+    }
+
+    private static int hash(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+}
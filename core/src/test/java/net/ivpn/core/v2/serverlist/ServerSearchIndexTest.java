@@ -0,0 +1,200 @@
+package net.ivpn.core.v2.serverlist;
+
+/*
+ IVPN Android app
+ https://github.com/ivpn/android-app
+
+ Created by Oleksandr Mykhailenko.
+ Copyright (c) 2023 IVPN Limited.
+
+ This file is part of the IVPN Android app.
+
+ The IVPN Android app is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as published by the Free
+ Software Foundation, either version 3 of the License, or (at your option) any later version.
+
+ The IVPN Android app is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more
+ details.
+
+ You should have received a copy of the GNU General Public License
+ along with the IVPN Android app. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+import net.ivpn.core.rest.data.model.Host;
+import net.ivpn.core.rest.data.model.Server;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerSearchIndexTest {
+
+    private static final int BUSAN = 0;
+    private static final int SANTIAGO = 1;
+    private static final int SAN_JOSE = 2;
+    private static final int BERLIN = 3;
+    private static final int BERN = 4;
+    private static final int ZURICH = 5;
+    private static final int ABERDEEN = 6;
+    private static final int SAO_PAULO = 7;
+
+    private final List<Server> servers = Arrays.asList(
+            server("kr1.gw.ivpn.net", "KR", "South Korea", "Busan"),
+            server("cl1.gw.ivpn.net", "CL", "Chile", "Santiago"),
+            server("us1.gw.ivpn.net", "US", "United States", "San Jose"),
+            server("de1.gw.ivpn.net", "DE", "Germany", "Berlin", "de1.wg.ivpn.net"),
+            server("ch1.gw.ivpn.net", "CH", "Switzerland", "Bern"),
+            server("ch2.gw.ivpn.net", "CH", "Switzerland", "Zürich"),
+            server("gb1.gw.ivpn.net", "GB", "United Kingdom", "Aberdeen"),
+            server("br1.gw.ivpn.net", "BR", "Brazil", "São Paulo")
+    );
+
+    @Test
+    public void exactWordsRankBeforePrefixesAndSubstrings() {
+        ServerSearchIndex.Result result = new ServerSearchIndex(servers).search("san");
+
+        assertArrayEquals(new int[]{SAN_JOSE, SANTIAGO, BUSAN}, result.getPositions());
+        assertArrayEquals(new int[]{
+                ServerSearchIndex.RANK_EXACT,
+                ServerSearchIndex.RANK_PREFIX,
+                ServerSearchIndex.RANK_SUBSTRING
+        }, result.getRanks());
+    }
+
+    @Test
+    public void equalRanksKeepListOrder() {
+        ServerSearchIndex.Result result = new ServerSearchIndex(servers).search("ber");
+
+        assertArrayEquals(new int[]{BERLIN, BERN, ABERDEEN}, result.getPositions());
+        assertArrayEquals(new int[]{
+                ServerSearchIndex.RANK_PREFIX,
+                ServerSearchIndex.RANK_PREFIX,
+                ServerSearchIndex.RANK_SUBSTRING
+        }, result.getRanks());
+    }
+
+    @Test
+    public void countryCodesGatewaysAndHostnamesMatch() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+
+        //Country code of Bern and Zürich, prefix of Chile
+        assertArrayEquals(new int[]{BERN, ZURICH, SANTIAGO}, index.search("ch").getPositions());
+        assertArrayEquals(new int[]{BERLIN}, index.search("de1.wg").getPositions());
+        assertArrayEquals(new int[]{ABERDEEN}, index.search("kingdom").getPositions());
+    }
+
+    @Test
+    public void accentsAndCaseAreIgnored() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+
+        assertArrayEquals(new int[]{ZURICH}, index.search("zurich").getPositions());
+        assertArrayEquals(new int[]{ZURICH}, index.search("ZÜRICH").getPositions());
+        assertArrayEquals(new int[]{SAO_PAULO}, index.search("sao paulo").getPositions());
+        assertArrayEquals(new int[]{ServerSearchIndex.RANK_EXACT}, index.search("São Paulo").getRanks());
+        //Decomposed form of "São"
+        assertArrayEquals(new int[]{SAO_PAULO}, index.search("Sa\u0303o").getPositions());
+    }
+
+    @Test
+    public void extendedQueryChecksOnlyPreviousMatches() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+
+        index.search("b");
+        assertEquals(servers.size(), index.getScannedCount());
+
+        ServerSearchIndex.Result result = index.search("be");
+        assertEquals(5, index.getScannedCount());
+        assertResultsEqual(new ServerSearchIndex(servers).search("be"), result);
+
+        result = index.search("ber");
+        assertEquals(3, index.getScannedCount());
+        assertResultsEqual(new ServerSearchIndex(servers).search("ber"), result);
+
+        result = index.search("berl");
+        assertEquals(3, index.getScannedCount());
+        assertArrayEquals(new int[]{BERLIN}, result.getPositions());
+
+        result = index.search("berlin");
+        assertEquals(1, index.getScannedCount());
+        assertArrayEquals(new int[]{ServerSearchIndex.RANK_EXACT}, result.getRanks());
+    }
+
+    @Test
+    public void shorterQueryFallsBackToFullScan() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+        index.search("ber");
+        index.search("bern");
+        assertEquals(3, index.getScannedCount());
+
+        ServerSearchIndex.Result result = index.search("be");
+        assertEquals(servers.size(), index.getScannedCount());
+        assertResultsEqual(new ServerSearchIndex(servers).search("be"), result);
+
+        //Neither query contains the other one
+        result = index.search("san");
+        assertEquals(servers.size(), index.getScannedCount());
+        assertArrayEquals(new int[]{SAN_JOSE, SANTIAGO, BUSAN}, result.getPositions());
+    }
+
+    @Test
+    public void queryWithoutMatchesKeepsNothingToScan() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+
+        assertEquals(0, index.search("xyz").getPositions().length);
+        assertEquals(0, index.search("xyzw").getPositions().length);
+        assertEquals(0, index.getScannedCount());
+    }
+
+    @Test
+    public void emptyQueryMatchesEverythingAndStartsOver() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+        index.search("ber");
+
+        ServerSearchIndex.Result result = index.search("  ");
+        assertEquals(servers.size(), result.getPositions().length);
+        assertEquals(0, index.getScannedCount());
+
+        index.search("berl");
+        assertEquals(servers.size(), index.getScannedCount());
+    }
+
+    @Test
+    public void builtForSameServersInSameOrder() {
+        ServerSearchIndex index = new ServerSearchIndex(servers);
+
+        assertTrue(index.isBuiltFor(servers));
+        assertFalse(index.isBuiltFor(servers.subList(1, servers.size())));
+        List<Server> reversed = Arrays.asList(servers.toArray(new Server[0]));
+        Collections.reverse(reversed);
+        assertFalse(index.isBuiltFor(reversed));
+    }
+
+    private static void assertResultsEqual(ServerSearchIndex.Result expected, ServerSearchIndex.Result actual) {
+        assertArrayEquals(expected.getPositions(), actual.getPositions());
+        assertArrayEquals(expected.getRanks(), actual.getRanks());
+    }
+
+    private static Server server(String gateway, String countryCode, String country, String city, String... hostnames) {
+        Server server = new Server();
+        server.setGateway(gateway);
+        server.setCountryCode(countryCode);
+        server.setCountry(country);
+        server.setCity(city);
+        Host[] hosts = new Host[hostnames.length];
+        for (int i = 0; i < hostnames.length; i++) {
+            hosts[i] = new Host();
+            hosts[i].setHostname(hostnames[i]);
+        }
+        server.setHosts(Arrays.asList(hosts));
+        return server;
+    }
+}